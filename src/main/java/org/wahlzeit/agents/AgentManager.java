@@ -43,6 +43,8 @@ public class AgentManager {
 	 */
 	protected static void initInstance() {
 		getInstance().addAgent(new NotifyUsersAboutPraiseAgent());
+		getInstance().addAgent(new WriteModelSnapshotAgent());
+		getInstance().addAgent(new FlushWriteBehindQueueAgent());
 	}
 
 	/**
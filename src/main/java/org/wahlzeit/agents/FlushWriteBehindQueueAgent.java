@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.agents;
+
+import org.wahlzeit.model.PraiseAggregator;
+import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.WriteBehindQueue;
+
+import java.util.logging.Logger;
+
+/**
+ * An agent class to flush the PraiseAggregator and the WriteBehindQueue in case no request came in that did it.
+ */
+public class FlushWriteBehindQueueAgent extends Agent {
+
+	public static final String NAME = "flushWriteBehindQueue";
+
+	private static final Logger log = Logger.getLogger(FlushWriteBehindQueueAgent.class.getName());
+
+	public FlushWriteBehindQueueAgent() {
+		initialize(NAME);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void doRun() {
+		PraiseAggregator praiseAggregator = PraiseAggregator.getInstance();
+		praiseAggregator.flushIfDue();
+		WriteBehindQueue queue = WriteBehindQueue.getInstance();
+		queue.flushIfDue();
+		log.config(LogBuilder.createSystemMessage().
+				addParameter("praise aggregator metrics", praiseAggregator.getMetricsAsString()).
+				addParameter("write-behind metrics", queue.getMetricsAsString()).toString());
+	}
+
+}
@@ -16,7 +16,6 @@ import org.wahlzeit.services.mailing.EmailServiceManager;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.Map;
 import java.util.logging.Logger;
 
 /**
@@ -38,12 +37,13 @@ public class NotifyUsersAboutPraiseAgent extends Agent {
 	 * Notifies all users that want to get informed if their photos have been praised.
 	 */
 	protected void doRun() {
-		Map<PhotoId, Photo> photoCache = PhotoManager.getInstance().getPhotoCache();
-		Collection<Photo> photos = photoCache.values();
+		// the cache is bounded, so go through all known ids; evicted photos are reloaded on demand
+		Collection<PhotoId> photoIds = PhotoManager.getInstance().getPhotoIds();
 
 		ArrayList<Photo> arrayListOfPhotos;
 		HashMap<String, ArrayList<Photo>> ownerIdPhotosMap = new HashMap<String, ArrayList<Photo>>();
-		for (Photo photo : photos) {
+		for (PhotoId photoId : photoIds) {
+			Photo photo = PhotoManager.getInstance().getPhoto(photoId);
 			if (photo != null && photo.isVisible() && photo.hasNewPraise()) {
 				String ownerId = photo.getOwnerId();
 				if (ownerId != null) {
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.agents;
+
+import org.wahlzeit.model.persistence.ModelSnapshot;
+import org.wahlzeit.services.LogBuilder;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * An agent class to write the in-memory model to the ModelSnapshot, so that new instances can start from it.
+ */
+public class WriteModelSnapshotAgent extends Agent {
+
+	public static final String NAME = "writeModelSnapshot";
+
+	private static final Logger log = Logger.getLogger(WriteModelSnapshotAgent.class.getName());
+
+	public WriteModelSnapshotAgent() {
+		initialize(NAME);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void doRun() {
+		try {
+			ModelSnapshot.getInstance().write();
+		} catch (IOException e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addException("Could not write model snapshot", e).toString());
+		}
+	}
+
+}
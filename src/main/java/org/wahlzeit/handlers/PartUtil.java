@@ -139,6 +139,9 @@ public interface PartUtil {
 
 	String SHOW_PHOTO_CASES_PAGE_NAME = "cases";
 	String SHOW_PHOTO_CASES_PAGE_FILE = "pages/ShowPhotoCasesPage";
+
+	String SHOW_BEST_PHOTOS_PAGE_NAME = "best";
+	String SHOW_BEST_PHOTOS_PAGE_FILE = "pages/ShowBestPhotosPage";
 	String EDIT_PHOTO_CASE_FORM_NAME = "editPhotoCaseForm";
 	String EDIT_PHOTO_CASE_FORM_FILE = "forms/EditPhotoCaseForm";
 
@@ -25,6 +25,8 @@ import org.wahlzeit.model.Client;
 import org.wahlzeit.model.Photo;
 import org.wahlzeit.model.PhotoId;
 import org.wahlzeit.model.PhotoManager;
+import org.wahlzeit.model.PraiseAggregator;
+import org.wahlzeit.model.UserManager;
 import org.wahlzeit.model.UserSession;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.utils.StringUtil;
@@ -81,10 +83,15 @@ public class PraisePhotoFormHandler extends AbstractWebFormHandler {
 		if (!StringUtil.isNullOrEmptyString(praise)) {
 			if (!us.hasPraisedPhoto(photo)) {
 				int value = Integer.parseInt(praise);
-				photo.addToPraise(value);
-				client.addPraisedPhotoId(photo.getId());
-				us.addProcessedPhoto(photo);
-				wasPraised = true;
+				if (PraiseAggregator.getInstance().addPraise(client, photo, value)) {
+					client.addPraisedPhotoId(photo.getId());
+					if (!us.isGuestTokenMode()) { // the token carries the praise of a token guest
+						UserManager.getInstance().saveClient(client); // not later, the praise history must survive
+					}
+					us.addPraisedPhoto(photo);
+					us.addProcessedPhoto(photo);
+					wasPraised = true;
+				}
 			}
 		}
 
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.handlers;
+
+import org.wahlzeit.model.AccessRights;
+import org.wahlzeit.model.ModelConfig;
+import org.wahlzeit.model.Photo;
+import org.wahlzeit.model.PhotoId;
+import org.wahlzeit.model.PhotoLeaderboard;
+import org.wahlzeit.model.PhotoManager;
+import org.wahlzeit.model.Tags;
+import org.wahlzeit.model.UserSession;
+import org.wahlzeit.utils.HtmlUtil;
+import org.wahlzeit.utils.StringUtil;
+import org.wahlzeit.webparts.WebPart;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A handler class for a specific web page. It shows the photos with the highest score of the PhotoLeaderboard,
+ * site-wide or for the tag given as argument.
+ */
+public class ShowBestPhotosPageHandler extends AbstractWebPageHandler {
+
+	/**
+	 *
+	 */
+	public static final String TAG = "tag";
+
+	/**
+	 * Number of photos shown
+	 */
+	public static final int NO_PHOTOS = 24;
+
+	/**
+	 *
+	 */
+	public ShowBestPhotosPageHandler() {
+		initialize(PartUtil.SHOW_BEST_PHOTOS_PAGE_FILE, AccessRights.GUEST);
+	}
+
+	/**
+	 *
+	 */
+	protected String doHandleGet(UserSession us, String link, Map args) {
+		if (args != null) {
+			String tag = us.getAsString(args, TAG);
+			if (!StringUtil.isNullOrEmptyString(tag)) {
+				us.setSavedArg(TAG, Tags.asTag(tag));
+			}
+		}
+		return link;
+	}
+
+	/**
+	 *
+	 */
+	protected void makeWebPageBody(UserSession us, WebPart page) {
+		// the tag is only needed for this page; removing it keeps the saved args of the session empty
+		String tag = (String) us.getSavedArgs().remove(TAG);
+		PhotoLeaderboard leaderboard = PhotoLeaderboard.getInstance();
+		List<PhotoId> photoIds;
+		if (StringUtil.isNullOrEmptyString(tag)) {
+			page.addString(TAG, "");
+			photoIds = leaderboard.getTopPhotoIds(NO_PHOTOS);
+		} else {
+			page.maskAndAddString(TAG, " (" + tag + ")");
+			photoIds = leaderboard.getTopPhotoIds(tag, NO_PHOTOS);
+		}
+
+		ModelConfig config = us.getClient().getLanguageConfiguration();
+		Map<PhotoId, Photo> photos = PhotoManager.getInstance().getPhotos(photoIds);
+		StringBuilder html = new StringBuilder();
+		for (PhotoId photoId : photoIds) {
+			Photo photo = photos.get(photoId);
+			if (photo != null && photo.isVisible()) {
+				String link = getResourceAsRelativeHtmlPathString(photoId.asString());
+				html.append(HtmlUtil.asHref(link, getPhotoThumb(us, photo))).append(' ');
+				html.append(photo.getPraiseAsString(config)).append("<br />");
+			}
+		}
+
+		if (html.length() != 0) {
+			page.addString("photos", HtmlUtil.asP(html.toString()));
+		} else {
+			page.addString("photos", HtmlUtil.asP(config.getNoBestPhotos()));
+		}
+	}
+
+}
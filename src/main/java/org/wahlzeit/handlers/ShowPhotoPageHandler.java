@@ -34,6 +34,8 @@ import org.wahlzeit.webparts.WebPart;
 import org.wahlzeit.webparts.Writable;
 import org.wahlzeit.webparts.WritableList;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -53,12 +55,24 @@ public class ShowPhotoPageHandler extends AbstractWebPageHandler implements WebF
 	 */
 	protected String doHandleGet(UserSession us, String link, Map args) {
 		Photo photo = null;
+		PhotoManager photoManager = PhotoManager.getInstance();
 
+		// the requested photo and the last praised one for the sidebar may both have to be loaded, so load them together
+		List<PhotoId> photoIds = new ArrayList<PhotoId>(2);
+		PhotoId requestedPhotoId = null;
 		if (!link.equals(PartUtil.SHOW_PHOTO_PAGE_NAME)) {
-			photo = PhotoManager.getInstance().getPhoto(link);
+			requestedPhotoId = PhotoId.getIdFromString(link);
+			photoIds.add(requestedPhotoId);
+		}
+		PhotoId lastPraisedPhotoId = us.getClient().getLastPraisedPhotoId();
+		if (lastPraisedPhotoId != null) {
+			photoIds.add(lastPraisedPhotoId);
+		}
+		Map<PhotoId, Photo> photos = photoManager.getPhotos(photoIds);
+		if (requestedPhotoId != null) {
+			photo = photos.get(requestedPhotoId);
 		}
 
-		PhotoManager photoManager = PhotoManager.getInstance();
 		// check if an image has been skipped
 		if (args.containsKey("prior")) {
 			String skippedPhotoIdString = us.getAsString(args, "prior");
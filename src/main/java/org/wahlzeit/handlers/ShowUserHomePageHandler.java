@@ -22,6 +22,7 @@ package org.wahlzeit.handlers;
 
 import org.wahlzeit.model.AccessRights;
 import org.wahlzeit.model.Photo;
+import org.wahlzeit.model.PhotoId;
 import org.wahlzeit.model.PhotoManager;
 import org.wahlzeit.model.User;
 import org.wahlzeit.model.UserSession;
@@ -30,11 +31,19 @@ import org.wahlzeit.webparts.WebPart;
 import org.wahlzeit.webparts.Writable;
 import org.wahlzeit.webparts.WritableList;
 
+import java.util.List;
+import java.util.Map;
+
 /**
  * A handler class for a specific web page.
  */
 public class ShowUserHomePageHandler extends AbstractWebPageHandler {
 
+	/**
+	 * Maximum number of photos shown, the most praised ones first
+	 */
+	public static final int MAX_NO_PHOTOS = 100;
+
 	/**
 	 *
 	 */
@@ -50,13 +59,14 @@ public class ShowUserHomePageHandler extends AbstractWebPageHandler {
 		page.addWritable("profile", part);
 
 		User user = (User) us.getClient();
-		Photo[] photos = user.getPhotos();
+		List<PhotoId> photoIds = user.getPhotoIdsReverseOrderedByPraise(0, MAX_NO_PHOTOS);
 		boolean wasEmpty = true;
-		if (photos.length != 0) {
+		if (!photoIds.isEmpty()) {
 			WritableList list = new WritableList();
-			for (Photo photo : photos) {
-				// load it from the PhotoManager to make sure the same copy is used
-				photo = PhotoManager.getInstance().getPhotoFromId(photo.getId());
+			// load them from the PhotoManager to make sure the same copies are used
+			Map<PhotoId, Photo> photos = PhotoManager.getInstance().getPhotos(photoIds);
+			for (PhotoId photoId : photoIds) {
+				Photo photo = photos.get(photoId);
 				if (photo != null && !photo.getStatus().isDeleted()) {
 					part = makeUserPhotoForm(us, photo);
 					list.append(part);
@@ -21,7 +21,6 @@
 package org.wahlzeit.handlers;
 
 import com.google.appengine.api.images.Image;
-import org.wahlzeit.agents.AsyncTaskExecutor;
 import org.wahlzeit.model.AccessRights;
 import org.wahlzeit.model.ModelConfig;
 import org.wahlzeit.model.MushroomPhotoManager;
@@ -29,6 +28,7 @@ import org.wahlzeit.model.Photo;
 import org.wahlzeit.model.PhotoManager;
 import org.wahlzeit.model.Tags;
 import org.wahlzeit.model.User;
+import org.wahlzeit.model.UserManager;
 import org.wahlzeit.model.UserSession;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.utils.StringUtil;
@@ -91,10 +91,11 @@ public class UploadPhotoFormHandler extends AbstractWebFormHandler {
 
 			us.setTwoLineMessage(config.getPhotoUploadSucceeded(), config.getKeepGoing());
 			log.config(LogBuilder.createSystemMessage().
-					addAction("Calling async task to save Photo").
+					addAction("Save Photo").
 					addParameter("ID", photo.getId().asString()).toString());
 
-			AsyncTaskExecutor.savePhotoAsync(photo.getId().asString());
+			pm.savePhoto(photo);
+			UserManager.getInstance().saveClient(user);
 		} catch (Exception ex) {
 			log.warning(LogBuilder.createSystemMessage().addException("uploading photo failed", ex).toString());
 			us.setMessage(config.getPhotoUploadFailed());
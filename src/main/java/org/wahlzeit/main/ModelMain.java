@@ -28,10 +28,12 @@ import org.wahlzeit.model.PhotoCaseManager;
 import org.wahlzeit.model.MushroomPhotoFactory;
 import org.wahlzeit.model.MushroomPhotoManager;
 import org.wahlzeit.model.PhotoManager;
+import org.wahlzeit.model.ShardedPraiseCounter;
 import org.wahlzeit.model.User;
 import org.wahlzeit.model.UserManager;
 import org.wahlzeit.model.persistence.DatastoreAdapter;
 import org.wahlzeit.model.persistence.ImageStorage;
+import org.wahlzeit.model.persistence.ModelSnapshot;
 import org.wahlzeit.services.LogBuilder;
 
 import java.io.File;
@@ -59,17 +61,59 @@ public abstract class ModelMain extends AbstractMain {
 		//GcsAdapter.Builder gcsAdapterBuilder = new GcsAdapter.Builder();
 		ImageStorage.setInstance(new DatastoreAdapter());
 
-		log.config(LogBuilder.createSystemMessage().addAction("load globals").toString());
-		GlobalsManager.getInstance().loadGlobals();
-
-		log.config(LogBuilder.createSystemMessage().addAction("load user").toString());
-		UserManager.getInstance().init();
-		
 		log.config(LogBuilder.createSystemMessage().addAction("init MushroomPhotoFactory").toString());
 		MushroomPhotoFactory.initialize();
 
-		log.config(LogBuilder.createSystemMessage().addAction("load Photos").toString());
-		MushroomPhotoManager.getInstance().init();
+		log.config(LogBuilder.createSystemMessage().addAction("restore model snapshot").toString());
+		if (!ModelSnapshot.getInstance().restore()) {
+			loadModel();
+		}
+	}
+
+	/**
+	 * Loads globals first, as they hold the id counters, then users, photos, praise shards and open photo cases
+	 * concurrently; see {@link StartupLoader}.
+	 */
+	protected void loadModel() throws Exception {
+		// create the singletons here, the phases below use them from several threads
+		final GlobalsManager globalsManager = GlobalsManager.getInstance();
+		final UserManager userManager = UserManager.getInstance();
+		final PhotoManager photoManager = MushroomPhotoManager.getInstance();
+		final PhotoCaseManager photoCaseManager = PhotoCaseManager.getInstance();
+		final ShardedPraiseCounter praiseCounter = ShardedPraiseCounter.getInstance();
+
+		final StartupLoader loader = new StartupLoader();
+		loader.addBarrierPhase("load globals", new Runnable() {
+			@Override
+			public void run() {
+				globalsManager.loadGlobals();
+			}
+		});
+		loader.addPhase("load users", new Runnable() {
+			@Override
+			public void run() {
+				userManager.loadExistingUsers(loader.getBatchSize());
+			}
+		});
+		loader.addPhase("load photos", new Runnable() {
+			@Override
+			public void run() {
+				photoManager.loadPhotos(loader.getBatchSize(), loader.getWorkerPool());
+			}
+		});
+		loader.addPhase("load praise shards", new Runnable() {
+			@Override
+			public void run() {
+				praiseCounter.loadShards();
+			}
+		});
+		loader.addPhase("load photo cases", new Runnable() {
+			@Override
+			public void run() {
+				photoCaseManager.init();
+			}
+		});
+		loader.run();
 	}
 
 
@@ -78,6 +122,7 @@ public abstract class ModelMain extends AbstractMain {
 	 */
 	protected void shutDown() throws Exception {
 		saveAll();
+		ModelSnapshot.getInstance().write();
 
 		super.shutDown();
 	}
@@ -27,10 +27,12 @@ import org.wahlzeit.model.AccessRights;
 import org.wahlzeit.model.EnglishModelConfig;
 import org.wahlzeit.model.GermanModelConfig;
 import org.wahlzeit.model.LanguageConfigs;
+import org.wahlzeit.model.PraiseAggregator;
 import org.wahlzeit.services.ConfigDir;
 import org.wahlzeit.services.Language;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.SysConfig;
+import org.wahlzeit.services.WriteBehindQueue;
 import org.wahlzeit.utils.PatternInstance;
 import org.wahlzeit.webparts.WebPartTemplateService;
 
@@ -213,6 +215,9 @@ public class ServiceMain extends ModelMain {
 		manager.addWebPartHandler(PartUtil.EDIT_PHOTO_CASE_FORM_NAME, new EditPhotoCaseFormHandler());
 		manager.addWebPartHandler(PartUtil.SHOW_PHOTO_CASES_PAGE_NAME, new ShowPhotoCasesPageHandler());
 
+		// ShowBestPhotos page
+		manager.addWebPartHandler(PartUtil.SHOW_BEST_PHOTOS_PAGE_NAME, new ShowBestPhotosPageHandler());
+
 		// Admin page incl. AdminUserProfile and AdminUserPhoto
 		temp = new ShowAdminPageHandler();
 		manager.addWebPartHandler(PartUtil.SHOW_ADMIN_PAGE_NAME, temp);
@@ -253,6 +258,16 @@ public class ServiceMain extends ModelMain {
 		//AgentManager am = AgentManager.getInstance();
 		//am.stopAllThreads();
 
+		// the photos with new votes go to the write-behind queue, so drain the praise aggregator first
+		log.config(LogBuilder.createSystemMessage().addAction("Drain praise aggregator").toString());
+		PraiseAggregator.getInstance().drain();
+
+		log.config(LogBuilder.createSystemMessage().addAction("Drain write-behind queue").toString());
+		if (!WriteBehindQueue.getInstance().drain()) {
+			log.warning(LogBuilder.createSystemMessage().
+					addMessage("some queued entities could not be written").toString());
+		}
+
 		super.shutDown();
 	}
 
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.main;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.utils.SystemProperty;
+import org.wahlzeit.services.LogBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * The StartupLoader runs the phases of a cold start, e.g. loading globals, users and photos, concurrently and waits for
+ * all of them. A barrier phase, e.g. loading the id counters the other phases depend on, runs alone: after the phases
+ * added before it and before the phases added after it. Phases can hand post-processing work to a bounded worker pool; when the pool's queue is full, the
+ * submitting phase runs the work itself, which slows down fetching instead of piling up loaded entities.
+ *
+ * The time of each phase, of the post-processing and of the whole startup is logged and kept for inspection.
+ */
+public class StartupLoader {
+
+	private static final Logger log = Logger.getLogger(StartupLoader.class.getName());
+
+	/**
+	 *
+	 */
+	public static final String WORKER_THREADS_PROPERTY = "org.wahlzeit.startup.workerThreads";
+	public static final String BATCH_SIZE_PROPERTY = "org.wahlzeit.startup.batchSize";
+
+	/**
+	 *
+	 */
+	public static final int DEFAULT_WORKER_THREADS = 4;
+	public static final int DEFAULT_BATCH_SIZE = 500;
+	protected static final int QUEUED_TASKS_PER_WORKER = 4;
+	protected static final long MAX_POST_PROCESSING_MINUTES = 10;
+
+	/**
+	 *
+	 */
+	public static final String POST_PROCESSING = "post-processing";
+	public static final String TOTAL = "total";
+
+	/**
+	 *
+	 */
+	protected final int batchSize;
+	protected final ThreadFactory threadFactory;
+	protected final ThreadPoolExecutor workerPool;
+
+	/**
+	 * Stages in the order they are run; each maps phase name -> phase, in the order they were added
+	 */
+	protected final List<Map<String, Runnable>> stages = new ArrayList<Map<String, Runnable>>();
+
+	/**
+	 * Name -> duration in ms
+	 */
+	protected final Map<String, Long> timings = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+
+	/**
+	 * @methodtype constructor
+	 */
+	public StartupLoader() {
+		this(Integer.getInteger(WORKER_THREADS_PROPERTY, DEFAULT_WORKER_THREADS),
+				Integer.getInteger(BATCH_SIZE_PROPERTY, DEFAULT_BATCH_SIZE), createThreadFactory());
+	}
+
+	/**
+	 * @methodtype constructor
+	 */
+	public StartupLoader(int workerThreads, int batchSize, ThreadFactory threadFactory) {
+		if (workerThreads <= 0 || batchSize <= 0) {
+			throw new IllegalArgumentException("worker threads and batch size must be positive");
+		}
+
+		this.batchSize = batchSize;
+		this.threadFactory = threadFactory;
+		this.workerPool = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(workerThreads * QUEUED_TASKS_PER_WORKER), threadFactory,
+				new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * @methodtype factory
+	 *
+	 * On App Engine, threads must be created through the ThreadManager to be allowed to use the App Engine services.
+	 */
+	protected static ThreadFactory createThreadFactory() {
+		if (SystemProperty.environment != null && SystemProperty.environment.value() != null) {
+			return ThreadManager.currentRequestThreadFactory();
+		}
+		return Executors.defaultThreadFactory();
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void addPhase(String name, Runnable phase) {
+		if (stages.isEmpty()) {
+			stages.add(new LinkedHashMap<String, Runnable>());
+		}
+		stages.get(stages.size() - 1).put(name, phase);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds a phase that starts when all phases added before have ended; phases added afterwards start when it has ended.
+	 */
+	public void addBarrierPhase(String name, Runnable phase) {
+		Map<String, Runnable> stage = new LinkedHashMap<String, Runnable>();
+		stage.put(name, phase);
+		stages.add(stage);
+		stages.add(new LinkedHashMap<String, Runnable>());
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public Executor getWorkerPool() {
+		return workerPool;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public Map<String, Long> getTimings() {
+		synchronized (timings) {
+			return new LinkedHashMap<String, Long>(timings);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Runs the phases of each stage concurrently, one stage after the other, then waits until all post-processing is
+	 * done. Throws the first exception of a failed phase after all phases of its stage have ended; later stages are
+	 * not started then.
+	 */
+	public void run() throws Exception {
+		long startTime = System.currentTimeMillis();
+		int maxStageSize = 1;
+		for (Map<String, Runnable> stage : stages) {
+			maxStageSize = Math.max(maxStageSize, stage.size());
+		}
+		ExecutorService phaseExecutor = Executors.newFixedThreadPool(maxStageSize, threadFactory);
+		try {
+			Exception failure = null;
+			for (Map<String, Runnable> stage : stages) {
+				failure = runStage(phaseExecutor, stage);
+				if (failure != null) {
+					break;
+				}
+			}
+
+			long postProcessingStart = System.currentTimeMillis();
+			workerPool.shutdown();
+			if (!workerPool.awaitTermination(MAX_POST_PROCESSING_MINUTES, TimeUnit.MINUTES)) {
+				log.warning(LogBuilder.createSystemMessage().
+						addMessage("startup post-processing did not finish in time").toString());
+			}
+			timings.put(POST_PROCESSING, System.currentTimeMillis() - postProcessingStart);
+
+			if (failure != null) {
+				throw failure;
+			}
+		} finally {
+			phaseExecutor.shutdown();
+			workerPool.shutdownNow();
+			timings.put(TOTAL, System.currentTimeMillis() - startTime);
+			logTimings();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Runs the phases of the stage concurrently and waits for all of them; returns the first exception, if any.
+	 */
+	protected Exception runStage(ExecutorService phaseExecutor, Map<String, Runnable> stage)
+			throws InterruptedException {
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (Map.Entry<String, Runnable> phase : stage.entrySet()) {
+			results.add(phaseExecutor.submit(createTimedPhase(phase.getKey(), phase.getValue())));
+		}
+
+		Exception result = null;
+		for (Future<?> phaseResult : results) {
+			try {
+				phaseResult.get();
+			} catch (ExecutionException e) {
+				if (result == null) {
+					result = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	protected Runnable createTimedPhase(final String name, final Runnable phase) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				long startTime = System.currentTimeMillis();
+				try {
+					phase.run();
+				} finally {
+					timings.put(name, System.currentTimeMillis() - startTime);
+				}
+			}
+		};
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected void logTimings() {
+		LogBuilder message = LogBuilder.createSystemMessage().addAction("startup timings in ms");
+		for (Map.Entry<String, Long> timing : getTimings().entrySet()) {
+			message.addParameter(timing.getKey(), timing.getValue());
+		}
+		log.info(message.toString());
+	}
+
+}
@@ -520,6 +520,13 @@ public abstract class AbstractModelConfig extends AbstractConfig implements Mode
 		return doGetValue("NoPhotoUploaded");
 	}
 
+	/**
+	 *
+	 */
+	public String getNoBestPhotos() {
+		return doGetValue("NoBestPhotos");
+	}
+
 	/**
 	 *
 	 */
@@ -24,15 +24,24 @@ import com.google.appengine.api.datastore.Key;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
 import com.googlecode.objectify.annotation.Ignore;
+import com.googlecode.objectify.annotation.IgnoreSave;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.OnLoad;
+import com.googlecode.objectify.annotation.OnSave;
 import com.googlecode.objectify.annotation.Parent;
 import org.wahlzeit.services.EmailAddress;
 import org.wahlzeit.services.Language;
 import org.wahlzeit.services.ObjectManager;
 import org.wahlzeit.services.Persistent;
+import org.wahlzeit.utils.RoaringBitmap;
+import org.wahlzeit.utils.VarInt;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * A Client uses the system. It is an abstract superclass. This package defines guest, user, moderator, and
@@ -44,6 +53,7 @@ public abstract class Client implements Serializable, Persistent {
 	public static final String ID = "id";
 	public static final String NICK_NAME = "nickName";
 	public static final String LANGUAGE = "language";
+	public static final String LAST_MODIFIED = "lastModified";
 
 	@Id
 	protected String id;
@@ -51,7 +61,7 @@ public abstract class Client implements Serializable, Persistent {
 	protected String nickName;
 
 	@Parent
-	protected Key parent = ObjectManager.applicationRootKey;
+	protected Key parent = ObjectManager.getParentKey();
 
 	/**
 	 *
@@ -64,7 +74,13 @@ public abstract class Client implements Serializable, Persistent {
 	protected AccessRights accessRights = AccessRights.NONE;
 
 	@Ignore
-	protected int writeCount = 0;
+	protected volatile int writeCount = 0;
+
+	/**
+	 *
+	 */
+	private static final AtomicIntegerFieldUpdater<Client> writeCountUpdater =
+			AtomicIntegerFieldUpdater.newUpdater(Client.class, "writeCount");
 
 	private String httpSessionId;
 
@@ -72,9 +88,45 @@ public abstract class Client implements Serializable, Persistent {
 
 	protected PhotoSize photoSize = PhotoSize.MEDIUM;
 
-	protected List<PhotoId> praisedPhotoIds = new ArrayList<PhotoId>();
+	/**
+	 * Maximum number of praised photos kept in the order they were praised in
+	 */
+	public static final int MAX_RECENT_PRAISED_PHOTOS = 16;
 
-	protected List<PhotoId> skippedPhotoIds = new ArrayList<PhotoId>();
+	/**
+	 * Praised and skipped photo ids as written by earlier versions; only read to migrate old entities
+	 */
+	@IgnoreSave
+	protected List<PhotoId> praisedPhotoIds = null;
+	@IgnoreSave
+	protected List<PhotoId> skippedPhotoIds = null;
+
+	/**
+	 * Praised and skipped photo ids as delta-varint encoded sets; a few bytes per photo instead of an embedded
+	 * entity, so that the Client entity stays small for clients with a long history
+	 */
+	protected byte[] praisedPhotoData = null;
+	protected byte[] skippedPhotoData = null;
+
+	/**
+	 * The last praised photo ids, oldest first; the sets above do not keep the praise order
+	 */
+	protected List<PhotoId> recentPraisedPhotoIds = new ArrayList<PhotoId>();
+
+	/**
+	 * Praised and skipped photo ids for lookups that do not depend on the length of the history; decoded when first
+	 * needed. Once decoded, they take precedence over the encoded data, which is brought up to date on save.
+	 */
+	@Ignore
+	protected transient RoaringBitmap praisedPhotos = new RoaringBitmap();
+	@Ignore
+	protected transient RoaringBitmap skippedPhotos = new RoaringBitmap();
+
+	/**
+	 * Time of the last save, so that changes since a point in time can be queried
+	 */
+	@Index
+	protected long lastModified = 0;
 
 
 	/**
@@ -89,6 +141,19 @@ public abstract class Client implements Serializable, Persistent {
 	 */
 	protected void initialize(String id, String nickName, EmailAddress emailAddress, AccessRights accessRights,
 							  Client previousClient) {
+		doInitialize(id, nickName, emailAddress, accessRights, previousClient);
+
+		UserManager.getInstance().addClient(this);
+	}
+
+	/**
+	 * @methodtype initialization
+	 * @methodproperty primitive
+	 *
+	 * Initializes the client without making it known to the UserManager.
+	 */
+	protected void doInitialize(String id, String nickName, EmailAddress emailAddress, AccessRights accessRights,
+								Client previousClient) {
 		this.id = id;
 		this.nickName = nickName;
 		this.accessRights = accessRights;
@@ -102,8 +167,6 @@ public abstract class Client implements Serializable, Persistent {
 		}
 
 		incWriteCount();
-
-		UserManager.getInstance().addClient(this);
 	}
 
 	/**
@@ -113,6 +176,72 @@ public abstract class Client implements Serializable, Persistent {
 		return id;
 	}
 
+	/**
+	 * @methodtype get
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	@OnSave
+	protected void updateLastModified() {
+		lastModified = System.currentTimeMillis();
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@OnSave
+	protected void encodePhotoHistory() {
+		if (praisedPhotos != null) {
+			praisedPhotoData = VarInt.toDeltaEncodedBytes(praisedPhotos);
+		}
+		if (skippedPhotos != null) {
+			skippedPhotoData = VarInt.toDeltaEncodedBytes(skippedPhotos);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Java serialization does not keep the transient photo sets, so the encoded data has to be current.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		encodePhotoHistory();
+		out.defaultWriteObject();
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Leaves the encoded photo history to be decoded when first needed; moves lists of earlier versions into it.
+	 */
+	@OnLoad
+	protected void loadPhotoHistory() {
+		praisedPhotos = null;
+		skippedPhotos = null;
+		if (recentPraisedPhotoIds == null) {
+			recentPraisedPhotoIds = new ArrayList<PhotoId>();
+		}
+
+		if (praisedPhotoIds != null) {
+			for (PhotoId photoId : praisedPhotoIds) {
+				getPraisedPhotos().add(photoId.asInt());
+				addRecentPraisedPhotoId(photoId);
+			}
+			praisedPhotoIds = null;
+		}
+		if (skippedPhotoIds != null) {
+			for (PhotoId photoId : skippedPhotoIds) {
+				getSkippedPhotos().add(photoId.asInt());
+			}
+			skippedPhotoIds = null;
+		}
+	}
+
 	/**
 	 * @methodtype get
 	 */
@@ -186,6 +315,16 @@ public abstract class Client implements Serializable, Persistent {
 		return emailAddress;
 	}
 
+	/**
+	 * @methodtype set
+	 */
+	public void setEmailAddress(EmailAddress newEmailAddress) {
+		EmailAddress oldEmailAddress = emailAddress;
+		emailAddress = newEmailAddress;
+		incWriteCount();
+		UserManager.getInstance().changeEmailAddress(this, oldEmailAddress);
+	}
+
 	/**
 	 *
 	 */
@@ -197,7 +336,7 @@ public abstract class Client implements Serializable, Persistent {
 	 *
 	 */
 	public void incWriteCount() {
-		writeCount++;
+		writeCountUpdater.incrementAndGet(this);
 	}
 
 	/**
@@ -207,6 +346,20 @@ public abstract class Client implements Serializable, Persistent {
 		writeCount = 0;
 	}
 
+	/**
+	 *
+	 */
+	public int getWriteCount() {
+		return writeCount;
+	}
+
+	/**
+	 *
+	 */
+	public boolean resetWriteCount(int writeCount) {
+		return writeCountUpdater.compareAndSet(this, writeCount, 0);
+	}
+
 	/**
 	 *
 	 */
@@ -273,34 +426,106 @@ public abstract class Client implements Serializable, Persistent {
 
 	/**
 	 * @methodtype get
+	 *
+	 * Returns the praised photo ids in ascending order.
 	 */
 	public List<PhotoId> getPraisedPhotoIds() {
-		return praisedPhotoIds;
+		return asPhotoIds(getPraisedPhotos());
 	}
 
 	/**
 	 * @methodtype set
+	 *
+	 * Sets the praised photo ids; the last ones of the list are taken as the most recently praised.
 	 */
 	public void setPraisedPhotoIds(List<PhotoId> praisedPhotoIds) {
-		this.praisedPhotoIds = praisedPhotoIds;
+		praisedPhotos = asBitmap(praisedPhotoIds);
+		recentPraisedPhotoIds = new ArrayList<PhotoId>();
+		for (PhotoId photoId : praisedPhotoIds) {
+			addRecentPraisedPhotoId(photoId);
+		}
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void addPraisedPhotoId(PhotoId ratedPhotoId) {
-		praisedPhotoIds.add(ratedPhotoId);
+		getPraisedPhotos().add(ratedPhotoId.asInt());
+		addRecentPraisedPhotoId(ratedPhotoId);
 		removeSkippedPhotoId(ratedPhotoId);
+		incWriteCount();
+	}
+
+	/**
+	 * @methodtype set
+	 * @methodproperty primitive
+	 */
+	protected void addRecentPraisedPhotoId(PhotoId photoId) {
+		recentPraisedPhotoIds.remove(photoId);
+		recentPraisedPhotoIds.add(photoId);
+		if (recentPraisedPhotoIds.size() > MAX_RECENT_PRAISED_PHOTOS) {
+			recentPraisedPhotoIds.remove(0);
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean hasPraisedPhotoId(PhotoId photoId) {
+		return getPraisedPhotos().contains(photoId.asInt());
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean hasPraisedPhotos() {
+		return !recentPraisedPhotoIds.isEmpty() || !getPraisedPhotos().isEmpty();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoPraisedPhotos() {
+		return getPraisedPhotos().getCardinality();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected RoaringBitmap getPraisedPhotos() {
+		if (praisedPhotos == null) {
+			praisedPhotos = VarInt.fromDeltaEncodedBytes(praisedPhotoData);
+		}
+		return praisedPhotos;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the most recently praised photo ids, oldest first.
+	 */
+	public List<PhotoId> getRecentPraisedPhotoIds() {
+		return recentPraisedPhotoIds;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public PhotoId getLastPraisedPhotoId() {
+		int noRecentPraisedPhotos = recentPraisedPhotoIds.size();
+		return noRecentPraisedPhotos == 0 ? null : recentPraisedPhotoIds.get(noRecentPraisedPhotos - 1);
 	}
 
 	/**
 	 * @methodtype get
+	 *
+	 * Returns the most recently praised photo that is still visible; only the recent praised photos are considered.
 	 */
 	public Photo getLastPraisedPhoto() {
-		int indexOfLastPraisedPhoto = praisedPhotoIds.size() - 1;
+		int indexOfLastPraisedPhoto = recentPraisedPhotoIds.size() - 1;
 		Photo result = null;
 		while (indexOfLastPraisedPhoto >= 0 && result == null) {
-			PhotoId lastPraisedPhotoId = praisedPhotoIds.get(indexOfLastPraisedPhoto);
+			PhotoId lastPraisedPhotoId = recentPraisedPhotoIds.get(indexOfLastPraisedPhoto);
 			result = PhotoManager.getInstance().getPhoto(lastPraisedPhotoId);
 			if (result != null && !result.isVisible()) {
 				result = null;
@@ -312,31 +537,70 @@ public abstract class Client implements Serializable, Persistent {
 
 	/**
 	 * @methodtype get
+	 *
+	 * Returns the skipped photo ids in ascending order.
 	 */
 	public List<PhotoId> getSkippedPhotoIds() {
-		return skippedPhotoIds;
+		return asPhotoIds(getSkippedPhotos());
 	}
 
 	/**
 	 * @methodtype get
 	 */
 	public void setSkippedPhotoIds(List<PhotoId> skippedPhotoIds) {
-		this.skippedPhotoIds = skippedPhotoIds;
+		skippedPhotos = asBitmap(skippedPhotoIds);
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void removeSkippedPhotoId(PhotoId skippedPhotoIdToRemove) {
-		skippedPhotoIds.remove(skippedPhotoIdToRemove);
+		getSkippedPhotos().remove(skippedPhotoIdToRemove.asInt());
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void addSkippedPhotoId(PhotoId skippedPhotoId) {
-		if (!skippedPhotoIds.contains(skippedPhotoId)) {
-			skippedPhotoIds.add(skippedPhotoId);
+		getSkippedPhotos().add(skippedPhotoId.asInt());
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean hasSkippedPhotoId(PhotoId photoId) {
+		return getSkippedPhotos().contains(photoId.asInt());
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected RoaringBitmap getSkippedPhotos() {
+		if (skippedPhotos == null) {
+			skippedPhotos = VarInt.fromDeltaEncodedBytes(skippedPhotoData);
+		}
+		return skippedPhotos;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected static RoaringBitmap asBitmap(List<PhotoId> photoIds) {
+		RoaringBitmap result = new RoaringBitmap();
+		for (PhotoId photoId : photoIds) {
+			result.add(photoId.asInt());
 		}
+		return result;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected static List<PhotoId> asPhotoIds(RoaringBitmap photoIds) {
+		List<PhotoId> result = new ArrayList<PhotoId>(photoIds.getCardinality());
+		for (int photoId : photoIds.toArray()) {
+			result.add(PhotoId.getIdFromInt(photoId));
+		}
+		return result;
 	}
 }
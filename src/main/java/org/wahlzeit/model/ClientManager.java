@@ -2,16 +2,26 @@ package org.wahlzeit.model;
 
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.ObjectManager;
+import org.wahlzeit.services.cache.ExpiringCache;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 /**
  * Abstract super class for UserManager. Contains all members and methods that can be offered for all Clients.
- * 
+ *
+ * Concurrent requests add, look up and remove clients, so the registries are concurrent maps, and all lookups take
+ * constant time regardless of the number of clients.
+ *
+ * Guests are kept apart from the other clients, in an ExpiringCache: a guest that has not been accessed for a while,
+ * or the least recently accessed ones if there are too many, are dropped together with their HttpSession mapping.
+ * So crawlers, which create a guest per request, do not make memory grow. A guest is only persisted once it has
+ * praised a photo; until then there is nothing worth a Datastore write.
+ *
  * @review
  */
 public abstract class ClientManager extends ObjectManager {
@@ -21,16 +31,32 @@ public abstract class ClientManager extends ObjectManager {
 	/**
 	 *
 	 */
-	protected static Long lastClientId = 0L;
+	protected static final AtomicLong lastClientId = new AtomicLong(0L);
+
+	/**
+	 *
+	 */
+	public static final String GUEST_MAXIMUM_SIZE_PROPERTY = "org.wahlzeit.guests.maximumSize";
+	public static final String GUEST_MAXIMUM_IDLE_TIME_PROPERTY = "org.wahlzeit.guests.maximumIdleTime";
+	public static final long DEFAULT_GUEST_MAXIMUM_SIZE = 10000;
+	public static final long DEFAULT_GUEST_MAXIMUM_IDLE_TIME = 30 * 60 * 1000; // in milliseconds
 
 	/**
 	 * Maps IDs to user
 	 */
-	protected Map<String, Client> idClientMap = new HashMap<String, Client>();
+	protected ConcurrentMap<String, Client> idClientMap = new ConcurrentHashMap<String, Client>();
 
-	protected HashMap<String, Client> httpSessionIdToClientMap = new HashMap<String, Client>();
+	protected ConcurrentMap<String, Client> httpSessionIdToClientMap = new ConcurrentHashMap<String, Client>();
 
-	protected List<String> listOfUsedNicknames = new ArrayList<String>();
+	protected NicknameIndex nicknameIndex = new NicknameIndex();
+
+	/**
+	 * Maps IDs to guests; guests are not in idClientMap and their nicknames, which are their IDs, are not indexed
+	 */
+	protected ExpiringCache<String, Guest> guests = new ExpiringCache<String, Guest>(
+			Long.getLong(GUEST_MAXIMUM_SIZE_PROPERTY, DEFAULT_GUEST_MAXIMUM_SIZE),
+			Long.getLong(GUEST_MAXIMUM_IDLE_TIME_PROPERTY, DEFAULT_GUEST_MAXIMUM_IDLE_TIME),
+			(id, guest) -> onGuestEvicted(guest));
 
 
 	// add methods -----------------------------------------------------------------------------------------------------
@@ -42,7 +68,17 @@ public abstract class ClientManager extends ObjectManager {
 	public void addClient(Client client) throws IllegalArgumentException {
 		assertIsNonNullArgument(client);
 		assertIsUnknownClientAsIllegalArgument(client);
-		assertNicknameIsNotUsed(client.getNickName());
+		if (client instanceof Guest) {
+			doAddClient(client);
+			return;
+		}
+		if (!nicknameIndex.reserve(client.getNickName(), client.getId())) {
+			throw new IllegalArgumentException("Nickname " + client.getNickName() + " is already used.");
+		}
+		if (idClientMap.putIfAbsent(client.getId(), client) != null) {
+			nicknameIndex.release(client.getNickName(), client.getId());
+			throw new IllegalArgumentException(client.getId() + "is already known");
+		}
 
 		doAddClient(client);
 	}
@@ -60,7 +96,7 @@ public abstract class ClientManager extends ObjectManager {
 	 * @methodtype assertion
 	 */
 	protected void assertNicknameIsNotUsed(String nickName) {
-		if (listOfUsedNicknames.contains(nickName)) {
+		if (nicknameIndex.isUsed(nickName)) {
 			throw new IllegalArgumentException("Nickname " + nickName + " is already used.");
 		}
 	}
@@ -70,9 +106,15 @@ public abstract class ClientManager extends ObjectManager {
 	 * @methodproperty primitive
 	 */
 	protected void doAddClient(Client client) {
-		idClientMap.put(client.getId(), client);
-		writeObject(client);
-		listOfUsedNicknames.add(client.getNickName());
+		if (client instanceof Guest) {
+			guests.put(client.getId(), (Guest) client);
+		} else {
+			idClientMap.put(client.getId(), client);
+			nicknameIndex.put(client.getNickName(), client.getId());
+		}
+		if (isWorthPersisting(client)) {
+			writeObject(client);
+		}
 		log.config(LogBuilder.createSystemMessage().addParameter("Added new user", client.getId()).toString());
 	}
 
@@ -104,7 +146,60 @@ public abstract class ClientManager extends ObjectManager {
 	 * @methodproperty primitive
 	 */
 	protected Client doGetClientById(String name) {
-		return idClientMap.get(name);
+		Client result = idClientMap.get(name);
+		if (result == null) {
+			result = guests.get(name);
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Loads a guest that has been dropped from memory, if it was persisted. Guests are saved below the parent of the
+	 * key strategy like all clients, see loadObjects.
+	 */
+	public Guest loadGuest(String id) {
+		assertIsNonNullArgument(id, "guest id");
+
+		log.config(LogBuilder.createSystemMessage().addParameter("load guest", id).toString());
+		Client client = loadObjects(Client.class).id(id).now();
+		if (!(client instanceof Guest)) {
+			return null;
+		}
+
+		Guest result = (Guest) client;
+		result.resetWriteCount(); // just loaded, so nothing to save
+		result.removeHttpSessionId();
+		guests.put(id, result);
+		return result;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 *
+	 * Returns whether the client carries state worth a Datastore write; for a guest, that is only praised photos.
+	 */
+	protected boolean isWorthPersisting(Client client) {
+		return !(client instanceof Guest) || client.hasPraisedPhotos();
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Called when a guest has been dropped from memory; its HttpSession mapping goes, too. Unsaved changes of a guest
+	 * worth persisting are saved right away, as the guest is nowhere else in memory, so it can be loaded again if its
+	 * session is still alive.
+	 */
+	protected void onGuestEvicted(Guest guest) {
+		String httpSessionId = guest.getHttpSessionId();
+		if (httpSessionId != null) {
+			httpSessionIdToClientMap.remove(httpSessionId, guest);
+		}
+		if (isWorthPersisting(guest) && guest.isDirty()) {
+			saveClient(guest);
+		}
+		log.config(LogBuilder.createSystemMessage().addParameter("evicted guest", guest.getId()).toString());
 	}
 
 	/**
@@ -138,7 +233,21 @@ public abstract class ClientManager extends ObjectManager {
 	 * @methodtype command
 	 */
 	public void saveClient(Client client) {
-		updateObject(client);
+		if (isWorthPersisting(client)) {
+			updateObject(client);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Saves the client with the next flush of the WriteBehindQueue. The queue is lost if the instance dies, so use it
+	 * only for changes that can be recomputed; praise goes through {@link #saveClient(Client)}.
+	 */
+	public void saveClientLater(Client client) {
+		if (isWorthPersisting(client)) {
+			writeObjectLater(client);
+		}
 	}
 
 
@@ -157,7 +266,13 @@ public abstract class ClientManager extends ObjectManager {
 	 * @methodtype command
 	 */
 	public void saveClients() {
-		updateObjects(idClientMap.values());
+		List<Client> clients = new ArrayList<Client>(idClientMap.values());
+		for (Guest guest : guests.values()) {
+			if (isWorthPersisting(guest)) {
+				clients.add(guest);
+			}
+		}
+		writeObjects(clients);
 	}
 
 
@@ -167,21 +282,21 @@ public abstract class ClientManager extends ObjectManager {
 	 * @methodtype get
 	 */
 	public Long getLastClientId() {
-		return lastClientId;
+		return lastClientId.get();
 	}
 
 	/**
 	 * @methodtype set
 	 */
-	public synchronized void setLastClientId(Long newId) {
-		lastClientId = newId;
+	public void setLastClientId(Long newId) {
+		lastClientId.set(newId);
 	}
 
 	/**
 	 * @methodtype get
 	 */
-	public synchronized Long getNextClientId() {
-		return ++lastClientId;
+	public Long getNextClientId() {
+		return lastClientId.incrementAndGet();
 	}
 
 
@@ -193,6 +308,7 @@ public abstract class ClientManager extends ObjectManager {
 	public void removeClient(Client client) {
 		saveClient(client);
 		idClientMap.remove(client.getId());
+		guests.remove(client.getId());
 	}
 
 	/**
@@ -201,7 +317,7 @@ public abstract class ClientManager extends ObjectManager {
 	 */
 	public void deleteClient(Client client) {
 		assertIsNonNullArgument(client);
-		assert idClientMap.containsValue(client);
+		assert hasClientById(client.getId());
 
 		removeHttpSessionIdToClientMapping(client.getHttpSessionId());
 		doDeleteClient(client);
@@ -213,10 +329,14 @@ public abstract class ClientManager extends ObjectManager {
 	 * @methodtype set
 	 */
 	private void removeHttpSessionIdToClientMapping(String httpSessionId) {
-		Client client = httpSessionIdToClientMap.get(httpSessionId);
-		client.removeHttpSessionId();
+		if (httpSessionId == null) {
+			return;
+		}
 
-		httpSessionIdToClientMap.remove(httpSessionId);
+		Client client = httpSessionIdToClientMap.remove(httpSessionId);
+		if (client != null) {
+			client.removeHttpSessionId();
+		}
 	}
 
 	/**
@@ -225,6 +345,8 @@ public abstract class ClientManager extends ObjectManager {
 	 */
 	protected void doDeleteClient(Client client) {
 		idClientMap.remove(client.getId());
+		guests.remove(client.getId());
+		nicknameIndex.release(client.getNickName(), client.getId());
 		deleteObject(client);
 	}
 
@@ -243,9 +365,11 @@ public abstract class ClientManager extends ObjectManager {
 	 * @methodtype set
 	 */
 	public void changeNickname(String oldNickName, String newNickName) throws IllegalArgumentException {
-		assertNicknameIsNotUsed(newNickName);
-
-		listOfUsedNicknames.remove(oldNickName);
-		listOfUsedNicknames.add(newNickName);
+		String clientId = nicknameIndex.getClientId(oldNickName);
+		if (clientId == null) { // client not registered yet, its nickname is reserved when it is added
+			assertNicknameIsNotUsed(newNickName);
+		} else if (!nicknameIndex.change(oldNickName, newNickName, clientId)) {
+			throw new IllegalArgumentException("Nickname " + newNickName + " is already used.");
+		}
 	}
 }
@@ -50,4 +50,18 @@ public class Guest extends Client {
 		String userId = GUEST_PREFIX + UserManager.getInstance().getNextClientId();
 		initialize(userId, userId, EmailAddress.EMPTY, AccessRights.GUEST, previousClient);
 	}
+
+	/**
+	 * Creates a guest for a visitor whose state is kept in a {@link GuestToken}. The guest is neither known to the
+	 * UserManager nor persisted, until the UserSession needs an HttpSession for the visitor.
+	 */
+	public Guest(GuestToken guestToken) {
+		String userId = guestToken.getGuestId();
+		doInitialize(userId, userId, EmailAddress.EMPTY, AccessRights.GUEST, null);
+		setLanguage(guestToken.getLanguage());
+		setPhotoSize(guestToken.getPhotoSize());
+		setPraisedPhotoIds(guestToken.getPraisedPhotoIds());
+		setSkippedPhotoIds(guestToken.getSkippedPhotoIds());
+	}
+
 }
@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.wahlzeit.services.Language;
+import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.utils.VarInt;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * A GuestToken holds the state of an anonymous visitor in a signed cookie instead of a Guest entity and an
+ * HttpSession: the language, the photo size, the filter tags, and the most recently praised or skipped photos. Most
+ * visitors never log in, so they never cost a Datastore write.
+ *
+ * The token is a varint encoding of its fields, followed by a truncated HMAC-SHA256 over them, in URL-safe base64.
+ * Each token carries the time it was issued and the time it expires, so a stolen cookie is not valid forever.
+ *
+ * The key must be the same on all instances and must not be in version control. It is read from the file named by
+ * {@link #SECRET_FILE_PROPERTY}, which is added at deployment, or from {@link #SECRET_PROPERTY} for tests. Without
+ * a key of at least {@link #MIN_SECRET_LENGTH} bytes, guest tokens stay disabled.
+ */
+public class GuestToken {
+
+	private static final Logger log = Logger.getLogger(GuestToken.class.getName());
+
+	/**
+	 *
+	 */
+	public static final String ENABLED_PROPERTY = "org.wahlzeit.guestToken.enabled";
+	public static final String SECRET_PROPERTY = "org.wahlzeit.guestToken.secret";
+	public static final String SECRET_FILE_PROPERTY = "org.wahlzeit.guestToken.secretFile";
+	public static final String DEFAULT_SECRET_FILE = "WEB-INF/guestToken.secret";
+	public static final int MIN_SECRET_LENGTH = 32; // in bytes
+
+	/**
+	 *
+	 */
+	public static final String COOKIE_NAME = "wahlzeitGuest";
+	public static final int COOKIE_MAX_AGE = 30 * 24 * 60 * 60; // in seconds
+
+	/**
+	 * Tokens issued up to this much in the future are accepted, as the clocks of instances may differ
+	 */
+	public static final int MAX_CLOCK_SKEW = 60; // in seconds
+
+	/**
+	 * Number of photos remembered, so a cookie stays well below the 4K browsers accept
+	 */
+	public static final int MAX_RECENT_PHOTOS = 64;
+
+	/**
+	 *
+	 */
+	protected static final int VERSION = 2;
+	protected static final int MAC_LENGTH = 16;
+	protected static final String MAC_ALGORITHM = "HmacSHA256";
+
+	/**
+	 *
+	 */
+	protected static final SecureRandom random = new SecureRandom();
+
+	/**
+	 *
+	 */
+	protected static SecretKeySpec secretKey = null;
+	protected static boolean hasWarnedAboutSecret = false;
+
+	/**
+	 *
+	 */
+	protected long visitorId;
+
+	/**
+	 * Times as seconds since the epoch; set when the token is encoded
+	 */
+	protected long issuedAt = 0;
+	protected long expiresAt = 0;
+
+	/**
+	 *
+	 */
+	protected Language language = Language.ENGLISH;
+	protected PhotoSize photoSize = PhotoSize.MEDIUM;
+	protected String tags = "";
+
+	/**
+	 * Photo ids as int, shifted left by one, with the lowest bit set for skipped photos; oldest first
+	 */
+	protected LinkedList<Integer> recentPhotos = new LinkedList<Integer>();
+
+	/**
+	 * @methodtype boolean-query
+	 *
+	 * Returns whether guest tokens are enabled; they are not without a secret key, whatever the property says.
+	 */
+	public static boolean isEnabled() {
+		return Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "false")) && (getSecretKey() != null);
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	public static GuestToken createNew() {
+		return new GuestToken(random.nextLong() & Long.MAX_VALUE);
+	}
+
+	/**
+	 *
+	 */
+	public GuestToken(long myVisitorId) {
+		visitorId = myVisitorId;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getVisitorId() {
+		return visitorId;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getGuestId() {
+		return Guest.GUEST_PREFIX + "t" + Long.toString(visitorId, Character.MAX_RADIX);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getIssuedAt() {
+		return issuedAt;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getExpiresAt() {
+		return expiresAt;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public Language getLanguage() {
+		return language;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setLanguage(Language newLanguage) {
+		language = newLanguage;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public PhotoSize getPhotoSize() {
+		return photoSize;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setPhotoSize(PhotoSize newPhotoSize) {
+		photoSize = newPhotoSize;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getTags() {
+		return tags;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setTags(String newTags) {
+		tags = (newTags != null) ? newTags : "";
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Remembers the photo as the most recent one, forgetting the oldest one if there are too many.
+	 */
+	public void addRecentPhoto(PhotoId photoId, boolean isSkipped) {
+		int value = photoId.asInt();
+		recentPhotos.remove(Integer.valueOf(value << 1));
+		recentPhotos.remove(Integer.valueOf((value << 1) | 1));
+		recentPhotos.addLast((value << 1) | (isSkipped ? 1 : 0));
+		while (recentPhotos.size() > MAX_RECENT_PHOTOS) {
+			recentPhotos.removeFirst();
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean hasRecentPhoto(PhotoId photoId, boolean isSkipped) {
+		return recentPhotos.contains((photoId.asInt() << 1) | (isSkipped ? 1 : 0));
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public List<PhotoId> getPraisedPhotoIds() {
+		return getRecentPhotoIds(false);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public List<PhotoId> getSkippedPhotoIds() {
+		return getRecentPhotoIds(true);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected List<PhotoId> getRecentPhotoIds(boolean areSkipped) {
+		List<PhotoId> result = new ArrayList<PhotoId>();
+		for (int value : recentPhotos) {
+			if (((value & 1) == 1) == areSkipped) {
+				result.add(PhotoId.getIdFromInt(value >>> 1));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public String encode() {
+		return encode(System.currentTimeMillis() / 1000);
+	}
+
+	/**
+	 * @methodtype conversion
+	 *
+	 * Encodes the token as issued now, valid for COOKIE_MAX_AGE seconds.
+	 */
+	public String encode(long now) {
+		issuedAt = now;
+		expiresAt = now + COOKIE_MAX_AGE;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(VERSION);
+			out.writeLong(visitorId);
+			VarInt.writeUnsignedInt(out, (int) issuedAt);
+			VarInt.writeUnsignedInt(out, (int) expiresAt);
+			VarInt.writeUnsignedInt(out, language.asInt());
+			VarInt.writeUnsignedInt(out, photoSize.asInt());
+			VarInt.writeString(out, tags);
+			VarInt.writeUnsignedInt(out, recentPhotos.size());
+			for (int value : recentPhotos) {
+				VarInt.writeUnsignedInt(out, value);
+			}
+			out.write(sign(bytes.toByteArray()));
+			out.close();
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+		} catch (IOException ex) {
+			throw new IllegalStateException("could not encode guest token", ex);
+		}
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	public static GuestToken decode(String value) {
+		return decode(value, System.currentTimeMillis() / 1000);
+	}
+
+	/**
+	 * @methodtype factory
+	 *
+	 * Returns the token encoded in the value, or null if there is none, it has been tampered with, or it is not valid
+	 * now, given as seconds since the epoch.
+	 */
+	public static GuestToken decode(String value, long now) {
+		if ((value == null) || (getSecretKey() == null)) {
+			return null;
+		}
+
+		try {
+			byte[] bytes = Base64.getUrlDecoder().decode(value);
+			if (bytes.length <= MAC_LENGTH) {
+				return null;
+			}
+			byte[] payload = Arrays.copyOf(bytes, bytes.length - MAC_LENGTH);
+			byte[] mac = Arrays.copyOfRange(bytes, payload.length, bytes.length);
+			if (!MessageDigest.isEqual(mac, sign(payload))) {
+				log.warning(LogBuilder.createSystemMessage().addMessage("guest token with invalid signature").toString());
+				return null;
+			}
+
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+			if (in.readUnsignedByte() != VERSION) {
+				return null;
+			}
+			GuestToken result = new GuestToken(in.readLong());
+			result.issuedAt = Integer.toUnsignedLong(VarInt.readUnsignedInt(in));
+			result.expiresAt = Integer.toUnsignedLong(VarInt.readUnsignedInt(in));
+			if ((now >= result.expiresAt) || (result.issuedAt > now + MAX_CLOCK_SKEW)) {
+				return null;
+			}
+			result.language = Language.getFromInt(VarInt.readUnsignedInt(in));
+			result.photoSize = PhotoSize.getFromInt(VarInt.readUnsignedInt(in));
+			result.tags = VarInt.readString(in);
+			int noRecentPhotos = Math.min(VarInt.readUnsignedInt(in), MAX_RECENT_PHOTOS);
+			for (int i = 0; i < noRecentPhotos; i++) {
+				result.recentPhotos.addLast(VarInt.readUnsignedInt(in));
+			}
+			return result;
+		} catch (IOException | IllegalArgumentException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected static byte[] sign(byte[] payload) {
+		try {
+			SecretKeySpec key = getSecretKey();
+			if (key == null) {
+				throw new IllegalStateException("guest tokens cannot be signed without a secret");
+			}
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(key);
+			return Arrays.copyOf(mac.doFinal(payload), MAC_LENGTH);
+		} catch (GeneralSecurityException ex) {
+			throw new IllegalStateException("could not sign guest token", ex);
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the key to sign tokens with, or null if no secret is configured or it is too short. There is no
+	 * fallback: a key for one instance only would reject the tokens of all others.
+	 */
+	protected static synchronized SecretKeySpec getSecretKey() {
+		if (secretKey == null) {
+			byte[] keyBytes = readSecret();
+			if ((keyBytes != null) && (keyBytes.length >= MIN_SECRET_LENGTH)) {
+				secretKey = new SecretKeySpec(keyBytes, MAC_ALGORITHM);
+			} else if (!hasWarnedAboutSecret) {
+				log.warning(LogBuilder.createSystemMessage().addMessage("no guest token secret of at least " +
+						MIN_SECRET_LENGTH + " bytes configured, guest tokens are disabled").toString());
+				hasWarnedAboutSecret = true;
+			}
+		}
+		return secretKey;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected static byte[] readSecret() {
+		String secret = System.getProperty(SECRET_PROPERTY);
+		if ((secret != null) && !secret.isEmpty()) {
+			return secret.getBytes(StandardCharsets.UTF_8);
+		}
+
+		Path secretFile = Paths.get(System.getProperty(SECRET_FILE_PROPERTY, DEFAULT_SECRET_FILE));
+		if (!Files.isReadable(secretFile)) {
+			return null;
+		}
+		try {
+			return new String(Files.readAllBytes(secretFile), StandardCharsets.UTF_8).trim().getBytes(
+					StandardCharsets.UTF_8);
+		} catch (IOException ex) {
+			log.warning(LogBuilder.createSystemMessage().addException("could not read guest token secret", ex).toString());
+			return null;
+		}
+	}
+
+}
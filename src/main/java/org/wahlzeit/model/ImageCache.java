@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.model;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import org.wahlzeit.model.persistence.ImageStorage;
+import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.cache.OffHeapByteCache;
+import org.wahlzeit.services.cache.SharedLoader;
+
+import java.io.Serializable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * The ImageCache holds the bytes of scaled images outside of the Java heap, keyed by PhotoId and PhotoSize. Each
+ * PhotoSize has a memory budget of its own, so large images can not push out all thumbnails; within a size, the least
+ * recently used images are evicted.
+ *
+ * A budget can be set through the system property {@link #MAXIMUM_BYTES_PROPERTY} followed by the size name, e.g.
+ * org.wahlzeit.imageCache.maximumBytes.thumb in appengine-web.xml.
+ *
+ * Missing images can be loaded on demand from the ImageStorage; concurrent requests for the same image share one read.
+ */
+public class ImageCache {
+
+	private static final Logger log = Logger.getLogger(ImageCache.class.getName());
+
+	/**
+	 *
+	 */
+	public static final String MAXIMUM_BYTES_PROPERTY = "org.wahlzeit.imageCache.maximumBytes.";
+
+	/**
+	 * Default budgets per PhotoSize, ordered like PhotoSize.values()
+	 */
+	protected static final long[] DEFAULT_MAXIMUM_BYTES = {
+			4L * 1024 * 1024, // thumb
+			8L * 1024 * 1024, // extra-small
+			8L * 1024 * 1024, // small
+			16L * 1024 * 1024, // medium
+			8L * 1024 * 1024, // large
+			8L * 1024 * 1024 // extra-large
+	};
+
+	/**
+	 *
+	 */
+	protected static final ImageCache instance = new ImageCache();
+
+	/**
+	 * @methodtype get
+	 */
+	public static ImageCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 *
+	 */
+	protected final OffHeapByteCache<PhotoId>[] caches;
+
+	/**
+	 * Keyed by {@link #asLoadKey(PhotoId, PhotoSize)}
+	 */
+	protected final SharedLoader<Long, byte[]> storageLoader = new SharedLoader<Long, byte[]>();
+
+	/**
+	 * @methodtype constructor
+	 */
+	@SuppressWarnings("unchecked")
+	protected ImageCache() {
+		PhotoSize[] sizes = PhotoSize.values();
+		caches = new OffHeapByteCache[sizes.length];
+		for (PhotoSize size : sizes) {
+			long maximumBytes = Long.getLong(MAXIMUM_BYTES_PROPERTY + size.asString(),
+					DEFAULT_MAXIMUM_BYTES[size.asInt()]);
+			caches[size.asInt()] = new OffHeapByteCache<PhotoId>(maximumBytes);
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns a new Image backed by a heap copy of the cached bytes, or null if the image is not cached.
+	 */
+	public Image getImage(PhotoId id, PhotoSize size) {
+		byte[] imageData = getImageData(id, size);
+		return (imageData == null) ? null : ImagesServiceFactory.makeImage(imageData);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public byte[] getImageData(PhotoId id, PhotoSize size) {
+		return getCache(size).get(id);
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Like {@link #getImageData(PhotoId, PhotoSize)}, but reads a missing image from the ImageStorage and adds it to
+	 * the cache. Returns null if the storage has no such image either.
+	 */
+	public byte[] getOrLoadImageData(final PhotoId id, final PhotoSize size) {
+		byte[] result = getImageData(id, size);
+		if (result != null) {
+			return result;
+		}
+
+		try {
+			result = storageLoader.load(asLoadKey(id, size), new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws Exception {
+					return loadImageData(id, size);
+				}
+			});
+		} catch (ExecutionException e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("photo ID", id.asString()).
+					addParameter("size", size.asString()).
+					addException("Could not load image", e.getCause()).toString());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected byte[] loadImageData(PhotoId id, PhotoSize size) throws Exception {
+		// a load that just finished may have filled the cache in the meantime
+		byte[] result = getImageData(id, size);
+		if (result != null) {
+			return result;
+		}
+
+		log.config(LogBuilder.createSystemMessage().
+				addAction("loading image").
+				addParameter("image size", size.asString()).
+				addParameter("photo ID", id.asString()).toString());
+		Serializable rawImage = ImageStorage.getInstance().readImage(id.asString(), size.asInt());
+		if (rawImage instanceof Image) {
+			result = ((Image) rawImage).getImageData();
+			getCache(size).put(id, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected static Long asLoadKey(PhotoId id, PhotoSize size) {
+		return ((long) id.asInt() << 8) | size.asInt();
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean hasImage(PhotoId id, PhotoSize size) {
+		return getCache(size).containsKey(id);
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void putImage(PhotoId id, PhotoSize size, Image image) {
+		getCache(size).put(id, image.getImageData());
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void removeImages(PhotoId id) {
+		for (OffHeapByteCache<PhotoId> cache : caches) {
+			cache.remove(id);
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public OffHeapByteCache<PhotoId> getCache(PhotoSize size) {
+		return caches[size.asInt()];
+	}
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.wahlzeit.utils.RoaringBitmap;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A LeastRecentlyShownPhotoSampler shows the candidate that has not been shown for the longest time, so all
+ * candidates are shown once before any is shown again. Candidates that were never shown come first, in random order.
+ * The order is kept when the sampler is reset with new candidates.
+ */
+public class LeastRecentlyShownPhotoSampler extends PhotoSampler {
+
+	/**
+	 * Candidates in the order they are to be shown
+	 */
+	protected Deque<PhotoId> queue = new ArrayDeque<PhotoId>();
+
+	/**
+	 * Candidates that were in the queue before keep their order, so a reset, e.g. when the filter's photos changed,
+	 * does not show the same photos again.
+	 */
+	@Override
+	protected void doReset(List<PhotoId> candidates) {
+		RoaringBitmap queuedPhotos = new RoaringBitmap();
+		List<PhotoId> shownCandidates = new ArrayList<PhotoId>();
+		for (PhotoId id : queue) {
+			if (candidatePhotos.contains(id.asInt()) && !queuedPhotos.contains(id.asInt())) {
+				queuedPhotos.add(id.asInt());
+				shownCandidates.add(id);
+			}
+		}
+
+		List<PhotoId> newCandidates = new ArrayList<PhotoId>();
+		for (PhotoId id : candidates) {
+			if (!queuedPhotos.contains(id.asInt())) {
+				newCandidates.add(id);
+			}
+		}
+		Collections.shuffle(newCandidates, random);
+
+		queue = new ArrayDeque<PhotoId>(newCandidates);
+		queue.addAll(shownCandidates);
+	}
+
+	/**
+	 * A new candidate has never been shown, so it comes first.
+	 */
+	@Override
+	protected void doAdd(PhotoId id) {
+		queue.addFirst(id);
+	}
+
+	/**
+	 * A restored candidate may have been dropped from the queue already, see doNext; it is shown last then.
+	 */
+	@Override
+	protected void doRestore(PhotoId id) {
+		if (!queue.contains(id)) {
+			queue.addLast(id);
+		}
+	}
+
+	/**
+	 * Removed candidates are dropped from the queue when they come up.
+	 */
+	@Override
+	protected PhotoId doNext() {
+		PhotoId result = queue.pollFirst();
+		while (isRemoved(result)) {
+			result = queue.pollFirst();
+		}
+		queue.addLast(result);
+		return result;
+	}
+
+}
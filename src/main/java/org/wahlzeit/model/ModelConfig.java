@@ -163,6 +163,9 @@ public interface ModelConfig extends Configuration, Serializable {
 	// SHOW_USER_PROFILE_FORM
 	String getNoPhotoUploaded();
 
+	// SHOW_BEST_PHOTOS_PAGE
+	String getNoBestPhotos();
+
 	// SHOW_USER_PHOTO_FORM
 	String getNoCharacterName();
 
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A NicknameIndex maps the nicknames in use to the ids of the clients using them. Checking that a nickname is free
+ * and taking it is one atomic operation, so two concurrent signups cannot end up with the same nickname, and all
+ * operations take constant time regardless of the number of clients.
+ */
+public class NicknameIndex {
+
+	/**
+	 *
+	 */
+	protected final ConcurrentMap<String, String> clientIds = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * @methodtype command
+	 *
+	 * Reserves the nickname for the client; returns false if another client uses it already.
+	 */
+	public boolean reserve(String nickName, String clientId) {
+		String previousClientId = clientIds.putIfAbsent(nickName, clientId);
+		return (previousClientId == null) || previousClientId.equals(clientId);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Reserves the nickname for the client, even if another client uses it; for clients loaded from the datastore.
+	 */
+	public void put(String nickName, String clientId) {
+		clientIds.put(nickName, clientId);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Releases the nickname if the client uses it.
+	 */
+	public void release(String nickName, String clientId) {
+		clientIds.remove(nickName, clientId);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Moves the reservation of the client from the old to the new nickname; returns false, and keeps the old one, if
+	 * another client uses the new nickname already.
+	 */
+	public boolean change(String oldNickName, String newNickName, String clientId) {
+		if (!reserve(newNickName, clientId)) {
+			return false;
+		}
+		if (!oldNickName.equals(newNickName)) {
+			release(oldNickName, clientId);
+		}
+		return true;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isUsed(String nickName) {
+		return clientIds.containsKey(nickName);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getClientId(String nickName) {
+		return clientIds.get(nickName);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int size() {
+		return clientIds.size();
+	}
+
+}
@@ -23,6 +23,7 @@ package org.wahlzeit.model;
 import com.google.api.client.util.ArrayMap;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
 import com.googlecode.objectify.annotation.Ignore;
@@ -83,13 +84,22 @@ public class Photo extends DataObject {
 	
 	/**
 	 * Each photo can be viewed in different sizes (XS, S, M, L, XL)
-	 * Images are pre-computed in these sizes to optimize bandwidth when requested.
+	 * Images are pre-computed in these sizes to optimize bandwidth when requested. They are kept in the ImageCache;
+	 * only images that have not been written to the ImageStorage yet are also held here, so they can not get lost by
+	 * eviction.
 	 */
 	@Ignore
-	transient protected Map<PhotoSize, Image> images = new ArrayMap<PhotoSize, Image>();
+	transient protected Map<PhotoSize, Image> unsavedImages = new ArrayMap<PhotoSize, Image>();
+
+	/**
+	 * The Tag entities of this photo as they are in the datastore, by tag text; null if they have not been read yet
+	 */
+	@Ignore
+	transient protected Map<String, Tag> storedTags = null;
 	
 	/**
-	 *
+	 * Settings of the owner as they were when the photo was added; the getters prefer the current settings of the
+	 * owner, so changing a setting does not rewrite all photos of the owner
 	 */
 	protected boolean ownerNotifyAboutPraise = false;
 	protected EmailAddress ownerEmailAddress = EmailAddress.EMPTY;
@@ -117,7 +127,15 @@ public class Photo extends DataObject {
 	 */
 	protected int praiseSum = 10;
 	protected int noVotes = 1;
-	protected int noVotesAtLastNotification = 1;
+	protected long noVotesAtLastNotification = 1;
+
+	/**
+	 * Praise kept in PraiseShard entities by the ShardedPraiseCounter, on top of praiseSum and noVotes
+	 */
+	@Ignore
+	transient protected long shardedPraiseSum = 0;
+	@Ignore
+	transient protected long shardedNoVotes = 0;
 	
 	/**
 	 *
@@ -130,19 +148,19 @@ public class Photo extends DataObject {
 	protected String ending = "jpg";
 	
 	/**
-	 *
+	 * Datastore id; equals the int value of the PhotoId so that a photo can be loaded by key
 	 */
-	//TODO: change it to a single long
 	@Id
 	Long idLong;
 	@Parent
-	Key parent = ObjectManager.applicationRootKey;
+	Key parent = ObjectManager.getParentKey();
 
 	/**
 	 *
 	 */
 	public Photo() {
 		id = PhotoId.getNextId();
+		idLong = (long) id.asInt();
 		incWriteCount();
 	}
 
@@ -151,22 +169,107 @@ public class Photo extends DataObject {
 	 */
 	public Photo(PhotoId myId) {
 		id = myId;
+		idLong = (long) id.asInt();
+
+		incWriteCount();
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 *
+	 * Photos saved before the Datastore id was derived from the PhotoId have an allocated id instead, so they can not
+	 * be loaded by key.
+	 */
+	public boolean hasLegacyKey() {
+		return idLong == null || idLong != id.asInt();
+	}
 
+	/**
+	 * @methodtype command
+	 *
+	 * Derives the Datastore id from the PhotoId; returns the key the photo was saved under before. The photo has to be
+	 * saved under its new key and deleted under the old one.
+	 */
+	public com.googlecode.objectify.Key<Photo> replaceLegacyKey() {
+		com.googlecode.objectify.Key<Photo> result = com.googlecode.objectify.Key.create(this);
+		idLong = (long) id.asInt();
 		incWriteCount();
+		return result;
 	}
 
 	/**
 	 * @methodtype get
 	 */
 	public Image getImage(PhotoSize photoSize) {
-		return images.get(photoSize);
+		Image result = unsavedImages.get(photoSize);
+		if (result == null) {
+			byte[] imageData = ImageCache.getInstance().getOrLoadImageData(id, photoSize);
+			if (imageData != null) {
+				result = ImagesServiceFactory.makeImage(imageData);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the bytes of the image; loads them from the ImageStorage on first use.
+	 */
+	public byte[] getImageData(PhotoSize photoSize) {
+		Image image = unsavedImages.get(photoSize);
+		if (image != null) {
+			return image.getImageData();
+		}
+		return ImageCache.getInstance().getOrLoadImageData(id, photoSize);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public Image getUnsavedImage(PhotoSize photoSize) {
+		return unsavedImages.get(photoSize);
 	}
 
 	/**
 	 * @methodtype set
+	 *
+	 * Sets a new image that still has to be saved, see {@link #discardUnsavedImages()}.
 	 */
 	public void setImage(PhotoSize photoSize, Image image) {
-		this.images.put(photoSize, image);
+		unsavedImages.put(photoSize, image);
+		ImageCache.getInstance().putImage(id, photoSize, image);
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean hasUnsavedImages() {
+		return !unsavedImages.isEmpty();
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Called after the images have been written to the ImageStorage; from then on they are only held by the
+	 * ImageCache.
+	 */
+	public void discardUnsavedImages() {
+		unsavedImages.clear();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public Map<String, Tag> getStoredTags() {
+		return storedTags;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setStoredTags(Map<String, Tag> newStoredTags) {
+		storedTags = newStoredTags;
 	}
 
 	/**
@@ -217,7 +320,8 @@ public class Photo extends DataObject {
 	 * @methodtype get
 	 */
 	public boolean getOwnerNotifyAboutPraise() {
-		return ownerNotifyAboutPraise;
+		User owner = getOwner();
+		return (owner != null) ? owner.getNotifyAboutPraise() : ownerNotifyAboutPraise;
 	}
 
 	/**
@@ -232,7 +336,15 @@ public class Photo extends DataObject {
 	 *
 	 */
 	public Language getOwnerLanguage() {
-		return ownerLanguage;
+		User owner = getOwner();
+		return (owner != null) ? owner.getLanguage() : ownerLanguage;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected User getOwner() {
+		return (ownerId != null) ? UserManager.getInstance().getUserById(ownerId) : null;
 	}
 
 	/**
@@ -339,16 +451,72 @@ public class Photo extends DataObject {
 	 * @methodtype get
 	 */
 	public double getPraise() {
-		return (double) praiseSum / noVotes;
+		return (double) getPraiseSum() / getNoVotes();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getPraiseSum() {
+		return praiseSum + shardedPraiseSum;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoVotes() {
+		return noVotes + shardedNoVotes;
 	}
 
 	/**
 	 *
 	 */
 	public void addToPraise(int value) {
-		praiseSum += value;
-		noVotes += 1;
+		addToPraise(value, 1);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds the sum of the values of several votes at once; votes of visitors go through the PraiseAggregator and are
+	 * kept by the ShardedPraiseCounter instead.
+	 */
+	public synchronized void addToPraise(int valueSum, int votes) {
+		praiseSum += valueSum;
+		noVotes += votes;
 		incWriteCount();
+
+		updatePraiseRankings();
+	}
+
+	/**
+	 * @methodtype set
+	 *
+	 * Sets the totals of the praise shards of this photo; they are not saved with the photo.
+	 */
+	public synchronized void setShardedPraise(long praiseSum, long noVotes) {
+		if (praiseSum == shardedPraiseSum && noVotes == shardedNoVotes) {
+			return;
+		}
+
+		shardedPraiseSum = praiseSum;
+		shardedNoVotes = noVotes;
+
+		updatePraiseRankings();
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void updatePraiseRankings() {
+		PhotoLeaderboard.getInstance().updateScore(this);
+
+		if (ownerId != null) {
+			User owner = UserManager.getInstance().getUserById(ownerId);
+			if (owner != null) {
+				owner.updatePhotoPraise(this);
+			}
+		}
 	}
 
 	/**
@@ -370,6 +538,10 @@ public class Photo extends DataObject {
 	 */
 	public void setStatus(PhotoStatus newStatus) {
 		status = newStatus;
+		PhotoTagIndex.getInstance().setVisible(id, isVisible());
+		if (!isVisible()) {
+			PhotoLeaderboard.getInstance().removePhoto(id);
+		}
 		incWriteCount();
 	}
 
@@ -415,14 +587,14 @@ public class Photo extends DataObject {
 	 * @methodtype boolean query
 	 */
 	public boolean hasNewPraise() {
-		return noVotes > noVotesAtLastNotification;
+		return getNoVotes() > noVotesAtLastNotification;
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void setNoNewPraise() {
-		noVotesAtLastNotification = noVotes;
+		noVotesAtLastNotification = getNoVotes();
 		incWriteCount();
 	}
 }
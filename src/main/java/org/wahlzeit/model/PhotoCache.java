@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import com.google.appengine.api.images.Image;
+import org.wahlzeit.services.cache.RemovalListener;
+import org.wahlzeit.services.cache.TinyLfuCache;
+import org.wahlzeit.services.cache.Weigher;
+
+/**
+ * The in-memory cache of the PhotoManager. It is bounded by the number of photos and by their estimated size in bytes.
+ * Scaled images are only counted while they are not saved yet; otherwise they live off-heap in the ImageCache.
+ *
+ * The budget can be set through the system properties {@link #MAXIMUM_SIZE_PROPERTY} and
+ * {@link #MAXIMUM_WEIGHT_PROPERTY}, e.g. in appengine-web.xml.
+ */
+public class PhotoCache extends TinyLfuCache<PhotoId, Photo> {
+
+	/**
+	 *
+	 */
+	public static final String MAXIMUM_SIZE_PROPERTY = "org.wahlzeit.photoCache.maximumSize";
+	public static final String MAXIMUM_WEIGHT_PROPERTY = "org.wahlzeit.photoCache.maximumWeight";
+
+	/**
+	 *
+	 */
+	public static final long DEFAULT_MAXIMUM_SIZE = 10000;
+	public static final long DEFAULT_MAXIMUM_WEIGHT = 64L * 1024 * 1024; // = 64 MB
+
+	/**
+	 * Rough size of a photo object without images (fields, tags, ids, object headers)
+	 */
+	protected static final int PHOTO_BASE_WEIGHT = 1024;
+
+	/**
+	 *
+	 */
+	protected static final Weigher<PhotoId, Photo> PHOTO_WEIGHER = new Weigher<PhotoId, Photo>() {
+		@Override
+		public int weigh(PhotoId key, Photo photo) {
+			return getEstimatedSize(photo);
+		}
+	};
+
+	/**
+	 * @methodtype constructor
+	 */
+	public PhotoCache(RemovalListener<PhotoId, Photo> removalListener) {
+		this(Long.getLong(MAXIMUM_SIZE_PROPERTY, DEFAULT_MAXIMUM_SIZE),
+				Long.getLong(MAXIMUM_WEIGHT_PROPERTY, DEFAULT_MAXIMUM_WEIGHT), removalListener);
+	}
+
+	/**
+	 * @methodtype constructor
+	 */
+	public PhotoCache(long maximumSize, long maximumWeight, RemovalListener<PhotoId, Photo> removalListener) {
+		super(maximumSize, maximumWeight, PHOTO_WEIGHER, removalListener);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public static int getEstimatedSize(Photo photo) {
+		long result = PHOTO_BASE_WEIGHT;
+		for (Image image : photo.unsavedImages.values()) {
+			result += image.getImageData().length;
+		}
+		return (int) Math.min(result, Integer.MAX_VALUE);
+	}
+
+}
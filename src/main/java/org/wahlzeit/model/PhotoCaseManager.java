@@ -20,6 +20,8 @@
 
 package org.wahlzeit.model;
 
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
 import org.wahlzeit.services.ObjectManager;
 
 import java.util.Arrays;
@@ -45,24 +47,67 @@ public class PhotoCaseManager extends ObjectManager {
 
 	/**
 	 * @methodtype constructor
-	 * @methodproperty composed
 	 */
 	protected PhotoCaseManager() {
-		initialize();
+		// do nothing, open cases are loaded by init() or restored from a snapshot
 	}
 
 	/**
 	 * @methodtype initialization
 	 * @methodproperty regular
 	 */
-	protected void initialize() {
-		Collection<PhotoCase> opc = new LinkedList<PhotoCase>();
-		loadOpenPhotoCases(opc);
-		for (PhotoCase pc : opc) {
-			openPhotoCases.put(pc.getId(), pc);
+	public void init() {
+		Collection<PhotoCase> opc = ObjectifyService.run(new Work<Collection<PhotoCase>>() {
+			@Override
+			public Collection<PhotoCase> run() {
+				Collection<PhotoCase> opc = new LinkedList<PhotoCase>();
+				loadOpenPhotoCases(opc);
+				return opc;
+			}
+		});
+		restorePhotoCases(opc);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds cases that have been read from a snapshot or changed since then; decided cases are dropped.
+	 */
+	public void restorePhotoCases(Collection<PhotoCase> photoCases) {
+		for (PhotoCase pc : photoCases) {
+			pc.resetWriteCount(); // just loaded, so nothing to save
+			if (pc.wasDecided()) {
+				openPhotoCases.remove(pc.getId());
+			} else {
+				openPhotoCases.put(pc.getId(), pc);
+			}
 		}
 	}
 
+	/**
+	 * @methodtype command
+	 */
+	public void loadPhotoCasesChangedSince(final long time) {
+		Collection<PhotoCase> changedCases = ObjectifyService.run(new Work<Collection<PhotoCase>>() {
+			@Override
+			public Collection<PhotoCase> run() {
+				Collection<PhotoCase> changedCases = new LinkedList<PhotoCase>();
+				readObjectsChangedSince(changedCases, PhotoCase.class, time);
+				return changedCases;
+			}
+		});
+		restorePhotoCases(changedCases);
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns a copy of all open cases.
+	 */
+	public Collection<PhotoCase> getOpenPhotoCases() {
+		return new LinkedList<PhotoCase>(openPhotoCases.values());
+	}
+
 	/**
 	 * @methodtype command
 	 */
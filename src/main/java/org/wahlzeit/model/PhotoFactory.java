@@ -20,7 +20,13 @@
 
 package org.wahlzeit.model;
 
+import com.google.appengine.api.datastore.Key;
+import com.googlecode.objectify.cmd.LoadIds;
+import com.googlecode.objectify.cmd.LoadType;
 import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.ObjectManager;
+import org.wahlzeit.services.OfyService;
+import org.wahlzeit.services.PendingResult;
 import org.wahlzeit.utils.PatternInstance;
 
 import java.util.logging.Logger;
@@ -100,19 +106,31 @@ public class PhotoFactory {
 	}
 
 	/**
-	 * Loads a photo. The Java object is loaded from the Google Datastore, the Images in all sizes are loaded from the
-	 * Google Cloud storage.
+	 * Loads a photo from the Google Datastore by its key, which is derived from the PhotoId. The images are not
+	 * loaded; that is up to the PhotoManager. Returns null if there is no such photo.
 	 */
 	public Photo loadPhoto(PhotoId id) {
-	   /* Photo result =
-                OfyService.ofy().load().type(Photo.class).ancestor(KeyFactory.createKey("Application", "Wahlzeit")).filter(Photo.ID, id).first().now();
-        for (PhotoSize size : PhotoSize.values()) {
-            GcsFilename gcsFilename = new GcsFilename("picturebucket", filename);
-
+		return loadPhotoAsync(id).now();
+	}
 
+	/**
+	 * Starts to load a photo like loadPhoto, but returns without waiting for the Datastore. Use it to load several
+	 * photos in parallel.
+	 */
+	public PendingResult<Photo> loadPhotoAsync(PhotoId id) {
+		if (id == null || id.isNullId()) {
+			return PendingResult.completed(null);
+		}
 
-        }*/
-		return null;
+		log.config(LogBuilder.createSystemMessage().addParameter("Load Photo from datastore", id.asString()).toString());
+		Key parentKey = ObjectManager.getParentKey();
+		LoadType<Photo> photos = OfyService.ofy().load().type(Photo.class);
+		LoadIds<Photo> photoIds = (parentKey != null) ? photos.parent(parentKey) : photos;
+		return new PendingResult<Photo>(photoIds.id(id.asInt()), result -> {
+			if (result != null) {
+				result.resetWriteCount(); // just loaded, so nothing to save
+			}
+		});
 	}
 
 
@@ -130,4 +148,18 @@ public class PhotoFactory {
 		return new PhotoTagCollector();
 	}
 
+	/**
+	 * Creates a sampler for the strategy configured by {@link PhotoSampler#STRATEGY_PROPERTY}; uniform by default.
+	 */
+	public PhotoSampler createPhotoSampler() {
+		String strategy = System.getProperty(PhotoSampler.STRATEGY_PROPERTY, PhotoSampler.UNIFORM);
+		if (PhotoSampler.PRAISE_WEIGHTED.equals(strategy)) {
+			return new PraiseWeightedPhotoSampler(id -> PhotoManager.getInstance().getCachedPraise(id));
+		} else if (PhotoSampler.LEAST_RECENTLY_SHOWN.equals(strategy)) {
+			return new LeastRecentlyShownPhotoSampler();
+		} else {
+			return new UniformPhotoSampler();
+		}
+	}
+
 }
@@ -21,12 +21,18 @@
 package org.wahlzeit.model;
 
 import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.cache.ExpiringCache;
+import org.wahlzeit.utils.RoaringBitmap;
 import org.wahlzeit.utils.StringUtil;
+import org.wahlzeit.utils.VarInt;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.LinkedList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 import java.util.logging.Logger;
@@ -34,8 +40,15 @@ import java.util.logging.Logger;
 /**
  * A class to specify a photo filter.
  * A photo filter captures selection ("filtering") criteria for photos.
+ *
+ * A photo filter lives in the HttpSession, which App Engine serializes after every request. It is therefore
+ * externalized into a compact form, with its id sets as delta-encoded varints, see writeExternal.
+ *
+ * The PhotoSampler of a filter is not part of the session. It is kept in a bounded cache of the instance, by a key
+ * that is stored with the filter, so it survives the serialization of the session, e.g. the order of a
+ * LeastRecentlyShownPhotoSampler. Changes of the PhotoTagIndex are applied to it photo by photo.
  */
-public class PhotoFilter implements Serializable {
+public class PhotoFilter implements Externalizable {
 
 	private static Logger log = Logger.getLogger(PhotoFilter.class.getName());
 
@@ -45,6 +58,27 @@ public class PhotoFilter implements Serializable {
 	public static final String USER_NAME = "userName";
 	public static final String TAGS = "tags";
 
+	/**
+	 *
+	 */
+	public static final String SAMPLER_MAXIMUM_SIZE_PROPERTY = "org.wahlzeit.photoSampler.maximumSize";
+	public static final String SAMPLER_MAXIMUM_IDLE_TIME_PROPERTY = "org.wahlzeit.photoSampler.maximumIdleTime";
+	public static final long DEFAULT_SAMPLER_MAXIMUM_SIZE = 10000;
+	public static final long DEFAULT_SAMPLER_MAXIMUM_IDLE_TIME = 30 * 60 * 1000; // in milliseconds
+
+	/**
+	 * The samplers of the filters by their sampler keys
+	 */
+	protected static final ExpiringCache<Long, SamplerState> samplers = new ExpiringCache<Long, SamplerState>(
+			Long.getLong(SAMPLER_MAXIMUM_SIZE_PROPERTY, DEFAULT_SAMPLER_MAXIMUM_SIZE),
+			Long.getLong(SAMPLER_MAXIMUM_IDLE_TIME_PROPERTY, DEFAULT_SAMPLER_MAXIMUM_IDLE_TIME),
+			null);
+
+	/**
+	 *
+	 */
+	protected static final Random samplerKeys = new SecureRandom();
+
 	/**
 	 *
 	 */
@@ -55,13 +89,29 @@ public class PhotoFilter implements Serializable {
 	 *
 	 */
 	protected List<PhotoId> displayablePhotoIds;
-	protected List<PhotoId> processedPhotoIds = new LinkedList<PhotoId>();
-	protected List<PhotoId> skippedPhotoIds = new LinkedList<PhotoId>();
+
+	/**
+	 * Int values of the ids of the photos that have been praised or skipped in this session
+	 */
+	protected RoaringBitmap processedPhotoIds = new RoaringBitmap();
+	protected RoaringBitmap skippedPhotoIds = new RoaringBitmap();
+
+	/**
+	 * Key of the sampler of this filter in the samplers cache, and the number of changes made to this filter. The
+	 * sampler is rebuilt if it has missed a change, e.g. because another instance served the session in between.
+	 */
+	protected long samplerKey = samplerKeys.nextLong();
+	protected int noChanges = 0;
 
 	/**
 	 *
 	 */
-	protected Random randomNumber = new Random(System.currentTimeMillis());
+	protected transient Random randomNumber = new Random(System.currentTimeMillis());
+
+	/**
+	 * Version of the externalized form
+	 */
+	protected static final int EXTERNAL_VERSION = 3;
 
 	/**
 	 *
@@ -84,7 +134,8 @@ public class PhotoFilter implements Serializable {
 		setUserName("");
 		setTags(Tags.EMPTY_TAGS);
 		displayablePhotoIds.clear();
-		processedPhotoIds.clear();
+		processedPhotoIds = new RoaringBitmap();
+		noChanges++;
 	}
 
 	/**
@@ -148,14 +199,118 @@ public class PhotoFilter implements Serializable {
 	 */
 	public PhotoId getRandomDisplayablePhotoId() {
 		if (!displayablePhotoIds.isEmpty()) {
-			int size = displayablePhotoIds.size();
-			int index = ((randomNumber.nextInt() % size) + size) / 2;
-			return displayablePhotoIds.get(index);
+			return displayablePhotoIds.get(randomNumber.nextInt(displayablePhotoIds.size()));
 		} else {
 			return PhotoId.NULL_ID;
 		}
 	}
 
+	/**
+	 * Returns the next photo to show, drawn by the PhotoSampler of this filter, see
+	 * {@link PhotoFactory#createPhotoSampler()}. Only if all matching photos have been processed or skipped, one of
+	 * the skipped photos is shown again.
+	 */
+	public PhotoId getNextPhotoId() {
+		SamplerState state = getSamplerState();
+		PhotoId result;
+		synchronized (state) {
+			long indexVersion = PhotoTagIndex.getInstance().getVersion();
+			if (state.noChanges != noChanges) {
+				state.sampler.reset(getNewPhotoIds());
+			} else if (state.indexVersion != indexVersion) {
+				updateSampler(state.sampler, state.indexVersion, indexVersion);
+			}
+			state.indexVersion = indexVersion;
+			state.noChanges = noChanges;
+
+			result = state.sampler.next();
+			while (result != null && isExcludedPhotoId(result)) { // e.g. processed in a concurrent request
+				state.sampler.remove(result);
+				result = state.sampler.next();
+			}
+		}
+
+		if (result == null && !skippedPhotoIds.isEmpty()) {
+			List<PhotoId> skippedIds = asPhotoIds(skippedPhotoIds);
+			result = skippedIds.get(randomNumber.nextInt(skippedIds.size()));
+		}
+		return (result != null) ? result : PhotoId.NULL_ID;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the sampler of this filter, creating it if the cache has none, e.g. because the session was served by
+	 * another instance so far.
+	 */
+	protected SamplerState getSamplerState() {
+		SamplerState result = samplers.get(samplerKey);
+		if (result == null) {
+			result = new SamplerState(createPhotoSampler());
+			samplers.put(samplerKey, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	protected PhotoSampler createPhotoSampler() {
+		return PhotoFactory.getInstance().createPhotoSampler();
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Applies the changes of the PhotoTagIndex between the two versions to the sampler: changed photos that match
+	 * the filter now are added, the others are removed. If the index does not know the changes anymore, the sampler
+	 * is rebuilt.
+	 */
+	protected void updateSampler(PhotoSampler sampler, long fromVersion, long toVersion) {
+		PhotoTagIndex tagIndex = PhotoTagIndex.getInstance();
+		RoaringBitmap changedPhotos = tagIndex.getChangedPhotos(fromVersion, toVersion);
+		if (changedPhotos == null) {
+			sampler.reset(getNewPhotoIds());
+			return;
+		}
+
+		RoaringBitmap matchingPhotos = tagIndex.filterPhotos(changedPhotos, getFilterConditions(),
+				RoaringBitmap.or(processedPhotoIds, skippedPhotoIds));
+		for (PhotoId id : tagIndex.getPhotoIds(changedPhotos)) {
+			if (matchingPhotos.contains(id.asInt())) {
+				sampler.add(id);
+			} else {
+				sampler.remove(id);
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Counts a change of this filter. If the photo is given, it is removed from the sampler, unless the sampler
+	 * missed earlier changes and is rebuilt anyway.
+	 */
+	protected void addChange(PhotoId removedPhotoId) {
+		noChanges++;
+		SamplerState state = (removedPhotoId != null) ? samplers.get(samplerKey) : null;
+		if (state != null) {
+			synchronized (state) {
+				if (state.noChanges == noChanges - 1) {
+					state.sampler.remove(removedPhotoId);
+					state.noChanges = noChanges;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	protected boolean isExcludedPhotoId(PhotoId photoId) {
+		return processedPhotoIds.contains(photoId.asInt()) || skippedPhotoIds.contains(photoId.asInt());
+	}
+
 	/**
 	 *
 	 */
@@ -175,36 +330,40 @@ public class PhotoFilter implements Serializable {
 	 */
 	public void resetDisplayablePhotoIds() {
 		displayablePhotoIds = new ArrayList<PhotoId>();
+		addChange(null);
 	}
 
 	/**
-	 *
+	 * @methodtype get
 	 */
 	public List<PhotoId> getProcessedPhotoIds() {
-		return processedPhotoIds;
+		return asPhotoIds(processedPhotoIds);
 	}
 
 	/**
-	 *
+	 * @methodtype boolean-query
 	 */
 	public boolean isProcessedPhotoId(PhotoId photoId) {
-		log.info("photoId: " + photoId.asString());
-		for (PhotoId id : processedPhotoIds) {
-			log.info("Processed id: " + id.asString());
-		}
-		return processedPhotoIds.contains(photoId);
+		return processedPhotoIds.contains(photoId.asInt());
 	}
 
 	/**
 	 *
 	 */
 	public void addProcessedPhoto(Photo photo) {
-		PhotoId photoId = photo.getId();
-		processedPhotoIds.add(photoId);
-		skippedPhotoIds.remove(photoId);
+		addProcessedPhotoId(photo.getId());
+	}
+
+	/**
+	 *
+	 */
+	public void addProcessedPhotoId(PhotoId photoId) {
+		processedPhotoIds.add(photoId.asInt());
+		skippedPhotoIds.remove(photoId.asInt());
 		if (displayablePhotoIds != null) {
 			displayablePhotoIds.remove(photoId);
 		}
+		addChange(photoId);
 	}
 
 
@@ -212,62 +371,62 @@ public class PhotoFilter implements Serializable {
 	 * @methodtype get
 	 */
 	public List<PhotoId> getSkippedPhotoIds() {
-		return skippedPhotoIds;
+		return asPhotoIds(skippedPhotoIds);
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void setSkippedPhotoIds(List<PhotoId> skippedPhotoIds) {
-		this.skippedPhotoIds = skippedPhotoIds;
+		this.skippedPhotoIds = new RoaringBitmap();
+		for (PhotoId skippedPhotoId : skippedPhotoIds) {
+			this.skippedPhotoIds.add(skippedPhotoId.asInt());
+		}
+		addChange(null);
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void addSkippedPhotoId(PhotoId skippedPhotoId) {
-		if (!skippedPhotoIds.contains(skippedPhotoId)) {
-			skippedPhotoIds.add(skippedPhotoId);
-		}
+		skippedPhotoIds.add(skippedPhotoId.asInt());
+		addChange(skippedPhotoId);
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected List<PhotoId> asPhotoIds(RoaringBitmap photoIds) {
+		return PhotoTagIndex.getInstance().getPhotoIds(photoIds);
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the visible photos that match all filter conditions and have been neither processed nor skipped.
+	 */
+	protected List<PhotoId> getNewPhotoIds() {
+		RoaringBitmap excludedPhotos = RoaringBitmap.or(processedPhotoIds, skippedPhotoIds);
+		PhotoTagIndex tagIndex = PhotoTagIndex.getInstance();
+		RoaringBitmap matchingPhotos = tagIndex.findPhotos(getFilterConditions(), Collections.<String>emptyList(),
+				excludedPhotos);
+		return tagIndex.getPhotoIds(matchingPhotos);
 	}
 
 	/**
 	 *
 	 */
 	protected List<PhotoId> getFilteredPhotoIds() {
-		// get all tags that match the filter conditions
-		List<PhotoId> result = new LinkedList<PhotoId>();
-		int noFilterConditions = getFilterConditions().size();
+		List<String> filterConditions = getFilterConditions();
 		log.config(LogBuilder.createSystemMessage().
-				addParameter("Number of filter conditions", String.valueOf(noFilterConditions)).toString());
+				addParameter("Number of filter conditions", String.valueOf(filterConditions.size())).toString());
 
-		Collection<PhotoId> candidates;
-		if (noFilterConditions == 0) {
-			candidates = PhotoManager.getInstance().getPhotoCache().keySet();
-		} else {
-			List<Tag> tags = new LinkedList<Tag>();
-			candidates = new LinkedList<PhotoId>();
-			for (String condition : getFilterConditions()) {
-				PhotoManager.getInstance().addTagsThatMatchCondition(tags, condition);
-			}
-			// get the list of all photo ids that correspond to the tags
-			for (Tag tag : tags) {
-				candidates.add(PhotoId.getIdFromString(tag.getPhotoId()));
-			}
-		}
+		List<PhotoId> result = getNewPhotoIds();
 
-		int newPhotos = 0;
-		for (PhotoId candidateId : candidates) {
-			Photo photoCandidate = PhotoManager.getInstance().getPhoto(candidateId);
-			if (!processedPhotoIds.contains(candidateId) && !skippedPhotoIds.contains(candidateId) &&
-					photoCandidate.isVisible()) {
-				result.add(candidateId);
-				++newPhotos;
-			}
-		}
-		int skippedPhotos = skippedPhotoIds.size();
+		int newPhotos = result.size();
+		int skippedPhotos = skippedPhotoIds.getCardinality();
 		if (newPhotos == 0 && skippedPhotos > 0) {
-			result.addAll(skippedPhotoIds);
+			result.addAll(asPhotoIds(skippedPhotoIds));
 			newPhotos = skippedPhotos;
 		}
 
@@ -276,4 +435,86 @@ public class PhotoFilter implements Serializable {
 
 		return result;
 	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Writes the filter conditions, the id sets and the sampler key; the order of the displayable photo ids is not
+	 * preserved, as they are only ever drawn from at random. The random number generator is recreated.
+	 */
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeByte(EXTERNAL_VERSION);
+		VarInt.writeNullableString(out, userName);
+
+		String[] tagArray = tags.asArray();
+		VarInt.writeUnsignedInt(out, tagArray.length);
+		for (String tag : tagArray) {
+			VarInt.writeString(out, tag);
+		}
+
+		RoaringBitmap displayablePhotos = new RoaringBitmap();
+		if (displayablePhotoIds != null) {
+			for (PhotoId photoId : displayablePhotoIds) {
+				displayablePhotos.add(photoId.asInt());
+			}
+		}
+		VarInt.writeDeltaEncoded(out, displayablePhotos);
+		VarInt.writeDeltaEncoded(out, processedPhotoIds);
+		VarInt.writeDeltaEncoded(out, skippedPhotoIds);
+
+		out.writeLong(samplerKey);
+		out.writeInt(noChanges);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		int version = in.readUnsignedByte();
+		if (version < 1 || version > EXTERNAL_VERSION) {
+			throw new IOException("unknown photo filter version " + version);
+		}
+		userName = (version >= 3) ? VarInt.readNullableString(in) : VarInt.readString(in);
+
+		int noTags = VarInt.readUnsignedInt(in);
+		StringBuilder tagString = new StringBuilder();
+		for (int i = 0; i < noTags; i++) {
+			tagString.append(VarInt.readString(in)).append(Tags.SEPARATOR_CHAR);
+		}
+		tags = (noTags == 0) ? Tags.EMPTY_TAGS : new Tags(tagString.toString());
+
+		displayablePhotoIds = asPhotoIds(VarInt.readDeltaEncodedBitmap(in));
+		processedPhotoIds = VarInt.readDeltaEncodedBitmap(in);
+		skippedPhotoIds = VarInt.readDeltaEncodedBitmap(in);
+
+		if (version >= 2) {
+			samplerKey = in.readLong();
+			noChanges = in.readInt();
+		}
+
+		randomNumber = new Random(System.currentTimeMillis());
+	}
+
+	/**
+	 * A sampler with the version of the PhotoTagIndex and the number of changes of the filter it reflects
+	 */
+	protected static class SamplerState {
+
+		/**
+		 *
+		 */
+		protected final PhotoSampler sampler;
+		protected long indexVersion = -1;
+		protected int noChanges = -1;
+
+		/**
+		 * @methodtype constructor
+		 */
+		protected SamplerState(PhotoSampler sampler) {
+			this.sampler = sampler;
+		}
+	}
+
 }
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.wahlzeit.utils.RoaringBitmap;
+import org.wahlzeit.utils.VarInt;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * A set of photo ids to keep in the HttpSession, e.g. the photos praised in a session. Only the int values of the ids
+ * are kept, and they are externalized as delta-encoded varints, so a set of a few dozen ids takes a few dozen bytes.
+ */
+public class PhotoIdSet implements Externalizable {
+
+	/**
+	 *
+	 */
+	protected RoaringBitmap photoIds = new RoaringBitmap();
+
+	/**
+	 *
+	 */
+	public PhotoIdSet() {
+		// do nothing
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void add(PhotoId photoId) {
+		photoIds.add(photoId.asInt());
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void remove(PhotoId photoId) {
+		photoIds.remove(photoId.asInt());
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean contains(PhotoId photoId) {
+		return (photoId != null) && photoIds.contains(photoId.asInt());
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int size() {
+		return photoIds.getCardinality();
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isEmpty() {
+		return photoIds.isEmpty();
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		VarInt.writeDeltaEncoded(out, photoIds);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		photoIds = VarInt.readDeltaEncodedBitmap(in);
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	public boolean equals(Object o) {
+		return (o instanceof PhotoIdSet) && photoIds.equals(((PhotoIdSet) o).photoIds);
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	public int hashCode() {
+		return photoIds.hashCode();
+	}
+
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The PhotoLeaderboard ranks the visible photos by score, site-wide and per tag. It is kept up to date photo by photo
+ * as photos are indexed and praised, so reading the top photos takes time in the number of photos read, not in the
+ * number of photos ranked.
+ *
+ * The score is a Bayesian average: the praise of a photo is pulled towards a prior praise by a number of prior votes,
+ * so a photo with a few high votes does not outrank one with many good votes. All photos are ranked, not only the top
+ * ones, so a photo that drops out of the top is replaced without a scan.
+ *
+ * There is no global lock; see PhotoPraiseIndex.
+ */
+public class PhotoLeaderboard {
+
+	/**
+	 *
+	 */
+	public static final String PRIOR_PRAISE_PROPERTY = "org.wahlzeit.leaderboard.priorPraise";
+	public static final String PRIOR_VOTES_PROPERTY = "org.wahlzeit.leaderboard.priorVotes";
+	public static final double DEFAULT_PRIOR_PRAISE = 5.5;
+	public static final int DEFAULT_PRIOR_VOTES = 5;
+
+	/**
+	 * Prefix of the tags of the PhotoTagCollector that the leaderboard ranks photos by
+	 */
+	protected static final String TAG_PREFIX = "tg:";
+
+	/**
+	 *
+	 */
+	protected static final PhotoLeaderboard instance = new PhotoLeaderboard(
+			Double.parseDouble(System.getProperty(PRIOR_PRAISE_PROPERTY, String.valueOf(DEFAULT_PRIOR_PRAISE))),
+			Integer.getInteger(PRIOR_VOTES_PROPERTY, DEFAULT_PRIOR_VOTES));
+
+	/**
+	 * @methodtype get
+	 */
+	public static PhotoLeaderboard getInstance() {
+		return instance;
+	}
+
+	/**
+	 *
+	 */
+	protected final double priorPraise;
+	protected final int priorVotes;
+
+	/**
+	 *
+	 */
+	protected final PhotoPraiseIndex photos = new PhotoPraiseIndex();
+	protected final ConcurrentMap<String, PhotoPraiseIndex> photosByTag = new ConcurrentHashMap<String, PhotoPraiseIndex>();
+
+	/**
+	 * The tags each ranked photo is ranked by, by the int value of its id
+	 */
+	protected final ConcurrentMap<Integer, String[]> photoTags = new ConcurrentHashMap<Integer, String[]>();
+
+	/**
+	 * @methodtype constructor
+	 */
+	public PhotoLeaderboard(double priorPraise, int priorVotes) {
+		this.priorPraise = priorPraise;
+		this.priorVotes = priorVotes;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public double getScore(Photo photo) {
+		return (priorPraise * priorVotes + photo.getPraiseSum()) / (priorVotes + photo.getNoVotes());
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Ranks the photo with its current score and the given tags of the PhotoTagCollector, or stops ranking it if it is
+	 * not visible.
+	 */
+	public void updatePhoto(Photo photo, Collection<String> collectedTags) {
+		if (!photo.isVisible()) {
+			removePhoto(photo.getId());
+			return;
+		}
+
+		List<String> tags = new ArrayList<String>(collectedTags.size());
+		for (String tag : collectedTags) {
+			if (tag.startsWith(TAG_PREFIX)) {
+				tags.add(tag.substring(TAG_PREFIX.length()));
+			}
+		}
+
+		PhotoId id = photo.getId();
+		String[] oldTags = photoTags.put(id.asInt(), tags.toArray(new String[tags.size()]));
+		if (oldTags != null) {
+			for (String oldTag : oldTags) {
+				if (!tags.contains(oldTag)) {
+					PhotoPraiseIndex tagPhotos = photosByTag.get(oldTag);
+					if (tagPhotos != null) {
+						tagPhotos.remove(id);
+					}
+				}
+			}
+		}
+
+		double score = getScore(photo);
+		photos.put(id, score);
+		for (String tag : tags) {
+			photosByTag.computeIfAbsent(tag, t -> new PhotoPraiseIndex()).put(id, score);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Moves a ranked photo to the position of its current score.
+	 */
+	public void updateScore(Photo photo) {
+		PhotoId id = photo.getId();
+		String[] tags = photoTags.get(id.asInt());
+		if (tags == null) {
+			return; // not ranked
+		}
+
+		double score = getScore(photo);
+		photos.put(id, score);
+		for (String tag : tags) {
+			PhotoPraiseIndex tagPhotos = photosByTag.get(tag);
+			if (tagPhotos != null) {
+				tagPhotos.put(id, score);
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void removePhoto(PhotoId id) {
+		String[] tags = photoTags.remove(id.asInt());
+		if (tags == null) {
+			return;
+		}
+
+		photos.remove(id);
+		for (String tag : tags) {
+			PhotoPraiseIndex tagPhotos = photosByTag.get(tag);
+			if (tagPhotos != null) {
+				tagPhotos.remove(id);
+			}
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the ids of the k photos with the highest score, highest first.
+	 */
+	public List<PhotoId> getTopPhotoIds(int k) {
+		return photos.getPhotoIds(0, k);
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the ids of the k photos with the given tag and the highest score, highest first.
+	 */
+	public List<PhotoId> getTopPhotoIds(String tag, int k) {
+		PhotoPraiseIndex tagPhotos = photosByTag.get(Tags.asTag(tag));
+		return tagPhotos != null ? tagPhotos.getPhotoIds(0, k) : Collections.<PhotoId>emptyList();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoPhotos() {
+		return photos.size();
+	}
+
+}
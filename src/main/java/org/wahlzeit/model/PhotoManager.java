@@ -22,22 +22,33 @@ package org.wahlzeit.model;
 
 import com.google.appengine.api.images.Image;
 import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
 import com.googlecode.objectify.Work;
 import org.wahlzeit.model.persistence.ImageStorage;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.ObjectManager;
+import org.wahlzeit.services.OfyService;
+import org.wahlzeit.services.PendingResult;
 import org.wahlzeit.services.Persistent;
+import org.wahlzeit.services.cache.RemovalListener;
 
 import java.io.IOException;
-import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Logger;
 
 /**
@@ -53,9 +64,41 @@ public class PhotoManager extends ObjectManager {
 	private static final Logger log = Logger.getLogger(PhotoManager.class.getName());
 
 	/**
-	 * In-memory cache for photos
+	 * In-memory cache for photos; bounded, so photos may be evicted and reloaded later
 	 */
-	protected Map<PhotoId, Photo> photoCache = new HashMap<PhotoId, Photo>();
+	protected PhotoCache photoCache = new PhotoCache(new RemovalListener<PhotoId, Photo>() {
+		@Override
+		public void onRemoval(PhotoId id, Photo photo) {
+			handleEvictedPhoto(photo);
+		}
+	});
+
+	/**
+	 * Ids of all known photos, including those currently not in the cache
+	 */
+	protected Set<PhotoId> photoIds = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Loads of photos that are not cached, so that concurrent requests for a photo load it only once
+	 */
+	protected final ConcurrentMap<PhotoId, FutureTask<Photo>> pendingLoads =
+			new ConcurrentHashMap<PhotoId, FutureTask<Photo>>();
+
+	/**
+	 * If true (the default), scaled images are not loaded with their photo but the first time they are requested
+	 */
+	public static final String LAZY_IMAGE_LOADING_PROPERTY = "org.wahlzeit.photoManager.lazyImageLoading";
+	protected boolean isLazyImageLoading = Boolean.parseBoolean(System.getProperty(LAZY_IMAGE_LOADING_PROPERTY, "true"));
+
+	/**
+	 *
+	 */
+	public static final int DEFAULT_LOAD_BATCH_SIZE = 500;
+
+	/**
+	 * Praise assumed for photos that are not cached, see getCachedPraise
+	 */
+	public static final double DEFAULT_PRAISE = 5.0;
 
 	/**
 	 *
@@ -108,9 +151,103 @@ public class PhotoManager extends ObjectManager {
 		Photo result = doGetPhotoFromId(id);
 
 		if (result == null) {
-			result = PhotoFactory.getInstance().loadPhoto(id);
-			if (result != null) {
-				doAddPhoto(result);
+			result = loadPhotoOnce(id);
+		}
+
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Loads the photo unless another thread loads it already; then waits for that load instead.
+	 */
+	protected Photo loadPhotoOnce(final PhotoId id) {
+		FutureTask<Photo> load = new FutureTask<Photo>(new Callable<Photo>() {
+			@Override
+			public Photo call() {
+				Photo loaded = doLoadPhoto(id);
+				return (loaded != null) ? addLoadedPhoto(loaded) : doGetPhotoFromId(id);
+			}
+		});
+
+		FutureTask<Photo> pendingLoad = pendingLoads.putIfAbsent(id, load);
+		if (pendingLoad == null) {
+			try {
+				load.run();
+			} finally {
+				pendingLoads.remove(id, load);
+			}
+			pendingLoad = load;
+		}
+
+		try {
+			return pendingLoad.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw (cause instanceof RuntimeException) ? (RuntimeException) cause : new IllegalStateException(cause);
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 * @methodproperties primitive
+	 */
+	protected Photo doLoadPhoto(PhotoId id) {
+		return PhotoFactory.getInstance().loadPhoto(id);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds a photo that has just been loaded, unless the photo has been added in the meantime; returns the photo that
+	 * is cached afterwards.
+	 */
+	protected Photo addLoadedPhoto(Photo loaded) {
+		synchronized (pendingLoads) {
+			Photo current = doGetPhotoFromId(loaded.getId());
+			if (current != null) {
+				return current;
+			}
+			doAddPhoto(loaded);
+		}
+
+		if (!isLazyImageLoading) {
+			loadScaledImages(loaded);
+		}
+		return loaded;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the photos with the given ids, mapped by id; ids without a photo are left out. Photos that are not cached
+	 * are loaded from the Datastore in parallel rather than one after the other.
+	 */
+	public Map<PhotoId, Photo> getPhotos(Collection<PhotoId> ids) {
+		Map<PhotoId, Photo> result = new LinkedHashMap<PhotoId, Photo>();
+		Map<PhotoId, PendingResult<Photo>> pendingPhotos = new LinkedHashMap<PhotoId, PendingResult<Photo>>();
+		for (PhotoId id : ids) {
+			if (id == null || result.containsKey(id) || pendingPhotos.containsKey(id)) {
+				continue;
+			}
+
+			Photo photo = doGetPhotoFromId(id);
+			if (photo != null) {
+				result.put(id, photo);
+			} else {
+				pendingPhotos.put(id, PhotoFactory.getInstance().loadPhotoAsync(id));
+			}
+		}
+
+		PendingResult.waitForAll(pendingPhotos.values());
+		for (Map.Entry<PhotoId, PendingResult<Photo>> entry : pendingPhotos.entrySet()) {
+			Photo photo = entry.getValue().now();
+			if (photo != null) {
+				result.put(entry.getKey(), addLoadedPhoto(photo)); // may have been loaded by another request
 			}
 		}
 
@@ -130,7 +267,50 @@ public class PhotoManager extends ObjectManager {
 	 * @methodproperties primitive
 	 */
 	protected void doAddPhoto(Photo myPhoto) {
+		ShardedPraiseCounter praiseCounter = ShardedPraiseCounter.getInstance();
+		myPhoto.setShardedPraise(praiseCounter.getPraiseSum(myPhoto.getId()), praiseCounter.getNoVotes(myPhoto.getId()));
+		photoIds.add(myPhoto.getId());
 		photoCache.put(myPhoto.getId(), myPhoto);
+		indexPhoto(myPhoto);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Brings the entries of the photo in the PhotoTagIndex, the PhotoLeaderboard and the praise order of its owner up
+	 * to date.
+	 */
+	protected void indexPhoto(Photo photo) {
+		Set<String> tags = new HashSet<String>();
+		photoTagCollector.collect(tags, photo);
+		PhotoTagIndex.getInstance().updatePhoto(photo.getId(), tags, photo.isVisible());
+		PhotoLeaderboard.getInstance().updatePhoto(photo, tags);
+
+		if (photo.getOwnerId() != null) {
+			User owner = UserManager.getInstance().getUserById(photo.getOwnerId());
+			if (owner != null) {
+				owner.updatePhotoPraise(photo);
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Called when the cache dropped a photo to stay within its budget. Unsaved changes are written before the photo is
+	 * gone; the next access reloads it through the PhotoFactory.
+	 */
+	protected void handleEvictedPhoto(final Photo photo) {
+		log.config(LogBuilder.createSystemMessage().
+				addParameter("Evicted Photo from cache", photo.getIdAsString()).toString());
+		if (photo.isDirty()) {
+			ObjectifyService.run(new VoidWork() {
+				@Override
+				public void vrun() {
+					savePhoto(photo);
+				}
+			});
+		}
 	}
 
 	/**
@@ -153,28 +333,130 @@ public class PhotoManager extends ObjectManager {
 	 * Load all persisted photos. Executed when Wahlzeit is restarted.
 	 */
 	public void loadPhotos() {
-		Collection<Photo> existingPhotos = ObjectifyService.run(new Work<Collection<Photo>>() {
+		loadPhotos(DEFAULT_LOAD_BATCH_SIZE, new Executor() {
 			@Override
-			public Collection<Photo> run() {
-				Collection<Photo> existingPhotos = new ArrayList<Photo>();
-				readObjects(existingPhotos, Photo.class);
-				return existingPhotos;
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Loads all persisted photos in batches of batchSize. Post-processing of a batch, i.e. loading its images if they
+	 * are not loaded lazily, is handed to postProcessor, so it can overlap with fetching the next batch.
+	 */
+	public void loadPhotos(final int batchSize, final Executor postProcessor) {
+		int noLoadedPhotos = ObjectifyService.run(new Work<Integer>() {
+			@Override
+			public Integer run() {
+				return readObjectsInBatches(Photo.class, batchSize, batch -> addLoadedPhotos(batch, postProcessor));
 			}
 		});
 
-		for (Photo photo : existingPhotos) {
+		log.info(LogBuilder.createSystemMessage().addMessage("All photos loaded.").
+				addParameter("number of photos", noLoadedPhotos).toString());
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void addLoadedPhotos(List<Photo> loadedPhotos, Executor postProcessor) {
+		final List<Photo> addedPhotos = new ArrayList<Photo>(loadedPhotos.size());
+		List<Photo> legacyPhotos = new ArrayList<Photo>();
+		List<com.googlecode.objectify.Key<Photo>> legacyKeys = new ArrayList<com.googlecode.objectify.Key<Photo>>();
+		for (Photo photo : loadedPhotos) {
 			if (!doHasPhoto(photo.getId())) {
 				log.config(LogBuilder.createSystemMessage().
 						addParameter("Load Photo with ID", photo.getIdAsString()).toString());
-				loadScaledImages(photo);
+				photo.resetWriteCount(); // just loaded, so nothing to save
+				if (photo.hasLegacyKey()) {
+					legacyPhotos.add(photo);
+				}
 				doAddPhoto(photo);
+				addedPhotos.add(photo);
 			} else {
 				log.config(LogBuilder.createSystemMessage().
 						addParameter("Already loaded Photo", photo.getIdAsString()).toString());
+				if (photo.hasLegacyKey()) {
+					legacyKeys.add(com.googlecode.objectify.Key.create(photo)); // left over from an earlier move
+				}
 			}
 		}
+		replaceLegacyKeys(legacyPhotos, legacyKeys);
+
+		if (!isLazyImageLoading && !addedPhotos.isEmpty()) {
+			postProcessor.execute(new Runnable() {
+				@Override
+				public void run() {
+					for (Photo photo : addedPhotos) {
+						loadScaledImages(photo);
+					}
+				}
+			});
+		}
+	}
 
-		log.info(LogBuilder.createSystemMessage().addMessage("All photos loaded.").toString());
+	/**
+	 * @methodtype command
+	 *
+	 * Saves photos with an allocated Datastore id under the key derived from their PhotoId and deletes them under the
+	 * old key, so they can be loaded by key after they have been evicted. Runs with the full load of all photos; old
+	 * keys that were not deleted are passed in legacyKeys with the next full load.
+	 */
+	protected void replaceLegacyKeys(List<Photo> legacyPhotos, List<com.googlecode.objectify.Key<Photo>> legacyKeys) {
+		if (legacyPhotos.isEmpty() && legacyKeys.isEmpty()) {
+			return;
+		}
+
+		for (Photo photo : legacyPhotos) {
+			legacyKeys.add(photo.replaceLegacyKey());
+		}
+		writeObjects(legacyPhotos);
+		OfyService.ofy().delete().keys(legacyKeys).now();
+
+		log.info(LogBuilder.createSystemMessage().
+				addAction("replaced legacy photo keys").
+				addParameter("number of photos", legacyPhotos.size()).toString());
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds photos that have been read from a snapshot. ids are all known photo ids; photos are the ones that were
+	 * cached when the snapshot was taken, the others are loaded on demand.
+	 */
+	public void restorePhotos(Collection<PhotoId> ids, Collection<Photo> photos) {
+		photoIds.addAll(ids);
+		updateLoadedPhotos(photos);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Loads all photos that were saved after time and replaces older versions in the cache.
+	 */
+	public void loadPhotosChangedSince(final long time) {
+		Collection<Photo> changedPhotos = ObjectifyService.run(new Work<Collection<Photo>>() {
+			@Override
+			public Collection<Photo> run() {
+				Collection<Photo> changedPhotos = new ArrayList<Photo>();
+				readObjectsChangedSince(changedPhotos, Photo.class, time);
+				return changedPhotos;
+			}
+		});
+		updateLoadedPhotos(changedPhotos);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void updateLoadedPhotos(Collection<Photo> loadedPhotos) {
+		for (Photo photo : loadedPhotos) {
+			photo.resetWriteCount(); // just loaded, so nothing to save
+			doAddPhoto(photo);
+		}
 	}
 
 	/**
@@ -188,30 +470,14 @@ public class PhotoManager extends ObjectManager {
 	/**
 	 * @methodtype command
 	 *
-	 * Loads all scaled Images of this Photo from Google Cloud Storage
+	 * Loads all scaled Images of this Photo from Google Cloud Storage into the ImageCache. Only needed if images are
+	 * not loaded lazily, see {@link #LAZY_IMAGE_LOADING_PROPERTY}.
 	 */
 	protected void loadScaledImages(Photo photo) {
-		String photoIdAsString = photo.getId().asString();
-		ImageStorage imageStorage = ImageStorage.getInstance();
+		ImageCache imageCache = ImageCache.getInstance();
 
 		for (PhotoSize photoSize : PhotoSize.values()) {
-			log.config(LogBuilder.createSystemMessage().
-					addAction("loading image").
-					addParameter("image size", photoSize.asString()).
-					addParameter("photo ID", photoIdAsString).toString());
-			if (imageStorage.doesImageExist(photoIdAsString, photoSize.asInt())) {
-				try {
-					Serializable rawImage = imageStorage.readImage(photoIdAsString, photoSize.asInt());
-					if (rawImage != null && rawImage instanceof Image) {
-						photo.setImage(photoSize, (Image) rawImage);
-					}
-				} catch (IOException e) {
-					log.warning(LogBuilder.createSystemMessage().
-							addParameter("size", photoSize.asString()).
-							addParameter("photo ID", photoIdAsString).
-							addException("Could not load image although it exists", e).toString());
-				}
-			} else {
+			if (imageCache.getOrLoadImageData(photo.getId(), photoSize) == null) {
 				log.config(LogBuilder.createSystemMessage().
 						addParameter("Size does not exist", photoSize.asString()).toString());
 			}
@@ -228,12 +494,40 @@ public class PhotoManager extends ObjectManager {
 	@Override
 	protected void updateDependents(Persistent obj) {
 		if (obj instanceof Photo) {
-			Photo photo = (Photo) obj;
+			updateDependents(Collections.singletonList(obj));
+		}
+	}
+
+	/**
+	 * Saves the images of all photos in the batch, replaces their tags with one batch delete and one batch write, and
+	 * queues each owner once.
+	 */
+	@Override
+	protected void updateDependents(Collection<? extends Persistent> objects) {
+		List<Photo> photos = new ArrayList<Photo>(objects.size());
+		for (Persistent object : objects) {
+			if (object instanceof Photo) {
+				photos.add((Photo) object);
+			}
+		}
+		if (photos.isEmpty()) {
+			return;
+		}
+
+		Set<String> ownerIds = new HashSet<String>();
+		for (Photo photo : photos) {
+			indexPhoto(photo);
 			saveScaledImages(photo);
-			updateTags(photo);
-			UserManager userManager = UserManager.getInstance();
-			Client owner = userManager.getClientById(photo.getOwnerId());
-			userManager.saveClient(owner);
+			ownerIds.add(photo.getOwnerId());
+		}
+		updateTags(photos);
+
+		UserManager userManager = UserManager.getInstance();
+		for (String ownerId : ownerIds) {
+			Client owner = userManager.getClientById(ownerId);
+			if (owner != null) {
+				userManager.saveClientLater(owner);
+			}
 		}
 	}
 
@@ -248,7 +542,7 @@ public class PhotoManager extends ObjectManager {
 	/**
 	 * @methodtype command
 	 *
-	 * Persists all available sizes of the Photo. If one size exceeds the limit of the persistence layer, e.g. > 1MB for
+	 * Persists all sizes of the Photo that have not been saved yet. If one size exceeds the limit of the persistence layer, e.g. > 1MB for
 	 * the Datastore, it is simply not persisted.
 	 */
 	protected void saveScaledImages(Photo photo) {
@@ -257,10 +551,11 @@ public class PhotoManager extends ObjectManager {
 		PhotoSize photoSize;
 		int it = 0;
 		boolean moreSizesExist = true;
+		boolean allSizesStored = true;
 		do{
 			photoSize = PhotoSize.values()[it];
 			it++;
-			Image image = photo.getImage(photoSize);
+			Image image = photo.getUnsavedImage(photoSize);
 			if (image != null) {
 				try {
 					if (!imageStorage.doesImageExist(photoIdAsString, photoSize.asInt())) {
@@ -270,6 +565,7 @@ public class PhotoManager extends ObjectManager {
 					log.warning(LogBuilder.createSystemMessage().
 							addException("Problem when storing image", e).toString());
 					moreSizesExist = false;
+					allSizesStored = false;
 				}
 			} else {
 				log.config(LogBuilder.createSystemMessage().
@@ -277,6 +573,11 @@ public class PhotoManager extends ObjectManager {
 				moreSizesExist = false;
 			}
 		} while (it < PhotoSize.values().length && moreSizesExist);
+
+		if (allSizesStored) {
+			photo.discardUnsavedImages();
+			photoCache.reweigh(photo.getId()); // the cache still counts the discarded images
+		}
 	}
 
 	/**
@@ -284,16 +585,71 @@ public class PhotoManager extends ObjectManager {
 	 * the photo to the datastore.
 	 */
 	protected void updateTags(Photo photo) {
-		// delete all existing tags, for the case that some have been removed
-		deleteObjects(Tag.class, Tag.PHOTO_ID, photo.getId().asString());
+		updateTags(Collections.singletonList(photo));
+	}
 
-		// add all current tags to the datastore
-		Set<String> tags = new HashSet<String>();
-		photoTagCollector.collect(tags, photo);
-		for (Iterator<String> i = tags.iterator(); i.hasNext(); ) {
-			Tag tag = new Tag(i.next(), photo.getId().asString());
-			log.config(LogBuilder.createSystemMessage().addParameter("Writing Tag", tag.asString()).toString());
-			writeObject(tag);
+	/**
+	 * Brings the tags of all given photos in the datastore up to date. Only tags that have been removed are deleted and
+	 * only new tags are written, all in one batch each; photos whose tags did not change cause no writes at all. The
+	 * stored tags of a photo are read once and then kept with the photo.
+	 */
+	protected void updateTags(Collection<Photo> photos) {
+		Map<Photo, PendingResult<List<Tag>>> pendingReads = new HashMap<Photo, PendingResult<List<Tag>>>();
+		for (Photo photo : photos) {
+			if (photo.getStoredTags() == null) {
+				pendingReads.put(photo, readObjectsAsync(Tag.class, Tag.PHOTO_ID, photo.getId().asString()));
+			}
+		}
+
+		List<Tag> tagsToDelete = new ArrayList<Tag>();
+		List<Tag> tagsToWrite = new ArrayList<Tag>();
+		Map<Photo, Map<String, Tag>> updatedStoredTags = new HashMap<Photo, Map<String, Tag>>();
+		for (Photo photo : photos) {
+			Map<String, Tag> storedTags = photo.getStoredTags();
+			if (storedTags == null) {
+				storedTags = new HashMap<String, Tag>();
+				for (Tag tag : pendingReads.get(photo).now()) {
+					if (storedTags.containsKey(tag.getText())) {
+						tagsToDelete.add(tag); // left over by an earlier write
+					} else {
+						storedTags.put(tag.getText(), tag);
+					}
+				}
+			}
+
+			Set<String> tags = new HashSet<String>();
+			photoTagCollector.collect(tags, photo);
+			if (storedTags.keySet().equals(tags)) {
+				photo.setStoredTags(storedTags);
+				continue;
+			}
+
+			Map<String, Tag> newStoredTags = new HashMap<String, Tag>();
+			for (Tag storedTag : storedTags.values()) {
+				if (tags.contains(storedTag.getText())) {
+					newStoredTags.put(storedTag.getText(), storedTag);
+				} else {
+					tagsToDelete.add(storedTag);
+				}
+			}
+			for (String text : tags) {
+				if (!newStoredTags.containsKey(text)) {
+					Tag tag = new Tag(text, photo.getId().asString());
+					log.config(LogBuilder.createSystemMessage().addParameter("Writing Tag", tag.asString()).toString());
+					tagsToWrite.add(tag);
+					newStoredTags.put(text, tag);
+				}
+			}
+			photo.setStoredTags(null); // unknown until the writes succeeded
+			updatedStoredTags.put(photo, newStoredTags);
+		}
+
+		if (!tagsToDelete.isEmpty()) {
+			deleteObjects(tagsToDelete);
+		}
+		writeObjects(tagsToWrite);
+		for (Map.Entry<Photo, Map<String, Tag>> entry : updatedStoredTags.entrySet()) {
+			entry.getKey().setStoredTags(entry.getValue());
 		}
 	}
 
@@ -301,16 +657,23 @@ public class PhotoManager extends ObjectManager {
 	 *
 	 */
 	public void savePhotos() throws IOException{
-		updateObjects(photoCache.values());
+		writeObjects(new ArrayList<Photo>(photoCache.values()));
 	}
 
 	/**
 	 * @methodtype get
 	 */
-	public Map<PhotoId, Photo> getPhotoCache() {
+	public PhotoCache getPhotoCache() {
 		return photoCache;
 	}
 
+	/**
+	 * @methodtype get
+	 */
+	public Set<PhotoId> getPhotoIds() {
+		return photoIds;
+	}
+
 	/**
 	 *
 	 */
@@ -329,8 +692,30 @@ public class PhotoManager extends ObjectManager {
 	 *
 	 */
 	public Photo getVisiblePhoto(PhotoFilter filter) {
-		filter.generateDisplayablePhotoIds();
-		return getPhotoFromId(filter.getRandomDisplayablePhotoId());
+		return getPhotoFromId(filter.getNextPhotoId());
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Passes new totals of the praise shards on to the photo if it is cached; otherwise they are set when it is loaded.
+	 */
+	public void updateShardedPraise(PhotoId id, long praiseSum, long noVotes) {
+		Photo photo = photoCache.peek(id);
+		if (photo != null) {
+			photo.setShardedPraise(praiseSum, noVotes);
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the praise of the photo if it is cached and DEFAULT_PRAISE otherwise; used to weight photos without
+	 * loading them.
+	 */
+	public double getCachedPraise(PhotoId id) {
+		Photo photo = photoCache.peek(id);
+		return (photo != null) ? photo.getPraise() : DEFAULT_PRAISE;
 	}
 
 	/**
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Photo ids ordered by praise, highest first; photos of equal praise are ordered by id. Entries are updated one by
+ * one as photos are praised, so reading the top photos or a page of them never sorts the whole set.
+ *
+ * Reads do not block. Updates of the same photo are serialized, updates of different photos do not wait for each
+ * other; a read may miss a photo that is being moved.
+ */
+public class PhotoPraiseIndex {
+
+	/**
+	 *
+	 */
+	protected final ConcurrentSkipListSet<Entry> entries = new ConcurrentSkipListSet<Entry>();
+
+	/**
+	 * The current entry of each photo, to find it in entries when the praise changes
+	 */
+	protected final ConcurrentMap<Integer, Entry> entriesById = new ConcurrentHashMap<Integer, Entry>();
+
+	/**
+	 *
+	 */
+	public PhotoPraiseIndex() {
+		// do nothing
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds the photo or moves it to the position of its new praise.
+	 */
+	public void put(PhotoId photoId, final double praise) {
+		entriesById.compute(photoId.asInt(), (id, previous) -> {
+			if (previous != null) {
+				if (previous.praise == praise) {
+					return previous;
+				}
+				entries.remove(previous);
+			}
+			Entry entry = new Entry(id, praise);
+			entries.add(entry);
+			return entry;
+		});
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void remove(PhotoId photoId) {
+		entriesById.computeIfPresent(photoId.asInt(), (id, previous) -> {
+			entries.remove(previous);
+			return null;
+		});
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean contains(PhotoId photoId) {
+		return entriesById.containsKey(photoId.asInt());
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int size() {
+		return entriesById.size();
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns up to limit photo ids, starting at the given position of the praise order.
+	 */
+	public List<PhotoId> getPhotoIds(int offset, int limit) {
+		List<PhotoId> result = new ArrayList<PhotoId>(Math.min(Math.max(limit, 0), size()));
+		Iterator<Entry> i = entries.iterator();
+		for (int skipped = 0; skipped < offset && i.hasNext(); skipped++) {
+			i.next();
+		}
+		while (result.size() < limit && i.hasNext()) {
+			result.add(PhotoId.getIdFromInt(i.next().photoId));
+		}
+		return result;
+	}
+
+	/**
+	 * An immutable (photo id, praise) pair; it is replaced when the praise changes
+	 */
+	protected static class Entry implements Comparable<Entry> {
+
+		/**
+		 *
+		 */
+		protected final int photoId;
+		protected final double praise;
+
+		/**
+		 *
+		 */
+		protected Entry(int photoId, double praise) {
+			this.photoId = photoId;
+			this.praise = praise;
+		}
+
+		/**
+		 *
+		 */
+		@Override
+		public int compareTo(Entry other) {
+			int result = Double.compare(other.praise, praise);
+			if (result == 0) {
+				result = Integer.compare(photoId, other.photoId);
+			}
+			return result;
+		}
+
+		/**
+		 *
+		 */
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof Entry && compareTo((Entry) other) == 0;
+		}
+
+		/**
+		 *
+		 */
+		@Override
+		public int hashCode() {
+			return photoId;
+		}
+	}
+
+}
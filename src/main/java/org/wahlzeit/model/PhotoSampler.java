@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.wahlzeit.utils.RoaringBitmap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A PhotoSampler draws the next photo to show from a fixed set of candidates, e.g. the photos that match a filter.
+ * Subclasses implement the sampling strategy; drawing a photo does not depend on the number of candidates.
+ *
+ * Removing a candidate only marks it; marked photos are rejected when drawn. Once half of the candidates are marked,
+ * the sampler is rebuilt from the remaining ones, so on average at most two draws are needed. Candidates can also be
+ * added one by one, e.g. when the photos matching a filter change.
+ */
+public abstract class PhotoSampler {
+
+	/**
+	 * Name of the strategy the PhotoFactory creates samplers for, see the constants below
+	 */
+	public static final String STRATEGY_PROPERTY = "org.wahlzeit.photoSampler.strategy";
+
+	/**
+	 *
+	 */
+	public static final String UNIFORM = "uniform";
+	public static final String PRAISE_WEIGHTED = "praiseWeighted";
+	public static final String LEAST_RECENTLY_SHOWN = "leastRecentlyShown";
+
+	/**
+	 *
+	 */
+	protected Random random = new Random();
+
+	/**
+	 *
+	 */
+	protected List<PhotoId> candidates = new ArrayList<PhotoId>();
+	protected RoaringBitmap candidatePhotos = new RoaringBitmap();
+	protected RoaringBitmap removedPhotos = new RoaringBitmap();
+	protected int noRemovedPhotos = 0;
+
+	/**
+	 * @methodtype command
+	 *
+	 * Replaces all candidates.
+	 */
+	public void reset(List<PhotoId> newCandidates) {
+		candidates = new ArrayList<PhotoId>(newCandidates);
+		candidatePhotos = new RoaringBitmap();
+		for (PhotoId candidate : candidates) {
+			candidatePhotos.add(candidate.asInt());
+		}
+		removedPhotos = new RoaringBitmap();
+		noRemovedPhotos = 0;
+		doReset(candidates);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Removes the photo from the candidates, e.g. because it has been praised.
+	 */
+	public void remove(PhotoId id) {
+		int value = id.asInt();
+		if (candidatePhotos.contains(value) && !removedPhotos.contains(value)) {
+			removedPhotos.add(value);
+			noRemovedPhotos++;
+			if (2 * noRemovedPhotos > candidates.size()) {
+				List<PhotoId> remainingCandidates = new ArrayList<PhotoId>(candidates.size() - noRemovedPhotos);
+				for (PhotoId candidate : candidates) {
+					if (!removedPhotos.contains(candidate.asInt())) {
+						remainingCandidates.add(candidate);
+					}
+				}
+				reset(remainingCandidates);
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds the photo to the candidates, e.g. because it has been uploaded; adding a removed candidate restores it.
+	 */
+	public void add(PhotoId id) {
+		int value = id.asInt();
+		if (!candidatePhotos.contains(value)) {
+			candidates.add(id);
+			candidatePhotos.add(value);
+			doAdd(id);
+		} else if (removedPhotos.contains(value)) {
+			removedPhotos.remove(value);
+			noRemovedPhotos--;
+			doRestore(id);
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the next photo to show or null if there are no candidates left.
+	 */
+	public PhotoId next() {
+		if (isEmpty()) {
+			return null;
+		}
+
+		PhotoId result = doNext();
+		while (isRemoved(result)) {
+			result = doNext();
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	protected boolean isRemoved(PhotoId id) {
+		return removedPhotos.contains(id.asInt());
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int size() {
+		return candidates.size() - noRemovedPhotos;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setRandom(Random newRandom) {
+		random = newRandom;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Builds the sampling structure for the candidates, which are never empty when doNext is called.
+	 */
+	protected abstract void doReset(List<PhotoId> candidates);
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds a new candidate, which is in candidates already, to the sampling structure. By default, the structure is
+	 * rebuilt; subclasses override this if they can add a candidate in place.
+	 */
+	protected void doAdd(PhotoId id) {
+		doReset(candidates);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Makes a removed candidate drawable again; by default it still is.
+	 */
+	protected void doRestore(PhotoId id) {
+		// do nothing
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Draws a candidate; it may be one that has been removed since the last reset.
+	 */
+	protected abstract PhotoId doNext();
+
+}
@@ -0,0 +1,465 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.wahlzeit.utils.RoaringBitmap;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A PhotoTagIndex is an in-memory inverted index from the tags of photos, as collected by the PhotoTagCollector, e.g.
+ * "un:..." and "tg:...", to the photos that have them. It covers all photos, not only the cached ones, so filtering
+ * photos needs no Datastore queries.
+ *
+ * The posting list of a tag is a compressed bitmap of the int values of the photo ids, and so is the set of visible
+ * photos. Queries combine them with intersection, union and exclusion, see findPhotos.
+ */
+public class PhotoTagIndex {
+
+	/**
+	 *
+	 */
+	protected static final PhotoTagIndex instance = new PhotoTagIndex();
+
+	/**
+	 * @methodtype get
+	 */
+	public static PhotoTagIndex getInstance() {
+		return instance;
+	}
+
+	/**
+	 *
+	 */
+	protected final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Each indexed photo with its current tags, by the int value of its id; the tags are needed to remove the photo
+	 * from the posting lists when they change
+	 */
+	protected final Map<Integer, PhotoId> photoIds = new HashMap<Integer, PhotoId>();
+	protected final Map<Integer, String[]> photoTags = new HashMap<Integer, String[]>();
+
+	/**
+	 *
+	 */
+	protected final Map<String, RoaringBitmap> postings = new HashMap<String, RoaringBitmap>();
+	protected RoaringBitmap visiblePhotos = new RoaringBitmap();
+
+	/**
+	 * Incremented whenever the tags or the visibility of a photo change, so that results derived from the index
+	 * know when to recompute
+	 */
+	protected volatile long version = 0;
+
+	/**
+	 * Number of changes kept in the change log
+	 */
+	public static final int CHANGE_LOG_SIZE = 1024;
+
+	/**
+	 * Int values of the ids of the photos changed by the last versions, as a ring buffer: version v changed the photo
+	 * at v % CHANGE_LOG_SIZE. Results derived from the index use it to catch up with a few changes instead of
+	 * recomputing. Versions before firstLoggedVersion, e.g. before a clear, are not in the log.
+	 */
+	protected final int[] changeLog = new int[CHANGE_LOG_SIZE];
+	protected long firstLoggedVersion = 1;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public PhotoTagIndex() {
+		// do nothing
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds the photo to the index or replaces its tags and visibility.
+	 */
+	public void updatePhoto(PhotoId id, Set<String> tags, boolean isVisible) {
+		int value = id.asInt();
+		lock.writeLock().lock();
+		try {
+			String[] oldTags = photoTags.get(value);
+			if (oldTags != null && oldTags.length == tags.size() && tags.containsAll(Arrays.asList(oldTags)) &&
+					visiblePhotos.contains(value) == isVisible) {
+				return; // nothing changed
+			}
+
+			logChange(value);
+			if (oldTags != null) {
+				for (String oldTag : oldTags) {
+					if (!tags.contains(oldTag)) {
+						RoaringBitmap posting = postings.get(oldTag);
+						posting.remove(value);
+						if (posting.isEmpty()) {
+							postings.remove(oldTag);
+						}
+					}
+				}
+			}
+			for (String tag : tags) {
+				postings.computeIfAbsent(tag, key -> new RoaringBitmap()).add(value);
+			}
+			photoIds.put(value, id);
+			photoTags.put(value, tags.toArray(new String[tags.size()]));
+			doSetVisible(value, isVisible);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype set
+	 *
+	 * Changes the visibility of an indexed photo; photos that are not indexed yet are ignored.
+	 */
+	public void setVisible(PhotoId id, boolean isVisible) {
+		if (id == null) {
+			return;
+		}
+
+		lock.writeLock().lock();
+		try {
+			if (photoIds.containsKey(id.asInt()) && visiblePhotos.contains(id.asInt()) != isVisible) {
+				doSetVisible(id.asInt(), isVisible);
+				logChange(id.asInt());
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype set
+	 * @methodproperties primitive
+	 */
+	protected void doSetVisible(int value, boolean isVisible) {
+		if (isVisible) {
+			visiblePhotos.add(value);
+		} else {
+			visiblePhotos.remove(value);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Increments the version and logs the photo as changed by it; the write lock must be held.
+	 */
+	protected void logChange(int value) {
+		changeLog[(int) ((version + 1) % CHANGE_LOG_SIZE)] = value;
+		version++;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean hasPhoto(PhotoId id) {
+		lock.readLock().lock();
+		try {
+			return photoIds.containsKey(id.asInt());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isVisible(PhotoId id) {
+		lock.readLock().lock();
+		try {
+			return visiblePhotos.contains(id.asInt());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the visible photos that have all tags of allOf and, unless anyOf is empty, at least one tag of anyOf,
+	 * leaving out the excluded photos, if any. The most selective posting lists are intersected first.
+	 */
+	public RoaringBitmap findPhotos(Collection<String> allOf, Collection<String> anyOf, RoaringBitmap excluded) {
+		lock.readLock().lock();
+		try {
+			List<RoaringBitmap> requiredPostings = new ArrayList<RoaringBitmap>(allOf.size());
+			for (String tag : allOf) {
+				RoaringBitmap posting = postings.get(tag);
+				if (posting == null) {
+					return new RoaringBitmap();
+				}
+				requiredPostings.add(posting);
+			}
+			requiredPostings.sort(Comparator.comparingInt(RoaringBitmap::getCardinality));
+
+			RoaringBitmap result = visiblePhotos;
+			for (RoaringBitmap posting : requiredPostings) {
+				result = RoaringBitmap.and(posting, result);
+				if (result.isEmpty()) {
+					return result;
+				}
+			}
+
+			if (!anyOf.isEmpty()) {
+				RoaringBitmap union = new RoaringBitmap();
+				for (String tag : anyOf) {
+					RoaringBitmap posting = postings.get(tag);
+					if (posting != null) {
+						union = RoaringBitmap.or(union, posting);
+					}
+				}
+				result = RoaringBitmap.and(union, result);
+			}
+
+			if (excluded != null) {
+				result = RoaringBitmap.andNot(result, excluded);
+			}
+			return (result == visiblePhotos) ? result.copy() : result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns those of the photos that are visible, have all tags of allOf and are not excluded. Unlike findPhotos,
+	 * the cost depends on the number of photos given, not on the size of the posting lists.
+	 */
+	public RoaringBitmap filterPhotos(RoaringBitmap photos, Collection<String> allOf, RoaringBitmap excluded) {
+		RoaringBitmap result = new RoaringBitmap();
+		lock.readLock().lock();
+		try {
+			List<RoaringBitmap> requiredPostings = new ArrayList<RoaringBitmap>(allOf.size());
+			for (String tag : allOf) {
+				RoaringBitmap posting = postings.get(tag);
+				if (posting == null) {
+					return result;
+				}
+				requiredPostings.add(posting);
+			}
+
+			photos.forEach(value -> {
+				if (!visiblePhotos.contains(value) || (excluded != null && excluded.contains(value))) {
+					return;
+				}
+				for (RoaringBitmap posting : requiredPostings) {
+					if (!posting.contains(value)) {
+						return;
+					}
+				}
+				result.add(value);
+			});
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the photos changed after fromVersion up to toVersion, which must not be later than the current version,
+	 * or null if these changes are no longer logged and results derived from fromVersion need to be recomputed.
+	 */
+	public RoaringBitmap getChangedPhotos(long fromVersion, long toVersion) {
+		lock.readLock().lock();
+		try {
+			if (fromVersion + 1 < firstLoggedVersion || version - fromVersion > CHANGE_LOG_SIZE) {
+				return null;
+			}
+
+			RoaringBitmap result = new RoaringBitmap();
+			for (long i = fromVersion + 1; i <= toVersion; i++) {
+				result.add(changeLog[(int) (i % CHANGE_LOG_SIZE)]);
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the visible photos that have at least one of the tags, ordered by id. If no tags are given, all visible
+	 * photos are returned.
+	 */
+	public List<PhotoId> getVisiblePhotoIds(Collection<String> tags) {
+		return getPhotoIds(findPhotos(Collections.<String>emptyList(), tags, null));
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public List<PhotoId> getPhotoIds(RoaringBitmap photos) {
+		final List<PhotoId> result = new ArrayList<PhotoId>(photos.getCardinality());
+		lock.readLock().lock();
+		try {
+			photos.forEach(value -> {
+				PhotoId id = photoIds.get(value);
+				result.add((id != null) ? id : PhotoId.getIdFromInt(value));
+			});
+		} finally {
+			lock.readLock().unlock();
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoPhotos() {
+		lock.readLock().lock();
+		try {
+			return photoIds.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoTags() {
+		lock.readLock().lock();
+		try {
+			return postings.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			photoIds.clear();
+			photoTags.clear();
+			postings.clear();
+			visiblePhotos = new RoaringBitmap();
+			version++;
+			firstLoggedVersion = version + 1; // every photo may have changed
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds all photos of the other index, replacing the tags and visibility of photos that are indexed already.
+	 */
+	public void updateFrom(PhotoTagIndex other) {
+		Map<Integer, PhotoId> otherIds;
+		Map<Integer, String[]> otherTags;
+		RoaringBitmap otherVisiblePhotos;
+		other.lock.readLock().lock();
+		try {
+			otherIds = new HashMap<Integer, PhotoId>(other.photoIds);
+			otherTags = new HashMap<Integer, String[]>(other.photoTags);
+			otherVisiblePhotos = other.visiblePhotos.copy();
+		} finally {
+			other.lock.readLock().unlock();
+		}
+
+		for (Map.Entry<Integer, PhotoId> entry : otherIds.entrySet()) {
+			Set<String> tags = new HashSet<String>(Arrays.asList(otherTags.get(entry.getKey())));
+			updatePhoto(entry.getValue(), tags, otherVisiblePhotos.contains(entry.getKey()));
+		}
+	}
+
+	/**
+	 * @methodtype conversion
+	 *
+	 * Writes the index as number of photos followed by id, visibility, number of tags and tags per photo; tags are
+	 * written as length and UTF-8 bytes.
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		lock.readLock().lock();
+		try {
+			out.writeInt(photoIds.size());
+			for (Map.Entry<Integer, String[]> entry : photoTags.entrySet()) {
+				out.writeInt(entry.getKey());
+				out.writeBoolean(visiblePhotos.contains(entry.getKey()));
+				String[] tags = entry.getValue();
+				out.writeInt(tags.length);
+				for (String tag : tags) {
+					byte[] bytes = tag.getBytes(StandardCharsets.UTF_8);
+					out.writeInt(bytes.length);
+					out.write(bytes);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype conversion
+	 *
+	 * Adds the photos of an index written by writeTo.
+	 */
+	public void readFrom(ByteBuffer in) {
+		int noPhotos = in.getInt();
+		for (int i = 0; i < noPhotos; i++) {
+			PhotoId id = PhotoId.getIdFromInt(in.getInt());
+			boolean isVisible = in.get() != 0;
+			int noTags = in.getInt();
+			Set<String> tags = new HashSet<String>(noTags * 2);
+			for (int j = 0; j < noTags; j++) {
+				byte[] bytes = new byte[in.getInt()];
+				in.get(bytes);
+				tags.add(new String(bytes, StandardCharsets.UTF_8));
+			}
+			updatePhoto(id, tags, isVisible);
+		}
+	}
+
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+import org.wahlzeit.services.LogBuilder;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+ * The PraiseAggregator takes the votes for photos and adds them to the photos later, in batches. A vote only adds to
+ * striped counters of the photo, so concurrent votes do not contend and do not get lost; a flush writes the sums of
+ * each photo once, however many votes it got.
+ *
+ * Votes are collected per epoch. A vote holds the read lock of its epoch while adding; a flush starts a new epoch and
+ * then closes the old one under its write lock, which waits for the votes still being added, so its sums are exact.
+ * A client can only vote once for a photo; the check covers votes that have not been flushed.
+ *
+ * Like the WriteBehindQueue, the aggregator has no thread of its own: the check runs after each request (see
+ * AbstractServlet) and by the flushWriteBehindQueue agent; {@link #drain()} adds everything on shutdown. Until then,
+ * new votes are not part of the praise of a photo. A flush writes the votes to the praise shards of the photos in
+ * transactions, see ShardedPraiseCounter, so only votes of the last maxDelay ms live in memory alone.
+ */
+public class PraiseAggregator {
+
+	private static final Logger log = Logger.getLogger(PraiseAggregator.class.getName());
+
+	/**
+	 *
+	 */
+	public static final String MAX_DELAY_PROPERTY = "org.wahlzeit.praiseAggregator.maxDelay";
+	public static final long DEFAULT_MAX_DELAY = 1000; // = 1 s
+
+	/**
+	 *
+	 */
+	protected static final PraiseAggregator instance = new PraiseAggregator(
+			Long.getLong(MAX_DELAY_PROPERTY, DEFAULT_MAX_DELAY));
+
+	/**
+	 * @methodtype get
+	 */
+	public static PraiseAggregator getInstance() {
+		return instance;
+	}
+
+	/**
+	 * The votes for one photo within an epoch
+	 */
+	protected static class PraiseCounter {
+		protected final LongAdder praiseSum = new LongAdder();
+		protected final LongAdder noVotes = new LongAdder();
+	}
+
+	/**
+	 * The votes collected between two flushes
+	 */
+	protected static class Epoch {
+		protected final long startTime = System.currentTimeMillis();
+		protected final ConcurrentMap<PhotoId, PraiseCounter> counters = new ConcurrentHashMap<PhotoId, PraiseCounter>();
+		protected final Set<String> voteKeys = ConcurrentHashMap.newKeySet();
+
+		/**
+		 * Votes hold the read lock while adding; a flush takes the write lock to close the epoch
+		 */
+		protected final ReadWriteLock lock = new ReentrantReadWriteLock();
+		protected boolean isClosed = false;
+	}
+
+	/**
+	 *
+	 */
+	protected final long maxDelay;
+
+	/**
+	 *
+	 */
+	protected volatile Epoch currentEpoch = new Epoch();
+
+	/**
+	 * Client and photo of the votes that have not been flushed yet
+	 */
+	protected final Set<String> pendingVoteKeys = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Only one thread flushes at a time
+	 */
+	protected final ReentrantLock flushLock = new ReentrantLock();
+
+	/**
+	 * Metrics
+	 */
+	protected final LongAdder acceptedCount = new LongAdder();
+	protected final LongAdder duplicateCount = new LongAdder();
+	protected final LongAdder foldedPhotoCount = new LongAdder();
+	protected final LongAdder requeuedPhotoCount = new LongAdder();
+
+	/**
+	 * @methodtype constructor
+	 */
+	public PraiseAggregator(long maxDelay) {
+		if (maxDelay < 0) {
+			throw new IllegalArgumentException("invalid praise aggregator configuration");
+		}
+
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds a vote of the client for the photo. Returns false, and ignores the vote, if the client voted for the photo
+	 * already and that vote has not been flushed yet; votes that were flushed are known to the client.
+	 */
+	public boolean addPraise(Client client, Photo photo, int value) {
+		return addPraise(client.getId(), photo.getId(), value);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public boolean addPraise(String clientId, PhotoId photoId, int value) {
+		String voteKey = clientId + "/" + photoId.asInt();
+		if (!pendingVoteKeys.add(voteKey)) {
+			duplicateCount.increment();
+			return false;
+		}
+
+		addToCurrentEpoch(photoId, value, 1, voteKey);
+		acceptedCount.increment();
+		return true;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds votes that could not be applied back to the current epoch, so the next flush retries them.
+	 */
+	protected void requeuePraise(PhotoId photoId, int praiseSum, int noVotes) {
+		addToCurrentEpoch(photoId, praiseSum, noVotes, null);
+		requeuedPhotoCount.increment();
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void addToCurrentEpoch(PhotoId photoId, int praiseSum, int noVotes, String voteKey) {
+		while (true) {
+			Epoch epoch = currentEpoch;
+			epoch.lock.readLock().lock();
+			try {
+				if (epoch.isClosed) {
+					continue; // a flush started a new epoch, which gets the votes
+				}
+
+				PraiseCounter counter = epoch.counters.computeIfAbsent(photoId, id -> new PraiseCounter());
+				counter.praiseSum.add(praiseSum);
+				counter.noVotes.add(noVotes);
+				if (voteKey != null) {
+					epoch.voteKeys.add(voteKey);
+				}
+				return;
+			} finally {
+				epoch.lock.readLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isFlushDue() {
+		Epoch epoch = currentEpoch;
+		return !epoch.counters.isEmpty() && (System.currentTimeMillis() - epoch.startTime >= maxDelay);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Flushes if the votes waited long enough and no other thread is flushing right now.
+	 */
+	public void flushIfDue() {
+		if (isFlushDue() && flushLock.tryLock()) {
+			try {
+				flush();
+			} finally {
+				flushLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds all votes to their photos.
+	 */
+	public void drain() {
+		flushLock.lock();
+		try {
+			flush();
+		} finally {
+			flushLock.unlock();
+		}
+
+		log.info(LogBuilder.createSystemMessage().
+				addAction("drained praise aggregator").
+				addParameter("metrics", getMetricsAsString()).toString());
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Starts a new epoch and adds the votes of the old one to their photos; the caller holds the flushLock.
+	 */
+	protected void flush() {
+		final Epoch epoch = currentEpoch;
+		if (epoch.counters.isEmpty()) {
+			return;
+		}
+
+		currentEpoch = new Epoch();
+		epoch.lock.writeLock().lock(); // waits for the votes being added
+		try {
+			epoch.isClosed = true;
+		} finally {
+			epoch.lock.writeLock().unlock();
+		}
+
+		ObjectifyService.run(new VoidWork() {
+			@Override
+			public void vrun() {
+				for (Map.Entry<PhotoId, PraiseCounter> entry : epoch.counters.entrySet()) {
+					PraiseCounter counter = entry.getValue();
+					applyPraise(entry.getKey(), counter.praiseSum.intValue(), counter.noVotes.intValue());
+					foldedPhotoCount.increment();
+				}
+			}
+		});
+		pendingVoteKeys.removeAll(epoch.voteKeys);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds the praise and number of votes to a shard of the photo; if that fails, they are tried again with the next
+	 * flush.
+	 */
+	protected void applyPraise(PhotoId photoId, int praiseSum, int noVotes) {
+		if (!PhotoManager.getInstance().hasPhoto(photoId)) {
+			log.warning(LogBuilder.createSystemMessage().
+					addMessage("dropped votes for unknown photo").
+					addParameter("photo", photoId.asString()).
+					addParameter("votes", noVotes).toString());
+			return;
+		}
+
+		try {
+			ShardedPraiseCounter.getInstance().addPraise(photoId, praiseSum, noVotes);
+		} catch (RuntimeException e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addException("could not add praise, retrying with next flush", e).toString());
+			requeuePraise(photoId, praiseSum, noVotes);
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getMetricsAsString() {
+		return "accepted=" + acceptedCount.sum() + ", duplicates=" + duplicateCount.sum() +
+				", folded photos=" + foldedPhotoCount.sum() +
+				", requeued photos=" + requeuedPhotoCount.sum() + ", pending=" + pendingVoteKeys.size();
+	}
+
+}
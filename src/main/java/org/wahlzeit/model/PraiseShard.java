@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+import org.wahlzeit.services.DataObject;
+
+/**
+ * A PraiseShard holds a part of the votes of a photo. The votes of a photo are spread over several shards, so that
+ * they can be written concurrently; see ShardedPraiseCounter.
+ *
+ * Shards have no parent, whatever the key strategy of the ObjectManager: each shard is an entity group of its own.
+ */
+@Entity
+public class PraiseShard extends DataObject {
+
+	/**
+	 *
+	 */
+	public static final String PHOTO_ID = "photoId";
+
+	/**
+	 * Photo id and shard index, e.g. "x1a2-3"
+	 */
+	@Id
+	protected String id;
+
+	@Index
+	protected String photoId;
+
+	protected int shardIndex;
+
+	/**
+	 *
+	 */
+	protected long praiseSum = 0;
+	protected long noVotes = 0;
+
+	/**
+	 *
+	 */
+	protected PraiseShard() {
+		// do nothing, necessary for Google Datastore
+	}
+
+	/**
+	 *
+	 */
+	public PraiseShard(PhotoId photoId, int shardIndex) {
+		this.id = asId(photoId, shardIndex);
+		this.photoId = photoId.asString();
+		this.shardIndex = shardIndex;
+		incWriteCount();
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public static String asId(PhotoId photoId, int shardIndex) {
+		return photoId.asString() + "-" + shardIndex;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns NULL_ID as long as the PhotoId counter has not reached the id, e.g. while loading on startup; see
+	 * getPhotoIdAsInt.
+	 */
+	public PhotoId getPhotoId() {
+		return PhotoId.getIdFromString(photoId);
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the int value of the photo id as stored, whatever the state of the PhotoId counter.
+	 */
+	public int getPhotoIdAsInt() {
+		return PhotoId.getFromString(photoId);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getShardIndex() {
+		return shardIndex;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getPraiseSum() {
+		return praiseSum;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoVotes() {
+		return noVotes;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void addPraise(long praise, long votes) {
+		praiseSum += praise;
+		noVotes += votes;
+		incWriteCount();
+	}
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * A PraiseWeightedPhotoSampler draws candidates with a probability proportional to their praise, using an alias
+ * table (Vose's method): every draw picks a column uniformly and then the column's photo or its alias with one coin
+ * flip. Weights are taken when the table is built; later praise only counts after the next reset. Adding a candidate
+ * rebuilds the table, which also updates the weights.
+ */
+public class PraiseWeightedPhotoSampler extends PhotoSampler {
+
+	/**
+	 * Photos without praise still get this weight, so they are shown at all
+	 */
+	public static final double MINIMUM_WEIGHT = 0.1;
+
+	/**
+	 *
+	 */
+	protected final ToDoubleFunction<PhotoId> praiseFunction;
+
+	/**
+	 * Per column: the photo, the probability to keep it, and the index of the alias photo otherwise
+	 */
+	protected PhotoId[] photoIds = new PhotoId[0];
+	protected double[] probabilities = new double[0];
+	protected int[] aliases = new int[0];
+
+	/**
+	 * @methodtype constructor
+	 */
+	public PraiseWeightedPhotoSampler(ToDoubleFunction<PhotoId> praiseFunction) {
+		this.praiseFunction = praiseFunction;
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	protected void doReset(List<PhotoId> candidates) {
+		int size = candidates.size();
+		photoIds = candidates.toArray(new PhotoId[size]);
+		probabilities = new double[size];
+		aliases = new int[size];
+
+		double[] weights = new double[size];
+		double totalWeight = 0;
+		for (int i = 0; i < size; i++) {
+			double praise = praiseFunction.applyAsDouble(photoIds[i]);
+			weights[i] = (Double.isNaN(praise) || praise < MINIMUM_WEIGHT) ? MINIMUM_WEIGHT : praise;
+			totalWeight += weights[i];
+		}
+
+		// scale weights so that the average is 1, then pair each small column with a large one
+		Deque<Integer> small = new ArrayDeque<Integer>();
+		Deque<Integer> large = new ArrayDeque<Integer>();
+		for (int i = 0; i < size; i++) {
+			weights[i] = weights[i] * size / totalWeight;
+			if (weights[i] < 1.0) {
+				small.push(i);
+			} else {
+				large.push(i);
+			}
+		}
+		while (!small.isEmpty() && !large.isEmpty()) {
+			int less = small.pop();
+			int more = large.pop();
+			probabilities[less] = weights[less];
+			aliases[less] = more;
+			weights[more] = (weights[more] + weights[less]) - 1.0;
+			if (weights[more] < 1.0) {
+				small.push(more);
+			} else {
+				large.push(more);
+			}
+		}
+		// the rest is 1 up to rounding errors
+		while (!large.isEmpty()) {
+			probabilities[large.pop()] = 1.0;
+		}
+		while (!small.isEmpty()) {
+			probabilities[small.pop()] = 1.0;
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	protected PhotoId doNext() {
+		int column = random.nextInt(photoIds.length);
+		return (random.nextDouble() < probabilities[column]) ? photoIds[column] : photoIds[aliases[column]];
+	}
+
+}
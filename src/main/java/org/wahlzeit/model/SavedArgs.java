@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.wahlzeit.utils.VarInt;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The form arguments a UserSession saves between requests. Almost all of them are strings, which are externalized as
+ * varint-prefixed UTF-8 instead of with the per-entry overhead of a serialized HashMap; other values fall back to
+ * regular serialization.
+ */
+public class SavedArgs extends HashMap<String, Object> implements Externalizable {
+
+	/**
+	 * Tags of the externalized values
+	 */
+	protected static final int NULL_VALUE = 0;
+	protected static final int STRING_VALUE = 1;
+	protected static final int OBJECT_VALUE = 2;
+
+	/**
+	 *
+	 */
+	public SavedArgs() {
+		// do nothing
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		VarInt.writeUnsignedInt(out, size());
+		for (Map.Entry<String, Object> entry : entrySet()) {
+			VarInt.writeString(out, entry.getKey());
+			Object value = entry.getValue();
+			if (value == null) {
+				out.writeByte(NULL_VALUE);
+			} else if (value instanceof String) {
+				out.writeByte(STRING_VALUE);
+				VarInt.writeString(out, (String) value);
+			} else {
+				out.writeByte(OBJECT_VALUE);
+				out.writeObject(value);
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		clear();
+		int size = VarInt.readUnsignedInt(in);
+		for (int i = 0; i < size; i++) {
+			String key = VarInt.readString(in);
+			int tag = in.readUnsignedByte();
+			switch (tag) {
+				case NULL_VALUE:
+					put(key, null);
+					break;
+				case STRING_VALUE:
+					put(key, VarInt.readString(in));
+					break;
+				case OBJECT_VALUE:
+					put(key, in.readObject());
+					break;
+				default:
+					throw new IOException("unknown saved argument tag " + tag);
+			}
+		}
+	}
+
+}
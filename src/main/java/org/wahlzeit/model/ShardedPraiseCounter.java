@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.Work;
+import org.wahlzeit.services.DataObject;
+import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.OfyService;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * The ShardedPraiseCounter persists the votes of photos as PraiseShard entities instead of in the Photo entity. A
+ * write goes to a random shard of the photo in a transaction of its own, so votes for a photo are not limited by the
+ * write rate of a single entity group. A photo starts with a few shards; if a write had to be retried because of
+ * contention, the photo gets twice as many.
+ *
+ * The totals of all photos are kept in memory, as the last known values of each shard, and summed on read. Writes of
+ * this instance update them right away; writes of other instances are picked up by refreshIfDue. Shards only grow,
+ * so an older value of a shard never replaces a newer one.
+ */
+public class ShardedPraiseCounter {
+
+	private static final Logger log = Logger.getLogger(ShardedPraiseCounter.class.getName());
+
+	/**
+	 *
+	 */
+	public static final String INITIAL_NO_SHARDS_PROPERTY = "org.wahlzeit.praiseCounter.initialShards";
+	public static final String REFRESH_INTERVAL_PROPERTY = "org.wahlzeit.praiseCounter.refreshInterval";
+	public static final int DEFAULT_INITIAL_NO_SHARDS = 4;
+	public static final long DEFAULT_REFRESH_INTERVAL = 60 * 1000; // = 1 min
+	public static final int MAX_NO_SHARDS = 64;
+
+	/**
+	 * Shards that were saved shortly before a refresh may not be found by its query yet
+	 */
+	protected static final long REFRESH_MARGIN = 30 * 1000; // = 30 s
+
+	/**
+	 *
+	 */
+	protected static final ShardedPraiseCounter instance = new ShardedPraiseCounter(
+			Integer.getInteger(INITIAL_NO_SHARDS_PROPERTY, DEFAULT_INITIAL_NO_SHARDS),
+			Long.getLong(REFRESH_INTERVAL_PROPERTY, DEFAULT_REFRESH_INTERVAL));
+
+	/**
+	 * @methodtype get
+	 */
+	public static ShardedPraiseCounter getInstance() {
+		return instance;
+	}
+
+	/**
+	 * The last known values of the shards of a photo and their sums
+	 */
+	protected static class ShardValues {
+
+		protected long[] praiseSums;
+		protected long[] noVotes;
+		protected int noShards;
+
+		protected long totalPraiseSum = 0;
+		protected long totalNoVotes = 0;
+
+		protected ShardValues(int noShards) {
+			this.noShards = noShards;
+			this.praiseSums = new long[noShards];
+			this.noVotes = new long[noShards];
+		}
+
+		/**
+		 * Takes the values of a shard unless the known ones are newer; returns whether the totals changed.
+		 */
+		protected synchronized boolean update(int shardIndex, long praiseSum, long votes) {
+			if (shardIndex >= praiseSums.length) {
+				int length = Math.max(shardIndex + 1, praiseSums.length * 2);
+				praiseSums = Arrays.copyOf(praiseSums, length);
+				noVotes = Arrays.copyOf(noVotes, length);
+			}
+			noShards = Math.max(noShards, shardIndex + 1);
+
+			if (votes <= noVotes[shardIndex]) {
+				return false;
+			}
+
+			totalPraiseSum += praiseSum - praiseSums[shardIndex];
+			totalNoVotes += votes - noVotes[shardIndex];
+			praiseSums[shardIndex] = praiseSum;
+			noVotes[shardIndex] = votes;
+			return true;
+		}
+
+		protected synchronized void grow(int maxNoShards) {
+			noShards = Math.min(noShards * 2, maxNoShards);
+		}
+
+		protected synchronized int getNoShards() {
+			return noShards;
+		}
+
+		protected synchronized long getTotalPraiseSum() {
+			return totalPraiseSum;
+		}
+
+		protected synchronized long getTotalNoVotes() {
+			return totalNoVotes;
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected final int initialNoShards;
+	protected final long refreshInterval;
+
+	/**
+	 *
+	 */
+	/**
+	 * Shard values by the int value of the photo id, which, unlike a PhotoId, is known before the PhotoId counter has
+	 * been restored
+	 */
+	protected final ConcurrentMap<Integer, ShardValues> shardValues = new ConcurrentHashMap<Integer, ShardValues>();
+
+	/**
+	 * Time of the last refresh; 0 until all shards have been loaded
+	 */
+	protected volatile long lastRefreshTime = 0;
+	protected final AtomicInteger refreshing = new AtomicInteger(0);
+
+	/**
+	 * @methodtype constructor
+	 */
+	public ShardedPraiseCounter(int initialNoShards, long refreshInterval) {
+		if (initialNoShards < 1 || initialNoShards > MAX_NO_SHARDS || refreshInterval < 0) {
+			throw new IllegalArgumentException("invalid praise counter configuration");
+		}
+
+		this.initialNoShards = initialNoShards;
+		this.refreshInterval = refreshInterval;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getPraiseSum(PhotoId photoId) {
+		ShardValues values = shardValues.get(photoId.asInt());
+		return values != null ? values.getTotalPraiseSum() : 0;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoVotes(PhotoId photoId) {
+		ShardValues values = shardValues.get(photoId.asInt());
+		return values != null ? values.getTotalNoVotes() : 0;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoShards(PhotoId photoId) {
+		ShardValues values = shardValues.get(photoId.asInt());
+		return values != null ? values.getNoShards() : initialNoShards;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds the praise and number of votes to a random shard of the photo. Throws a RuntimeException if the write
+	 * failed; nothing has been added then.
+	 */
+	public void addPraise(final PhotoId photoId, final long praiseSum, final long votes) {
+		ShardValues values = getShardValues(photoId.asInt());
+		final int shardIndex = ThreadLocalRandom.current().nextInt(values.getNoShards());
+		final AtomicInteger attempts = new AtomicInteger(0);
+		PraiseShard shard = OfyService.ofy().transact(new Work<PraiseShard>() {
+			@Override
+			public PraiseShard run() {
+				attempts.incrementAndGet();
+				PraiseShard result = OfyService.ofy().load().type(PraiseShard.class).
+						id(PraiseShard.asId(photoId, shardIndex)).now();
+				if (result == null) {
+					result = new PraiseShard(photoId, shardIndex);
+				}
+				result.addPraise(praiseSum, votes);
+				OfyService.ofy().save().entity(result).now();
+				return result;
+			}
+		});
+
+		if (attempts.get() > 1 && values.getNoShards() < MAX_NO_SHARDS) {
+			values.grow(MAX_NO_SHARDS);
+			log.info(LogBuilder.createSystemMessage().
+					addAction("add praise shards").
+					addParameter("photo", photoId.asString()).
+					addParameter("shards", values.getNoShards()).toString());
+		}
+		updateShard(shard);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Loads all shards; done once on startup.
+	 */
+	public void loadShards() {
+		long startTime = System.currentTimeMillis();
+		List<PraiseShard> shards = ObjectifyService.run(new Work<List<PraiseShard>>() {
+			@Override
+			public List<PraiseShard> run() {
+				return OfyService.ofy().load().type(PraiseShard.class).list();
+			}
+		});
+		updateShards(shards);
+		lastRefreshTime = startTime;
+
+		log.info(LogBuilder.createSystemMessage().addMessage("All praise shards loaded.").
+				addParameter("number of shards", shards.size()).toString());
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Loads the shards that other instances saved since the last refresh, if the refresh interval has passed and no
+	 * other thread is refreshing right now.
+	 */
+	public void refreshIfDue() {
+		final long since = lastRefreshTime;
+		long now = System.currentTimeMillis();
+		if (since == 0 || now - since < refreshInterval || !refreshing.compareAndSet(0, 1)) {
+			return;
+		}
+
+		try {
+			ObjectifyService.run(new VoidWork() {
+				@Override
+				public void vrun() {
+					List<PraiseShard> shards = OfyService.ofy().load().type(PraiseShard.class).
+							filter(DataObject.LAST_MODIFIED + " >", since - REFRESH_MARGIN).list();
+					updateShards(shards);
+				}
+			});
+			lastRefreshTime = now;
+		} catch (RuntimeException e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addException("could not refresh praise shards", e).toString());
+		} finally {
+			refreshing.set(0);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void updateShards(List<PraiseShard> shards) {
+		for (PraiseShard shard : shards) {
+			updateShard(shard);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Takes the values of the shard and passes changed totals on to the photo, if it is cached. The values are kept
+	 * by the stored photo id, so shards loaded before the PhotoId counter has been restored count for their photos;
+	 * such photos cannot be cached yet, and take the totals when they are loaded.
+	 */
+	protected void updateShard(PraiseShard shard) {
+		int photoIdValue = shard.getPhotoIdAsInt();
+		ShardValues values = getShardValues(photoIdValue);
+		if (values.update(shard.getShardIndex(), shard.getPraiseSum(), shard.getNoVotes())) {
+			PhotoId photoId = PhotoId.getIdFromInt(photoIdValue);
+			if (!photoId.isNullId()) {
+				PhotoManager.getInstance().updateShardedPraise(photoId, values.getTotalPraiseSum(),
+						values.getTotalNoVotes());
+			}
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected ShardValues getShardValues(int photoIdValue) {
+		return shardValues.computeIfAbsent(photoIdValue, id -> new ShardValues(initialNoShards));
+	}
+
+}
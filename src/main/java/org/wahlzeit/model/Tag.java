@@ -26,7 +26,7 @@ public class Tag extends DataObject {
 	@Index
 	private String photoId;
 	@Parent
-	Key parent = ObjectManager.applicationRootKey;
+	Key parent = ObjectManager.getParentKey();
 
 	public Tag() {
 		// do nothing, necessary for Google Datastore
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A UniformPhotoSampler draws every candidate with the same probability.
+ */
+public class UniformPhotoSampler extends PhotoSampler {
+
+	/**
+	 *
+	 */
+	protected List<PhotoId> photoIds = new ArrayList<PhotoId>();
+
+	/**
+	 *
+	 */
+	@Override
+	protected void doReset(List<PhotoId> candidates) {
+		photoIds = new ArrayList<PhotoId>(candidates);
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	protected void doAdd(PhotoId id) {
+		photoIds.add(id);
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	protected PhotoId doNext() {
+		return photoIds.get(random.nextInt(photoIds.size()));
+	}
+
+}
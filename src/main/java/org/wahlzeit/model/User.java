@@ -22,15 +22,22 @@ package org.wahlzeit.model;
 
 import com.google.appengine.api.images.Image;
 import com.googlecode.objectify.annotation.Ignore;
+import com.googlecode.objectify.annotation.IgnoreSave;
+import com.googlecode.objectify.annotation.OnLoad;
+import com.googlecode.objectify.annotation.OnSave;
 import com.googlecode.objectify.annotation.Subclass;
 import org.wahlzeit.services.EmailAddress;
-import org.wahlzeit.services.Language;
 import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.utils.RoaringBitmap;
+import org.wahlzeit.utils.VarInt;
 
-import java.util.Arrays;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
 
@@ -72,7 +79,32 @@ public class User extends Client {
 	 *
 	 */
 	protected Photo userPhoto = null;
-	protected Set<Photo> photos = new HashSet<Photo>();
+
+	/**
+	 * Photos as embedded by earlier versions; only read to migrate old entities
+	 */
+	@IgnoreSave
+	protected Set<Photo> photos = null;
+
+	/**
+	 * Ids of the photos of the user as a delta-varint encoded set
+	 */
+	protected byte[] photoData = null;
+
+	/**
+	 * Decoded photoData; once decoded, it takes precedence over photoData, which is brought up to date on save. The
+	 * bitmap is never changed in place: changes replace it with a changed copy while holding the lock of this user,
+	 * so readers need no lock.
+	 */
+	@Ignore
+	protected transient volatile RoaringBitmap photoIds = new RoaringBitmap();
+
+	/**
+	 * The photos of the user ordered by praise; built when first needed and then kept up to date
+	 */
+	@Ignore
+	protected transient volatile PhotoPraiseIndex photoIndex = null;
+
 	@Ignore // only used as temporary variable
 	protected Image uploadedImage = null;
 
@@ -125,14 +157,44 @@ public class User extends Client {
 		// do nothing
 	}
 
-	@Override
-	protected void doSetLanguage(Language newLanguage) {
-		for (Iterator<Photo> i = photos.iterator(); i.hasNext(); ) {
-			Photo photo = i.next();
-			photo.setOwnerLanguage(language);
+	/**
+	 * @methodtype command
+	 */
+	@OnSave
+	protected void encodePhotoIds() {
+		RoaringBitmap currentPhotoIds = photoIds;
+		if (currentPhotoIds != null) {
+			photoData = VarInt.toDeltaEncodedBytes(currentPhotoIds);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Leaves the encoded photo ids to be decoded when first needed; moves embedded photos of earlier versions into them.
+	 */
+	@OnLoad
+	protected void loadPhotoIds() {
+		photoIds = null;
+		photoIndex = null;
+		if (photos != null) {
+			RoaringBitmap newPhotoIds = getPhotoIdSet().copy();
+			for (Photo photo : photos) {
+				newPhotoIds.add(photo.getId().asInt());
+			}
+			photoIds = newPhotoIds;
+			photos = null;
 		}
 	}
 
+	/**
+	 * @methodtype command
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		encodePhotoIds();
+		out.defaultWriteObject();
+	}
+
 	/**
 	 * @methodtype boolean query
 	 */
@@ -142,15 +204,11 @@ public class User extends Client {
 
 	/**
 	 * @methodtype set
+	 *
+	 * Photos read this setting from their owner, see Photo.getOwnerNotifyAboutPraise, so they are not changed.
 	 */
 	public void setNotifyAboutPraise(boolean notify) {
 		notifyAboutPraise = notify;
-
-		for (Iterator<Photo> i = photos.iterator(); i.hasNext(); ) {
-			Photo photo = i.next();
-			photo.setOwnerNotifyAboutPraise(notifyAboutPraise);
-		}
-
 		incWriteCount();
 	}
 
@@ -233,7 +291,15 @@ public class User extends Client {
 	 * @methodtype set
 	 */
 	public void addPhoto(Photo newPhoto) {
-		photos.add(newPhoto);
+		synchronized (this) {
+			RoaringBitmap newPhotoIds = getPhotoIdSet().copy();
+			newPhotoIds.add(newPhoto.getId().asInt());
+			photoIds = newPhotoIds;
+			PhotoPraiseIndex index = photoIndex;
+			if (index != null) {
+				index.put(newPhoto.getId(), newPhoto.getPraise());
+			}
+		}
 
 		newPhoto.setOwnerId(id);
 		newPhoto.setOwnerNotifyAboutPraise(notifyAboutPraise);
@@ -247,15 +313,60 @@ public class User extends Client {
 	 * @methodtype set
 	 */
 	public void removePhoto(Photo notMyPhoto) {
-		photos.remove(notMyPhoto);
+		synchronized (this) {
+			RoaringBitmap newPhotoIds = getPhotoIdSet().copy();
+			newPhotoIds.remove(notMyPhoto.getId().asInt());
+			photoIds = newPhotoIds;
+			PhotoPraiseIndex index = photoIndex;
+			if (index != null) {
+				index.remove(notMyPhoto.getId());
+			}
+		}
 		incWriteCount();
 	}
 
+	/**
+	 * @methodtype command
+	 *
+	 * Moves the photo to the position of its current praise, if the praise order has been built yet.
+	 */
+	public void updatePhotoPraise(Photo photo) {
+		PhotoPraiseIndex index = photoIndex;
+		if (index != null && index.contains(photo.getId())) {
+			index.put(photo.getId(), photo.getPraise());
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean hasPhoto(PhotoId photoId) {
+		return getPhotoIdSet().contains(photoId.asInt());
+	}
+
 	/**
 	 * @methodtype get
 	 */
 	public int getNoOfPhotos() {
-		return photos.size();
+		return getPhotoIdSet().getCardinality();
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the ids of the photos of the user in ascending order.
+	 */
+	public List<PhotoId> getPhotoIds() {
+		return asPhotoIds(getPhotoIdSet());
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns up to limit photo ids, starting at the given position of the order by praise, highest first.
+	 */
+	public List<PhotoId> getPhotoIdsReverseOrderedByPraise(int offset, int limit) {
+		return getPhotoIndex().getPhotoIds(offset, limit);
 	}
 
 	/**
@@ -269,9 +380,16 @@ public class User extends Client {
 	 * @methodtype conversion
 	 */
 	public Photo[] getPhotosReverseOrderedByPraise() {
-		Photo[] result = photos.toArray(new Photo[0]);
-		Arrays.sort(result, getPhotoByPraiseReverseComparator());
-		return result;
+		List<PhotoId> ids = getPhotoIdsReverseOrderedByPraise(0, Integer.MAX_VALUE);
+		Map<PhotoId, Photo> photos = PhotoManager.getInstance().getPhotos(ids);
+		List<Photo> result = new ArrayList<Photo>(photos.size());
+		for (PhotoId photoId : ids) {
+			Photo photo = photos.get(photoId);
+			if (photo != null) {
+				result.add(photo);
+			}
+		}
+		return result.toArray(new Photo[result.size()]);
 	}
 
 	/**
@@ -280,21 +398,61 @@ public class User extends Client {
 	public static Comparator<Photo> getPhotoByPraiseReverseComparator() {
 		return new Comparator<Photo>() {
 			public int compare(Photo p1, Photo p2) {
-				double sc1 = p1.getPraise();
-				double sc2 = p2.getPraise();
-				if (sc1 == sc2) {
-					String id1 = String.valueOf(p1.getId());
-					String id2 = String.valueOf(p2.getId());
-					return id1.compareTo(id2);
-				} else if (sc1 < sc2) {
-					return 1;
-				} else {
-					return -1;
+				int result = Double.compare(p2.getPraise(), p1.getPraise());
+				if (result == 0) {
+					result = Integer.compare(p1.getId().asInt(), p2.getId().asInt());
 				}
+				return result;
 			}
 		};
 	}
 
+	/**
+	 * @methodtype get
+	 */
+	protected RoaringBitmap getPhotoIdSet() {
+		RoaringBitmap result = photoIds;
+		if (result == null) {
+			synchronized (this) {
+				result = photoIds;
+				if (result == null) {
+					result = VarInt.fromDeltaEncodedBytes(photoData);
+					photoIds = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Builds the praise order from the photos of the user when first needed; this loads photos that are not cached.
+	 */
+	protected PhotoPraiseIndex getPhotoIndex() {
+		PhotoPraiseIndex result = photoIndex;
+		if (result == null) {
+			synchronized (this) {
+				result = photoIndex;
+				if (result == null) {
+					result = new PhotoPraiseIndex();
+					for (Photo photo : getPhotoObjects()) {
+						result.put(photo.getId(), photo.getPraise());
+					}
+					photoIndex = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected Collection<Photo> getPhotoObjects() {
+		return PhotoManager.getInstance().getPhotos(getPhotoIds()).values();
+	}
+
 	/**
 	 * @methodtype set
 	 */
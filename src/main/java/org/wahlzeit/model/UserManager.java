@@ -24,6 +24,7 @@ import com.googlecode.objectify.ObjectifyService;
 import com.googlecode.objectify.Work;
 import org.wahlzeit.services.EmailAddress;
 import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.PendingResult;
 import org.wahlzeit.services.mailing.EmailService;
 import org.wahlzeit.services.mailing.EmailServiceManager;
 
@@ -31,6 +32,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
 
@@ -53,11 +56,22 @@ public class UserManager extends ClientManager {
 	);
 
 
+	/**
+	 *
+	 */
+	public static final int DEFAULT_LOAD_BATCH_SIZE = 500;
+
 	/**
 	 *
 	 */
 	protected static UserManager instance;
 
+	/**
+	 * Maps the email addresses of the known users to the users, so that a lookup by email address does not need a
+	 * Datastore query. Keyed by the address string, as EmailAddress objects loaded by Objectify are not interned.
+	 */
+	protected ConcurrentMap<String, User> emailAddressUserMap = new ConcurrentHashMap<String, User>();
+
 	/**
 	 *
 	 */
@@ -82,25 +96,85 @@ public class UserManager extends ClientManager {
 	 *
 	 */
 	public void loadExistingUsers() {
-		ObjectifyService.run(new Work<Void>() {
+		loadExistingUsers(DEFAULT_LOAD_BATCH_SIZE);
+	}
+
+	/**
+	 * Loads all users in batches of batchSize, continuing each batch with a cursor.
+	 */
+	public void loadExistingUsers(final int batchSize) {
+		int noLoadedUsers = ObjectifyService.run(new Work<Integer>() {
 			@Override
-			public Void run() {
-				Collection<User> existingUser = new ArrayList<User>();
-				readObjects(existingUser, User.class);
-
-				for (User user : existingUser) {
-					if (!hasClientById(user.getId())) {
-						doAddClient(user);
-					} else {
-						log.config(LogBuilder.createSystemMessage().addParameter("user has been loaded", user.getId())
-								.toString());
+			public Integer run() {
+				return readObjectsInBatches(User.class, batchSize, batch -> addLoadedUsers(batch));
+			}
+		});
+
+		log.info(LogBuilder.createSystemMessage().addMessage("loaded all clients").
+				addParameter("number of users", noLoadedUsers).toString());
+	}
+
+	/**
+	 * Adds clients that have been read from a snapshot or changed since then. A client that is already known is
+	 * replaced.
+	 */
+	public void restoreClients(Collection<? extends Client> clients) {
+		for (Client client : clients) {
+			Client previousClient = doGetClientById(client.getId());
+			if (previousClient != null) {
+				nicknameIndex.release(previousClient.getNickName(), previousClient.getId());
+				unindexEmailAddress(previousClient, previousClient.getEmailAddress());
+			}
+			client.resetWriteCount(); // just loaded, so nothing to save
+			idClientMap.put(client.getId(), client);
+			nicknameIndex.put(client.getNickName(), client.getId());
+			indexEmailAddress(client);
+		}
+	}
+
+	/**
+	 * Loads all users that were saved after time.
+	 */
+	public void loadUsersChangedSince(final long time) {
+		Collection<User> changedUsers = ObjectifyService.run(new Work<Collection<User>>() {
+			@Override
+			public Collection<User> run() {
+				// queried as Client, a query for User would need a composite index with the subclass filter
+				Collection<Client> changedClients = new ArrayList<Client>();
+				readObjectsChangedSince(changedClients, Client.class, time);
+				Collection<User> result = new ArrayList<User>();
+				for (Client client : changedClients) {
+					if (client instanceof User) {
+						result.add((User) client);
 					}
 				}
-				return null;
+				return result;
 			}
 		});
+		restoreClients(changedUsers);
+	}
 
-		log.info(LogBuilder.createSystemMessage().addMessage("loaded all clients").toString());
+	/**
+	 * @methodtype get
+	 *
+	 * Returns a copy of all known clients.
+	 */
+	public Collection<Client> getClients() {
+		return new ArrayList<Client>(idClientMap.values());
+	}
+
+	/**
+	 *
+	 */
+	protected void addLoadedUsers(Collection<User> existingUser) {
+		for (User user : existingUser) {
+			if (!hasClientById(user.getId())) {
+				doAddClient(user);
+			} else {
+				log.config(LogBuilder.createSystemMessage().addParameter("user has been loaded", user.getId())
+						.toString());
+			}
+		}
 	}
 
 	/**
@@ -139,19 +213,33 @@ public class UserManager extends ClientManager {
 	 *
 	 */
 	public User getUserByEmailAddress(EmailAddress emailAddress) {
-		User result;
-		result = readObject(User.class, User.EMAIL_ADDRESS, emailAddress.asString());
+		return getUserByEmailAddressAsync(emailAddress).now();
+	}
 
-		if (result != null) {
-			User current = getUserById(result.getId());
-			if (current == null) {
-				doAddClient(result);
-			} else {
-				result = current;
-			}
+	/**
+	 * Starts to look up the user with the given email address, so the caller can issue other loads in the meantime.
+	 * Known users are found in memory; only for others the Datastore is queried. The found user is added to the known
+	 * clients unless it is known already, in which case the known one is the value of the result.
+	 */
+	public PendingResult<User> getUserByEmailAddressAsync(EmailAddress emailAddress) {
+		User knownUser = emailAddressUserMap.get(emailAddress.asString());
+		if (knownUser != null) {
+			return PendingResult.completed(knownUser);
 		}
 
-		return result;
+		final PendingResult<User> loadedUser = readObjectAsync(User.class, User.EMAIL_ADDRESS, emailAddress.asString());
+		return new PendingResult<User>(() -> {
+			User result = loadedUser.now();
+			if (result != null) {
+				User current = getUserById(result.getId());
+				if (current == null) {
+					doAddClient(result);
+				} else {
+					result = current;
+				}
+			}
+			return result;
+		});
 	}
 
 	/**
@@ -166,4 +254,61 @@ public class UserManager extends ClientManager {
 		}
 	}
 
+	/**
+	 * @methodtype set
+	 * @methodproperty primitive
+	 */
+	@Override
+	protected void doAddClient(Client client) {
+		super.doAddClient(client);
+		indexEmailAddress(client);
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	@Override
+	public void removeClient(Client client) {
+		super.removeClient(client);
+		unindexEmailAddress(client, client.getEmailAddress());
+	}
+
+	/**
+	 * @methodtype set
+	 * @methodproperty primitive
+	 */
+	@Override
+	protected void doDeleteClient(Client client) {
+		super.doDeleteClient(client);
+		unindexEmailAddress(client, client.getEmailAddress());
+	}
+
+	/**
+	 * @methodtype set
+	 *
+	 * Updates the email address index when a client changes its email address.
+	 */
+	public void changeEmailAddress(Client client, EmailAddress oldEmailAddress) {
+		unindexEmailAddress(client, oldEmailAddress);
+		indexEmailAddress(client);
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	protected void indexEmailAddress(Client client) {
+		if ((client instanceof User) && !client.getEmailAddress().isEmpty()) {
+			emailAddressUserMap.put(client.getEmailAddress().asString(), (User) client);
+		}
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	protected void unindexEmailAddress(Client client, EmailAddress emailAddress) {
+		if ((client instanceof User) && (emailAddress != null)) {
+			emailAddressUserMap.remove(emailAddress.asString(), client);
+		}
+	}
+
 }
@@ -21,21 +21,23 @@
 package org.wahlzeit.model;
 
 import org.wahlzeit.services.Language;
+import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.Session;
 import org.wahlzeit.utils.HtmlUtil;
 
 import javax.servlet.http.HttpSession;
 import java.io.Serializable;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collection;
 import java.util.Map;
-import java.util.Set;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 /**
  * Wrapper class for {@link HttpSession} to provide a readable interface for Wahlzeit.
  *
- * {@link HttpSession}s are managed automatically by Google App Engine.
+ * {@link HttpSession}s are managed automatically by Google App Engine. Anonymous visitors may instead be served from
+ * a {@link GuestToken}; their UserSession gets an HttpSession and a persistent Guest only when they log in or when a
+ * request leaves state behind that the token cannot carry.
  */
 public class UserSession extends Session implements Serializable {
 
@@ -58,57 +60,116 @@ public class UserSession extends Session implements Serializable {
 
 	protected HttpSession httpSession;
 
+	/**
+	 * Session attributes as seen by the current request, written back to httpSession in flush
+	 */
+	protected UserSessionState state;
+
+	/**
+	 * Set for a visitor served from a GuestToken; tokenGuest is that visitor's guest as long as it is not persisted
+	 */
+	protected GuestToken guestToken = null;
+	protected Guest tokenGuest = null;
+
+	/**
+	 * ISO code of the language the request asked for; the language of new guests
+	 */
+	protected String requestLanguage = null;
+
 	/**
 	 *
 	 */
 	public UserSession(String myName, String mySiteUrl, HttpSession myHttpSession, String myLanguage) {
 		httpSession = myHttpSession;
+		state = new UserSessionState(myHttpSession);
+		requestLanguage = myLanguage;
 		initialize(myName);
-		if (httpSession.getAttribute(INITIALIZED) == null) {
-			httpSession.setAttribute(SITE_URL, mySiteUrl);
-			httpSession.setAttribute(PHOTO_FILTER, MushroomPhotoFactory.getInstance().createPhotoFilter());
+		if (state.getAttribute(INITIALIZED) == null) {
+			state.setAttribute(SITE_URL, mySiteUrl);
+			state.setAttribute(PHOTO_FILTER, MushroomPhotoFactory.getInstance().createPhotoFilter());
 
-			setClient(new Guest());
-			try {
-				Language language = Language.getFromIsoCode(myLanguage);
-				getClient().setLanguage(language);
-			} catch (IllegalArgumentException e) {
-				// default language of guest is english
-			}
+			Guest guest = new Guest();
+			initializeGuestLanguage(guest);
+			setClient(guest);
 
 			clearDisplayedPhotos();
 			clearPraisedPhotos();
 			clearSavedArgs();
-			httpSession.setAttribute(INITIALIZED, INITIALIZED);
+			state.setAttribute(INITIALIZED, INITIALIZED);
 
 		}
 	}
 
+	/**
+	 * Creates the session of an anonymous visitor from the visitor's GuestToken, without an HttpSession; the factory
+	 * creates one if it becomes necessary.
+	 */
+	public UserSession(String mySiteUrl, GuestToken myGuestToken, Supplier<HttpSession> myHttpSessionFactory) {
+		guestToken = myGuestToken;
+		state = new UserSessionState(myHttpSessionFactory);
+		initialize(guestToken.getGuestId());
+
+		state.setAttribute(SITE_URL, mySiteUrl);
+
+		PhotoFilter photoFilter = MushroomPhotoFactory.getInstance().createPhotoFilter();
+		if (!guestToken.getTags().isEmpty()) {
+			photoFilter.setTags(new Tags(guestToken.getTags()));
+		}
+		PhotoIdSet praisedPhotos = new PhotoIdSet();
+		for (PhotoId photoId : guestToken.getPraisedPhotoIds()) {
+			if (!photoId.isNullId()) {
+				photoFilter.addProcessedPhotoId(photoId);
+				praisedPhotos.add(photoId);
+			}
+		}
+		for (PhotoId photoId : guestToken.getSkippedPhotoIds()) {
+			if (!photoId.isNullId()) {
+				photoFilter.addSkippedPhotoId(photoId);
+			}
+		}
+		state.setAttribute(PHOTO_FILTER, photoFilter);
+		state.setAttribute(PRAISED_PHOTOS, praisedPhotos);
+		state.setAttribute(SAVED_ARGS, new SavedArgs());
+
+		tokenGuest = new Guest(guestToken);
+		state.setAttribute(CLIENT_ID, tokenGuest.getId());
+		state.setAttribute(INITIALIZED, INITIALIZED);
+	}
+
+	/**
+	 * @methodtype initialization
+	 */
+	protected void initializeGuestLanguage(Guest guest) {
+		if (requestLanguage != null) {
+			try {
+				guest.setLanguage(Language.getFromIsoCode(requestLanguage));
+			} catch (IllegalArgumentException e) {
+				// default language of guest is english
+			}
+		}
+	}
+
 	/**
 	 *
 	 */
 	public void clearDisplayedPhotos() {
-		PhotoFilter photoFilter = (PhotoFilter) httpSession.getAttribute(PHOTO_FILTER);
-		if (photoFilter != null) {
-			photoFilter.clear();
-			httpSession.setAttribute(PHOTO_FILTER, photoFilter);
-		} else {
-			log.warning("No PhotoFilter found in HttpSession to clear.");
-		}
+		PhotoFilter photoFilter = getPhotoFilter();
+		photoFilter.clear();
+		state.setAttribute(PHOTO_FILTER, photoFilter);
 	}
 
 	/**
 	 *
 	 */
 	public void clearPraisedPhotos() {
-		httpSession.setAttribute(PRAISED_PHOTOS, new HashSet<Photo>());
+		state.setAttribute(PRAISED_PHOTOS, new PhotoIdSet());
 	}
 
 	/**
 	 * @methodtype init
 	 */
 	public void clearSavedArgs() {
-		httpSession.setAttribute(SAVED_ARGS, new HashMap<String, Object>());
+		state.setAttribute(SAVED_ARGS, new SavedArgs());
 	}
 
 	/**
@@ -119,51 +180,156 @@ public class UserSession extends Session implements Serializable {
 		clearPraisedPhotos();
 	}
 
+	/**
+	 * @methodtype command
+	 *
+	 * Writes the session attributes changed in this request back to the HttpSession; to be called once at the end
+	 * of the request. A request that changed nothing leaves the HttpSession untouched, so it is not persisted again.
+	 */
+	public void flush() {
+		if ((tokenGuest != null) && needsHttpSession()) {
+			Guest guest = tokenGuest;
+			tokenGuest = null;
+			materializeHttpSession();
+
+			UserManager userManager = UserManager.getInstance();
+			if (!userManager.hasClientById(guest.getId())) {
+				userManager.addClient(guest);
+			}
+			userManager.addHttpSessionIdToClientMapping(httpSession.getId(), guest);
+		}
+
+		state.flush();
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 *
+	 * Returns whether this request left state behind that only an HttpSession can carry to the next request, like a
+	 * message to show after a redirect.
+	 */
+	protected boolean needsHttpSession() {
+		Map savedArgs = getSavedArgs();
+		return (state.getAttribute(MESSAGE) != null) || (state.getAttribute(HEADING) != null)
+				|| (state.getAttribute(PHOTO_CASE) != null) || ((savedArgs != null) && !savedArgs.isEmpty());
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void materializeHttpSession() {
+		httpSession = state.materialize();
+		log.config(LogBuilder.createSystemMessage().
+				addParameter("created HttpSession for guest token", guestToken.getGuestId()).toString());
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 *
+	 * Returns whether the state of this session is kept in a GuestToken, see getGuestToken.
+	 */
+	public boolean isGuestTokenMode() {
+		return (guestToken != null) && !state.hasHttpSession();
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 *
+	 * Returns whether this session started from a GuestToken that an HttpSession has replaced, so the token cookie
+	 * should be removed.
+	 */
+	public boolean hasReplacedGuestToken() {
+		return (guestToken != null) && state.hasHttpSession();
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the GuestToken updated with the current language, photo size, filter tags, and the photos praised or
+	 * skipped in this request.
+	 */
+	public GuestToken getGuestToken() {
+		if (tokenGuest != null) {
+			guestToken.setLanguage(tokenGuest.getLanguage());
+			guestToken.setPhotoSize(tokenGuest.getPhotoSize());
+		}
+
+		PhotoFilter photoFilter = getPhotoFilter();
+		guestToken.setTags(photoFilter.getTags().asString());
+		for (PhotoId photoId : photoFilter.getProcessedPhotoIds()) {
+			if (!guestToken.hasRecentPhoto(photoId, false)) {
+				guestToken.addRecentPhoto(photoId, false);
+			}
+		}
+		for (PhotoId photoId : photoFilter.getSkippedPhotoIds()) {
+			if (!guestToken.hasRecentPhoto(photoId, true)) {
+				guestToken.addRecentPhoto(photoId, true);
+			}
+		}
+
+		return guestToken;
+	}
+
 	/**
 	 * @methodtype get
 	 */
 	public String getSiteUrl() {
-		return (String) httpSession.getAttribute(SITE_URL);
+		return (String) state.getAttribute(SITE_URL);
 	}
 
 	@Override
 	protected void notifyNameChanged() {
-		httpSession.setAttribute(Session.NAME, super.getName());
+		state.setAttribute(Session.NAME, super.getName());
 	}
 
 	/**
 	 * @methodtype convert Returns some signifier of current user
 	 */
 	public String getClientId() {
-		return (String) httpSession.getAttribute(CLIENT_ID);
-	}
-
-	@Override
-	protected void notifyProcessingTimeChanged() {
-		httpSession.setAttribute(Session.PROCESSING_TIME, super.getProcessingTime());
+		return (String) state.getAttribute(CLIENT_ID);
 	}
 
 	/**
 	 * @methodtype get
 	 */
 	public Client getClient() {
-		String clientName = (String) httpSession.getAttribute(CLIENT_ID);
-		return UserManager.getInstance().getClientById(clientName);
+		if (tokenGuest != null) {
+			return tokenGuest;
+		}
+		String clientName = (String) state.getAttribute(CLIENT_ID);
+		UserManager userManager = UserManager.getInstance();
+		Client result = userManager.getClientById(clientName);
+		if ((result == null) && clientName.startsWith(Guest.GUEST_PREFIX)) {
+			// the guest has been idle for too long and was dropped from memory
+			result = userManager.loadGuest(clientName);
+			if (result != null) {
+				userManager.addHttpSessionIdToClientMapping(httpSession.getId(), result);
+			} else {
+				Guest guest = new Guest();
+				initializeGuestLanguage(guest);
+				setClient(guest);
+				result = guest;
+			}
+		}
+		return result;
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void setClient(Client newClient) {
-		String previousClientId = (String) httpSession.getAttribute(CLIENT_ID);
-		if (previousClientId != null) {
+		String previousClientId = (String) state.getAttribute(CLIENT_ID);
+		if (tokenGuest != null) {
+			tokenGuest = null; // was never known to the UserManager, so there is nothing to delete
+			materializeHttpSession();
+		} else if (previousClientId != null) {
 			Client previousClient = UserManager.getInstance().getClientById(previousClientId);
 			if (previousClient instanceof Guest) {
 				UserManager.getInstance().deleteClient(previousClient);
 			}
 		}
 
-		httpSession.setAttribute(CLIENT_ID, newClient.getId());
+		state.setAttribute(CLIENT_ID, newClient.getId());
 		UserManager.getInstance().addHttpSessionIdToClientMapping(httpSession.getId(), newClient);
 	}
 
@@ -171,103 +337,155 @@ public class UserSession extends Session implements Serializable {
 	 *
 	 */
 	public PhotoFilter getPhotoFilter() {
-		return (PhotoFilter) httpSession.getAttribute(PHOTO_FILTER);
+		PhotoFilter result = getAttributeAs(PHOTO_FILTER, PhotoFilter.class);
+		if (result == null) {
+			result = MushroomPhotoFactory.getInstance().createPhotoFilter();
+			state.setAttribute(PHOTO_FILTER, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the set of praised photos. Sessions of older versions hold a HashSet of the photos themselves, which is
+	 * converted.
+	 */
+	protected PhotoIdSet getPraisedPhotos() {
+		Object praisedPhotos = state.getAttribute(PRAISED_PHOTOS);
+		if (praisedPhotos instanceof PhotoIdSet) {
+			return (PhotoIdSet) praisedPhotos;
+		}
+
+		PhotoIdSet result = new PhotoIdSet();
+		if (praisedPhotos instanceof Collection) {
+			for (Object praisedPhoto : (Collection<?>) praisedPhotos) {
+				if (praisedPhoto instanceof Photo) {
+					result.add(((Photo) praisedPhoto).getId());
+				} else if (praisedPhoto instanceof PhotoId) {
+					result.add((PhotoId) praisedPhoto);
+				}
+			}
+		} else if (praisedPhotos != null) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("dropped session attribute", PRAISED_PHOTOS).
+					addParameter("type", praisedPhotos.getClass().getName()).toString());
+		}
+		state.setAttribute(PRAISED_PHOTOS, result);
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the attribute if it has the expected type. Sessions written by older versions may hold another type
+	 * under the same name; such an attribute is dropped, and null is returned.
+	 */
+	protected <T> T getAttributeAs(String name, Class<T> type) {
+		Object result = state.getAttribute(name);
+		if ((result != null) && !type.isInstance(result)) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("dropped session attribute", name).
+					addParameter("type", result.getClass().getName()).toString());
+			state.setAttribute(name, null);
+			return null;
+		}
+		return type.cast(result);
 	}
 
 	/**
 	 * @methodtype boolean query
 	 */
 	public boolean hasPraisedPhoto(Photo photo) {
-		Set praisedPhotos = (Set) httpSession.getAttribute(PRAISED_PHOTOS);
-		if (praisedPhotos != null) {
-			return praisedPhotos.contains(photo);
-		} else {
-			log.warning("Found no set of praised Photos to search for Photo.");
-			return false;
-		}
+		return getPraisedPhotos().contains(photo.getId());
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void addPraisedPhoto(Photo photo) {
+		PhotoIdSet praisedPhotos = getPraisedPhotos();
+		praisedPhotos.add(photo.getId());
+		state.setAttribute(PRAISED_PHOTOS, praisedPhotos);
 	}
 
 	/**
 	 *
 	 */
 	public void addProcessedPhoto(Photo photo) {
-		PhotoFilter photoFilter = (PhotoFilter) httpSession.getAttribute(PHOTO_FILTER);
-		if (photoFilter != null) {
-			photoFilter.addProcessedPhoto(photo);
-			httpSession.setAttribute(PHOTO_FILTER, photoFilter);
-		} else {
-			log.warning("No PhotoFilter found in HttpSession to add Photo.");
-		}
+		PhotoFilter photoFilter = getPhotoFilter();
+		photoFilter.addProcessedPhoto(photo);
+		state.setAttribute(PHOTO_FILTER, photoFilter);
 	}
 
 	/**
 	 * @methodtype get
 	 */
 	public String getHeading() {
-		return (String) httpSession.getAttribute(HEADING);
+		return (String) state.getAttribute(HEADING);
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void setHeading(String myHeading) {
-		httpSession.setAttribute(HEADING, myHeading);
+		state.setAttribute(HEADING, myHeading);
 	}
 
 	/**
 	 * @methodtype get
 	 */
 	public String getMessage() {
-		return (String) httpSession.getAttribute(MESSAGE);
+		return (String) state.getAttribute(MESSAGE);
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void setMessage(String myMessage) {
-		httpSession.setAttribute(MESSAGE, HtmlUtil.asP(myMessage));
+		state.setAttribute(MESSAGE, HtmlUtil.asP(myMessage));
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void setTwoLineMessage(String msg1, String msg2) {
-		httpSession.setAttribute(MESSAGE, HtmlUtil.asP(msg1) + HtmlUtil.asP(msg2));
+		state.setAttribute(MESSAGE, HtmlUtil.asP(msg1) + HtmlUtil.asP(msg2));
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void setThreeLineMessage(String msg1, String msg2, String msg3) {
-		httpSession.setAttribute(MESSAGE, HtmlUtil.asP(msg1) + HtmlUtil.asP(msg2) + HtmlUtil.asP(msg3));
+		state.setAttribute(MESSAGE, HtmlUtil.asP(msg1) + HtmlUtil.asP(msg2) + HtmlUtil.asP(msg3));
 	}
 
 	/**
 	 * @methodtype get
 	 */
 	public PhotoId getPhotoId() {
-		return (PhotoId) httpSession.getAttribute(Photo.ID);
+		return getAttributeAs(Photo.ID, PhotoId.class);
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void setPhotoId(PhotoId newPhotoId) {
-		httpSession.setAttribute(Photo.ID, newPhotoId);
+		state.setAttribute(Photo.ID, newPhotoId);
 	}
 
 	/**
 	 * @methodtype get
 	 */
 	public PhotoCase getPhotoCase() {
-		return (PhotoCase) httpSession.getAttribute(PHOTO_CASE);
+		return getAttributeAs(PHOTO_CASE, PhotoCase.class);
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void setPhotoCase(PhotoCase photoCase) {
-		httpSession.setAttribute(PHOTO_CASE, photoCase);
+		state.setAttribute(PHOTO_CASE, photoCase);
 	}
 
 	/**
@@ -287,8 +505,7 @@ public class UserSession extends Session implements Serializable {
 	 * @methodtype get
 	 */
 	public Object getSavedArg(String key) {
-		Map<String, Object> savedArgs = (Map<String, Object>) httpSession.getAttribute(SAVED_ARGS);
-		return savedArgs.get(key);
+		return getSavedArgs().get(key);
 	}
 
 	/**
@@ -335,14 +552,19 @@ public class UserSession extends Session implements Serializable {
 	public void setSavedArg(String key, Object value) {
 		Map<String, Object> savedArgs = getSavedArgs();
 		savedArgs.put(key, value);
-		httpSession.setAttribute(SAVED_ARGS, savedArgs);
+		state.setAttribute(SAVED_ARGS, savedArgs);
 	}
 
 	/**
 	 * @methodtype get
 	 */
 	public Map<String, Object> getSavedArgs() {
-		return (Map<String, Object>) httpSession.getAttribute(SAVED_ARGS);
+		Map<String, Object> result = getAttributeAs(SAVED_ARGS, Map.class);
+		if (result == null) {
+			result = new SavedArgs();
+			state.setAttribute(SAVED_ARGS, result);
+		}
+		return result;
 	}
 
 }
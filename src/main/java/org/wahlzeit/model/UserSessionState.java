@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.wahlzeit.services.LogBuilder;
+
+import javax.servlet.http.HttpSession;
+import java.io.ByteArrayOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * The attributes of an {@link HttpSession} as seen by one request. On App Engine, every setAttribute marks the
+ * session dirty, and a dirty session is serialized and written to the Datastore and memcache at the end of the
+ * request. A UserSessionState therefore reads attributes from the HttpSession at most once, keeps changes to
+ * itself, and writes the changed attributes back in one flush at the end of the request, or nothing if no attribute
+ * changed.
+ *
+ * Attributes that are changed in place, like the PhotoFilter, are externalized when first read; at flush time they
+ * count as changed only if their externalized form differs.
+ *
+ * A state may also start without an HttpSession, for a visitor whose state is kept in a GuestToken. Its attributes
+ * then live for the request only, until materialize creates an HttpSession for them.
+ */
+public class UserSessionState {
+
+	private static final Logger log = Logger.getLogger(UserSessionState.class.getName());
+
+	/**
+	 *
+	 */
+	protected static final Object NO_VALUE = new Object();
+
+	/**
+	 *
+	 */
+	protected HttpSession httpSession;
+
+	/**
+	 * Creates the HttpSession for a state that started without one
+	 */
+	protected final Supplier<HttpSession> httpSessionFactory;
+
+	/**
+	 * Attributes read or written in this request, NO_VALUE for attributes that are not set
+	 */
+	protected final Map<String, Object> attributes = new HashMap<String, Object>();
+
+	/**
+	 * Externalized form of mutable attributes as they were read from the HttpSession
+	 */
+	protected final Map<String, byte[]> loadedForms = new HashMap<String, byte[]>();
+
+	/**
+	 *
+	 */
+	protected final Set<String> changedAttributes = new LinkedHashSet<String>();
+
+	/**
+	 *
+	 */
+	public UserSessionState(HttpSession myHttpSession) {
+		httpSession = myHttpSession;
+		httpSessionFactory = null;
+	}
+
+	/**
+	 * Creates a state without an HttpSession; the factory creates one if materialize is called.
+	 */
+	public UserSessionState(Supplier<HttpSession> myHttpSessionFactory) {
+		httpSession = null;
+		httpSessionFactory = myHttpSessionFactory;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public HttpSession getHttpSession() {
+		return httpSession;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean hasHttpSession() {
+		return httpSession != null;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Creates the HttpSession of a state that started without one; all attributes set so far count as changed, so the
+	 * next flush writes them.
+	 */
+	public HttpSession materialize() {
+		if (httpSession == null) {
+			httpSession = httpSessionFactory.get();
+			for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+				if (attribute.getValue() != NO_VALUE) {
+					changedAttributes.add(attribute.getKey());
+				}
+			}
+			loadedForms.clear();
+		}
+		return httpSession;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public Object getAttribute(String name) {
+		Object result = attributes.get(name);
+		if (result == null) {
+			result = (httpSession != null) ? readAttribute(name) : null;
+			if (result instanceof Externalizable) {
+				loadedForms.put(name, externalize((Externalizable) result));
+			}
+			attributes.put(name, (result != null) ? result : NO_VALUE);
+		}
+		return (result != NO_VALUE) ? result : null;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Reads the attribute from the HttpSession. A container that deserializes attributes on access fails here if
+	 * the attribute was written by an older version of its class; the attribute is then removed with the next flush.
+	 */
+	protected Object readAttribute(String name) {
+		try {
+			return httpSession.getAttribute(name);
+		} catch (RuntimeException ex) {
+			log.warning(LogBuilder.createSystemMessage().
+					addException("could not read session attribute " + name, ex).toString());
+			changedAttributes.add(name);
+			return null;
+		}
+	}
+
+	/**
+	 * @methodtype set
+	 *
+	 * Setting an attribute to an equal value is not a change; setting a mutable attribute to the same object again,
+	 * as callers do after changing it in place, is left to the comparison of the externalized forms in flush.
+	 */
+	public void setAttribute(String name, Object value) {
+		Object oldValue = getAttribute(name);
+		attributes.put(name, (value != null) ? value : NO_VALUE);
+		if (!Objects.equals(oldValue, value) && !((value == oldValue) && loadedForms.containsKey(name))) {
+			changedAttributes.add(name);
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean hasChanges() {
+		if (!changedAttributes.isEmpty()) {
+			return true;
+		}
+
+		for (Map.Entry<String, byte[]> loadedForm : loadedForms.entrySet()) {
+			if (hasChangedInPlace(loadedForm.getKey(), loadedForm.getValue())) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Writes the changed attributes back to the HttpSession. Calling flush again writes only what changed since.
+	 */
+	public void flush() {
+		if (httpSession == null) {
+			return; // attributes live for this request only
+		}
+
+		for (Map.Entry<String, byte[]> loadedForm : loadedForms.entrySet()) {
+			if (hasChangedInPlace(loadedForm.getKey(), loadedForm.getValue())) {
+				changedAttributes.add(loadedForm.getKey());
+			}
+		}
+
+		for (String name : changedAttributes) {
+			Object value = attributes.get(name);
+			if (value != NO_VALUE) {
+				httpSession.setAttribute(name, value);
+			} else {
+				httpSession.removeAttribute(name);
+			}
+		}
+
+		if (!changedAttributes.isEmpty()) {
+			log.config(LogBuilder.createSystemMessage().
+					addParameter("changed session attributes", changedAttributes.toString()).toString());
+		}
+
+		changedAttributes.clear();
+		loadedForms.clear();
+		for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+			if (attribute.getValue() instanceof Externalizable) {
+				loadedForms.put(attribute.getKey(), externalize((Externalizable) attribute.getValue()));
+			}
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	protected boolean hasChangedInPlace(String name, byte[] loadedForm) {
+		Object value = attributes.get(name);
+		if (!(value instanceof Externalizable)) {
+			return false; // replaced, which setAttribute has seen already
+		}
+		return !Arrays.equals(loadedForm, externalize((Externalizable) value));
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected static byte[] externalize(Externalizable value) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			value.writeExternal(out);
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException ex) {
+			throw new IllegalStateException("could not externalize session attribute", ex);
+		}
+	}
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model.persistence;
+
+import com.google.appengine.tools.cloudstorage.GcsFileMetadata;
+import com.google.appengine.tools.cloudstorage.GcsFileOptions;
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.cloudstorage.GcsInputChannel;
+import com.google.appengine.tools.cloudstorage.GcsService;
+import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
+import com.google.appengine.tools.cloudstorage.RetryParams;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+/**
+ * A GcsModelSnapshot keeps the snapshot as an object in Google Cloud Storage, where all instances of the application
+ * find it, including new ones. An object written with createOrReplace only becomes visible when its channel is
+ * closed, so readers never see a partly written snapshot.
+ */
+public class GcsModelSnapshot extends ModelSnapshot {
+
+	/**
+	 * Size of the blocks the snapshot is read in
+	 */
+	protected static final int READ_BLOCK_SIZE = 2 * 1024 * 1024;
+
+	/**
+	 *
+	 */
+	protected final GcsService gcsService = GcsServiceFactory.createGcsService(RetryParams.getDefaultInstance());
+	protected final GcsFilename gcsFilename;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public GcsModelSnapshot(String bucketName, String objectName) {
+		gcsFilename = new GcsFilename(bucketName, objectName);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	@Override
+	public String getLocation() {
+		return "gs://" + gcsFilename.getBucketName() + "/" + gcsFilename.getObjectName();
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	@Override
+	protected OutputStream openOutputStream() throws IOException {
+		return Channels.newOutputStream(gcsService.createOrReplace(gcsFilename, GcsFileOptions.getDefaultInstance()));
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	protected void commitOutput() {
+		// the object replaces the previous snapshot when its channel is closed
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	@Override
+	protected ByteBuffer readBuffer() throws IOException {
+		GcsFileMetadata metadata = gcsService.getMetadata(gcsFilename);
+		if (metadata == null) {
+			return null;
+		}
+
+		ByteBuffer result = ByteBuffer.allocate((int) metadata.getLength());
+		try (GcsInputChannel channel = gcsService.openPrefetchingReadChannel(gcsFilename, 0, READ_BLOCK_SIZE)) {
+			while (result.hasRemaining() && channel.read(result) >= 0) {
+				// read until the buffer is full or the object ends
+			}
+		}
+		result.flip();
+		return result;
+	}
+
+}
@@ -0,0 +1,512 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.model.persistence;
+
+import com.google.appengine.api.appidentity.AppIdentityServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.appengine.api.utils.SystemProperty;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import org.wahlzeit.model.Case;
+import org.wahlzeit.model.CaseId;
+import org.wahlzeit.model.Client;
+import org.wahlzeit.model.GlobalsManager;
+import org.wahlzeit.model.Guest;
+import org.wahlzeit.model.Photo;
+import org.wahlzeit.model.PhotoCase;
+import org.wahlzeit.model.PhotoCaseManager;
+import org.wahlzeit.model.PhotoId;
+import org.wahlzeit.model.PhotoManager;
+import org.wahlzeit.model.PhotoTagIndex;
+import org.wahlzeit.model.ShardedPraiseCounter;
+import org.wahlzeit.model.UserManager;
+import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.ObjectManager;
+import org.wahlzeit.services.OfyService;
+import org.wahlzeit.servlets.AbstractServlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * A ModelSnapshot is a binary file with the in-memory model: the cached photos and the ids of all photos, the users,
+ * the open photo cases, the PhotoTagIndex and the id counters of the Globals. A new instance restores the model from
+ * it and then only loads the entities that were saved after the snapshot had been taken, instead of reading
+ * everything from the Datastore. Clients and cases that have been deleted since are found by reading the keys of
+ * their kinds; see removeDeletedEntities.
+ *
+ * Entities are stored in the Datastore's own protocol buffer encoding, as produced by Objectify, so a snapshot
+ * restores exactly what a load from the Datastore would.
+ *
+ * This class keeps the snapshot in a local file, which is written to a temporary file first and then moved into place
+ * and memory-mapped when read. App Engine instances do not share their disks and start without the file, so it only
+ * serves development servers and tools; on App Engine, the snapshot is kept in Cloud Storage, see GcsModelSnapshot.
+ *
+ * File layout (big-endian): magic, version, creation time, lastPhotoId, lastUserId, lastSessionId, lastCaseId, the
+ * number of photo ids followed by the ids, then the sections photos, clients and cases, each as number of entities
+ * followed by (length, bytes) per entity, and finally the tag index as written by {@link PhotoTagIndex#writeTo}.
+ */
+public class ModelSnapshot {
+
+	private static final Logger log = Logger.getLogger(ModelSnapshot.class.getName());
+
+	/**
+	 *
+	 */
+	public static final String FILE_PROPERTY = "org.wahlzeit.snapshot.file";
+	public static final String BUCKET_PROPERTY = "org.wahlzeit.snapshot.bucket";
+	public static final String DEFAULT_FILE_NAME = "wahlzeit-model.snapshot";
+
+	/**
+	 *
+	 */
+	protected static final int MAGIC = 0x575a534e; // = "WZSN"
+	protected static final int VERSION = 3;
+
+	/**
+	 * Changes are queried from this long before the snapshot was taken, as the query is eventually consistent and
+	 * clocks of instances differ.
+	 */
+	protected static final long CATCH_UP_MARGIN = 5 * 60 * 1000; // = 5 min
+
+	/**
+	 *
+	 */
+	protected static final ModelSnapshot instance = createInstance();
+
+	/**
+	 * @methodtype get
+	 */
+	public static ModelSnapshot getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @methodtype factory
+	 *
+	 * Keeps the snapshot in the Cloud Storage bucket given by BUCKET_PROPERTY or in the file given by FILE_PROPERTY. If
+	 * neither is set, it is kept in the default bucket of the application on App Engine and in a temporary file
+	 * elsewhere.
+	 */
+	protected static ModelSnapshot createInstance() {
+		String bucketName = System.getProperty(BUCKET_PROPERTY);
+		boolean hasNoLocation = (bucketName == null || bucketName.isEmpty()) && System.getProperty(FILE_PROPERTY) == null;
+		if (hasNoLocation && isOnAppEngine()) {
+			bucketName = AppIdentityServiceFactory.getAppIdentityService().getDefaultGcsBucketName();
+		}
+		if (bucketName != null && !bucketName.isEmpty()) {
+			return new GcsModelSnapshot(bucketName, DEFAULT_FILE_NAME);
+		}
+		return new ModelSnapshot(getDefaultFile());
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	protected static boolean isOnAppEngine() {
+		return SystemProperty.environment != null && SystemProperty.environment.value() != null;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected static File getDefaultFile() {
+		String fileName = System.getProperty(FILE_PROPERTY);
+		if (fileName != null) {
+			return new File(fileName);
+		}
+		return new File(System.getProperty("java.io.tmpdir"), DEFAULT_FILE_NAME);
+	}
+
+	/**
+	 *
+	 */
+	protected final File file;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public ModelSnapshot(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @methodtype constructor
+	 *
+	 * For subclasses that keep the snapshot somewhere else.
+	 */
+	protected ModelSnapshot() {
+		this.file = null;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getLocation() {
+		return file.getPath();
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Writes the current model to the snapshot file, replacing the previous snapshot.
+	 */
+	public synchronized void write() throws IOException {
+		final long startTime = System.currentTimeMillis();
+		final List<Integer> photoIds = new ArrayList<Integer>();
+		for (PhotoId id : PhotoManager.getInstance().getPhotoIds()) {
+			photoIds.add(id.asInt());
+		}
+
+		final List<byte[]> photos = new ArrayList<byte[]>();
+		final List<byte[]> clients = new ArrayList<byte[]>();
+		final List<byte[]> cases = new ArrayList<byte[]>();
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				for (Photo photo : PhotoManager.getInstance().getPhotoCache().values()) {
+					photos.add(encode(photo));
+				}
+				for (Client client : UserManager.getInstance().getClients()) {
+					if (!(client instanceof Guest)) {
+						clients.add(encode(client));
+					}
+				}
+				for (PhotoCase photoCase : PhotoCaseManager.getInstance().getOpenPhotoCases()) {
+					cases.add(encode(photoCase));
+				}
+				return null;
+			}
+		});
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(openOutputStream()))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeBoolean(ObjectManager.getParentKey() != null);
+			out.writeLong(startTime);
+			out.writeInt(PhotoId.getCurrentIdAsInt());
+			out.writeLong(UserManager.getInstance().getLastClientId());
+			out.writeInt(AbstractServlet.getLastSessionId());
+			out.writeInt(Case.getLastCaseId().asInt());
+
+			out.writeInt(photoIds.size());
+			for (int id : photoIds) {
+				out.writeInt(id);
+			}
+			writeSection(out, photos);
+			writeSection(out, clients);
+			writeSection(out, cases);
+			PhotoTagIndex.getInstance().writeTo(out);
+		}
+		commitOutput();
+
+		log.info(LogBuilder.createSystemMessage().
+				addAction("wrote model snapshot").
+				addParameter("location", getLocation()).
+				addParameter("photos", photos.size()).
+				addParameter("clients", clients.size()).
+				addParameter("cases", cases.size()).
+				addParameter("time in ms", (int) (System.currentTimeMillis() - startTime)).toString());
+	}
+
+	/**
+	 * @methodtype factory
+	 * @methodproperties hook
+	 *
+	 * Opens the stream the snapshot is written to; readers see it only after commitOutput.
+	 */
+	protected OutputStream openOutputStream() throws IOException {
+		return new FileOutputStream(getTempFile());
+	}
+
+	/**
+	 * @methodtype command
+	 * @methodproperties hook
+	 *
+	 * Replaces the previous snapshot with the one that has just been written and closed.
+	 */
+	protected void commitOutput() throws IOException {
+		Files.move(getTempFile().toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected File getTempFile() {
+		return new File(file.getPath() + ".tmp");
+	}
+
+	/**
+	 * @methodtype get
+	 * @methodproperties hook
+	 *
+	 * Returns the content of the snapshot, or null if there is none.
+	 */
+	protected ByteBuffer readBuffer() throws IOException {
+		if (!file.isFile()) {
+			return null;
+		}
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected void writeSection(DataOutputStream out, List<byte[]> entities) throws IOException {
+		out.writeInt(entities.size());
+		for (byte[] entity : entities) {
+			out.writeInt(entity.length);
+			out.write(entity);
+		}
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected static byte[] encode(Object entity) {
+		Entity datastoreEntity = OfyService.ofy().save().toEntity(entity);
+		return EntityTranslator.convertToPb(datastoreEntity).toByteArray();
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Restores the model from the snapshot file and loads what changed since. Returns false if there is no usable
+	 * snapshot; the model is then unchanged and has to be loaded from the Datastore.
+	 */
+	public synchronized boolean restore() {
+		long startTime = System.currentTimeMillis();
+		final ByteBuffer buffer;
+		try {
+			buffer = readBuffer();
+		} catch (IOException e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addException("Could not read model snapshot", e).toString());
+			return false;
+		}
+		if (buffer == null) {
+			log.info(LogBuilder.createSystemMessage().
+					addParameter("no model snapshot found", getLocation()).toString());
+			return false;
+		}
+
+		final Contents contents;
+		try {
+			contents = ObjectifyService.run(new Work<Contents>() {
+				@Override
+				public Contents run() {
+					Contents result = readContents(buffer);
+					if (result != null) {
+						removeDeletedEntities(result);
+					}
+					return result;
+				}
+			});
+		} catch (RuntimeException e) {
+			// covers BufferUnderflowException of a truncated file and decoding errors
+			log.warning(LogBuilder.createSystemMessage().
+					addException("Model snapshot is not usable", e).toString());
+			return false;
+		}
+		if (contents == null) {
+			return false;
+		}
+
+		PhotoTagIndex.getInstance().updateFrom(contents.tagIndex);
+		PhotoManager.getInstance().restorePhotos(contents.photoIds, contents.photos);
+		UserManager.getInstance().restoreClients(contents.clients);
+		PhotoCaseManager.getInstance().restorePhotoCases(contents.cases);
+		long restoreTime = System.currentTimeMillis() - startTime;
+
+		catchUp(contents);
+
+		log.info(LogBuilder.createSystemMessage().
+				addAction("restored model snapshot").
+				addParameter("snapshot time", contents.creationTime).
+				addParameter("photos", contents.photos.size()).
+				addParameter("clients", contents.clients.size()).
+				addParameter("cases", contents.cases.size()).
+				addParameter("restore time in ms", (int) restoreTime).
+				addParameter("total time in ms", (int) (System.currentTimeMillis() - startTime)).toString());
+		return true;
+	}
+
+	/**
+	 * @methodtype helper
+	 *
+	 * Returns null if the file is no snapshot of this version.
+	 */
+	protected Contents readContents(ByteBuffer buffer) throws BufferUnderflowException {
+		if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("unknown model snapshot format", getLocation()).toString());
+			return null;
+		}
+
+		// keys of the entities in the snapshot depend on the key strategy it was written with
+		boolean hasParentKeys = buffer.get() != 0;
+		if (hasParentKeys != (ObjectManager.getParentKey() != null)) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("model snapshot of other key strategy", getLocation()).toString());
+			return null;
+		}
+
+		Contents result = new Contents();
+		result.creationTime = buffer.getLong();
+		result.lastPhotoId = buffer.getInt();
+		result.lastUserId = buffer.getLong();
+		result.lastSessionId = buffer.getInt();
+		result.lastCaseId = buffer.getInt();
+
+		// PhotoId only hands out ids up to its counter, which is not restored before catching up
+		if (PhotoId.getCurrentIdAsInt() < result.lastPhotoId) {
+			PhotoId.setCurrentIdFromInt(result.lastPhotoId);
+		}
+
+		int noPhotoIds = buffer.getInt();
+		for (int i = 0; i < noPhotoIds; i++) {
+			result.photoIds.add(PhotoId.getIdFromInt(buffer.getInt()));
+		}
+		readSection(buffer, result.photos);
+		readSection(buffer, result.clients);
+		readSection(buffer, result.cases);
+		result.tagIndex.readFrom(buffer);
+		return result;
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	@SuppressWarnings("unchecked")
+	protected <E> void readSection(ByteBuffer buffer, Collection<E> result) {
+		int noEntities = buffer.getInt();
+		for (int i = 0; i < noEntities; i++) {
+			byte[] bytes = new byte[buffer.getInt()];
+			buffer.get(bytes);
+			result.add((E) OfyService.ofy().load().fromEntity(EntityTranslator.createFromPbBytes(bytes)));
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Drops the clients and cases of the snapshot that have been deleted since it was taken, which catching up cannot
+	 * find, as it only sees saved entities. Photos are never deleted, only marked as such. The keys are read with a
+	 * keys-only query that, like the catch-up query, is eventually consistent, so a deletion of the last seconds may
+	 * still be missed.
+	 */
+	protected void removeDeletedEntities(Contents contents) {
+		retainSavedEntities(contents.clients, Client.class);
+		retainSavedEntities(contents.cases, PhotoCase.class);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected <E> void retainSavedEntities(Collection<? extends E> entities, Class<E> type) {
+		if (entities.isEmpty()) {
+			return;
+		}
+
+		Set<Key<E>> savedKeys = new HashSet<Key<E>>(OfyService.ofy().load().type(type).keys().list());
+		int noEntities = entities.size();
+		for (Iterator<? extends E> it = entities.iterator(); it.hasNext(); ) {
+			if (!savedKeys.contains(Key.<E>create(it.next()))) {
+				it.remove();
+			}
+		}
+
+		if (entities.size() < noEntities) {
+			log.info(LogBuilder.createSystemMessage().
+					addAction("dropped deleted entities of model snapshot").
+					addParameter("type", type.getSimpleName()).
+					addParameter("number of entities", noEntities - entities.size()).toString());
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Loads globals and all entities that were saved after the snapshot had been taken. Id counters never go back
+	 * behind the snapshot. Praise shards are not part of the snapshot and are loaded completely.
+	 */
+	protected void catchUp(Contents contents) {
+		long since = contents.creationTime - CATCH_UP_MARGIN;
+
+		GlobalsManager.getInstance().loadGlobals();
+		PhotoId.setCurrentIdFromInt(Math.max(PhotoId.getCurrentIdAsInt(), contents.lastPhotoId));
+		UserManager userManager = UserManager.getInstance();
+		userManager.setLastClientId(Math.max(userManager.getLastClientId(), contents.lastUserId));
+		AbstractServlet.setLastSessionId(Math.max(AbstractServlet.getLastSessionId(), contents.lastSessionId));
+		Case.setLastCaseId(new CaseId(Math.max(Case.getLastCaseId().asInt(), contents.lastCaseId)));
+
+		PhotoManager.getInstance().loadPhotosChangedSince(since);
+		userManager.loadUsersChangedSince(since);
+		PhotoCaseManager.getInstance().loadPhotoCasesChangedSince(since);
+		ShardedPraiseCounter.getInstance().loadShards();
+	}
+
+	/**
+	 * The decoded content of a snapshot file
+	 */
+	protected static class Contents {
+		protected long creationTime;
+		protected int lastPhotoId;
+		protected long lastUserId;
+		protected int lastSessionId;
+		protected int lastCaseId;
+		protected final List<PhotoId> photoIds = new ArrayList<PhotoId>();
+		protected final List<Photo> photos = new ArrayList<Photo>();
+		protected final List<Client> clients = new ArrayList<Client>();
+		protected final List<PhotoCase> cases = new ArrayList<PhotoCase>();
+		protected final PhotoTagIndex tagIndex = new PhotoTagIndex();
+	}
+
+}
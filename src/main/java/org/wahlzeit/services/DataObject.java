@@ -20,7 +20,11 @@
 
 package org.wahlzeit.services;
 
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.OnSave;
+
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * A simple abstract implementation of Persistent with write count and dirty bit.
@@ -36,7 +40,24 @@ public abstract class DataObject implements Persistent, Serializable {
 	/**
 	 *
 	 */
-	protected transient int writeCount = 0;
+	public static final String LAST_MODIFIED = "lastModified";
+
+	/**
+	 *
+	 */
+	protected transient volatile int writeCount = 0;
+
+	/**
+	 *
+	 */
+	private static final AtomicIntegerFieldUpdater<DataObject> writeCountUpdater =
+			AtomicIntegerFieldUpdater.newUpdater(DataObject.class, "writeCount");
+
+	/**
+	 * Time of the last save, so that changes since a point in time can be queried
+	 */
+	@Index
+	protected long lastModified = 0;
 
 	/**
 	 *
@@ -52,11 +73,25 @@ public abstract class DataObject implements Persistent, Serializable {
 		writeCount = 0;
 	}
 
+	/**
+	 *
+	 */
+	public final int getWriteCount() {
+		return writeCount;
+	}
+
+	/**
+	 *
+	 */
+	public final boolean resetWriteCount(int writeCount) {
+		return writeCountUpdater.compareAndSet(this, writeCount, 0);
+	}
+
 	/**
 	 *
 	 */
 	public final void incWriteCount() {
-		writeCount++;
+		writeCountUpdater.incrementAndGet(this);
 	}
 
 	/**
@@ -66,4 +101,19 @@ public abstract class DataObject implements Persistent, Serializable {
 		incWriteCount();
 	}
 
+	/**
+	 * @methodtype get
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	@OnSave
+	protected void updateLastModified() {
+		lastModified = System.currentTimeMillis();
+	}
+
 }
@@ -20,11 +20,18 @@
 
 package org.wahlzeit.services;
 
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.googlecode.objectify.cmd.LoadIds;
+import com.googlecode.objectify.cmd.LoadType;
+import com.googlecode.objectify.cmd.Query;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 /**
@@ -34,12 +41,72 @@ import java.util.logging.Logger;
 public abstract class ObjectManager {
 
 	/**
-	 * All objects are now saved under this root key. In case of multi-tenancy this may change to several keys.
+	 * With the APPLICATION_ROOT key strategy, all objects are saved under this root key. In case of multi-tenancy this
+	 * may change to several keys.
 	 */
 	public static final Key applicationRootKey = KeyFactory.createKey("Application", "Wahlzeit");
 
+	/**
+	 * Name of the key strategy for photos, tags and clients, see the constants below. With APPLICATION_ROOT they are
+	 * children of applicationRootKey, so they form a single entity group that takes about one write per second. With
+	 * ROOT_ENTITIES each of them is an entity group of its own; queries are eventually consistent then. Existing
+	 * entities are moved to root entities by org.wahlzeit.tools.MigrateEntityKeys.
+	 */
+	public static final String KEY_STRATEGY_PROPERTY = "org.wahlzeit.datastore.keyStrategy";
+
+	/**
+	 *
+	 */
+	public static final String APPLICATION_ROOT = "applicationRoot";
+	public static final String ROOT_ENTITIES = "rootEntities";
+
+	/**
+	 * The parent of new photos, tags and clients; null for root entities
+	 */
+	protected static final Key parentKey =
+			ROOT_ENTITIES.equals(System.getProperty(KEY_STRATEGY_PROPERTY, APPLICATION_ROOT)) ? null : applicationRootKey;
+
+	/**
+	 * Maximum number of entities the Datastore accepts in a single batch put or delete
+	 */
+	public static final int MAX_BATCH_SIZE = 500;
+
 	private static final Logger log = Logger.getLogger(ObjectManager.class.getName());
 
+	/**
+	 * @methodtype get
+	 */
+	public static Key getParentKey() {
+		return parentKey;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public static String getKeyStrategy() {
+		return (parentKey != null) ? APPLICATION_ROOT : ROOT_ENTITIES;
+	}
+
+	/**
+	 * @methodtype factory
+	 *
+	 * Returns a query for all entities of the type; restricted to the application root if entities are saved there.
+	 */
+	protected static <E> Query<E> queryObjects(Class<E> type) {
+		Query<E> result = OfyService.ofy().load().type(type);
+		return (parentKey != null) ? result.ancestor(parentKey) : result;
+	}
+
+	/**
+	 * @methodtype factory
+	 *
+	 * Returns a loader for photos, tags or clients by id; it looks them up below the application root if they are saved
+	 * there. Entities that never have a parent, like Globals, are read with readObject.
+	 */
+	protected static <E> LoadIds<E> loadObjects(Class<E> type) {
+		LoadType<E> result = OfyService.ofy().load().type(type);
+		return (parentKey != null) ? result.parent(parentKey) : result;
+	}
 
 	/**
 	 * Reads the first Entity with the given key in the Datastore
@@ -87,8 +154,7 @@ public abstract class ObjectManager {
 				addMessage("Load Type " + type.toString() + " with parameter " +
 						parameterName + " == " + value + " from datastore.").toString());
 
-		return OfyService.ofy().load().type(type).ancestor(applicationRootKey).filter(parameterName, value).first()
-				.now();
+		return queryObjects(type).filter(parameterName, value).first().now();
 	}
 
 	/**
@@ -100,7 +166,68 @@ public abstract class ObjectManager {
 
 		log.config(LogBuilder.createSystemMessage().
 				addParameter("Datastore: load all entities of type", type.getName()).toString());
-		List<E> objects = OfyService.ofy().load().type(type).ancestor(applicationRootKey).list();
+		List<E> objects = queryObjects(type).list();
+		log.config(LogBuilder.createSystemMessage().
+				addParameter("Datastore: number of loaded objects", objects.size()).toString());
+		result.addAll(objects);
+	}
+
+	/**
+	 * Reads all Entities of the specified type page by page and hands each page to the batchHandler before the next one
+	 * is fetched. Pages are continued with a query cursor, so no page is read twice and the whole kind never has to be
+	 * in memory at once. Returns the number of read entities.
+	 */
+	protected <E> int readObjectsInBatches(Class<E> type, int batchSize, Consumer<List<E>> batchHandler) {
+		assertIsNonNullArgument(type, "type");
+		assertIsNonNullArgument(batchHandler, "batchHandler");
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("batchSize should be positive");
+		}
+
+		log.config(LogBuilder.createSystemMessage().
+				addParameter("Datastore: load entities in batches of type", type.getName()).
+				addParameter("batch size", batchSize).toString());
+		int result = 0;
+		Cursor cursor = null;
+		boolean hasMore = true;
+		while (hasMore) {
+			Query<E> query = queryObjects(type).limit(batchSize);
+			if (cursor != null) {
+				query = query.startAt(cursor);
+			}
+
+			List<E> batch = new ArrayList<E>(batchSize);
+			QueryResultIterator<E> iterator = query.iterator();
+			while (iterator.hasNext()) {
+				batch.add(iterator.next());
+			}
+			cursor = iterator.getCursor();
+
+			if (!batch.isEmpty()) {
+				batchHandler.accept(batch);
+				result += batch.size();
+			}
+			hasMore = (batch.size() == batchSize) && (cursor != null);
+		}
+
+		log.config(LogBuilder.createSystemMessage().
+				addParameter("Datastore: number of loaded objects", result).toString());
+		return result;
+	}
+
+	/**
+	 * Reads all Entities of the specified type that have been saved after the given time, see
+	 * {@link DataObject#LAST_MODIFIED}. The query does not use the application root as ancestor, so it can use the
+	 * built-in single property index; its results are eventually consistent.
+	 */
+	protected <E> void readObjectsChangedSince(Collection<E> result, Class<E> type, long time) {
+		assertIsNonNullArgument(result, "result");
+		assertIsNonNullArgument(type, "type");
+
+		log.config(LogBuilder.createSystemMessage().
+				addParameter("Datastore: load entities changed since", time).
+				addParameter("type", type.getName()).toString());
+		List<E> objects = OfyService.ofy().load().type(type).filter(DataObject.LAST_MODIFIED + " >", time).list();
 		log.config(LogBuilder.createSystemMessage().
 				addParameter("Datastore: number of loaded objects", objects.size()).toString());
 		result.addAll(objects);
@@ -119,20 +246,111 @@ public abstract class ObjectManager {
 		log.info(LogBuilder.createSystemMessage().
 				addMessage("Datastore: Load all Entities of type " + type.toString() + " where parameter "
 						+ propertyName + " = " + value.toString() + " from datastore.").toString());
-		List<E> objects = OfyService.ofy().load().type(type).
-				ancestor(applicationRootKey).filter(propertyName, value).list();
+		List<E> objects = queryObjects(type).filter(propertyName, value).list();
 		log.config(LogBuilder.createSystemMessage().
 				addParameter("Datastore: number of loaded objects", objects.size()).toString());
 		result.addAll(objects);
 	}
 
+	/**
+	 * Starts to read the photo, tag or client with the given id and returns without waiting for the Datastore, see
+	 * loadObjects.
+	 */
+	protected <E> PendingResult<E> readObjectAsync(Class<E> type, Long id) throws IllegalArgumentException {
+		assertIsNonNullArgument(type, "type");
+		assertIsNonNullArgument(id, "id");
+
+		log.config(LogBuilder.createSystemMessage().
+				addMessage("Start loading Type " + type.toString() + " with ID " + id + " from datastore.").toString());
+		return new PendingResult<E>(loadObjects(type).id(id));
+	}
+
+	/**
+	 * Starts to read the photo, tag or client with the given id and returns without waiting for the Datastore, see
+	 * loadObjects.
+	 */
+	protected <E> PendingResult<E> readObjectAsync(Class<E> type, String id) throws IllegalArgumentException {
+		assertIsNonNullArgument(type, "type");
+		assertIsNonNullArgument(id, "id");
+
+		log.config(LogBuilder.createSystemMessage().
+				addMessage("Start loading Type " + type.toString() + " with ID " + id + " from datastore.").toString());
+		return new PendingResult<E>(loadObjects(type).id(id));
+	}
+
+	/**
+	 * Starts to read the first Entity of the type where the parameter has the given value, see readObject.
+	 */
+	protected <E> PendingResult<E> readObjectAsync(Class<E> type, String parameterName, Object value) {
+		assertIsNonNullArgument(type, "type");
+		assertIsNonNullArgument(parameterName, "parameterName");
+		assertIsNonNullArgument(value, "value");
+
+		log.config(LogBuilder.createSystemMessage().
+				addMessage("Start loading Type " + type.toString() + " with parameter " +
+						parameterName + " == " + value + " from datastore.").toString());
+		return new PendingResult<E>(queryObjects(type).filter(parameterName, value).first());
+	}
+
+	/**
+	 * Starts to read all Entities of the type where the property has the given value, see readObjects. Objectify
+	 * issues the query right away and fills the list in the background.
+	 */
+	protected <E> PendingResult<List<E>> readObjectsAsync(Class<E> type, String propertyName, Object value) {
+		assertIsNonNullArgument(type, "type");
+		assertIsNonNullArgument(propertyName, "propertyName");
+		assertIsNonNullArgument(value, "value");
+
+		log.config(LogBuilder.createSystemMessage().
+				addMessage("Datastore: Start loading all Entities of type " + type.toString() + " where parameter "
+						+ propertyName + " = " + value.toString()).toString());
+		final List<E> objects = queryObjects(type).filter(propertyName, value).list();
+		return new PendingResult<List<E>>(() -> {
+			objects.size(); // waits for the query
+			return objects;
+		});
+	}
+
+	/**
+	 * Starts to write the given entity, see writeObject. The dependents are updated and the object is marked as clean
+	 * when the result is waited for, so an object whose result is dropped is simply written again later. It is only
+	 * marked as clean if it has not been changed since the write started.
+	 */
+	protected PendingResult<?> writeObjectAsync(final Persistent object) {
+		assertIsNonNullArgument(object, "object");
+
+		if (!object.isDirty()) {
+			log.info(LogBuilder.createSystemMessage().
+					addParameter("Datastore: No need to update object", object).toString());
+			return PendingResult.completed(null);
+		}
+
+		log.info(LogBuilder.createSystemMessage().
+				addParameter("Datastore: Start writing object of type", object).toString());
+		final int writeCount = object.getWriteCount();
+		return new PendingResult<com.googlecode.objectify.Key<Persistent>>(OfyService.ofy().save().entity(object),
+				key -> {
+					updateDependents(object);
+					object.resetWriteCount(writeCount);
+				});
+	}
+
+	/**
+	 * Starts to delete the given entity, see deleteObject.
+	 */
+	protected <E> PendingResult<Void> deleteObjectAsync(E object) {
+		assertIsNonNullArgument(object, "object");
+
+		log.config(LogBuilder.createSystemMessage().
+				addParameter("Datastore: start deleting entity", object).toString());
+		return new PendingResult<Void>(OfyService.ofy().delete().entity(object));
+	}
+
 	/**
 	 * Updates all entities of the given collection in the datastore.
 	 */
 	protected void updateObjects(Collection<? extends Persistent> collection) {
-		for (Persistent object : collection) {
-			updateObject(object);
-		}
+		writeObjects(collection);
 	}
 
 	/**
@@ -143,7 +361,8 @@ public abstract class ObjectManager {
 	}
 
 	/**
-	 * Writes the given entity to the datastore.
+	 * Writes the given entity to the datastore. The object is only marked as clean if it has not been changed while it
+	 * was written, e.g. by another request; otherwise it stays dirty and the change is written with the next save.
 	 */
 	protected void writeObject(Persistent object) {
 		assertIsNonNullArgument(object, "object");
@@ -151,15 +370,59 @@ public abstract class ObjectManager {
 		if (object.isDirty()) {
 			log.info(LogBuilder.createSystemMessage().
 					addParameter("Datastore: Write object of type", object).toString());
+			int writeCount = object.getWriteCount();
 			OfyService.ofy().save().entity(object).now();
 			updateDependents(object);
-			object.resetWriteCount();
+			object.resetWriteCount(writeCount);
 		} else {
 			log.info(LogBuilder.createSystemMessage().
 					addParameter("Datastore: No need to update object", object).toString());
 		}
 	}
 
+	/**
+	 * Writes all dirty entities of the given collection to the datastore. Entities are saved in batches of at most
+	 * MAX_BATCH_SIZE, each with a single datastore call, and the dependents of each batch are updated together. As in
+	 * writeObject, entities changed while they were written stay dirty.
+	 */
+	protected void writeObjects(Collection<? extends Persistent> objects) {
+		assertIsNonNullArgument(objects, "objects");
+
+		List<Persistent> dirtyObjects = new ArrayList<Persistent>();
+		for (Persistent object : objects) {
+			if (object != null && object.isDirty()) {
+				dirtyObjects.add(object);
+			}
+		}
+		log.info(LogBuilder.createSystemMessage().
+				addParameter("Datastore: Write objects", dirtyObjects.size()).
+				addParameter("unchanged objects", objects.size() - dirtyObjects.size()).toString());
+
+		for (List<Persistent> batch : partition(dirtyObjects, MAX_BATCH_SIZE)) {
+			int[] writeCounts = new int[batch.size()];
+			for (int i = 0; i < writeCounts.length; i++) {
+				writeCounts[i] = batch.get(i).getWriteCount();
+			}
+			OfyService.ofy().save().entities(batch).now();
+			updateDependents(batch);
+			for (int i = 0; i < writeCounts.length; i++) {
+				batch.get(i).resetWriteCount(writeCounts[i]);
+			}
+		}
+	}
+
+	/**
+	 * Queues the given entity to be written by the WriteBehindQueue, together with other writes. Use it where the
+	 * caller does not need the entity to be persisted before it continues.
+	 */
+	protected void writeObjectLater(Persistent object) {
+		assertIsNonNullArgument(object, "object");
+
+		if (object.isDirty()) {
+			WriteBehindQueue.getInstance().enqueue(this, object);
+		}
+	}
+
 	/**
 	 * Updates all dependencies of the object.
 	 */
@@ -167,6 +430,16 @@ public abstract class ObjectManager {
 		// overwrite if your object has additional dependencies
 	}
 
+	/**
+	 * Updates all dependencies of a batch of objects that has just been written. By default, the dependencies of each
+	 * object are updated one by one; overwrite to update them in batches, too.
+	 */
+	protected void updateDependents(Collection<? extends Persistent> objects) {
+		for (Persistent object : objects) {
+			updateDependents(object);
+		}
+	}
+
 	/**
 	 * Deletes the given entity from the datastore.
 	 */
@@ -177,6 +450,19 @@ public abstract class ObjectManager {
 		OfyService.ofy().delete().entity(object).now();
 	}
 
+	/**
+	 * Deletes all entities of the given collection from the datastore, in batches of at most MAX_BATCH_SIZE.
+	 */
+	protected <E> void deleteObjects(Collection<E> objects) {
+		assertIsNonNullArgument(objects, "objects");
+
+		log.info(LogBuilder.createSystemMessage().
+				addParameter("Datastore: delete entities", objects.size()).toString());
+		for (List<E> batch : partition(new ArrayList<E>(objects), MAX_BATCH_SIZE)) {
+			OfyService.ofy().delete().entities(batch).now();
+		}
+	}
+
 	/**
 	 * Deletes all entities of the type that have a property with the specified value, e.g.
 	 * deleteObjects(PhotoCase.class, "wasDecided", true) to delete all cases that have been decided.
@@ -189,11 +475,23 @@ public abstract class ObjectManager {
 		log.info(LogBuilder.createSystemMessage().
 				addMessage("Datastore: delete entities of type " + type
 						+ " where property " + propertyName + " == " + value).toString());
-		List<com.googlecode.objectify.Key<E>> keys = OfyService.ofy().load().type(type).
-				ancestor(applicationRootKey).filter(propertyName, value).keys().list();
+		List<com.googlecode.objectify.Key<E>> keys = queryObjects(type).filter(propertyName, value).keys().list();
 		OfyService.ofy().delete().keys(keys);
 	}
 
+	/**
+	 * @methodtype helper
+	 *
+	 * Splits list into consecutive views of at most batchSize elements.
+	 */
+	protected static <E> List<List<E>> partition(List<E> list, int batchSize) {
+		List<List<E>> result = new ArrayList<List<E>>();
+		for (int from = 0; from < list.size(); from += batchSize) {
+			result.add(list.subList(from, Math.min(from + batchSize, list.size())));
+		}
+		return result;
+	}
+
 	/**
 	 *
 	 */
@@ -13,6 +13,7 @@ import org.wahlzeit.model.Photo;
 import org.wahlzeit.model.MushroomPhoto;
 import org.wahlzeit.model.MushroomType;
 import org.wahlzeit.model.PhotoCase;
+import org.wahlzeit.model.PraiseShard;
 import org.wahlzeit.model.Tag;
 import org.wahlzeit.model.User;
 import org.wahlzeit.model.persistence.DatastoreAdapter.ImageWrapper;
@@ -32,6 +33,7 @@ public class OfyService {
 		factory().register(Photo.class);
 		factory().register(Globals.class);
 		factory().register(Tag.class);
+		factory().register(PraiseShard.class);
 		factory().register(User.class);
 		factory().register(Administrator.class);
 		factory().register(Moderator.class);
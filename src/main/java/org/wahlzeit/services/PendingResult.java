@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.services;
+
+import com.googlecode.objectify.Result;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A PendingResult is the Future of an asynchronous Datastore operation. The operation has been issued when the
+ * PendingResult is created; get() or now() wait for it to complete. An optional completion action runs once, on the
+ * thread that first waits for the result, e.g. to mark a written object as clean.
+ */
+public class PendingResult<T> implements Future<T> {
+
+	/**
+	 *
+	 */
+	protected final Result<T> result;
+
+	/**
+	 *
+	 */
+	protected final Consumer<? super T> completion;
+
+	/**
+	 *
+	 */
+	protected boolean isDone = false;
+	protected T value;
+	protected RuntimeException failure;
+
+	/**
+	 *
+	 */
+	public PendingResult(Result<T> result) {
+		this(result, null);
+	}
+
+	/**
+	 *
+	 */
+	public PendingResult(Result<T> result, Consumer<? super T> completion) {
+		if (result == null) {
+			throw new IllegalArgumentException("result should not be null");
+		}
+
+		this.result = result;
+		this.completion = completion;
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	public static <T> PendingResult<T> completed(final T value) {
+		PendingResult<T> pendingResult = new PendingResult<T>(() -> value);
+		pendingResult.now();
+		return pendingResult;
+	}
+
+	/**
+	 * @methodtype factory
+	 *
+	 * Combines several pending results into one, whose value is the list of their values in the given order. As all
+	 * operations have been issued already, waiting for them one after the other takes as long as the slowest one.
+	 */
+	public static <T> PendingResult<List<T>> allOf(Collection<? extends PendingResult<? extends T>> pendingResults) {
+		final List<PendingResult<? extends T>> results = new ArrayList<PendingResult<? extends T>>(pendingResults);
+		return new PendingResult<List<T>>(() -> waitForAll(results));
+	}
+
+	/**
+	 * Waits for all given pending results and returns their values in the given order. Fails with the first failure,
+	 * but only after all operations have completed.
+	 */
+	public static <T> List<T> waitForAll(Collection<? extends PendingResult<? extends T>> pendingResults) {
+		List<T> values = new ArrayList<T>(pendingResults.size());
+		RuntimeException firstFailure = null;
+		for (PendingResult<? extends T> pendingResult : pendingResults) {
+			try {
+				values.add(pendingResult.now());
+			} catch (RuntimeException e) {
+				if (firstFailure == null) {
+					firstFailure = e;
+				}
+				values.add(null);
+			}
+		}
+
+		if (firstFailure != null) {
+			throw firstFailure;
+		}
+		return values;
+	}
+
+	/**
+	 * Waits for the operation and returns its value; a failure of the operation is rethrown as is.
+	 */
+	public synchronized T now() {
+		if (!isDone) {
+			try {
+				value = result.now();
+				if (completion != null) {
+					completion.accept(value);
+				}
+			} catch (RuntimeException e) {
+				failure = e;
+			}
+			isDone = true;
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+		return value;
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	public T get() throws ExecutionException {
+		try {
+			return now();
+		} catch (RuntimeException e) {
+			throw new ExecutionException(e);
+		}
+	}
+
+	/**
+	 * Datastore calls cannot be waited for with a timeout, so this is the same as get().
+	 */
+	@Override
+	public T get(long timeout, TimeUnit unit) throws ExecutionException {
+		return get();
+	}
+
+	/**
+	 * Issued Datastore operations cannot be cancelled.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 *
+	 * True if the result has been waited for; Objectify does not tell whether an operation is complete before.
+	 */
+	@Override
+	public synchronized boolean isDone() {
+		return isDone;
+	}
+
+}
@@ -41,4 +41,15 @@ public interface Persistent {
 	 */
 	void resetWriteCount();
 
+	/**
+	 * @methodtype get
+	 */
+	int getWriteCount();
+
+	/**
+	 * Resets the write count only if it still is the given one, i.e. if the object has not been changed since the
+	 * count was taken; returns whether it was reset.
+	 */
+	boolean resetWriteCount(int writeCount);
+
 }
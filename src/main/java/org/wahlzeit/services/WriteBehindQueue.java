@@ -0,0 +1,364 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.services;
+
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * The WriteBehindQueue collects dirty Persistent objects and writes them to the Datastore later, in batches. An object
+ * that is queued again before it was written is written only once (coalescing); since the queue holds the object
+ * itself, the write contains all changes made until then.
+ *
+ * A flush starts when the queue holds batchSize objects or when its oldest object waited maxDelay ms. App Engine does
+ * not allow background threads in automatically scaled instances, so the check runs after each request (see
+ * AbstractServlet) and by the flushWriteBehindQueue agent; {@link #drain()} writes everything on shutdown.
+ *
+ * Objects whose write fails are queued again, up to {@link #MAX_ATTEMPTS} times.
+ */
+public class WriteBehindQueue {
+
+	private static final Logger log = Logger.getLogger(WriteBehindQueue.class.getName());
+
+	/**
+	 *
+	 */
+	public static final String BATCH_SIZE_PROPERTY = "org.wahlzeit.writeBehind.batchSize";
+	public static final String MAX_DELAY_PROPERTY = "org.wahlzeit.writeBehind.maxDelay";
+
+	/**
+	 *
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	public static final long DEFAULT_MAX_DELAY = 5000; // = 5 s
+	public static final int MAX_ATTEMPTS = 3;
+
+	/**
+	 *
+	 */
+	protected static final WriteBehindQueue instance = new WriteBehindQueue(
+			Integer.getInteger(BATCH_SIZE_PROPERTY, DEFAULT_BATCH_SIZE),
+			Long.getLong(MAX_DELAY_PROPERTY, DEFAULT_MAX_DELAY));
+
+	/**
+	 * @methodtype get
+	 */
+	public static WriteBehindQueue getInstance() {
+		return instance;
+	}
+
+	/**
+	 * A queued object and the manager that writes it
+	 */
+	protected static class PendingWrite {
+		protected final ObjectManager manager;
+		protected final Persistent object;
+		protected long queuedTime = 0;
+		protected int attempts = 0;
+
+		protected PendingWrite(ObjectManager manager, Persistent object) {
+			this.manager = manager;
+			this.object = object;
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected final int batchSize;
+	protected final long maxDelay;
+
+	/**
+	 * Pending writes by object identity, in the order they were queued; guarded by this
+	 */
+	protected Map<Persistent, PendingWrite> pendingWrites = new IdentityHashMap<Persistent, PendingWrite>();
+	protected ArrayDeque<PendingWrite> pendingOrder = new ArrayDeque<PendingWrite>();
+
+	/**
+	 * Only one thread flushes at a time
+	 */
+	protected final ReentrantLock flushLock = new ReentrantLock();
+
+	/**
+	 * Metrics; guarded by this
+	 */
+	protected long enqueuedCount = 0;
+	protected long coalescedCount = 0;
+	protected long writtenCount = 0;
+	protected long failedWriteCount = 0;
+	protected long droppedCount = 0;
+	protected long flushCount = 0;
+	protected long lastFlushLatency = 0;
+	protected long maxFlushLatency = 0;
+	protected long totalFlushLatency = 0;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public WriteBehindQueue(int batchSize, long maxDelay) {
+		if (batchSize <= 0 || maxDelay < 0) {
+			throw new IllegalArgumentException("invalid write-behind configuration");
+		}
+
+		this.batchSize = batchSize;
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Queues object to be written by manager. Does nothing if object is queued already.
+	 */
+	public void enqueue(ObjectManager manager, Persistent object) {
+		synchronized (this) {
+			enqueuedCount++;
+			if (pendingWrites.containsKey(object)) {
+				coalescedCount++;
+				return;
+			}
+
+			doEnqueue(new PendingWrite(manager, object));
+		}
+
+		flushIfDue();
+	}
+
+	/**
+	 * @methodtype command
+	 * @methodproperty primitive
+	 */
+	protected void doEnqueue(PendingWrite pendingWrite) {
+		pendingWrite.queuedTime = System.currentTimeMillis();
+		pendingWrites.put(pendingWrite.object, pendingWrite);
+		pendingOrder.add(pendingWrite);
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public synchronized boolean isFlushDue() {
+		return !pendingOrder.isEmpty() &&
+				((pendingOrder.size() >= batchSize) ||
+						(System.currentTimeMillis() - pendingOrder.getFirst().queuedTime >= maxDelay));
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Flushes if the queue is full or waited long enough and no other thread is flushing right now.
+	 */
+	public void flushIfDue() {
+		if (isFlushDue() && flushLock.tryLock()) {
+			try {
+				flushBatch();
+			} finally {
+				flushLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Writes all queued objects, including those queued while draining. Returns false if some could not be written.
+	 */
+	public boolean drain() {
+		flushLock.lock();
+		try {
+			while (getQueueDepth() > 0) {
+				flushBatch();
+			}
+		} finally {
+			flushLock.unlock();
+		}
+
+		synchronized (this) {
+			log.info(LogBuilder.createSystemMessage().
+					addAction("drained write-behind queue").
+					addParameter("metrics", getMetricsAsString()).toString());
+			return droppedCount == 0;
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Takes up to batchSize pending writes and writes them; failed ones are queued again.
+	 */
+	protected void flushBatch() {
+		final List<PendingWrite> batch = takeBatch();
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		long startTime = System.currentTimeMillis();
+		final List<PendingWrite> failedWrites = new ArrayList<PendingWrite>();
+		ObjectifyService.run(new VoidWork() {
+			@Override
+			public void vrun() {
+				Map<ObjectManager, List<PendingWrite>> writesByManager = new LinkedHashMap<ObjectManager, List<PendingWrite>>();
+				for (PendingWrite pendingWrite : batch) {
+					writesByManager.computeIfAbsent(pendingWrite.manager, manager -> new ArrayList<PendingWrite>()).
+							add(pendingWrite);
+				}
+
+				for (Map.Entry<ObjectManager, List<PendingWrite>> entry : writesByManager.entrySet()) {
+					List<Persistent> objects = new ArrayList<Persistent>(entry.getValue().size());
+					for (PendingWrite pendingWrite : entry.getValue()) {
+						objects.add(pendingWrite.object);
+					}
+					try {
+						entry.getKey().writeObjects(objects);
+					} catch (RuntimeException e) {
+						log.warning(LogBuilder.createSystemMessage().
+								addParameter("manager", entry.getKey().getClass().getSimpleName()).
+								addParameter("objects", objects.size()).
+								addException("write-behind failed", e).toString());
+						// objects of a batch that made it are no longer dirty and are skipped when retried
+						failedWrites.addAll(entry.getValue());
+					}
+				}
+			}
+		});
+		long latency = System.currentTimeMillis() - startTime;
+
+		synchronized (this) {
+			flushCount++;
+			writtenCount += batch.size() - failedWrites.size();
+			failedWriteCount += failedWrites.size();
+			lastFlushLatency = latency;
+			maxFlushLatency = Math.max(maxFlushLatency, latency);
+			totalFlushLatency += latency;
+
+			for (PendingWrite failedWrite : failedWrites) {
+				if (++failedWrite.attempts >= MAX_ATTEMPTS) {
+					droppedCount++;
+					log.severe(LogBuilder.createSystemMessage().
+							addParameter("object", failedWrite.object).
+							addMessage("write-behind gave up, changes are lost").toString());
+				} else if (!pendingWrites.containsKey(failedWrite.object)) {
+					doEnqueue(failedWrite);
+				}
+			}
+		}
+
+		log.config(LogBuilder.createSystemMessage().
+				addAction("flushed write-behind queue").
+				addParameter("batch size", batch.size()).
+				addParameter("failed", failedWrites.size()).
+				addParameter("latency in ms", (int) latency).toString());
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected synchronized List<PendingWrite> takeBatch() {
+		List<PendingWrite> result = new ArrayList<PendingWrite>(Math.min(batchSize, pendingOrder.size()));
+		while (result.size() < batchSize && !pendingOrder.isEmpty()) {
+			PendingWrite pendingWrite = pendingOrder.removeFirst();
+			pendingWrites.remove(pendingWrite.object);
+			result.add(pendingWrite);
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized int getQueueDepth() {
+		return pendingOrder.size();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getCoalescedCount() {
+		return coalescedCount;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getWrittenCount() {
+		return writtenCount;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getFailedWriteCount() {
+		return failedWriteCount;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getDroppedCount() {
+		return droppedCount;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getFlushCount() {
+		return flushCount;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getLastFlushLatency() {
+		return lastFlushLatency;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getMaxFlushLatency() {
+		return maxFlushLatency;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getAverageFlushLatency() {
+		return (flushCount == 0) ? 0 : totalFlushLatency / flushCount;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public synchronized String getMetricsAsString() {
+		return "depth=" + pendingOrder.size() + ", enqueued=" + enqueuedCount + ", coalesced=" + coalescedCount +
+				", written=" + writtenCount + ", failed=" + failedWriteCount + ", dropped=" + droppedCount +
+				", flushes=" + flushCount + ", lastLatency=" + lastFlushLatency + ", maxLatency=" + maxFlushLatency +
+				", avgLatency=" + getAverageFlushLatency();
+	}
+
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.services.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * A bounded, thread-safe cache whose entries expire when they have not been accessed for maximumIdleTime.
+ *
+ * Lookups go to a ConcurrentHashMap and only record the access time, so they never block. Expired entries and, if
+ * the cache has grown beyond maximumSize, the least recently accessed ones are removed by a sweep. A sweep runs on put
+ * when the cache is over budget or the last sweep is long enough ago, so the cost of sorting the entries is spread
+ * over many puts. Removed entries are passed to the RemovalListener, outside of any lock.
+ */
+public class ExpiringCache<K, V> {
+
+	/**
+	 * A sweep of an oversized cache shrinks it to this percentage of its maximum size
+	 */
+	protected static final int SWEEP_TARGET_PERCENTAGE = 90;
+
+	/**
+	 *
+	 */
+	protected static final long MAXIMUM_SWEEP_INTERVAL = 60 * 1000;
+
+	/**
+	 *
+	 */
+	protected final ConcurrentHashMap<K, Entry<V>> data = new ConcurrentHashMap<K, Entry<V>>();
+	protected final ReentrantLock sweepLock = new ReentrantLock();
+
+	/**
+	 *
+	 */
+	protected final long maximumSize;
+	protected final long maximumIdleTime;
+	protected final long sweepInterval;
+	protected final RemovalListener<? super K, ? super V> removalListener;
+	protected final LongSupplier clock;
+
+	/**
+	 *
+	 */
+	protected volatile long lastSweepTime;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public ExpiringCache(long maximumSize, long maximumIdleTime, RemovalListener<? super K, ? super V> removalListener) {
+		this(maximumSize, maximumIdleTime, removalListener, System::currentTimeMillis);
+	}
+
+	/**
+	 * @methodtype constructor
+	 */
+	public ExpiringCache(long maximumSize, long maximumIdleTime, RemovalListener<? super K, ? super V> removalListener,
+						 LongSupplier clock) {
+		if (maximumSize < 1 || maximumIdleTime < 1) {
+			throw new IllegalArgumentException("cache budget must be positive");
+		}
+
+		this.maximumSize = maximumSize;
+		this.maximumIdleTime = maximumIdleTime;
+		this.removalListener = removalListener;
+		this.clock = clock;
+
+		sweepInterval = Math.min(maximumIdleTime, MAXIMUM_SWEEP_INTERVAL);
+		lastSweepTime = clock.getAsLong();
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the value for the key, unless it has expired, and records the access.
+	 */
+	public V get(K key) {
+		Entry<V> entry = data.get(key);
+		if (entry == null) {
+			return null;
+		}
+
+		long now = clock.getAsLong();
+		if (isExpired(entry, now)) {
+			if (data.remove(key, entry)) {
+				notifyRemoval(key, entry.value);
+			}
+			return null;
+		}
+
+		entry.accessTime = now;
+		return entry.value;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds or replaces the value for the key; a replaced value is not passed to the RemovalListener.
+	 */
+	public void put(K key, V value) {
+		if (key == null || value == null) {
+			throw new IllegalArgumentException("key and value should not be null");
+		}
+
+		long now = clock.getAsLong();
+		data.put(key, new Entry<V>(value, now));
+
+		if ((data.size() > maximumSize) || (now - lastSweepTime >= sweepInterval)) {
+			sweep(false);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Removes the value for the key without passing it to the RemovalListener.
+	 */
+	public V remove(K key) {
+		Entry<V> entry = data.remove(key);
+		return (entry != null) ? entry.value : null;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Removes expired entries and, if the cache is over budget, the least recently accessed ones; waits for a sweep
+	 * that is under way already.
+	 */
+	public void cleanUp() {
+		sweep(true);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int size() {
+		return data.size();
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Weakly consistent view of the current values, including expired ones that have not been swept yet.
+	 */
+	public Collection<V> values() {
+		List<V> result = new ArrayList<V>(data.size());
+		for (Entry<V> entry : data.values()) {
+			result.add(entry.value);
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getMaximumSize() {
+		return maximumSize;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getMaximumIdleTime() {
+		return maximumIdleTime;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	protected boolean isExpired(Entry<V> entry, long now) {
+		return now - entry.accessTime > maximumIdleTime;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void sweep(boolean isToWait) {
+		if (isToWait) {
+			sweepLock.lock();
+		} else if (!sweepLock.tryLock()) {
+			return; // another thread is sweeping
+		}
+
+		List<Map.Entry<K, Entry<V>>> removed = new ArrayList<Map.Entry<K, Entry<V>>>();
+		try {
+			long now = clock.getAsLong();
+			lastSweepTime = now;
+
+			List<Map.Entry<K, Entry<V>>> live = new ArrayList<Map.Entry<K, Entry<V>>>(data.size());
+			for (Map.Entry<K, Entry<V>> mapEntry : data.entrySet()) {
+				if (isExpired(mapEntry.getValue(), now)) {
+					if (data.remove(mapEntry.getKey(), mapEntry.getValue())) {
+						removed.add(mapEntry);
+					}
+				} else {
+					live.add(mapEntry);
+				}
+			}
+
+			if (live.size() > maximumSize) {
+				// sort by a copy of the access times, which other threads may change meanwhile
+				final long[] accessTimes = new long[live.size()];
+				List<Integer> order = new ArrayList<Integer>(live.size());
+				for (int i = 0; i < accessTimes.length; i++) {
+					accessTimes[i] = live.get(i).getValue().accessTime;
+					order.add(i);
+				}
+				Collections.sort(order, Comparator.comparingLong(i -> accessTimes[i]));
+
+				long targetSize = Math.max(1, maximumSize * SWEEP_TARGET_PERCENTAGE / 100);
+				for (int i = 0; (i < order.size()) && (data.size() > targetSize); i++) {
+					Map.Entry<K, Entry<V>> mapEntry = live.get(order.get(i));
+					if (data.remove(mapEntry.getKey(), mapEntry.getValue())) {
+						removed.add(mapEntry);
+					}
+				}
+			}
+		} finally {
+			sweepLock.unlock();
+		}
+
+		for (Map.Entry<K, Entry<V>> mapEntry : removed) {
+			notifyRemoval(mapEntry.getKey(), mapEntry.getValue().value);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void notifyRemoval(K key, V value) {
+		if (removalListener != null) {
+			removalListener.onRemoval(key, value);
+		}
+	}
+
+	/**
+	 * A cache entry with the time of its last access.
+	 */
+	protected static class Entry<V> {
+
+		protected final V value;
+		protected volatile long accessTime;
+
+		/**
+		 *
+		 */
+		protected Entry(V value, long accessTime) {
+			this.value = value;
+			this.accessTime = accessTime;
+		}
+	}
+
+}
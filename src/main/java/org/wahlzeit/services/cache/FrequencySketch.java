@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.services.cache;
+
+/**
+ * A FrequencySketch estimates how often a key has been accessed recently (TinyLFU). It is a count-min sketch with four
+ * rows of counters that saturate at 15; all counters are halved once the number of increments reaches ten times the
+ * expected size, so that old popularity fades away.
+ *
+ * Increments are not synchronized. A lost update under contention only makes an estimate slightly lower, which is
+ * acceptable for an admission heuristic.
+ */
+public class FrequencySketch {
+
+	/**
+	 *
+	 */
+	protected static final int DEPTH = 4;
+	protected static final int MAX_COUNT = 15;
+	protected static final int COUNTERS_PER_ENTRY = 8;
+
+	/**
+	 * Odd seeds for the row hash functions
+	 */
+	protected static final int[] SEEDS = {
+			0x97cb3127, 0xc3a5c85d, 0xb492b66f, 0x9ae16a3b
+	};
+
+	/**
+	 *
+	 */
+	protected final byte[][] table;
+	protected final int mask;
+	protected final int sampleSize;
+	protected int additions = 0;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public FrequencySketch(long expectedSize) {
+		int capacity = (int) Math.max(16, Math.min(expectedSize, 1 << 22));
+		int width = ceilingPowerOfTwo(capacity * COUNTERS_PER_ENTRY);
+		table = new byte[DEPTH][width];
+		mask = width - 1;
+		sampleSize = 10 * capacity;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int frequency(Object key) {
+		int hash = spread(key.hashCode());
+		int result = MAX_COUNT;
+		for (int i = 0; i < DEPTH; i++) {
+			result = Math.min(result, table[i][indexOf(hash, i)]);
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void increment(Object key) {
+		int hash = spread(key.hashCode());
+		boolean wasIncremented = false;
+		for (int i = 0; i < DEPTH; i++) {
+			int index = indexOf(hash, i);
+			if (table[i][index] < MAX_COUNT) {
+				table[i][index]++;
+				wasIncremented = true;
+			}
+		}
+
+		if (wasIncremented && (++additions >= sampleSize)) {
+			reset();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Halves all counters (aging).
+	 */
+	protected void reset() {
+		for (byte[] row : table) {
+			for (int i = 0; i < row.length; i++) {
+				row[i] = (byte) (row[i] >>> 1);
+			}
+		}
+		additions = additions / 2;
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected int indexOf(int hash, int row) {
+		int h = (hash + SEEDS[row]) * SEEDS[row];
+		h ^= h >>> 16;
+		return h & mask;
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected static int spread(int hash) {
+		int h = hash * 0x85ebca6b;
+		return h ^ (h >>> 13);
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected static int ceilingPowerOfTwo(int value) {
+		return 1 << (32 - Integer.numberOfLeadingZeros(value - 1));
+	}
+
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.services.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A byte array cache that keeps its data outside of the Java heap, in direct ByteBuffers. The memory is handed out in
+ * fixed-size blocks from slabs of 1 MB, which are allocated on demand up to the capacity and then reused. So the
+ * garbage collector neither has to scan nor to move the cached bytes, and freed memory does not wait for a GC.
+ *
+ * When there are not enough free blocks for a new value, the least recently used entries are evicted.
+ */
+public class OffHeapByteCache<K> {
+
+	/**
+	 *
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 8 * 1024; // = 8 KB
+	protected static final int SLAB_SIZE = 1024 * 1024; // = 1 MB
+
+	/**
+	 * An entry only holds the indices of its blocks; the bytes are in the slabs
+	 */
+	protected static class Entry {
+		protected final int length;
+		protected final int[] blocks;
+
+		protected Entry(int length, int[] blocks) {
+			this.length = length;
+			this.blocks = blocks;
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected final int blockSize;
+	protected final int blocksPerSlab;
+	protected final int maximumBlocks;
+
+	/**
+	 *
+	 */
+	protected final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+	protected int allocatedBlocks = 0;
+	protected int[] freeBlocks;
+	protected int freeBlockCount = 0;
+
+	/**
+	 * Access-ordered, so iteration starts with the least recently used entry
+	 */
+	protected final LinkedHashMap<K, Entry> entries = new LinkedHashMap<K, Entry>(16, 0.75f, true);
+
+	/**
+	 *
+	 */
+	protected long hitCount = 0;
+	protected long missCount = 0;
+	protected long evictionCount = 0;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public OffHeapByteCache(long capacity) {
+		this(capacity, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @methodtype constructor
+	 */
+	public OffHeapByteCache(long capacity, int blockSize) {
+		if (blockSize <= 0 || SLAB_SIZE % blockSize != 0) {
+			throw new IllegalArgumentException("block size must divide the slab size: " + blockSize);
+		}
+		if (capacity < blockSize) {
+			throw new IllegalArgumentException("capacity must hold at least one block: " + capacity);
+		}
+
+		this.blockSize = blockSize;
+		this.blocksPerSlab = SLAB_SIZE / blockSize;
+		this.maximumBlocks = (int) Math.min(capacity / blockSize, Integer.MAX_VALUE);
+		this.freeBlocks = new int[Math.min(maximumBlocks, blocksPerSlab)];
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns a copy of the cached bytes or null.
+	 */
+	public synchronized byte[] get(K key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			missCount++;
+			return null;
+		}
+
+		hitCount++;
+		byte[] result = new byte[entry.length];
+		int offset = 0;
+		for (int block : entry.blocks) {
+			int length = Math.min(blockSize, entry.length - offset);
+			getBlockBuffer(block).get(result, offset, length);
+			offset += length;
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public synchronized boolean containsKey(K key) {
+		return entries.containsKey(key);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Copies value into the cache. Returns false if the value is larger than the whole cache and was not stored.
+	 */
+	public synchronized boolean put(K key, byte[] value) {
+		remove(key);
+
+		int blockCount = Math.max(1, (value.length + blockSize - 1) / blockSize);
+		if (blockCount > maximumBlocks) {
+			return false;
+		}
+
+		int[] blocks = new int[blockCount];
+		for (int i = 0; i < blockCount; i++) {
+			blocks[i] = takeBlock();
+		}
+
+		int offset = 0;
+		for (int block : blocks) {
+			int length = Math.min(blockSize, value.length - offset);
+			getBlockBuffer(block).put(value, offset, length);
+			offset += length;
+		}
+
+		entries.put(key, new Entry(value.length, blocks));
+		return true;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public synchronized boolean remove(K key) {
+		Entry entry = entries.remove(key);
+		if (entry == null) {
+			return false;
+		}
+
+		releaseBlocks(entry);
+		return true;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public synchronized void clear() {
+		for (Entry entry : entries.values()) {
+			releaseBlocks(entry);
+		}
+		entries.clear();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the number of bytes taken by cached values, rounded up to whole blocks.
+	 */
+	public synchronized long getUsedBytes() {
+		return (long) (allocatedBlocks - freeBlockCount) * blockSize;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getCapacity() {
+		return (long) maximumBlocks * blockSize;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * @methodtype helper
+	 *
+	 * Takes a free block; allocates a new slab or evicts the least recently used entry if there is none.
+	 */
+	protected int takeBlock() {
+		while (freeBlockCount == 0) {
+			if (allocatedBlocks < maximumBlocks) {
+				allocateSlab();
+			} else {
+				evictEldest();
+			}
+		}
+
+		return freeBlocks[--freeBlockCount];
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected void allocateSlab() {
+		int blockCount = Math.min(blocksPerSlab, maximumBlocks - allocatedBlocks);
+		slabs.add(ByteBuffer.allocateDirect(blockCount * blockSize));
+		ensureFreeBlocksCapacity(freeBlockCount + blockCount);
+		for (int i = 0; i < blockCount; i++) {
+			freeBlocks[freeBlockCount++] = allocatedBlocks + i;
+		}
+		allocatedBlocks += blockCount;
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected void evictEldest() {
+		Iterator<Map.Entry<K, Entry>> it = entries.entrySet().iterator();
+		Entry eldest = it.next().getValue();
+		it.remove();
+		releaseBlocks(eldest);
+		evictionCount++;
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected void releaseBlocks(Entry entry) {
+		ensureFreeBlocksCapacity(freeBlockCount + entry.blocks.length);
+		for (int block : entry.blocks) {
+			freeBlocks[freeBlockCount++] = block;
+		}
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected void ensureFreeBlocksCapacity(int capacity) {
+		if (freeBlocks.length < capacity) {
+			int[] newFreeBlocks = new int[Math.max(capacity, 2 * freeBlocks.length)];
+			System.arraycopy(freeBlocks, 0, newFreeBlocks, 0, freeBlockCount);
+			freeBlocks = newFreeBlocks;
+		}
+	}
+
+	/**
+	 * @methodtype helper
+	 *
+	 * Returns a view of the slab that is positioned at the start of the block.
+	 */
+	protected ByteBuffer getBlockBuffer(int block) {
+		ByteBuffer result = slabs.get(block / blocksPerSlab).duplicate();
+		result.position((block % blocksPerSlab) * blockSize);
+		return result;
+	}
+
+}
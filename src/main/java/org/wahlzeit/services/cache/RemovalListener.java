@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.services.cache;
+
+/**
+ * A RemovalListener is notified when a cache drops an entry to stay within its budget.
+ * It is never called while the cache holds its internal lock, so it may do expensive work like saving the value.
+ */
+public interface RemovalListener<K, V> {
+
+	/**
+	 * @methodtype command
+	 */
+	void onRemoval(K key, V value);
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.services.cache;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Makes concurrent loads of the same key share one call of the loader. The first caller runs the loader in its own
+ * thread; callers arriving while it runs wait for and get the same result. Once a load is done, the next call for the
+ * key starts a new one, so results are not kept here; that is up to the cache in front of it.
+ */
+public class SharedLoader<K, V> {
+
+	/**
+	 *
+	 */
+	protected final ConcurrentHashMap<K, FutureTask<V>> loadsInFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+
+	/**
+	 * @methodtype command
+	 *
+	 * Returns the result of loader, or of the load of key that is already running. Exceptions of the loader are
+	 * passed on to all callers that waited for it.
+	 */
+	public V load(K key, Callable<V> loader) throws ExecutionException, InterruptedException {
+		FutureTask<V> task = new FutureTask<V>(loader);
+		FutureTask<V> runningTask = loadsInFlight.putIfAbsent(key, task);
+		if (runningTask != null) {
+			return runningTask.get();
+		}
+
+		try {
+			task.run();
+		} finally {
+			loadsInFlight.remove(key, task);
+		}
+		return task.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getLoadsInFlight() {
+		return loadsInFlight.size();
+	}
+
+}
@@ -0,0 +1,510 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.services.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded, thread-safe cache with a W-TinyLFU eviction policy.
+ *
+ * New entries go into a small LRU "window". Entries leaving the window compete with the least recently used entry of
+ * the main area; the one that was accessed more often according to the {@link FrequencySketch} stays. The main area
+ * is a segmented LRU: entries accessed again move from "probation" to "protected". The cache is bounded both by the
+ * number of entries and by their total weight (see {@link Weigher}).
+ *
+ * Lookups go to a ConcurrentHashMap and never block. Reordering after a hit is skipped if another thread currently
+ * holds the policy lock, so under contention the LRU order is only approximate.
+ */
+public class TinyLfuCache<K, V> {
+
+	/**
+	 *
+	 */
+	protected static final byte WINDOW = 0;
+	protected static final byte PROBATION = 1;
+	protected static final byte PROTECTED = 2;
+
+	/**
+	 *
+	 */
+	protected static final int WINDOW_PERCENTAGE = 1;
+	protected static final int PROTECTED_PERCENTAGE = 80;
+
+	/**
+	 *
+	 */
+	protected final ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<K, Node<K, V>>();
+	protected final ReentrantLock policyLock = new ReentrantLock();
+	protected final FrequencySketch sketch;
+
+	/**
+	 *
+	 */
+	protected final AccessOrderDeque<K, V> window = new AccessOrderDeque<K, V>();
+	protected final AccessOrderDeque<K, V> probation = new AccessOrderDeque<K, V>();
+	protected final AccessOrderDeque<K, V> protectedArea = new AccessOrderDeque<K, V>();
+
+	/**
+	 *
+	 */
+	protected final long maximumSize;
+	protected final long maximumWeight;
+	protected final long windowMaximumSize;
+	protected final long protectedMaximumSize;
+	protected final Weigher<? super K, ? super V> weigher;
+	protected final RemovalListener<? super K, ? super V> removalListener;
+
+	/**
+	 * Guarded by policyLock
+	 */
+	protected long totalWeight = 0;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public TinyLfuCache(long maximumSize, long maximumWeight, Weigher<? super K, ? super V> weigher,
+						RemovalListener<? super K, ? super V> removalListener) {
+		if (maximumSize < 1 || maximumWeight < 1) {
+			throw new IllegalArgumentException("cache budget must be positive");
+		}
+		if (weigher == null) {
+			throw new IllegalArgumentException("weigher should not be null");
+		}
+
+		this.maximumSize = maximumSize;
+		this.maximumWeight = maximumWeight;
+		this.weigher = weigher;
+		this.removalListener = removalListener;
+
+		windowMaximumSize = Math.max(1, maximumSize * WINDOW_PERCENTAGE / 100);
+		protectedMaximumSize = (maximumSize - windowMaximumSize) * PROTECTED_PERCENTAGE / 100;
+		sketch = new FrequencySketch(maximumSize);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public V get(K key) {
+		Node<K, V> node = data.get(key);
+		sketch.increment(key);
+		if (node == null) {
+			return null;
+		}
+
+		if (policyLock.tryLock()) {
+			try {
+				onAccess(node);
+			} finally {
+				policyLock.unlock();
+			}
+		}
+
+		return node.value;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Like get, but the access is not recorded, so it does not influence which entries are kept.
+	 */
+	public V peek(K key) {
+		Node<K, V> node = data.get(key);
+		return (node != null) ? node.value : null;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean containsKey(K key) {
+		return data.containsKey(key);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds or replaces the value for the key and evicts entries if the cache is over budget afterwards.
+	 */
+	public void put(K key, V value) {
+		if (key == null || value == null) {
+			throw new IllegalArgumentException("key and value should not be null");
+		}
+
+		int weight = weigher.weigh(key, value);
+		List<Node<K, V>> evicted = new ArrayList<Node<K, V>>();
+
+		policyLock.lock();
+		try {
+			Node<K, V> node = data.get(key);
+			if (node != null) {
+				totalWeight += weight - node.weight;
+				node.value = value;
+				node.weight = weight;
+				onAccess(node);
+			} else {
+				node = new Node<K, V>(key, value, weight);
+				data.put(key, node);
+				totalWeight += weight;
+				window.addFirst(node);
+				sketch.increment(key);
+			}
+
+			evictEntries(evicted);
+		} finally {
+			policyLock.unlock();
+		}
+
+		notifyRemovals(evicted);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Weighs the cached value for the key again, e.g. after the value has dropped data it held when it was put. The
+	 * access is not recorded; entries are evicted if the cache is over budget afterwards.
+	 */
+	public void reweigh(K key) {
+		Node<K, V> node = data.get(key);
+		if (node == null) {
+			return;
+		}
+
+		V value = node.value;
+		int weight = weigher.weigh(key, value);
+		List<Node<K, V>> evicted = new ArrayList<Node<K, V>>();
+
+		policyLock.lock();
+		try {
+			if (!node.isLinked() || node.value != value) {
+				return; // removed or replaced concurrently, which weighed the entry anyway
+			}
+
+			totalWeight += weight - node.weight;
+			node.weight = weight;
+			evictEntries(evicted);
+		} finally {
+			policyLock.unlock();
+		}
+
+		notifyRemovals(evicted);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public V remove(K key) {
+		policyLock.lock();
+		try {
+			Node<K, V> node = data.remove(key);
+			if (node == null) {
+				return null;
+			}
+
+			dequeOf(node).remove(node);
+			totalWeight -= node.weight;
+			return node.value;
+		} finally {
+			policyLock.unlock();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void clear() {
+		policyLock.lock();
+		try {
+			data.clear();
+			window.clear();
+			probation.clear();
+			protectedArea.clear();
+			totalWeight = 0;
+		} finally {
+			policyLock.unlock();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int size() {
+		return data.size();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getWeightedSize() {
+		policyLock.lock();
+		try {
+			return totalWeight;
+		} finally {
+			policyLock.unlock();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getMaximumSize() {
+		return maximumSize;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getMaximumWeight() {
+		return maximumWeight;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Weakly consistent view of the currently cached keys.
+	 */
+	public Set<K> keySet() {
+		return data.keySet();
+	}
+
+	/**
+	 * @methodtype conversion
+	 *
+	 * Snapshot of the currently cached values.
+	 */
+	public Collection<V> values() {
+		Collection<V> result = new ArrayList<V>(data.size());
+		for (Node<K, V> node : data.values()) {
+			result.add(node.value);
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 * @methodproperty primitive
+	 *
+	 * Must be called with the policy lock held.
+	 */
+	protected void onAccess(Node<K, V> node) {
+		if (!node.isLinked()) {
+			return; // evicted or removed concurrently
+		}
+
+		if (node.queue == WINDOW) {
+			window.moveToFront(node);
+		} else if (node.queue == PROBATION) {
+			probation.remove(node);
+			node.queue = PROTECTED;
+			protectedArea.addFirst(node);
+			while (protectedArea.size() > protectedMaximumSize) {
+				Node<K, V> demoted = protectedArea.removeLast();
+				demoted.queue = PROBATION;
+				probation.addFirst(demoted);
+			}
+		} else {
+			protectedArea.moveToFront(node);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Moves overflowing window entries into the main area (if they win against its victim) and then evicts until the
+	 * cache is within its budget again. Must be called with the policy lock held.
+	 */
+	protected void evictEntries(List<Node<K, V>> evicted) {
+		while (window.size() > windowMaximumSize) {
+			Node<K, V> candidate = window.removeLast();
+			if (!isOverBudget()) {
+				candidate.queue = PROBATION;
+				probation.addFirst(candidate);
+				continue;
+			}
+
+			Node<K, V> victim = probation.isEmpty() ? protectedArea.peekLast() : probation.peekLast();
+			if (victim == null || sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+				candidate.queue = PROBATION;
+				probation.addFirst(candidate);
+				if (victim != null) {
+					evict(victim, evicted);
+				}
+			} else {
+				evicted.add(candidate);
+				data.remove(candidate.key, candidate);
+				totalWeight -= candidate.weight;
+			}
+		}
+
+		while (isOverBudget()) {
+			Node<K, V> victim = probation.peekLast();
+			if (victim == null) {
+				victim = protectedArea.peekLast();
+			}
+			if (victim == null) {
+				victim = window.peekLast();
+			}
+			if (victim == null) {
+				break;
+			}
+			evict(victim, evicted);
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	protected boolean isOverBudget() {
+		return data.size() > maximumSize || totalWeight > maximumWeight;
+	}
+
+	/**
+	 * @methodtype command
+	 * @methodproperty primitive
+	 */
+	protected void evict(Node<K, V> node, List<Node<K, V>> evicted) {
+		dequeOf(node).remove(node);
+		data.remove(node.key, node);
+		totalWeight -= node.weight;
+		evicted.add(node);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected AccessOrderDeque<K, V> dequeOf(Node<K, V> node) {
+		if (node.queue == WINDOW) {
+			return window;
+		} else if (node.queue == PROBATION) {
+			return probation;
+		} else {
+			return protectedArea;
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void notifyRemovals(List<Node<K, V>> evicted) {
+		if (removalListener == null) {
+			return;
+		}
+
+		for (Node<K, V> node : evicted) {
+			removalListener.onRemoval(node.key, node.value);
+		}
+	}
+
+	/**
+	 * A cache entry; also the link element of an AccessOrderDeque.
+	 */
+	protected static class Node<K, V> {
+
+		protected final K key;
+		protected volatile V value;
+		protected int weight;
+		protected byte queue = WINDOW;
+		protected Node<K, V> prev;
+		protected Node<K, V> next;
+
+		protected Node(K key, V value, int weight) {
+			this.key = key;
+			this.value = value;
+			this.weight = weight;
+		}
+
+		protected boolean isLinked() {
+			return prev != null;
+		}
+	}
+
+	/**
+	 * A doubly linked list of nodes, most recently used first. Not thread-safe.
+	 */
+	protected static class AccessOrderDeque<K, V> {
+
+		protected final Node<K, V> head = new Node<K, V>(null, null, 0);
+		protected int size = 0;
+
+		protected AccessOrderDeque() {
+			head.prev = head;
+			head.next = head;
+		}
+
+		protected int size() {
+			return size;
+		}
+
+		protected boolean isEmpty() {
+			return size == 0;
+		}
+
+		protected void addFirst(Node<K, V> node) {
+			node.prev = head;
+			node.next = head.next;
+			head.next.prev = node;
+			head.next = node;
+			size++;
+		}
+
+		protected Node<K, V> peekLast() {
+			return (size == 0) ? null : head.prev;
+		}
+
+		protected Node<K, V> removeLast() {
+			Node<K, V> result = peekLast();
+			if (result != null) {
+				remove(result);
+			}
+			return result;
+		}
+
+		protected void remove(Node<K, V> node) {
+			node.prev.next = node.next;
+			node.next.prev = node.prev;
+			node.prev = null;
+			node.next = null;
+			size--;
+		}
+
+		protected void moveToFront(Node<K, V> node) {
+			remove(node);
+			addFirst(node);
+		}
+
+		protected void clear() {
+			Node<K, V> current = head.next;
+			while (current != head) {
+				Node<K, V> next = current.next;
+				current.prev = null;
+				current.next = null;
+				current = next;
+			}
+			head.prev = head;
+			head.next = head;
+			size = 0;
+		}
+	}
+
+}
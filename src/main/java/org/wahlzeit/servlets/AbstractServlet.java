@@ -21,14 +21,20 @@
 package org.wahlzeit.servlets;
 
 import org.wahlzeit.main.ServiceMain;
+import org.wahlzeit.model.GuestToken;
+import org.wahlzeit.model.PraiseAggregator;
+import org.wahlzeit.model.ShardedPraiseCounter;
 import org.wahlzeit.model.UserSession;
+import org.wahlzeit.services.Language;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.Session;
 import org.wahlzeit.services.SessionManager;
+import org.wahlzeit.services.WriteBehindQueue;
 import org.wahlzeit.utils.StringUtil;
 import org.wahlzeit.webparts.WebPart;
 
 import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -83,13 +89,15 @@ public abstract class AbstractServlet extends HttpServlet {
 		UserSession us = ensureUserSession(request);
 		SessionManager.setThreadLocalSession(us);
 
-		if (ServiceMain.getInstance().isShuttingDown() || (us == null)) {
-			displayNullPage(request, response);
-		} else {
-			myGet(request, response);
+		try {
+			if (ServiceMain.getInstance().isShuttingDown() || (us == null)) {
+				displayNullPage(request, response);
+			} else {
+				myGet(request, response);
+			}
+		} finally {
+			endRequest(us);
 		}
-
-		SessionManager.dropThreadLocalSession();
 	}
 
 	/**
@@ -102,13 +110,45 @@ public abstract class AbstractServlet extends HttpServlet {
 		UserSession us = ensureUserSession(request);
 		SessionManager.setThreadLocalSession(us);
 
-		if (ServiceMain.getInstance().isShuttingDown() || (us == null)) {
-			displayNullPage(request, response);
-		} else {
-			myPost(request, response);
+		try {
+			if (ServiceMain.getInstance().isShuttingDown() || (us == null)) {
+				displayNullPage(request, response);
+			} else {
+				myPost(request, response);
+			}
+		} finally {
+			endRequest(us);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Writes the session back and drops it from the thread, also if the handler failed, then does the work that is
+	 * due after requests. The response is complete at that point, so a failure of that work is only logged.
+	 */
+	protected void endRequest(UserSession us) {
+		try {
+			if (us != null) {
+				us.flush();
+			}
+		} finally {
+			SessionManager.dropThreadLocalSession();
+			runAfterRequest("flush praise aggregator", PraiseAggregator.getInstance()::flushIfDue);
+			runAfterRequest("refresh praise counters", ShardedPraiseCounter.getInstance()::refreshIfDue);
+			runAfterRequest("flush write-behind queue", WriteBehindQueue.getInstance()::flushIfDue);
 		}
+	}
 
-		SessionManager.dropThreadLocalSession();
+	/**
+	 * @methodtype command
+	 */
+	protected void runAfterRequest(String name, Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException ex) {
+			log.warning(LogBuilder.createSystemMessage().addException(name + " failed", ex).toString());
+		}
 	}
 
 	/**
@@ -123,16 +163,80 @@ public abstract class AbstractServlet extends HttpServlet {
 	 *
 	 */
 	protected UserSession ensureUserSession(HttpServletRequest request) {
-		HttpSession httpSession = request.getSession();
+		HttpSession httpSession = request.getSession(!GuestToken.isEnabled());
+		String siteUrl = getSiteUrl(request); // @TODO Application
+
+		if (httpSession == null) {
+			return createGuestTokenSession(request, siteUrl);
+		}
 
 		String sessionName = httpSession.getId();
-		String siteUrl = getSiteUrl(request); // @TODO Application
 
 		UserSession result = new UserSession(sessionName, siteUrl, httpSession, request.getLocale().getLanguage());
 
 		return result;
 	}
 
+	/**
+	 * Creates the session of a visitor without HttpSession from the visitor's guest token cookie, or from a new token
+	 * if there is no valid one.
+	 */
+	protected UserSession createGuestTokenSession(final HttpServletRequest request, String siteUrl) {
+		GuestToken guestToken = GuestToken.decode(getCookieValue(request, GuestToken.COOKIE_NAME));
+		if (guestToken == null) {
+			guestToken = GuestToken.createNew();
+			try {
+				guestToken.setLanguage(Language.getFromIsoCode(request.getLocale().getLanguage()));
+			} catch (IllegalArgumentException e) {
+				// default language of guest is english
+			}
+		}
+
+		return new UserSession(siteUrl, guestToken, () -> request.getSession(true));
+	}
+
+	/**
+	 *
+	 */
+	protected String getCookieValue(HttpServletRequest request, String name) {
+		Cookie[] cookies = request.getCookies();
+		if (cookies != null) {
+			for (Cookie cookie : cookies) {
+				if (name.equals(cookie.getName())) {
+					return cookie.getValue();
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Writes the session state before the response is committed: changed attributes go to the HttpSession, and the
+	 * state of a guest token session goes into its cookie.
+	 */
+	protected void writeUserSession(HttpServletResponse response) {
+		Session session = SessionManager.getThreadLocalSession();
+		if (!(session instanceof UserSession)) {
+			return;
+		}
+
+		UserSession us = (UserSession) session;
+		us.flush();
+		if (us.isGuestTokenMode()) {
+			addGuestTokenCookie(response, us.getGuestToken().encode(), GuestToken.COOKIE_MAX_AGE);
+		} else if (us.hasReplacedGuestToken()) {
+			addGuestTokenCookie(response, "", 0);
+		}
+	}
+
+	/**
+	 * The header is written by hand, as Servlet 2.5 Cookies cannot be HttpOnly.
+	 */
+	protected void addGuestTokenCookie(HttpServletResponse response, String value, int maxAge) {
+		response.addHeader("Set-Cookie", GuestToken.COOKIE_NAME + "=" + value + "; Path=/; Max-Age=" + maxAge
+				+ "; Secure; HttpOnly");
+	}
+
 	/**
 	 *
 	 */
@@ -171,6 +275,7 @@ public abstract class AbstractServlet extends HttpServlet {
 		response.setContentType("text/html");
 		String newTarget = new String("/" + link + ".html");
 		log.config(LogBuilder.createSystemMessage().addParameter("Redirect to", newTarget).toString());
+		writeUserSession(response);
 		response.sendRedirect(newTarget);
 	}
 
@@ -184,6 +289,7 @@ public abstract class AbstractServlet extends HttpServlet {
 				addParameter("proctime", String.valueOf(processingTime)).toString());
 
 		response.setContentType("text/html");
+		writeUserSession(response);
 
 		PrintWriter out = response.getWriter();
 		result.writeOn(out);
@@ -1,17 +1,16 @@
 package org.wahlzeit.servlets;
 
-import com.google.appengine.api.images.Image;
 import org.apache.http.HttpStatus;
+import org.wahlzeit.model.ImageCache;
 import org.wahlzeit.model.Photo;
+import org.wahlzeit.model.PhotoId;
 import org.wahlzeit.model.PhotoManager;
 import org.wahlzeit.model.PhotoSize;
-import org.wahlzeit.model.persistence.ImageStorage;
 import org.wahlzeit.services.LogBuilder;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.io.Serializable;
 import java.util.logging.Logger;
 
 /**
@@ -40,9 +39,9 @@ public class StaticDataServlet extends AbstractServlet {
 					addParameter("size", size).toString());
 
 			if ("image".equals(type)) {
-				Image image = getImage(photoId, size);
-				if (image != null) {
-					response.getOutputStream().write(image.getImageData());
+				byte[] imageData = getImageData(photoId, size);
+				if (imageData != null) {
+					response.getOutputStream().write(imageData);
 					response.getOutputStream().flush();
 					response.setStatus(HttpStatus.SC_OK);
 				} else {
@@ -63,29 +62,23 @@ public class StaticDataServlet extends AbstractServlet {
 	/**
 	 * @methodtype command
 	 *
-	 * Loads image either from the <@link>PhotoManager</@link> or from the <@link>ImageStorage</@link>. If image does
-	 * not exist, null is returned.
+	 * Loads image data from the <@link>ImageCache</@link>. On a miss, the <@link>Photo</@link> provides it, which
+	 * reads it from the <@link>ImageStorage</@link> once if needed. If image does not exist, null is returned.
 	 */
-	private Image getImage(String photoId, int size) {
-		Image image = null;
-		Photo photo = PhotoManager.getInstance().getPhoto(photoId);
-		if (photo != null) {
-			PhotoSize photoSize = PhotoSize.getFromInt(size);
-			image = photo.getImage(photoSize);
-		}
-		// if not in cache load from Google Cloud Storage
-		if (image == null) {
-			Serializable rawImage = null;
-			try {
-				rawImage = ImageStorage.getInstance().readImage(photoId, size);
-			} catch (IOException e) {
-				log.warning(LogBuilder.createSystemMessage().addException("Problem when reading image.", e).toString());
-			}
-			if (rawImage != null && rawImage instanceof Image) {
-				image = (Image) rawImage;
+	private byte[] getImageData(String photoId, int size) {
+		PhotoSize photoSize = PhotoSize.getFromInt(size);
+		PhotoId id = PhotoId.getIdFromString(photoId);
+		ImageCache imageCache = ImageCache.getInstance();
+
+		byte[] result = imageCache.getImageData(id, photoSize);
+		if (result == null) {
+			Photo photo = PhotoManager.getInstance().getPhoto(id);
+			if (photo != null) {
+				result = photo.getImageData(photoSize);
+			} else {
+				result = imageCache.getOrLoadImageData(id, photoSize);
 			}
 		}
-		return image;
+		return result;
 	}
 }
-
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.tools;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import org.wahlzeit.main.ScriptMain;
+import org.wahlzeit.model.Client;
+import org.wahlzeit.model.Photo;
+import org.wahlzeit.model.Tag;
+import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.ObjectManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A script to move photos, tags and clients from the application root to root entities, for the ROOT_ENTITIES key
+ * strategy of the ObjectManager. Entities keep their kind, id and properties; they refer to each other by id only, so
+ * no other entity has to change. Run it while the application is stopped, then start the application with
+ * org.wahlzeit.datastore.keyStrategy set to rootEntities.
+ *
+ * The migration works in batches: each batch is saved as root entities first and deleted from the application root
+ * afterwards. A run that stopped is resumed by running the script again; the ancestor query only finds entities that
+ * have not been deleted yet, and saving those again just overwrites their copies.
+ */
+public class MigrateEntityKeys extends ScriptMain {
+
+	private static final Logger log = Logger.getLogger(MigrateEntityKeys.class.getName());
+
+	/**
+	 *
+	 */
+	public static final String[] DEFAULT_KINDS = {
+			Photo.class.getSimpleName(), Tag.class.getSimpleName(), Client.class.getSimpleName()
+	};
+
+	/**
+	 *
+	 */
+	protected List<String> kinds = Arrays.asList(DEFAULT_KINDS);
+	protected int batchSize = ObjectManager.MAX_BATCH_SIZE;
+
+	/**
+	 *
+	 */
+	protected DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+	/**
+	 *
+	 */
+	public static void main(String[] argv) {
+		MigrateEntityKeys migration = new MigrateEntityKeys();
+		migration.handleArgv(argv);
+		migration.run();
+	}
+
+	/**
+	 * Runs the migration without starting up the model; loaded photos and clients would be saved under their old keys
+	 * again on shut down.
+	 */
+	@Override
+	public void run() {
+		try {
+			execute();
+		} catch (Exception ex) {
+			log.log(Level.SEVERE, "Exception: ", ex);
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected int handleArg(String arg, int i, String[] argv) {
+		if (arg.equals("--batchsize")) {
+			batchSize = Integer.parseInt(argv[++i]);
+		} else if (arg.equals("--kinds")) {
+			kinds = Arrays.asList(argv[++i].split(","));
+		}
+
+		return i;
+	}
+
+	/**
+	 *
+	 */
+	protected void execute() throws Exception {
+		if (batchSize <= 0 || batchSize > ObjectManager.MAX_BATCH_SIZE) {
+			throw new IllegalArgumentException("batch size should be between 1 and " + ObjectManager.MAX_BATCH_SIZE);
+		}
+
+		if (ObjectManager.getParentKey() != null) {
+			log.warning(LogBuilder.createSystemMessage().
+					addMessage("Key strategy is still applicationRoot; migrated entities are not found until it is " +
+							"set to rootEntities").toString());
+		}
+
+		for (String kind : kinds) {
+			int noMovedEntities = migrateKind(kind);
+			log.info(LogBuilder.createSystemMessage().
+					addAction("migrated entity keys").
+					addParameter("kind", kind).
+					addParameter("moved entities", noMovedEntities).toString());
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Moves all entities of the kind from the application root, a batch at a time; returns their number.
+	 */
+	protected int migrateKind(String kind) {
+		Query query = new Query(kind).setAncestor(ObjectManager.applicationRootKey);
+		int result = 0;
+		while (true) {
+			List<Entity> batch = datastore.prepare(query).asList(FetchOptions.Builder.withLimit(batchSize));
+			if (batch.isEmpty()) {
+				return result;
+			}
+
+			List<Entity> rootEntities = new ArrayList<Entity>(batch.size());
+			List<Key> oldKeys = new ArrayList<Key>(batch.size());
+			for (Entity entity : batch) {
+				rootEntities.add(asRootEntity(entity));
+				oldKeys.add(entity.getKey());
+			}
+			datastore.put(rootEntities);
+			datastore.delete(oldKeys);
+
+			result += batch.size();
+			log.info(LogBuilder.createSystemMessage().
+					addParameter("kind", kind).
+					addParameter("moved entities so far", result).toString());
+		}
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected static Entity asRootEntity(Entity entity) {
+		Key key = entity.getKey();
+		Key rootKey = (key.getName() != null) ?
+				KeyFactory.createKey(key.getKind(), key.getName()) : KeyFactory.createKey(key.getKind(), key.getId());
+		Entity result = new Entity(rootKey);
+		result.setPropertiesFrom(entity);
+		return result;
+	}
+
+}
@@ -0,0 +1,722 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A RoaringBitmap is a compressed set of ints. The ints are split into chunks by their upper 16 bits; each chunk is
+ * a container of the lower 16 bits, either a sorted array if it is sparse or a bitmap of 2^16 bits if it is dense.
+ * Set operations work container by container, so they take time proportional to the compressed size, not to the
+ * number of ints in the sets.
+ *
+ * Iteration order is ascending for non-negative ints, which is all the application stores. The serialized form is
+ * as compact as the in-memory one, see writeTo.
+ */
+public class RoaringBitmap implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Containers with more values than this are bitmaps, the others are arrays
+	 */
+	protected static final int MAX_ARRAY_SIZE = 4096;
+
+	/**
+	 * Upper 16 bits of each chunk, sorted, and the chunk's container
+	 */
+	protected transient char[] keys = new char[4];
+	protected transient Container[] containers = new Container[4];
+	protected transient int size = 0;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public RoaringBitmap() {
+		// do nothing
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	public static RoaringBitmap of(int... values) {
+		RoaringBitmap result = new RoaringBitmap();
+		for (int value : values) {
+			result.add(value);
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype factory
+	 *
+	 * Returns the ints that are in both bitmaps.
+	 */
+	public static RoaringBitmap and(RoaringBitmap a, RoaringBitmap b) {
+		RoaringBitmap result = new RoaringBitmap();
+		int i = 0;
+		int j = 0;
+		while (i < a.size && j < b.size) {
+			if (a.keys[i] < b.keys[j]) {
+				i++;
+			} else if (a.keys[i] > b.keys[j]) {
+				j++;
+			} else {
+				result.doAppend(a.keys[i], a.containers[i].and(b.containers[j]));
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype factory
+	 *
+	 * Returns the ints that are in at least one of the bitmaps.
+	 */
+	public static RoaringBitmap or(RoaringBitmap a, RoaringBitmap b) {
+		RoaringBitmap result = new RoaringBitmap();
+		int i = 0;
+		int j = 0;
+		while (i < a.size || j < b.size) {
+			if (j == b.size || (i < a.size && a.keys[i] < b.keys[j])) {
+				result.doAppend(a.keys[i], a.containers[i].copy());
+				i++;
+			} else if (i == a.size || a.keys[i] > b.keys[j]) {
+				result.doAppend(b.keys[j], b.containers[j].copy());
+				j++;
+			} else {
+				result.doAppend(a.keys[i], a.containers[i].or(b.containers[j]));
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype factory
+	 *
+	 * Returns the ints of a that are not in b.
+	 */
+	public static RoaringBitmap andNot(RoaringBitmap a, RoaringBitmap b) {
+		RoaringBitmap result = new RoaringBitmap();
+		int j = 0;
+		for (int i = 0; i < a.size; i++) {
+			while (j < b.size && b.keys[j] < a.keys[i]) {
+				j++;
+			}
+			if (j < b.size && b.keys[j] == a.keys[i]) {
+				result.doAppend(a.keys[i], a.containers[i].andNot(b.containers[j]));
+			} else {
+				result.doAppend(a.keys[i], a.containers[i].copy());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void add(int value) {
+		char key = (char) (value >>> 16);
+		int index = doFindKey(key);
+		if (index >= 0) {
+			containers[index] = containers[index].add((char) value);
+		} else {
+			doInsert(-index - 1, key, new ArrayContainer().add((char) value));
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void remove(int value) {
+		int index = doFindKey((char) (value >>> 16));
+		if (index >= 0) {
+			Container container = containers[index].remove((char) value);
+			if (container.getCardinality() == 0) {
+				doRemove(index);
+			} else {
+				containers[index] = container;
+			}
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean contains(int value) {
+		int index = doFindKey((char) (value >>> 16));
+		return index >= 0 && containers[index].contains((char) value);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getCardinality() {
+		int result = 0;
+		for (int i = 0; i < size; i++) {
+			result += containers[i].getCardinality();
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Calls action for each int in the bitmap, in order.
+	 */
+	public void forEach(IntConsumer action) {
+		for (int i = 0; i < size; i++) {
+			containers[i].forEach(keys[i] << 16, action);
+		}
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public int[] toArray() {
+		final int[] result = new int[getCardinality()];
+		forEach(new IntConsumer() {
+			private int i = 0;
+
+			@Override
+			public void accept(int value) {
+				result[i++] = value;
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	public RoaringBitmap copy() {
+		RoaringBitmap result = new RoaringBitmap();
+		for (int i = 0; i < size; i++) {
+			result.doAppend(keys[i], containers[i].copy());
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype conversion
+	 *
+	 * Writes the number of containers followed by key, cardinality and values per container; values are written as
+	 * shorts for array containers and as the 1024 longs of the bitmap otherwise.
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(size);
+		for (int i = 0; i < size; i++) {
+			out.writeChar(keys[i]);
+			Container container = containers[i];
+			out.writeInt(container.getCardinality());
+			if (container instanceof ArrayContainer) {
+				ArrayContainer array = (ArrayContainer) container;
+				for (int j = 0; j < array.cardinality; j++) {
+					out.writeChar(array.values[j]);
+				}
+			} else {
+				for (long word : ((BitmapContainer) container).words) {
+					out.writeLong(word);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @methodtype conversion
+	 *
+	 * Reads a bitmap written by writeTo.
+	 */
+	public static RoaringBitmap readFrom(DataInput in) throws IOException {
+		RoaringBitmap result = new RoaringBitmap();
+		result.doReadFrom(in);
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void doReadFrom(DataInput in) throws IOException {
+		int noContainers = in.readInt();
+		keys = new char[Math.max(noContainers, 4)];
+		containers = new Container[keys.length];
+		size = 0;
+		for (int i = 0; i < noContainers; i++) {
+			char key = in.readChar();
+			int cardinality = in.readInt();
+			Container container;
+			if (cardinality <= MAX_ARRAY_SIZE) {
+				char[] values = new char[Math.max(cardinality, 1)];
+				for (int j = 0; j < cardinality; j++) {
+					values[j] = in.readChar();
+				}
+				container = new ArrayContainer(values, cardinality);
+			} else {
+				long[] words = new long[1024];
+				for (int j = 0; j < words.length; j++) {
+					words[j] = in.readLong();
+				}
+				container = new BitmapContainer(words, cardinality);
+			}
+			doAppend(key, container);
+		}
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		writeTo(out);
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		doReadFrom(in);
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof RoaringBitmap)) {
+			return false;
+		}
+		return Arrays.equals(toArray(), ((RoaringBitmap) o).toArray());
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(toArray());
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	public String toString() {
+		return Arrays.toString(toArray());
+	}
+
+	/**
+	 * @methodtype helper
+	 *
+	 * Binary search; returns (-insertion point - 1) if the key is not there.
+	 */
+	protected int doFindKey(char key) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (keys[middle] < key) {
+				low = middle + 1;
+			} else if (keys[middle] > key) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -low - 1;
+	}
+
+	/**
+	 * @methodtype primitive
+	 */
+	protected void doInsert(int index, char key, Container container) {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			containers = Arrays.copyOf(containers, size * 2);
+		}
+		System.arraycopy(keys, index, keys, index + 1, size - index);
+		System.arraycopy(containers, index, containers, index + 1, size - index);
+		keys[index] = key;
+		containers[index] = container;
+		size++;
+	}
+
+	/**
+	 * @methodtype primitive
+	 *
+	 * Adds a container after all others, unless it is empty; keys must be appended in order.
+	 */
+	protected void doAppend(char key, Container container) {
+		if (container.getCardinality() > 0) {
+			doInsert(size, key, container);
+		}
+	}
+
+	/**
+	 * @methodtype primitive
+	 */
+	protected void doRemove(int index) {
+		System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+		System.arraycopy(containers, index + 1, containers, index, size - index - 1);
+		size--;
+		containers[size] = null;
+	}
+
+	/**
+	 * A set of 16 bit values. Modifying operations return the container to use from then on, as a container is
+	 * converted to the other kind when it gets sparse or dense.
+	 */
+	protected abstract static class Container {
+
+		protected abstract Container add(char value);
+
+		protected abstract Container remove(char value);
+
+		protected abstract boolean contains(char value);
+
+		protected abstract int getCardinality();
+
+		protected abstract Container and(Container other);
+
+		protected abstract Container or(Container other);
+
+		protected abstract Container andNot(Container other);
+
+		protected abstract void forEach(int high, IntConsumer action);
+
+		protected abstract Container copy();
+	}
+
+	/**
+	 * A sorted array of at most MAX_ARRAY_SIZE values
+	 */
+	protected static class ArrayContainer extends Container {
+
+		protected char[] values;
+		protected int cardinality;
+
+		protected ArrayContainer() {
+			this(new char[4], 0);
+		}
+
+		protected ArrayContainer(char[] values, int cardinality) {
+			this.values = values;
+			this.cardinality = cardinality;
+		}
+
+		@Override
+		protected Container add(char value) {
+			int index = Arrays.binarySearch(values, 0, cardinality, value);
+			if (index >= 0) {
+				return this;
+			}
+			if (cardinality == MAX_ARRAY_SIZE) {
+				return toBitmapContainer().add(value);
+			}
+
+			index = -index - 1;
+			if (cardinality == values.length) {
+				values = Arrays.copyOf(values, Math.min(Math.max(cardinality * 2, 4), MAX_ARRAY_SIZE));
+			}
+			System.arraycopy(values, index, values, index + 1, cardinality - index);
+			values[index] = value;
+			cardinality++;
+			return this;
+		}
+
+		@Override
+		protected Container remove(char value) {
+			int index = Arrays.binarySearch(values, 0, cardinality, value);
+			if (index >= 0) {
+				System.arraycopy(values, index + 1, values, index, cardinality - index - 1);
+				cardinality--;
+			}
+			return this;
+		}
+
+		@Override
+		protected boolean contains(char value) {
+			return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+		}
+
+		@Override
+		protected int getCardinality() {
+			return cardinality;
+		}
+
+		@Override
+		protected Container and(Container other) {
+			char[] result = new char[cardinality];
+			int resultSize = 0;
+			if (other instanceof ArrayContainer) {
+				ArrayContainer array = (ArrayContainer) other;
+				int i = 0;
+				int j = 0;
+				while (i < cardinality && j < array.cardinality) {
+					if (values[i] < array.values[j]) {
+						i++;
+					} else if (values[i] > array.values[j]) {
+						j++;
+					} else {
+						result[resultSize++] = values[i];
+						i++;
+						j++;
+					}
+				}
+			} else {
+				for (int i = 0; i < cardinality; i++) {
+					if (other.contains(values[i])) {
+						result[resultSize++] = values[i];
+					}
+				}
+			}
+			return new ArrayContainer(result, resultSize);
+		}
+
+		@Override
+		protected Container or(Container other) {
+			if (other instanceof BitmapContainer) {
+				return other.or(this);
+			}
+
+			ArrayContainer array = (ArrayContainer) other;
+			char[] result = new char[cardinality + array.cardinality];
+			int resultSize = 0;
+			int i = 0;
+			int j = 0;
+			while (i < cardinality || j < array.cardinality) {
+				if (j == array.cardinality || (i < cardinality && values[i] < array.values[j])) {
+					result[resultSize++] = values[i++];
+				} else if (i == cardinality || values[i] > array.values[j]) {
+					result[resultSize++] = array.values[j++];
+				} else {
+					result[resultSize++] = values[i];
+					i++;
+					j++;
+				}
+			}
+
+			ArrayContainer union = new ArrayContainer(result, resultSize);
+			return (resultSize > MAX_ARRAY_SIZE) ? union.toBitmapContainer() : union;
+		}
+
+		@Override
+		protected Container andNot(Container other) {
+			char[] result = new char[cardinality];
+			int resultSize = 0;
+			for (int i = 0; i < cardinality; i++) {
+				if (!other.contains(values[i])) {
+					result[resultSize++] = values[i];
+				}
+			}
+			return new ArrayContainer(result, resultSize);
+		}
+
+		@Override
+		protected void forEach(int high, IntConsumer action) {
+			for (int i = 0; i < cardinality; i++) {
+				action.accept(high | values[i]);
+			}
+		}
+
+		@Override
+		protected Container copy() {
+			return new ArrayContainer(Arrays.copyOf(values, Math.max(cardinality, 1)), cardinality);
+		}
+
+		protected BitmapContainer toBitmapContainer() {
+			BitmapContainer result = new BitmapContainer();
+			for (int i = 0; i < cardinality; i++) {
+				result.words[values[i] >>> 6] |= 1L << values[i];
+			}
+			result.cardinality = cardinality;
+			return result;
+		}
+	}
+
+	/**
+	 * A bitmap of all 2^16 values, for containers with more than MAX_ARRAY_SIZE values
+	 */
+	protected static class BitmapContainer extends Container {
+
+		protected long[] words;
+		protected int cardinality;
+
+		protected BitmapContainer() {
+			this(new long[1024], 0);
+		}
+
+		protected BitmapContainer(long[] words, int cardinality) {
+			this.words = words;
+			this.cardinality = cardinality;
+		}
+
+		@Override
+		protected Container add(char value) {
+			long word = words[value >>> 6];
+			long newWord = word | (1L << value);
+			if (newWord != word) {
+				words[value >>> 6] = newWord;
+				cardinality++;
+			}
+			return this;
+		}
+
+		@Override
+		protected Container remove(char value) {
+			long word = words[value >>> 6];
+			long newWord = word & ~(1L << value);
+			if (newWord != word) {
+				words[value >>> 6] = newWord;
+				cardinality--;
+			}
+			return (cardinality <= MAX_ARRAY_SIZE) ? toArrayContainer() : this;
+		}
+
+		@Override
+		protected boolean contains(char value) {
+			return (words[value >>> 6] & (1L << value)) != 0;
+		}
+
+		@Override
+		protected int getCardinality() {
+			return cardinality;
+		}
+
+		@Override
+		protected Container and(Container other) {
+			if (other instanceof ArrayContainer) {
+				return other.and(this);
+			}
+
+			long[] otherWords = ((BitmapContainer) other).words;
+			long[] result = new long[words.length];
+			int resultCardinality = 0;
+			for (int i = 0; i < words.length; i++) {
+				result[i] = words[i] & otherWords[i];
+				resultCardinality += Long.bitCount(result[i]);
+			}
+			return new BitmapContainer(result, resultCardinality).toEfficientContainer();
+		}
+
+		@Override
+		protected Container or(Container other) {
+			long[] result = words.clone();
+			int resultCardinality = cardinality;
+			if (other instanceof ArrayContainer) {
+				ArrayContainer array = (ArrayContainer) other;
+				for (int i = 0; i < array.cardinality; i++) {
+					char value = array.values[i];
+					long word = result[value >>> 6];
+					long newWord = word | (1L << value);
+					if (newWord != word) {
+						result[value >>> 6] = newWord;
+						resultCardinality++;
+					}
+				}
+			} else {
+				long[] otherWords = ((BitmapContainer) other).words;
+				resultCardinality = 0;
+				for (int i = 0; i < result.length; i++) {
+					result[i] |= otherWords[i];
+					resultCardinality += Long.bitCount(result[i]);
+				}
+			}
+			return new BitmapContainer(result, resultCardinality);
+		}
+
+		@Override
+		protected Container andNot(Container other) {
+			long[] result = words.clone();
+			int resultCardinality = cardinality;
+			if (other instanceof ArrayContainer) {
+				ArrayContainer array = (ArrayContainer) other;
+				for (int i = 0; i < array.cardinality; i++) {
+					char value = array.values[i];
+					long word = result[value >>> 6];
+					long newWord = word & ~(1L << value);
+					if (newWord != word) {
+						result[value >>> 6] = newWord;
+						resultCardinality--;
+					}
+				}
+			} else {
+				long[] otherWords = ((BitmapContainer) other).words;
+				resultCardinality = 0;
+				for (int i = 0; i < result.length; i++) {
+					result[i] &= ~otherWords[i];
+					resultCardinality += Long.bitCount(result[i]);
+				}
+			}
+			return new BitmapContainer(result, resultCardinality).toEfficientContainer();
+		}
+
+		@Override
+		protected void forEach(int high, IntConsumer action) {
+			for (int i = 0; i < words.length; i++) {
+				long word = words[i];
+				while (word != 0) {
+					action.accept(high | (i << 6) | Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+		}
+
+		@Override
+		protected Container copy() {
+			return new BitmapContainer(words.clone(), cardinality);
+		}
+
+		protected Container toEfficientContainer() {
+			return (cardinality <= MAX_ARRAY_SIZE) ? toArrayContainer() : this;
+		}
+
+		protected ArrayContainer toArrayContainer() {
+			final char[] values = new char[Math.max(cardinality, 1)];
+			forEach(0, new IntConsumer() {
+				private int i = 0;
+
+				@Override
+				public void accept(int value) {
+					values[i++] = (char) value;
+				}
+			});
+			return new ArrayContainer(values, cardinality);
+		}
+	}
+
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Utility functions for a compact binary encoding of ints, strings and sets of ints.
+ *
+ * An int is written as a varint: 7 bits per byte, least significant group first, with the high bit set on all but
+ * the last byte. Small values, like the gaps between consecutive ids of a sorted id set, take a single byte.
+ */
+public class VarInt {
+
+	/**
+	 *
+	 */
+	protected VarInt() {
+		// do nothing
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public static void writeUnsignedInt(DataOutput out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public static int readUnsignedInt(DataInput in) throws IOException {
+		int result = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = in.readByte();
+			result |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+		}
+		throw new IOException("malformed varint");
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public static int getUnsignedIntSize(int value) {
+		int result = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			result++;
+		}
+		return result;
+	}
+
+	/**
+	 * Writes a string as its varint UTF-8 length followed by the UTF-8 bytes; unlike DataOutput.writeUTF it has no
+	 * 64K limit. A null string is written as length 0 and read back as "".
+	 *
+	 * @methodtype command
+	 */
+	public static void writeString(DataOutput out, String value) throws IOException {
+		byte[] bytes = (value == null) ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+		writeUnsignedInt(out, bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public static String readString(DataInput in) throws IOException {
+		byte[] bytes = new byte[readUnsignedInt(in)];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes a string that may be null: null as 0, any other string as its UTF-8 length plus 1 followed by the UTF-8
+	 * bytes, so null and "" are told apart.
+	 *
+	 * @methodtype command
+	 */
+	public static void writeNullableString(DataOutput out, String value) throws IOException {
+		if (value == null) {
+			writeUnsignedInt(out, 0);
+		} else {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeUnsignedInt(out, bytes.length + 1);
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public static String readNullableString(DataInput in) throws IOException {
+		int length = readUnsignedInt(in);
+		if (length == 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length - 1];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes a set of non-negative ints as its size followed by the ascending gaps between the values, each as a
+	 * varint. The values are sorted first, so the order of the array is not preserved.
+	 *
+	 * @methodtype command
+	 */
+	public static void writeDeltaEncoded(DataOutput out, int[] values) throws IOException {
+		int[] sortedValues = values.clone();
+		Arrays.sort(sortedValues);
+		writeUnsignedInt(out, sortedValues.length);
+		int previous = 0;
+		for (int value : sortedValues) {
+			if (value < 0) {
+				throw new IllegalArgumentException("negative value " + value);
+			}
+			writeUnsignedInt(out, value - previous);
+			previous = value;
+		}
+	}
+
+	/**
+	 * Reads a set written by writeDeltaEncoded; the values are returned in ascending order.
+	 *
+	 * @methodtype get
+	 */
+	public static int[] readDeltaEncoded(DataInput in) throws IOException {
+		int[] result = new int[readUnsignedInt(in)];
+		int previous = 0;
+		for (int i = 0; i < result.length; i++) {
+			previous += readUnsignedInt(in);
+			result[i] = previous;
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public static void writeDeltaEncoded(DataOutput out, RoaringBitmap values) throws IOException {
+		writeDeltaEncoded(out, values.toArray());
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public static RoaringBitmap readDeltaEncodedBitmap(DataInput in) throws IOException {
+		return RoaringBitmap.of(readDeltaEncoded(in));
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public static byte[] toDeltaEncodedBytes(RoaringBitmap values) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(values.getCardinality() + 4);
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			writeDeltaEncoded(out, values);
+		} catch (IOException e) {
+			// a ByteArrayOutputStream does not throw
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @methodtype conversion
+	 *
+	 * Reads bytes of toDeltaEncodedBytes; null or empty bytes are an empty set.
+	 */
+	public static RoaringBitmap fromDeltaEncodedBytes(byte[] bytes) {
+		if (bytes == null || bytes.length == 0) {
+			return new RoaringBitmap();
+		}
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+			return readDeltaEncodedBitmap(in);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("malformed delta encoded ids", e);
+		}
+	}
+
+}
@@ -23,9 +23,12 @@
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.wahlzeit.handlers.HandlersTestSuite;
+import org.wahlzeit.main.MainTestSuite;
 import org.wahlzeit.model.ModelTestSuite;
 import org.wahlzeit.services.ServicesTestSuite;
+import org.wahlzeit.services.cache.CacheTestSuite;
 import org.wahlzeit.services.mailing.EmailServiceTestSuite;
+import org.wahlzeit.tools.ToolsTestSuite;
 import org.wahlzeit.utils.UtilsTestSuite;
 
 @RunWith(Suite.class)
@@ -33,7 +36,10 @@ import org.wahlzeit.utils.UtilsTestSuite;
 	EmailServiceTestSuite.class,
 	ModelTestSuite.class,
 	HandlersTestSuite.class,
+	MainTestSuite.class,
 	ServicesTestSuite.class,
+	CacheTestSuite.class,
+	ToolsTestSuite.class,
 	UtilsTestSuite.class	
 })
 public class AllTests {}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.main;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test cases for the StartupLoader class.
+ */
+public class StartupLoaderTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPhasesRunConcurrently() throws Exception {
+		StartupLoader loader = new StartupLoader(2, 10, Executors.defaultThreadFactory());
+		final CountDownLatch bothStarted = new CountDownLatch(2);
+		Runnable phase = new Runnable() {
+			@Override
+			public void run() {
+				bothStarted.countDown();
+				try {
+					// only returns in time if the other phase runs at the same time
+					assertTrue(bothStarted.await(5, TimeUnit.SECONDS));
+				} catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+		loader.addPhase("a", phase);
+		loader.addPhase("b", phase);
+
+		loader.run();
+
+		assertEquals(0, bothStarted.getCount());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testBarrierPhaseRunsAlone() throws Exception {
+		StartupLoader loader = new StartupLoader(2, 10, Executors.defaultThreadFactory());
+		final AtomicInteger runningPhases = new AtomicInteger();
+		final AtomicInteger barrierRuns = new AtomicInteger();
+		final AtomicInteger laterPhaseRuns = new AtomicInteger();
+		loader.addPhase("before", new Runnable() {
+			@Override
+			public void run() {
+				runningPhases.incrementAndGet();
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+				runningPhases.decrementAndGet();
+			}
+		});
+		loader.addBarrierPhase("barrier", new Runnable() {
+			@Override
+			public void run() {
+				assertEquals(0, runningPhases.get());
+				assertEquals(0, laterPhaseRuns.get());
+				barrierRuns.incrementAndGet();
+			}
+		});
+		Runnable laterPhase = new Runnable() {
+			@Override
+			public void run() {
+				assertEquals(1, barrierRuns.get());
+				laterPhaseRuns.incrementAndGet();
+			}
+		};
+		loader.addPhase("after 1", laterPhase);
+		loader.addPhase("after 2", laterPhase);
+
+		loader.run();
+
+		assertEquals(1, barrierRuns.get());
+		assertEquals(2, laterPhaseRuns.get());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testWaitsForPostProcessingAndRecordsTimings() throws Exception {
+		final StartupLoader loader = new StartupLoader(2, 10, Executors.defaultThreadFactory());
+		final AtomicInteger processed = new AtomicInteger();
+		loader.addPhase("load", new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < 100; i++) {
+					loader.getWorkerPool().execute(new Runnable() {
+						@Override
+						public void run() {
+							processed.incrementAndGet();
+						}
+					});
+				}
+			}
+		});
+
+		loader.run();
+
+		assertEquals(100, processed.get());
+		Map<String, Long> timings = loader.getTimings();
+		assertTrue(timings.containsKey("load"));
+		assertTrue(timings.containsKey(StartupLoader.POST_PROCESSING));
+		assertTrue(timings.containsKey(StartupLoader.TOTAL));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testFailureIsRethrownAfterAllPhases() throws Exception {
+		StartupLoader loader = new StartupLoader(1, 10, Executors.defaultThreadFactory());
+		final AtomicInteger completed = new AtomicInteger();
+		loader.addPhase("failing", new Runnable() {
+			@Override
+			public void run() {
+				throw new IllegalStateException("datastore unavailable");
+			}
+		});
+		loader.addPhase("working", new Runnable() {
+			@Override
+			public void run() {
+				completed.incrementAndGet();
+			}
+		});
+
+		try {
+			loader.run();
+			fail("expected the failure of the first phase");
+		} catch (IllegalStateException e) {
+			assertEquals("datastore unavailable", e.getMessage());
+		}
+		assertEquals(1, completed.get());
+	}
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the praised and skipped photo history of a Client.
+ */
+public class ClientPhotoHistoryTest {
+
+	private static final int NO_PHOTOS = 1000;
+
+	private Client client;
+
+	@Before
+	public void setUp() {
+		if (PhotoId.getCurrentIdAsInt() < PhotoId.ID_START + NO_PHOTOS) {
+			PhotoId.setCurrentIdFromInt(PhotoId.ID_START + NO_PHOTOS);
+		}
+		client = new Client() {
+		};
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPraisedPhotosSurviveSaveAndLoad() {
+		PhotoId first = PhotoId.getIdFromInt(PhotoId.ID_START + 7);
+		PhotoId second = PhotoId.getIdFromInt(PhotoId.ID_START + 3);
+		PhotoId skipped = PhotoId.getIdFromInt(PhotoId.ID_START + 5);
+		client.addSkippedPhotoId(first);
+		client.addSkippedPhotoId(skipped);
+		client.addPraisedPhotoId(first);
+		client.addPraisedPhotoId(second);
+
+		client.encodePhotoHistory();
+		client.loadPhotoHistory();
+
+		assertTrue(client.hasPraisedPhotoId(first));
+		assertTrue(client.hasPraisedPhotoId(second));
+		assertFalse(client.hasPraisedPhotoId(skipped));
+		assertEquals(Arrays.asList(second, first), client.getPraisedPhotoIds());
+		assertEquals(second, client.getLastPraisedPhotoId());
+		assertEquals(Arrays.asList(skipped), client.getSkippedPhotoIds());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRecentPraisedPhotosAreBounded() {
+		assertNull(client.getLastPraisedPhotoId());
+		assertFalse(client.hasPraisedPhotos());
+
+		for (int i = 0; i < NO_PHOTOS; i++) {
+			client.addPraisedPhotoId(PhotoId.getIdFromInt(PhotoId.ID_START + i));
+		}
+		client.encodePhotoHistory();
+
+		assertEquals(NO_PHOTOS, client.getNoPraisedPhotos());
+		assertEquals(Client.MAX_RECENT_PRAISED_PHOTOS, client.getRecentPraisedPhotoIds().size());
+		assertEquals(PhotoId.getIdFromInt(PhotoId.ID_START + NO_PHOTOS - 1), client.getLastPraisedPhotoId());
+		// consecutive ids take a byte each
+		assertTrue(client.praisedPhotoData.length < NO_PHOTOS + 8);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testLegacyListsAreMigrated() {
+		List<PhotoId> praised = new ArrayList<PhotoId>();
+		praised.add(PhotoId.getIdFromInt(PhotoId.ID_START + 9));
+		praised.add(PhotoId.getIdFromInt(PhotoId.ID_START + 2));
+		client.praisedPhotoIds = praised;
+		client.skippedPhotoIds = new ArrayList<PhotoId>(Arrays.asList(PhotoId.getIdFromInt(PhotoId.ID_START + 4)));
+
+		client.loadPhotoHistory();
+
+		assertNull(client.praisedPhotoIds);
+		assertNull(client.skippedPhotoIds);
+		assertEquals(2, client.getNoPraisedPhotos());
+		assertEquals(PhotoId.getIdFromInt(PhotoId.ID_START + 2), client.getLastPraisedPhotoId());
+		assertTrue(client.hasSkippedPhotoId(PhotoId.getIdFromInt(PhotoId.ID_START + 4)));
+	}
+
+}
@@ -10,6 +10,8 @@ import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Test class for {@link Guest}.
@@ -44,6 +46,37 @@ public class GuestTest {
 		testGetGuestFromUserManager(Guest.GUEST_PREFIX + ++clientId);
 	}
 
+	@Test
+	public void testEvictedGuestIsLoadedAgain() {
+		if (PhotoId.getCurrentIdAsInt() < PhotoId.ID_START + 1) {
+			PhotoId.setCurrentIdFromInt(PhotoId.ID_START + 1);
+		}
+		final PhotoId praisedPhotoId = PhotoId.getIdFromInt(PhotoId.ID_START + 1);
+		final UserManager userManager = UserManager.getInstance();
+		final Guest guest = ObjectifyService.run(new Work<Guest>() {
+			@Override
+			public Guest run() {
+				Guest result = new Guest();
+				result.addPraisedPhotoId(praisedPhotoId);
+				userManager.saveClient(result);
+				return result;
+			}
+		});
+		userManager.guests.remove(guest.getId());
+		assertNull(userManager.getClientById(guest.getId()));
+
+		Guest loadedGuest = ObjectifyService.run(new Work<Guest>() {
+			@Override
+			public Guest run() {
+				return userManager.loadGuest(guest.getId());
+			}
+		});
+
+		assertNotNull(loadedGuest);
+		assertTrue(loadedGuest.hasPraisedPhotoId(praisedPhotoId));
+		assertNotNull(userManager.getClientById(guest.getId()));
+	}
+
 	protected void assertNewGuestHasId(int id) {
 		Guest testGuest = ObjectifyService.run(new Work<Guest>() {
 			@Override
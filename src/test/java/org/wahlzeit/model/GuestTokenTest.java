@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.wahlzeit.services.Language;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the GuestToken class.
+ */
+public class GuestTokenTest {
+
+	private PhotoId firstPhotoId;
+	private PhotoId secondPhotoId;
+	private PhotoId thirdPhotoId;
+
+	@Before
+	public void setUp() {
+		System.setProperty(GuestToken.SECRET_PROPERTY, "a secret of at least thirty-two bytes for tests");
+		if (PhotoId.getCurrentIdAsInt() < PhotoId.ID_START + 2 * GuestToken.MAX_RECENT_PHOTOS) {
+			PhotoId.setCurrentIdFromInt(PhotoId.ID_START + 2 * GuestToken.MAX_RECENT_PHOTOS);
+		}
+		firstPhotoId = PhotoId.getIdFromInt(PhotoId.ID_START);
+		secondPhotoId = PhotoId.getIdFromInt(PhotoId.ID_START + 1);
+		thirdPhotoId = PhotoId.getIdFromInt(PhotoId.ID_START + 2);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testEncodeDecode() {
+		GuestToken token = new GuestToken(4711);
+		token.setLanguage(Language.GERMAN);
+		token.setPhotoSize(PhotoSize.LARGE);
+		token.setTags("forest, meadow");
+		token.addRecentPhoto(firstPhotoId, false);
+		token.addRecentPhoto(secondPhotoId, true);
+		token.addRecentPhoto(thirdPhotoId, false);
+
+		GuestToken decoded = GuestToken.decode(token.encode());
+
+		assertEquals(4711, decoded.getVisitorId());
+		assertEquals(token.getGuestId(), decoded.getGuestId());
+		assertEquals(Language.GERMAN, decoded.getLanguage());
+		assertEquals(PhotoSize.LARGE, decoded.getPhotoSize());
+		assertEquals("forest, meadow", decoded.getTags());
+		assertEquals(Arrays.asList(firstPhotoId, thirdPhotoId), decoded.getPraisedPhotoIds());
+		assertEquals(Arrays.asList(secondPhotoId), decoded.getSkippedPhotoIds());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testTamperedTokenIsRejected() {
+		GuestToken token = new GuestToken(4711);
+		token.addRecentPhoto(firstPhotoId, false);
+		char[] encoded = token.encode().toCharArray();
+		encoded[3] = (encoded[3] == 'A') ? 'B' : 'A';
+
+		assertNull(GuestToken.decode(new String(encoded)));
+		assertNull(GuestToken.decode("not a token"));
+		assertNull(GuestToken.decode(""));
+		assertNull(GuestToken.decode(null));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testExpiredTokenIsRejected() {
+		GuestToken token = new GuestToken(4711);
+		long now = 1700000000;
+		String encoded = token.encode(now);
+		assertEquals(now, token.getIssuedAt());
+		assertEquals(now + GuestToken.COOKIE_MAX_AGE, token.getExpiresAt());
+
+		assertEquals(now, GuestToken.decode(encoded, now + GuestToken.COOKIE_MAX_AGE - 1).getIssuedAt());
+		assertNull(GuestToken.decode(encoded, now + GuestToken.COOKIE_MAX_AGE));
+		assertNull(GuestToken.decode(encoded, now - GuestToken.MAX_CLOCK_SKEW - 1)); // issued in the future
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testTokensAreDisabledWithoutSecret() {
+		String encoded = new GuestToken(4711).encode();
+		SecretKeySpec secretKey = GuestToken.secretKey;
+		System.setProperty(GuestToken.ENABLED_PROPERTY, "true");
+		System.clearProperty(GuestToken.SECRET_PROPERTY);
+		GuestToken.secretKey = null;
+		try {
+			assertFalse(GuestToken.isEnabled());
+			assertNull(GuestToken.decode(encoded));
+
+			System.setProperty(GuestToken.SECRET_PROPERTY, "too short");
+			assertFalse(GuestToken.isEnabled());
+		} finally {
+			System.clearProperty(GuestToken.ENABLED_PROPERTY);
+			GuestToken.secretKey = secretKey;
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRecentPhotosAreBounded() {
+		GuestToken token = new GuestToken(1);
+		for (int i = 0; i < 2 * GuestToken.MAX_RECENT_PHOTOS; i++) {
+			token.addRecentPhoto(PhotoId.getIdFromInt(PhotoId.ID_START + i), false);
+		}
+		token.addRecentPhoto(PhotoId.getIdFromInt(PhotoId.ID_START + 2 * GuestToken.MAX_RECENT_PHOTOS - 1), true);
+
+		GuestToken decoded = GuestToken.decode(token.encode());
+
+		assertEquals(GuestToken.MAX_RECENT_PHOTOS - 1, decoded.getPraisedPhotoIds().size());
+		assertEquals(PhotoId.getIdFromInt(PhotoId.ID_START + GuestToken.MAX_RECENT_PHOTOS),
+				decoded.getPraisedPhotoIds().get(0));
+		assertTrue(decoded.hasRecentPhoto(
+				PhotoId.getIdFromInt(PhotoId.ID_START + 2 * GuestToken.MAX_RECENT_PHOTOS - 1), true));
+		assertTrue(token.encode().length() < 1024);
+	}
+
+}
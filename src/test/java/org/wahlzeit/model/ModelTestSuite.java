@@ -27,15 +27,28 @@ import org.wahlzeit.model.persistence.ModelPersistenceTestSuite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
 	AccessRightsTest.class,
+	ClientPhotoHistoryTest.class,
 	CoordinateTest.class,
 	CartesianCoordinateTest.class,
 	SphericCoordinateTest.class,
 	FlagReasonTest.class,
 	GenderTest.class,
+	GuestTokenTest.class,
 	GuestTest.class,
 	LocationTest.class,
+	NicknameIndexTest.class,
 	PhotoFilterTest.class,
+	PhotoLeaderboardTest.class,
+	PhotoManagerTest.class,
+	PhotoPraiseIndexTest.class,
+	PhotoSamplerTest.class,
+	PhotoTagIndexTest.class,
+	PraiseAggregatorTest.class,
+	ShardedPraiseCounterTest.class,
+	SessionStateSizeTest.class,
 	TagsTest.class,
+	UserSessionStateTest.class,
+	UserManagerTest.class,
 	UserStatusTest.class,
 	ValueTest.class,
 	ModelPersistenceTestSuite.class,
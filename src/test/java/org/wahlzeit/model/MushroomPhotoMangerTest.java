@@ -35,6 +35,8 @@ import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
 import com.googlecode.objectify.ObjectifyService;
 import com.googlecode.objectify.util.Closeable;
 
+import java.util.ArrayList;
+
 public class MushroomPhotoMangerTest {
 	
 	private Closeable closeable;
@@ -83,4 +85,27 @@ public class MushroomPhotoMangerTest {
 		assertEquals(savedPhoto.getHeight(), loadedPhoto.getHeight());
 	}
 
+	@Test
+	public void testOnlyChangedTagsAreWritten() {
+		User user = new User("tagTestId", "tagtestnick", "tagtest@test.de");
+
+		PhotoManager manager = MushroomPhotoManager.getInstance();
+		Photo photo = MushroomPhotoFactory.getInstance().createPhoto(new PhotoId(2));
+		user.addPhoto(photo);
+		photo.setTags(new Tags("forest, autumn"));
+		manager.savePhoto(photo);
+		Tag forestTag = photo.getStoredTags().get("tg:forest");
+		assertNotNull(forestTag);
+
+		photo.setTags(new Tags("forest, spring"));
+		manager.savePhoto(photo);
+
+		//the unchanged tag is kept, the removed one is deleted and the new one is added
+		assertSame(forestTag, photo.getStoredTags().get("tg:forest"));
+		assertNull(photo.getStoredTags().get("tg:autumn"));
+		assertTrue(manager.addTagsThatMatchCondition(new ArrayList<Tag>(), "tg:autumn").isEmpty());
+		assertEquals(1, manager.addTagsThatMatchCondition(new ArrayList<Tag>(), "tg:spring").size());
+		assertEquals(1, manager.addTagsThatMatchCondition(new ArrayList<Tag>(), "tg:forest").size());
+	}
+
 }
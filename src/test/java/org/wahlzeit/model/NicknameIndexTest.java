@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the NicknameIndex class.
+ */
+public class NicknameIndexTest {
+
+	private NicknameIndex index = new NicknameIndex();
+
+	/**
+	 *
+	 */
+	@Test
+	public void testReserveAndRelease() {
+		assertTrue(index.reserve("anna", "user1"));
+		assertTrue(index.reserve("anna", "user1"));
+		assertFalse(index.reserve("anna", "user2"));
+		assertEquals("user1", index.getClientId("anna"));
+
+		index.release("anna", "user2");
+		assertTrue(index.isUsed("anna"));
+
+		index.release("anna", "user1");
+		assertFalse(index.isUsed("anna"));
+		assertTrue(index.reserve("anna", "user2"));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testChange() {
+		index.reserve("anna", "user1");
+		index.reserve("bert", "user2");
+
+		assertFalse(index.change("anna", "bert", "user1"));
+		assertTrue(index.isUsed("anna"));
+
+		assertTrue(index.change("anna", "anne", "user1"));
+		assertFalse(index.isUsed("anna"));
+		assertEquals("user1", index.getClientId("anne"));
+		assertTrue(index.change("anne", "anne", "user1"));
+		assertEquals(2, index.size());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testConcurrentReservationsOfOneNickname() throws InterruptedException {
+		final int noThreads = 8;
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger noReservations = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(noThreads);
+		for (int i = 0; i < noThreads; i++) {
+			final String clientId = "user" + i;
+			executor.execute(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException ex) {
+					return;
+				}
+				for (int j = 0; j < 1000; j++) {
+					if (index.reserve("nick" + j, clientId)) {
+						noReservations.incrementAndGet();
+					}
+				}
+			});
+		}
+		start.countDown();
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+		assertEquals(1000, noReservations.get());
+		assertEquals(1000, index.size());
+	}
+
+}
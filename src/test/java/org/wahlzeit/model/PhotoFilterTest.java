@@ -22,8 +22,18 @@ package org.wahlzeit.model;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class PhotoFilterTest {
@@ -46,7 +56,7 @@ public class PhotoFilterTest {
 		assertEquals("", photoFilter.userName);
 		assertEquals(Tags.EMPTY_TAGS, photoFilter.tags);
 
-		assertEquals(0, photoFilter.processedPhotoIds.size());
+		assertEquals(0, photoFilter.processedPhotoIds.getCardinality());
 		assertEquals(0, photoFilter.displayablePhotoIds.size());
 	}
 
@@ -73,8 +83,8 @@ public class PhotoFilterTest {
 		photoFilter.displayablePhotoIds.add(new PhotoId(3));
 		assertTrue(photoFilter.displayablePhotoIds.size() == 1);
 
-		photoFilter.processedPhotoIds.add(new PhotoId(2));
-		assertTrue(photoFilter.processedPhotoIds.size() == 1);
+		photoFilter.processedPhotoIds.add(new PhotoId(2).asInt());
+		assertTrue(photoFilter.processedPhotoIds.getCardinality() == 1);
 
 		photoFilter.clear();
 
@@ -84,4 +94,83 @@ public class PhotoFilterTest {
 		assertTrue(photoFilter.processedPhotoIds.isEmpty());
 	}
 
+	/**
+	 *
+	 */
+	@Test
+	public void testSamplerSurvivesSerialization() throws Exception {
+		PhotoTagIndex tagIndex = PhotoTagIndex.getInstance();
+		Set<String> tags = new HashSet<String>(Arrays.asList("tg:samplertest"));
+		for (int i = 1; i <= 10; i++) {
+			tagIndex.updatePhoto(new PhotoId(600 + i), tags, true);
+		}
+
+		PhotoFilter filter = new LeastRecentlyShownPhotoFilter();
+		filter.setTags(new Tags("samplertest"));
+		Set<PhotoId> shownIds = new HashSet<PhotoId>();
+		for (int i = 0; i < 5; i++) {
+			shownIds.add(filter.getNextPhotoId());
+		}
+
+		// the session is serialized after every request; the sampler keeps its order nonetheless
+		PhotoFilter readFilter = serializeAndDeserialize(filter);
+		for (int i = 0; i < 5; i++) {
+			assertTrue(shownIds.add(readFilter.getNextPhotoId()));
+		}
+		assertEquals(10, shownIds.size());
+
+		// a new photo is added to the sampler without rebuilding it
+		PhotoId newPhotoId = new PhotoId(611);
+		tagIndex.updatePhoto(newPhotoId, tags, true);
+		assertEquals(newPhotoId, readFilter.getNextPhotoId());
+
+		// a hidden photo is removed
+		PhotoId hiddenPhotoId = new PhotoId(601);
+		tagIndex.setVisible(hiddenPhotoId, false);
+		for (int i = 0; i < 20; i++) {
+			assertFalse(hiddenPhotoId.equals(readFilter.getNextPhotoId()));
+		}
+
+		for (int i = 1; i <= 11; i++) {
+			tagIndex.setVisible(new PhotoId(600 + i), false);
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testUserNameSurvivesSerialization() throws Exception {
+		photoFilter.userName = null;
+		assertNull(serializeAndDeserialize(photoFilter).getUserName());
+
+		photoFilter.setUserName("");
+		assertEquals("", serializeAndDeserialize(photoFilter).getUserName());
+
+		photoFilter.setUserName("anna");
+		assertEquals("anna", serializeAndDeserialize(photoFilter).getUserName());
+	}
+
+	/**
+	 *
+	 */
+	private static PhotoFilter serializeAndDeserialize(PhotoFilter filter) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(filter);
+		out.close();
+		return (PhotoFilter) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+	}
+
+	/**
+	 *
+	 */
+	public static class LeastRecentlyShownPhotoFilter extends PhotoFilter {
+
+		@Override
+		protected PhotoSampler createPhotoSampler() {
+			return new LeastRecentlyShownPhotoSampler();
+		}
+	}
+
 }
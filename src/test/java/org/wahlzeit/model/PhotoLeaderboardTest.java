@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the PhotoLeaderboard class.
+ */
+public class PhotoLeaderboardTest {
+
+	private PhotoLeaderboard leaderboard;
+
+	private Photo popular;
+	private Photo lucky;
+	private Photo plain;
+
+	@Before
+	public void setUp() {
+		if (PhotoId.getCurrentIdAsInt() < PhotoId.ID_START + 3) {
+			PhotoId.setCurrentIdFromInt(PhotoId.ID_START + 3);
+		}
+		popular = new Photo(PhotoId.getIdFromInt(PhotoId.ID_START));
+		lucky = new Photo(PhotoId.getIdFromInt(PhotoId.ID_START + 1));
+		plain = new Photo(PhotoId.getIdFromInt(PhotoId.ID_START + 2));
+
+		leaderboard = new PhotoLeaderboard(5.0, 5);
+		leaderboard.updatePhoto(popular, new HashSet<String>(Arrays.asList("tg:forest", "un:anna")));
+		leaderboard.updatePhoto(lucky, new HashSet<String>(Arrays.asList("tg:forest", "tg:meadow")));
+		leaderboard.updatePhoto(plain, Collections.<String>emptySet());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testScoreTakesNumberOfVotesIntoAccount() {
+		for (int i = 0; i < 20; i++) {
+			popular.addToPraise(9);
+			leaderboard.updateScore(popular);
+		}
+		lucky.addToPraise(10);
+		leaderboard.updateScore(lucky);
+		plain.addToPraise(1);
+		leaderboard.updateScore(plain);
+
+		// lucky has the higher praise, but popular has many votes
+		assertTrue(lucky.getPraise() > popular.getPraise());
+		assertTrue(leaderboard.getScore(popular) > leaderboard.getScore(lucky));
+		assertEquals(Arrays.asList(popular.getId(), lucky.getId(), plain.getId()), leaderboard.getTopPhotoIds(10));
+		assertEquals(Arrays.asList(popular.getId()), leaderboard.getTopPhotoIds(1));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testTags() {
+		assertEquals(2, leaderboard.getTopPhotoIds("forest", 10).size());
+		assertEquals(Arrays.asList(lucky.getId()), leaderboard.getTopPhotoIds("Meadow", 10));
+		assertEquals(Collections.emptyList(), leaderboard.getTopPhotoIds("anna", 10));
+
+		leaderboard.updatePhoto(lucky, new HashSet<String>(Arrays.asList("tg:meadow")));
+		assertEquals(Arrays.asList(popular.getId()), leaderboard.getTopPhotoIds("forest", 10));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRemovePhoto() {
+		leaderboard.removePhoto(lucky.getId());
+
+		assertEquals(2, leaderboard.getNoPhotos());
+		assertEquals(Collections.emptyList(), leaderboard.getTopPhotoIds("meadow", 10));
+
+		// a removed photo is not ranked again by a score update
+		leaderboard.updateScore(lucky);
+		assertEquals(2, leaderboard.getNoPhotos());
+	}
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for loading photos into the PhotoManager.
+ */
+public class PhotoManagerTest {
+
+	private AtomicInteger noLoads;
+	private PhotoManager photoManager;
+	private PhotoId photoId;
+
+	@Before
+	public void setUp() {
+		if (PhotoId.getCurrentIdAsInt() < PhotoId.ID_START) {
+			PhotoId.setCurrentIdFromInt(PhotoId.ID_START);
+		}
+		photoId = PhotoId.getIdFromInt(PhotoId.ID_START);
+
+		noLoads = new AtomicInteger(0);
+		photoManager = new PhotoManager() {
+			@Override
+			protected Photo doLoadPhoto(PhotoId id) {
+				noLoads.incrementAndGet();
+				try {
+					Thread.sleep(50); // keeps the other requests waiting for the load
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				Photo result = new Photo(id);
+				result.resetWriteCount();
+				return result;
+			}
+		};
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testConcurrentMissesLoadPhotoOnce() throws InterruptedException {
+		final int noThreads = 8;
+		final Photo[] photos = new Photo[noThreads];
+		final CountDownLatch start = new CountDownLatch(1);
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < noThreads; t++) {
+			final int thread = t;
+			Thread requester = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				photos[thread] = photoManager.getPhotoFromId(photoId);
+			});
+			threads.add(requester);
+			requester.start();
+		}
+		start.countDown();
+		for (Thread requester : threads) {
+			requester.join();
+		}
+
+		assertEquals(1, noLoads.get());
+		for (Photo photo : photos) {
+			assertSame(photos[0], photo);
+		}
+		assertTrue(photoManager.pendingLoads.isEmpty());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testLegacyKeyIsReplaced() {
+		Photo photo = new Photo(photoId);
+		assertFalse(photo.hasLegacyKey());
+
+		photo.idLong = 4711L; // allocated by the Datastore
+		assertTrue(photo.hasLegacyKey());
+	}
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the PhotoPraiseIndex class.
+ */
+public class PhotoPraiseIndexTest {
+
+	private PhotoPraiseIndex index;
+
+	private PhotoId first;
+	private PhotoId second;
+	private PhotoId third;
+
+	@Before
+	public void setUp() {
+		if (PhotoId.getCurrentIdAsInt() < PhotoId.ID_START + 3) {
+			PhotoId.setCurrentIdFromInt(PhotoId.ID_START + 3);
+		}
+		first = PhotoId.getIdFromInt(PhotoId.ID_START);
+		second = PhotoId.getIdFromInt(PhotoId.ID_START + 1);
+		third = PhotoId.getIdFromInt(PhotoId.ID_START + 2);
+
+		index = new PhotoPraiseIndex();
+		index.put(first, 5.0);
+		index.put(second, 7.5);
+		index.put(third, 5.0);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testOrderByPraiseThenId() {
+		assertEquals(3, index.size());
+		assertEquals(Arrays.asList(second, first, third), index.getPhotoIds(0, 10));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPutMovesPhoto() {
+		index.put(third, 9.0);
+		index.put(second, 1.0);
+
+		assertEquals(3, index.size());
+		assertEquals(Arrays.asList(third, first, second), index.getPhotoIds(0, 10));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPagedReads() {
+		assertEquals(Arrays.asList(second, first), index.getPhotoIds(0, 2));
+		assertEquals(Arrays.asList(third), index.getPhotoIds(2, 2));
+		assertEquals(Collections.emptyList(), index.getPhotoIds(4, 2));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRemove() {
+		index.remove(first);
+
+		assertFalse(index.contains(first));
+		assertTrue(index.contains(third));
+		assertEquals(Arrays.asList(second, third), index.getPhotoIds(0, 10));
+	}
+
+}
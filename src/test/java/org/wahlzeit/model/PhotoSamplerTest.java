@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the PhotoSampler classes.
+ */
+public class PhotoSamplerTest {
+
+	private List<PhotoId> candidates;
+
+	@Before
+	public void setUp() {
+		candidates = new ArrayList<PhotoId>();
+		for (int i = 1; i <= 10; i++) {
+			candidates.add(new PhotoId(200 + i));
+		}
+	}
+
+	/**
+	 *
+	 */
+	private PhotoSampler createSampler(PhotoSampler sampler) {
+		sampler.setRandom(new Random(42));
+		sampler.reset(candidates);
+		return sampler;
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testUniformDrawsAllButRemovedPhotos() {
+		PhotoSampler sampler = createSampler(new UniformPhotoSampler());
+		PhotoId removedId = candidates.get(3);
+		sampler.remove(removedId);
+		assertEquals(9, sampler.size());
+
+		Set<PhotoId> drawnIds = new HashSet<PhotoId>();
+		for (int i = 0; i < 1000; i++) {
+			drawnIds.add(sampler.next());
+		}
+		assertEquals(9, drawnIds.size());
+		assertFalse(drawnIds.contains(removedId));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRemovingAllPhotosEmptiesSampler() {
+		PhotoSampler sampler = createSampler(new UniformPhotoSampler());
+		for (PhotoId id : candidates) {
+			sampler.remove(id);
+			sampler.remove(id); // removing twice has no effect
+		}
+		sampler.remove(new PhotoId(300)); // not a candidate
+
+		assertTrue(sampler.isEmpty());
+		assertNull(sampler.next());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPraiseWeightedDrawsProportionally() {
+		final PhotoId favoriteId = candidates.get(0);
+		PhotoSampler sampler = createSampler(new PraiseWeightedPhotoSampler(id -> id.equals(favoriteId) ? 9.0 : 1.0));
+
+		Map<PhotoId, Integer> noDraws = new HashMap<PhotoId, Integer>();
+		int noSamples = 18000;
+		for (int i = 0; i < noSamples; i++) {
+			noDraws.merge(sampler.next(), 1, Integer::sum);
+		}
+
+		// the favorite has weight 9 of 18 in total
+		double favoriteShare = noDraws.get(favoriteId) / (double) noSamples;
+		assertTrue("share was " + favoriteShare, Math.abs(favoriteShare - 0.5) < 0.02);
+		assertEquals(10, noDraws.size());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testLeastRecentlyShownShowsAllBeforeRepeating() {
+		PhotoSampler sampler = createSampler(new LeastRecentlyShownPhotoSampler());
+
+		List<PhotoId> firstRound = new ArrayList<PhotoId>();
+		for (int i = 0; i < candidates.size(); i++) {
+			firstRound.add(sampler.next());
+		}
+		assertEquals(new HashSet<PhotoId>(candidates), new HashSet<PhotoId>(firstRound));
+
+		// a reset with an additional photo shows the new one first and keeps the order of the others
+		PhotoId newId = new PhotoId(211);
+		List<PhotoId> newCandidates = new ArrayList<PhotoId>(candidates);
+		newCandidates.add(newId);
+		sampler.reset(newCandidates);
+		assertEquals(newId, sampler.next());
+		assertEquals(firstRound.get(0), sampler.next());
+		assertEquals(Arrays.asList(firstRound.get(1), firstRound.get(2)), Arrays.asList(sampler.next(), sampler.next()));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testAddedPhotosAreDrawn() {
+		PhotoSampler sampler = createSampler(new UniformPhotoSampler());
+		PhotoId newId = new PhotoId(211);
+		PhotoId removedId = candidates.get(3);
+		sampler.add(newId);
+		sampler.remove(removedId);
+		sampler.add(removedId);
+		assertEquals(11, sampler.size());
+
+		Set<PhotoId> drawnIds = new HashSet<PhotoId>();
+		for (int i = 0; i < 1000; i++) {
+			drawnIds.add(sampler.next());
+		}
+		assertEquals(11, drawnIds.size());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testLeastRecentlyShownShowsAddedPhotoFirst() {
+		PhotoSampler sampler = createSampler(new LeastRecentlyShownPhotoSampler());
+		PhotoId firstId = sampler.next();
+		PhotoId secondId = sampler.next();
+
+		PhotoId newId = new PhotoId(211);
+		sampler.add(newId);
+		assertEquals(newId, sampler.next());
+
+		// a restored photo that was dropped from the queue comes after all others
+		sampler.remove(firstId);
+		PhotoId lastId = null;
+		for (int i = 0; i < candidates.size() - 1; i++) {
+			lastId = sampler.next();
+		}
+		assertEquals(secondId, lastId); // the first one was dropped when it came up
+		sampler.add(firstId);
+
+		List<PhotoId> round = new ArrayList<PhotoId>();
+		for (int i = 0; i < candidates.size() + 1; i++) {
+			round.add(sampler.next());
+		}
+		assertEquals(newId, round.get(0));
+		assertEquals(firstId, round.get(candidates.size()));
+	}
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.wahlzeit.utils.RoaringBitmap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the PhotoTagIndex class.
+ */
+public class PhotoTagIndexTest {
+
+	private PhotoTagIndex index;
+
+	private PhotoId forestPhotoId = new PhotoId(101);
+	private PhotoId meadowPhotoId = new PhotoId(102);
+	private PhotoId hiddenPhotoId = new PhotoId(103);
+
+	@Before
+	public void setUp() {
+		index = new PhotoTagIndex();
+		index.updatePhoto(forestPhotoId, asSet("un:anna", "tg:forest"), true);
+		index.updatePhoto(meadowPhotoId, asSet("un:bert", "tg:meadow", "tg:forest"), true);
+		index.updatePhoto(hiddenPhotoId, asSet("un:anna", "tg:meadow"), false);
+	}
+
+	/**
+	 *
+	 */
+	private static Set<String> asSet(String... tags) {
+		return new HashSet<String>(Arrays.asList(tags));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testMatchesAnyTagOfVisiblePhotos() {
+		assertEquals(Arrays.asList(forestPhotoId, meadowPhotoId), index.getVisiblePhotoIds(asSet("tg:forest")));
+		assertEquals(Arrays.asList(meadowPhotoId), index.getVisiblePhotoIds(asSet("tg:meadow")));
+		assertEquals(Arrays.asList(forestPhotoId, meadowPhotoId), index.getVisiblePhotoIds(asSet("un:anna", "un:bert")));
+		assertTrue(index.getVisiblePhotoIds(asSet("tg:desert")).isEmpty());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testFindPhotosWithAllTags() {
+		List<String> noTags = Collections.<String>emptyList();
+		assertEquals(Arrays.asList(meadowPhotoId),
+				index.getPhotoIds(index.findPhotos(asSet("tg:forest", "tg:meadow"), noTags, null)));
+		assertTrue(index.findPhotos(asSet("tg:forest", "tg:desert"), noTags, null).isEmpty());
+		assertEquals(Arrays.asList(forestPhotoId),
+				index.getPhotoIds(index.findPhotos(asSet("tg:forest"), asSet("un:anna", "un:carl"), null)));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testFindPhotosLeavesOutExcludedPhotos() {
+		RoaringBitmap excluded = RoaringBitmap.of(forestPhotoId.asInt());
+		assertEquals(Arrays.asList(meadowPhotoId), index.getPhotoIds(
+				index.findPhotos(asSet("tg:forest"), Collections.<String>emptyList(), excluded)));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testNoTagsMatchAllVisiblePhotos() {
+		assertEquals(Arrays.asList(forestPhotoId, meadowPhotoId),
+				index.getVisiblePhotoIds(Collections.<String>emptyList()));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testUpdateReplacesTagsAndVisibility() {
+		index.updatePhoto(meadowPhotoId, asSet("un:bert", "tg:meadow"), true);
+		index.setVisible(hiddenPhotoId, true);
+
+		assertEquals(Arrays.asList(forestPhotoId), index.getVisiblePhotoIds(asSet("tg:forest")));
+		assertEquals(Arrays.asList(meadowPhotoId, hiddenPhotoId), index.getVisiblePhotoIds(asSet("tg:meadow")));
+		assertTrue(index.isVisible(hiddenPhotoId));
+		assertEquals(3, index.getNoPhotos());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSetVisibleIgnoresUnknownPhotos() {
+		PhotoId unknownPhotoId = new PhotoId(104);
+		index.setVisible(unknownPhotoId, true);
+
+		assertFalse(index.hasPhoto(unknownPhotoId));
+		assertFalse(index.isVisible(unknownPhotoId));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testChangedPhotosAreLogged() {
+		long version = index.getVersion();
+		index.updatePhoto(forestPhotoId, asSet("un:anna", "tg:forest"), true); // no change
+		index.setVisible(hiddenPhotoId, true);
+		index.updatePhoto(meadowPhotoId, asSet("un:bert", "tg:meadow"), true);
+
+		assertEquals(version + 2, index.getVersion());
+		assertEquals(RoaringBitmap.of(hiddenPhotoId.asInt(), meadowPhotoId.asInt()),
+				index.getChangedPhotos(version, index.getVersion()));
+		assertEquals(RoaringBitmap.of(hiddenPhotoId.asInt()), index.getChangedPhotos(version, version + 1));
+
+		index.clear();
+		assertEquals(null, index.getChangedPhotos(version, index.getVersion()));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testFilterPhotos() {
+		RoaringBitmap photos = RoaringBitmap.of(forestPhotoId.asInt(), meadowPhotoId.asInt(), hiddenPhotoId.asInt());
+		assertEquals(RoaringBitmap.of(meadowPhotoId.asInt()),
+				index.filterPhotos(photos, asSet("tg:forest", "tg:meadow"), null));
+		assertEquals(RoaringBitmap.of(meadowPhotoId.asInt()),
+				index.filterPhotos(photos, asSet("tg:forest"), RoaringBitmap.of(forestPhotoId.asInt())));
+		assertTrue(index.filterPhotos(photos, asSet("tg:desert"), null).isEmpty());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testWriteAndRead() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		index.writeTo(new DataOutputStream(bytes));
+
+		// ids are only read back up to the current id
+		if (PhotoId.getCurrentIdAsInt() < hiddenPhotoId.asInt()) {
+			PhotoId.setCurrentIdFromInt(hiddenPhotoId.asInt());
+		}
+		PhotoTagIndex readIndex = new PhotoTagIndex();
+		readIndex.readFrom(ByteBuffer.wrap(bytes.toByteArray()));
+
+		assertEquals(index.getNoPhotos(), readIndex.getNoPhotos());
+		assertEquals(index.getNoTags(), readIndex.getNoTags());
+		assertEquals(index.getVisiblePhotoIds(asSet("tg:meadow", "un:anna")),
+				readIndex.getVisiblePhotoIds(asSet("tg:meadow", "un:anna")));
+		assertFalse(readIndex.isVisible(hiddenPhotoId));
+	}
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the PraiseAggregator class.
+ */
+public class PraiseAggregatorTest {
+
+	private Map<PhotoId, int[]> appliedPraise;
+	private PraiseAggregator aggregator;
+
+	private PhotoId firstPhotoId;
+	private PhotoId secondPhotoId;
+
+	@Before
+	public void setUp() {
+		if (PhotoId.getCurrentIdAsInt() < PhotoId.ID_START + 2) {
+			PhotoId.setCurrentIdFromInt(PhotoId.ID_START + 2);
+		}
+		firstPhotoId = PhotoId.getIdFromInt(PhotoId.ID_START);
+		secondPhotoId = PhotoId.getIdFromInt(PhotoId.ID_START + 1);
+
+		appliedPraise = new ConcurrentHashMap<PhotoId, int[]>();
+		aggregator = new PraiseAggregator(0) {
+			@Override
+			protected void applyPraise(PhotoId photoId, int praiseSum, int noVotes) {
+				int[] praise = appliedPraise.computeIfAbsent(photoId, id -> new int[2]);
+				praise[0] += praiseSum;
+				praise[1] += noVotes;
+			}
+		};
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testVotesAreAppliedOncePerFlush() {
+		assertTrue(aggregator.addPraise("u1", firstPhotoId, 7));
+		assertTrue(aggregator.addPraise("u2", firstPhotoId, 3));
+		assertTrue(aggregator.addPraise("u1", secondPhotoId, 9));
+		assertTrue(appliedPraise.isEmpty());
+
+		aggregator.drain();
+
+		assertEquals(10, appliedPraise.get(firstPhotoId)[0]);
+		assertEquals(2, appliedPraise.get(firstPhotoId)[1]);
+		assertEquals(9, appliedPraise.get(secondPhotoId)[0]);
+		assertEquals(1, appliedPraise.get(secondPhotoId)[1]);
+		assertFalse(aggregator.isFlushDue());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testDuplicateVoteIsIgnored() {
+		assertTrue(aggregator.addPraise("u1", firstPhotoId, 7));
+		assertFalse(aggregator.addPraise("u1", firstPhotoId, 10));
+
+		aggregator.drain();
+
+		assertEquals(7, appliedPraise.get(firstPhotoId)[0]);
+		assertEquals(1, appliedPraise.get(firstPhotoId)[1]);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testConcurrentVotesAreExact() throws InterruptedException {
+		final int noThreads = 8;
+		final int noVotesPerThread = 5000;
+		final AtomicBoolean isVoting = new AtomicBoolean(true);
+
+		Thread flusher = new Thread(() -> {
+			while (isVoting.get()) {
+				aggregator.flushIfDue();
+			}
+		});
+		flusher.start();
+
+		List<Thread> voters = new ArrayList<Thread>();
+		for (int t = 0; t < noThreads; t++) {
+			final int thread = t;
+			Thread voter = new Thread(() -> {
+				for (int i = 0; i < noVotesPerThread; i++) {
+					aggregator.addPraise("u" + thread + "-" + i, firstPhotoId, 3);
+				}
+			});
+			voters.add(voter);
+			voter.start();
+		}
+		for (Thread voter : voters) {
+			voter.join();
+		}
+		isVoting.set(false);
+		flusher.join();
+		aggregator.drain();
+
+		assertEquals(3 * noThreads * noVotesPerThread, appliedPraise.get(firstPhotoId)[0]);
+		assertEquals(noThreads * noVotesPerThread, appliedPraise.get(firstPhotoId)[1]);
+	}
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the externalized session state, i.e. PhotoFilter, PhotoIdSet and SavedArgs, including a size
+ * benchmark against the default serialized form the session state had before.
+ */
+public class SessionStateSizeTest {
+
+	private static final int FIRST_PHOTO_ID = PhotoId.ID_START;
+	private static final int NO_PHOTOS = 200;
+
+	private List<PhotoId> photoIds = new ArrayList<PhotoId>();
+
+	@Before
+	public void setUp() {
+		if (PhotoId.getCurrentIdAsInt() < FIRST_PHOTO_ID + NO_PHOTOS) {
+			PhotoId.setCurrentIdFromInt(FIRST_PHOTO_ID + NO_PHOTOS);
+		}
+		for (int i = 0; i < NO_PHOTOS; i++) {
+			photoIds.add(PhotoId.getIdFromInt(FIRST_PHOTO_ID + i));
+		}
+	}
+
+	/**
+	 * The session state as default serialization wrote it: PhotoFilter with id lists and its Random, a HashSet of
+	 * praised photos (here only of their ids, which favors the old form) and a HashMap of saved arguments.
+	 */
+	private static class LegacySessionState implements Serializable {
+		String userName = "";
+		Tags tags = Tags.EMPTY_TAGS;
+		List<PhotoId> displayablePhotoIds = new ArrayList<PhotoId>();
+		List<PhotoId> processedPhotoIds = new LinkedList<PhotoId>();
+		List<PhotoId> skippedPhotoIds = new LinkedList<PhotoId>();
+		Random randomNumber = new Random(0);
+		Set<PhotoId> praisedPhotoIds = new HashSet<PhotoId>();
+		Map<String, Object> savedArgs = new HashMap<String, Object>();
+	}
+
+	/**
+	 *
+	 */
+	private static byte[] serialize(Object... objects) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		for (Object object : objects) {
+			out.writeObject(object);
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 *
+	 */
+	private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		return in.readObject();
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPhotoFilterRoundTrip() throws Exception {
+		PhotoFilter filter = new PhotoFilter();
+		filter.setUserName("anna");
+		filter.setTags(new Tags("forest, meadow"));
+		filter.setDisplayablePhotoIds(new ArrayList<PhotoId>(photoIds.subList(10, 20)));
+		filter.processedPhotoIds.add(photoIds.get(3).asInt());
+		filter.processedPhotoIds.add(photoIds.get(150).asInt());
+		filter.addSkippedPhotoId(photoIds.get(7));
+
+		PhotoFilter copy = (PhotoFilter) deserialize(serialize(filter));
+
+		assertEquals("anna", copy.getUserName());
+		assertEquals(new Tags("forest, meadow"), copy.getTags());
+		assertEquals(photoIds.subList(10, 20), copy.getDisplayablePhotoIds());
+		assertTrue(copy.isProcessedPhotoId(photoIds.get(3)));
+		assertTrue(copy.isProcessedPhotoId(photoIds.get(150)));
+		assertFalse(copy.isProcessedPhotoId(photoIds.get(7)));
+		assertEquals(filter.getSkippedPhotoIds(), copy.getSkippedPhotoIds());
+		assertTrue(copy.randomNumber != null);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testEmptyPhotoFilterRoundTrip() throws Exception {
+		PhotoFilter copy = (PhotoFilter) deserialize(serialize(new PhotoFilter()));
+
+		assertEquals("", copy.getUserName());
+		assertEquals(Tags.EMPTY_TAGS, copy.getTags());
+		assertTrue(copy.getDisplayablePhotoIds().isEmpty());
+		assertTrue(copy.getProcessedPhotoIds().isEmpty());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPhotoIdSetAndSavedArgsRoundTrip() throws Exception {
+		PhotoIdSet praisedPhotos = new PhotoIdSet();
+		praisedPhotos.add(photoIds.get(0));
+		praisedPhotos.add(photoIds.get(99));
+		assertEquals(praisedPhotos, deserialize(serialize(praisedPhotos)));
+
+		SavedArgs savedArgs = new SavedArgs();
+		savedArgs.put(UserSession.MESSAGE, "Grüße");
+		savedArgs.put(Photo.ID, photoIds.get(5));
+		savedArgs.put("empty", null);
+		assertEquals(savedArgs, deserialize(serialize(savedArgs)));
+	}
+
+	/**
+	 * A session that has gone through 100 of the photos, praising most of them and skipping some.
+	 */
+	@Test
+	public void testExternalizedStateIsAtMostHalfTheSize() throws Exception {
+		LegacySessionState legacy = new LegacySessionState();
+		PhotoFilter filter = new PhotoFilter();
+		PhotoIdSet praisedPhotos = new PhotoIdSet();
+		SavedArgs savedArgs = new SavedArgs();
+
+		legacy.userName = "anna";
+		legacy.tags = new Tags("forest, meadow");
+		filter.setUserName("anna");
+		filter.setTags(new Tags("forest, meadow"));
+
+		for (int i = 0; i < 100; i++) {
+			PhotoId photoId = photoIds.get(i);
+			if (i % 5 == 0) {
+				legacy.skippedPhotoIds.add(photoId);
+				filter.addSkippedPhotoId(photoId);
+			} else {
+				legacy.processedPhotoIds.add(photoId);
+				legacy.praisedPhotoIds.add(photoId);
+				filter.processedPhotoIds.add(photoId.asInt());
+				praisedPhotos.add(photoId);
+			}
+		}
+		legacy.displayablePhotoIds.addAll(photoIds.subList(100, NO_PHOTOS));
+		filter.setDisplayablePhotoIds(new ArrayList<PhotoId>(photoIds.subList(100, NO_PHOTOS)));
+
+		legacy.savedArgs.put(UserSession.MESSAGE, "Thank you for praising");
+		legacy.savedArgs.put(Photo.ID, photoIds.get(99).asString());
+		savedArgs.putAll(legacy.savedArgs);
+
+		int legacySize = serialize(legacy).length;
+		int externalizedSize = serialize(filter, praisedPhotos, savedArgs).length;
+
+		assertTrue("externalized " + externalizedSize + " bytes vs. legacy " + legacySize + " bytes",
+				2 * externalizedSize <= legacySize);
+	}
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.model;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the ShardedPraiseCounter class.
+ */
+public class ShardedPraiseCounterTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testTotalsAreSummedOverShards() {
+		ShardedPraiseCounter.ShardValues values = new ShardedPraiseCounter.ShardValues(4);
+
+		assertTrue(values.update(0, 17, 2));
+		assertTrue(values.update(3, 8, 1));
+		assertTrue(values.update(0, 27, 3));
+
+		assertEquals(35, values.getTotalPraiseSum());
+		assertEquals(4, values.getTotalNoVotes());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testOlderShardValuesAreIgnored() {
+		ShardedPraiseCounter.ShardValues values = new ShardedPraiseCounter.ShardValues(4);
+		values.update(1, 30, 4);
+
+		assertFalse(values.update(1, 17, 2));
+		assertFalse(values.update(1, 30, 4));
+
+		assertEquals(30, values.getTotalPraiseSum());
+		assertEquals(4, values.getTotalNoVotes());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testShardsGrowUpToMaximum() {
+		ShardedPraiseCounter.ShardValues values = new ShardedPraiseCounter.ShardValues(4);
+
+		values.grow(ShardedPraiseCounter.MAX_NO_SHARDS);
+		assertEquals(8, values.getNoShards());
+
+		values.update(20, 5, 1); // written by an instance that knew more shards
+		assertEquals(21, values.getNoShards());
+		assertEquals(5, values.getTotalPraiseSum());
+
+		for (int i = 0; i < 10; i++) {
+			values.grow(ShardedPraiseCounter.MAX_NO_SHARDS);
+		}
+		assertEquals(ShardedPraiseCounter.MAX_NO_SHARDS, values.getNoShards());
+	}
+
+	/**
+	 * Shards are loaded on startup before the PhotoId counter is restored
+	 */
+	@Test
+	public void testShardsLoadBeforePhotoIdCounter() {
+		int currentId = PhotoId.getCurrentIdAsInt();
+		try {
+			PhotoId.setCurrentIdFromInt(0);
+			PhotoId first = new PhotoId(PhotoId.ID_START + 3);
+			PhotoId second = new PhotoId(PhotoId.ID_START + 5);
+
+			PraiseShard firstShard = new PraiseShard(first, 0);
+			firstShard.addPraise(17, 2);
+			PraiseShard secondShard = new PraiseShard(second, 1);
+			secondShard.addPraise(8, 1);
+
+			ShardedPraiseCounter counter = new ShardedPraiseCounter(4, 1000);
+			counter.updateShards(Arrays.asList(firstShard, secondShard));
+
+			assertEquals(17, counter.getPraiseSum(first));
+			assertEquals(2, counter.getNoVotes(first));
+			assertEquals(8, counter.getPraiseSum(second));
+			assertEquals(1, counter.getNoVotes(second));
+			assertEquals(0, counter.getPraiseSum(PhotoId.NULL_ID));
+		} finally {
+			PhotoId.setCurrentIdFromInt(currentId);
+		}
+	}
+
+}
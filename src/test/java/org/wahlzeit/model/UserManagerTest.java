@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.wahlzeit.services.EmailAddress;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Test cases for the email address index of the {@link UserManager}.
+ */
+public class UserManagerTest {
+
+	@ClassRule
+	public static RuleChain ruleChain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	/**
+	 *
+	 */
+	@Test
+	public void testUserIsFoundByEmailAddress() {
+		final UserManager userManager = UserManager.getInstance();
+		User user = ObjectifyService.run(new Work<User>() {
+			@Override
+			public User run() {
+				return new User("4242", "leia", "leia@alderaan.org");
+			}
+		});
+
+		assertSame(user, userManager.getUserByEmailAddress("leia@alderaan.org"));
+		assertSame(user, userManager.emailAddressUserMap.get("leia@alderaan.org"));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testIndexFollowsEmailAddressChanges() {
+		final UserManager userManager = UserManager.getInstance();
+		final User user = ObjectifyService.run(new Work<User>() {
+			@Override
+			public User run() {
+				User result = new User("4343", "luke", "luke@tatooine.org");
+				result.setEmailAddress(EmailAddress.getFromString("luke@yavin.org"));
+				return result;
+			}
+		});
+
+		assertNull(userManager.emailAddressUserMap.get("luke@tatooine.org"));
+		assertSame(user, userManager.emailAddressUserMap.get("luke@yavin.org"));
+
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				userManager.deleteClient(user);
+				return null;
+			}
+		});
+
+		assertNull(userManager.emailAddressUserMap.get("luke@yavin.org"));
+	}
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.http.HttpSession;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test cases for the UserSessionState class.
+ */
+public class UserSessionStateTest {
+
+	private HttpSession httpSession;
+	private PhotoFilter photoFilter;
+	private UserSessionState state;
+
+	@Before
+	public void setUp() {
+		photoFilter = new PhotoFilter();
+		httpSession = mock(HttpSession.class);
+		when(httpSession.getAttribute(UserSession.PHOTO_FILTER)).thenReturn(photoFilter);
+		when(httpSession.getAttribute(UserSession.CLIENT_ID)).thenReturn("guest#1");
+		state = new UserSessionState(httpSession);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testReadOnlyRequestWritesNothing() {
+		assertEquals("guest#1", state.getAttribute(UserSession.CLIENT_ID));
+		assertEquals(photoFilter, state.getAttribute(UserSession.PHOTO_FILTER));
+		state.setAttribute(UserSession.CLIENT_ID, "guest#1");
+		state.setAttribute(UserSession.PHOTO_FILTER, photoFilter);
+
+		assertFalse(state.hasChanges());
+		state.flush();
+
+		verify(httpSession, never()).setAttribute(anyString(), any());
+		verify(httpSession, times(1)).getAttribute(UserSession.CLIENT_ID);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testChangedAttributesAreWrittenOnceInFlush() {
+		state.setAttribute(UserSession.MESSAGE, "first");
+		state.setAttribute(UserSession.MESSAGE, "second");
+		verify(httpSession, never()).setAttribute(anyString(), any());
+
+		assertTrue(state.hasChanges());
+		state.flush();
+
+		verify(httpSession, times(1)).setAttribute(UserSession.MESSAGE, "second");
+		assertFalse(state.hasChanges());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testAttributeChangedInPlaceIsWritten() {
+		PhotoFilter filter = (PhotoFilter) state.getAttribute(UserSession.PHOTO_FILTER);
+		filter.setUserName("anna");
+
+		assertTrue(state.hasChanges());
+		state.flush();
+
+		verify(httpSession, times(1)).setAttribute(UserSession.PHOTO_FILTER, photoFilter);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRemovedAttributeIsRemoved() {
+		state.setAttribute(UserSession.CLIENT_ID, null);
+		assertEquals(null, state.getAttribute(UserSession.CLIENT_ID));
+
+		state.flush();
+
+		verify(httpSession, times(1)).removeAttribute(UserSession.CLIENT_ID);
+	}
+
+}
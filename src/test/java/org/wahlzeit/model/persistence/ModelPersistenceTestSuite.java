@@ -26,6 +26,7 @@ import org.wahlzeit.utils.VersionTest;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
-	DatastoreAdapterTest.class
+	DatastoreAdapterTest.class,
+	ModelSnapshotTest.class
 })
 public class ModelPersistenceTestSuite {}
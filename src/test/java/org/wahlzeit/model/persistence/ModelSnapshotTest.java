@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.model.persistence;
+
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.wahlzeit.model.Client;
+import org.wahlzeit.model.PhotoId;
+import org.wahlzeit.model.User;
+import org.wahlzeit.model.UserManager;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the ModelSnapshot class.
+ */
+public class ModelSnapshotTest {
+
+	@ClassRule
+	public static RuleChain ruleChain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	private File file;
+
+	private ModelSnapshot snapshot;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("wahlzeit-model", ".snapshot");
+		file.delete();
+		snapshot = new ModelSnapshot(file);
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testWriteAndReadContents() throws IOException {
+		User user = createUser("5151", "han", "han@corellia.org");
+
+		snapshot.write();
+		final ByteBuffer buffer = snapshot.readBuffer();
+		ModelSnapshot.Contents contents = ObjectifyService.run(new Work<ModelSnapshot.Contents>() {
+			@Override
+			public ModelSnapshot.Contents run() {
+				return snapshot.readContents(buffer);
+			}
+		});
+
+		assertNotNull(contents);
+		assertEquals(PhotoId.getCurrentIdAsInt(), contents.lastPhotoId);
+		assertEquals((long) UserManager.getInstance().getLastClientId(), contents.lastUserId);
+		Client restoredUser = findClient(contents, user.getId());
+		assertNotNull(restoredUser);
+		assertEquals("han", restoredUser.getNickName());
+		assertEquals(user.getEmailAddress(), restoredUser.getEmailAddress());
+		assertFalse(buffer.hasRemaining());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRestoreCatchesUpWithChanges() throws IOException {
+		final UserManager userManager = UserManager.getInstance();
+		final User deletedUser = createUser("5252", "lando", "lando@bespin.org");
+		snapshot.write();
+
+		final User newUser = createUser("5353", "chewie", "chewie@kashyyyk.org");
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				userManager.deleteClient(deletedUser);
+				userManager.removeClient(newUser); // saved, but dropped from memory as if on another instance
+				return null;
+			}
+		});
+		assertFalse(userManager.hasClientById(newUser.getId()));
+
+		assertTrue(snapshot.restore());
+
+		assertTrue(userManager.hasClientById(newUser.getId()));
+		assertFalse(userManager.hasClientById(deletedUser.getId()));
+		assertEquals(null, userManager.getUserByEmailAddress("lando@bespin.org"));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testNoSnapshotIsNotRestored() {
+		assertFalse(snapshot.restore());
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected User createUser(final String id, final String nickName, final String emailAddress) {
+		return ObjectifyService.run(new Work<User>() {
+			@Override
+			public User run() {
+				return new User(id, nickName, emailAddress);
+			}
+		});
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected Client findClient(ModelSnapshot.Contents contents, String id) {
+		for (Client client : contents.clients) {
+			if (client.getId().equals(id)) {
+				return client;
+			}
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.services;
+
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.wahlzeit.model.Client;
+import org.wahlzeit.model.Tag;
+import org.wahlzeit.model.User;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the ObjectManager class.
+ */
+public class ObjectManagerTest {
+
+	@ClassRule
+	public static RuleChain ruleChain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	/**
+	 * Changes the written objects as if another request changed them while they were written
+	 */
+	private final ObjectManager changingManager = new ObjectManager() {
+		@Override
+		protected void updateDependents(Persistent object) {
+			object.incWriteCount();
+		}
+	};
+
+	/**
+	 *
+	 */
+	private final ObjectManager manager = new ObjectManager() {};
+
+	/**
+	 *
+	 */
+	@Test
+	public void testWrittenObjectIsClean() {
+		final Tag tag = new Tag("mossy", "x1");
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				manager.writeObject(tag);
+				return null;
+			}
+		});
+
+		assertFalse(tag.isDirty());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testObjectChangedWhileWrittenStaysDirty() {
+		final Tag tag = new Tag("slimy", "x2");
+		final Tag otherTag = new Tag("edible", "x3");
+		final Tag asyncTag = new Tag("poisonous", "x4");
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				changingManager.writeObject(tag);
+				changingManager.writeObjects(Arrays.asList(otherTag));
+				changingManager.writeObjectAsync(asyncTag).now();
+				return null;
+			}
+		});
+
+		assertTrue(tag.isDirty());
+		assertTrue(otherTag.isDirty());
+		assertTrue(asyncTag.isDirty());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testWriteCountIsOnlyResetIfUnchanged() {
+		Tag tag = new Tag("gilled", "x5");
+		int writeCount = tag.getWriteCount();
+		tag.incWriteCount();
+
+		assertFalse(tag.resetWriteCount(writeCount));
+		assertTrue(tag.isDirty());
+		assertTrue(tag.resetWriteCount(tag.getWriteCount()));
+		assertFalse(tag.isDirty());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testReadObjectAsyncFindsEntityBelowParent() {
+		Client client = ObjectifyService.run(new Work<Client>() {
+			@Override
+			public Client run() {
+				new User("6161", "rey", "rey@jakku.org"); // saved below the parent of the key strategy
+				return manager.readObjectAsync(Client.class, "6161").now();
+			}
+		});
+
+		assertNotNull(ObjectManager.getParentKey()); // the default key strategy
+		assertNotNull(client);
+		assertEquals("rey", client.getNickName());
+		assertNull(ObjectifyService.run(new Work<Client>() {
+			@Override
+			public Client run() {
+				return manager.readObjectAsync(Client.class, "6262").now();
+			}
+		}));
+	}
+
+}
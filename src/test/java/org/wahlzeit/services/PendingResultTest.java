@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.services;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test cases for the PendingResult class.
+ */
+public class PendingResultTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testCompletionRunsOnce() {
+		final int[] noCompletions = {0};
+		PendingResult<String> pendingResult = new PendingResult<String>(() -> "photo", value -> noCompletions[0]++);
+		assertFalse(pendingResult.isDone());
+
+		assertEquals("photo", pendingResult.now());
+		assertEquals("photo", pendingResult.now());
+		assertTrue(pendingResult.isDone());
+		assertEquals(1, noCompletions[0]);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testAllOfKeepsOrder() {
+		PendingResult<Integer> first = new PendingResult<Integer>(() -> 1);
+		PendingResult<Integer> second = PendingResult.completed(2);
+
+		List<Integer> values = PendingResult.allOf(Arrays.asList(first, second)).now();
+		assertEquals(Arrays.asList(1, 2), values);
+		assertTrue(first.isDone());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testWaitForAllWaitsForAllBeforeFailing() {
+		PendingResult<Integer> failing = new PendingResult<Integer>(() -> {
+			throw new IllegalStateException("datastore unavailable");
+		});
+		PendingResult<Integer> succeeding = new PendingResult<Integer>(() -> 2);
+
+		try {
+			PendingResult.waitForAll(Arrays.asList(failing, succeeding));
+			fail("failure should be rethrown");
+		} catch (IllegalStateException e) {
+			assertTrue(succeeding.isDone());
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testGetWrapsFailure() throws Exception {
+		PendingResult<Integer> failing = new PendingResult<Integer>(() -> {
+			throw new IllegalStateException("datastore unavailable");
+		});
+
+		try {
+			failing.get();
+			fail("failure should be wrapped");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
+
+}
@@ -26,6 +26,9 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
 	EmailAddressTest.class,
-	LogBuilderTest.class
+	LogBuilderTest.class,
+	ObjectManagerTest.class,
+	PendingResultTest.class,
+	WriteBehindQueueTest.class
 })
 public class ServicesTestSuite {}
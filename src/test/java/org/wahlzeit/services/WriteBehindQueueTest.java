@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.services;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the WriteBehindQueue class.
+ */
+public class WriteBehindQueueTest {
+
+	private List<Persistent> writtenObjects;
+
+	private int noFailuresLeft;
+
+	private int noBatchWrites;
+
+	private ObjectManager manager;
+
+	@Before
+	public void setUp() {
+		writtenObjects = new ArrayList<Persistent>();
+		noFailuresLeft = 0;
+		noBatchWrites = 0;
+		manager = createObjectManager();
+	}
+
+	/**
+	 *
+	 */
+	private ObjectManager createObjectManager() {
+		return new ObjectManager() {
+			@Override
+			protected void writeObjects(Collection<? extends Persistent> objects) {
+				if (noFailuresLeft > 0) {
+					noFailuresLeft--;
+					throw new IllegalStateException("datastore unavailable");
+				}
+				noBatchWrites++;
+				for (Persistent object : objects) {
+					writtenObjects.add(object);
+					object.resetWriteCount();
+				}
+			}
+		};
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRepeatedWritesAreCoalesced() {
+		WriteBehindQueue queue = new WriteBehindQueue(10, 60000);
+		TestObject object = new TestObject();
+		queue.enqueue(manager, object);
+		queue.enqueue(manager, object);
+		queue.enqueue(manager, new TestObject());
+
+		assertEquals(2, queue.getQueueDepth());
+		assertEquals(1, queue.getCoalescedCount());
+		assertTrue(writtenObjects.isEmpty());
+
+		queue.drain();
+		assertEquals(2, writtenObjects.size());
+		assertEquals(0, queue.getQueueDepth());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testFlushesWhenBatchIsFull() {
+		WriteBehindQueue queue = new WriteBehindQueue(3, 60000);
+		queue.enqueue(manager, new TestObject());
+		queue.enqueue(manager, new TestObject());
+		assertFalse(queue.isFlushDue());
+
+		queue.enqueue(manager, new TestObject());
+		assertEquals(3, writtenObjects.size());
+		assertEquals(1, queue.getFlushCount());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testFlushesWhenDelayIsOver() {
+		WriteBehindQueue queue = new WriteBehindQueue(100, 0);
+		queue.enqueue(manager, new TestObject());
+
+		assertEquals(1, writtenObjects.size());
+		assertEquals(0, queue.getQueueDepth());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testFlushWritesOneBatchPerManager() {
+		WriteBehindQueue queue = new WriteBehindQueue(10, 60000);
+		ObjectManager otherManager = createObjectManager();
+		queue.enqueue(manager, new TestObject());
+		queue.enqueue(otherManager, new TestObject());
+		queue.enqueue(manager, new TestObject());
+
+		queue.drain();
+		assertEquals(3, writtenObjects.size());
+		assertEquals(2, noBatchWrites);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testFailedWritesAreRetried() {
+		WriteBehindQueue queue = new WriteBehindQueue(10, 60000);
+		noFailuresLeft = 1;
+		queue.enqueue(manager, new TestObject());
+
+		assertTrue(queue.drain());
+		assertEquals(1, writtenObjects.size());
+		assertEquals(1, queue.getFailedWriteCount());
+		assertEquals(0, queue.getDroppedCount());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testGivesUpAfterMaxAttempts() {
+		WriteBehindQueue queue = new WriteBehindQueue(10, 60000);
+		noFailuresLeft = WriteBehindQueue.MAX_ATTEMPTS;
+		queue.enqueue(manager, new TestObject());
+
+		assertFalse(queue.drain());
+		assertTrue(writtenObjects.isEmpty());
+		assertEquals(1, queue.getDroppedCount());
+	}
+
+	/**
+	 *
+	 */
+	private static class TestObject extends DataObject {
+		private TestObject() {
+			incWriteCount();
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.services.cache;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the ExpiringCache class.
+ */
+public class ExpiringCacheTest {
+
+	private AtomicLong now;
+
+	private List<Integer> removedKeys;
+
+	private ExpiringCache<Integer, String> cache;
+
+	@Before
+	public void setUp() {
+		now = new AtomicLong(1000);
+		removedKeys = new ArrayList<Integer>();
+		cache = new ExpiringCache<Integer, String>(10, 100, (key, value) -> removedKeys.add(key), now::get);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testAccessKeepsEntryAlive() {
+		cache.put(1, "one");
+		cache.put(2, "two");
+
+		now.addAndGet(60);
+		assertEquals("one", cache.get(1));
+		now.addAndGet(60);
+
+		assertEquals("one", cache.get(1));
+		assertNull(cache.get(2));
+		assertEquals(Integer.valueOf(2), removedKeys.get(0));
+		assertEquals(1, cache.size());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSweepRemovesExpiredEntries() {
+		for (int i = 0; i < 5; i++) {
+			cache.put(i, "value" + i);
+		}
+		now.addAndGet(101);
+		cache.put(5, "value5");
+
+		assertEquals(1, cache.size());
+		assertEquals(5, removedKeys.size());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSizeIsBoundedByLeastRecentAccess() {
+		for (int i = 0; i < 10; i++) {
+			cache.put(i, "value" + i);
+			now.incrementAndGet();
+		}
+		cache.get(0);
+		now.incrementAndGet();
+
+		cache.put(10, "value10");
+
+		assertTrue(cache.size() <= 9);
+		assertEquals("value0", cache.get(0));
+		assertEquals("value10", cache.get(10));
+		assertTrue(removedKeys.contains(1));
+		assertTrue(removedKeys.contains(2));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRemoveDoesNotNotify() {
+		cache.put(1, "one");
+		assertEquals("one", cache.remove(1));
+		now.addAndGet(1000);
+		cache.cleanUp();
+
+		assertEquals(0, cache.size());
+		assertTrue(removedKeys.isEmpty());
+	}
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.services.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the OffHeapByteCache class.
+ */
+public class OffHeapByteCacheTest {
+
+	private static final int BLOCK_SIZE = 1024;
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPutAndGetAcrossBlocks() {
+		OffHeapByteCache<String> cache = new OffHeapByteCache<String>(16 * BLOCK_SIZE, BLOCK_SIZE);
+		byte[] value = createValue(3 * BLOCK_SIZE + 17, 7);
+		cache.put("a", value);
+		cache.put("empty", new byte[0]);
+
+		assertArrayEquals(value, cache.get("a"));
+		assertArrayEquals(new byte[0], cache.get("empty"));
+		assertNull(cache.get("b"));
+		assertEquals(5 * BLOCK_SIZE, cache.getUsedBytes());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testReplaceFreesOldBlocks() {
+		OffHeapByteCache<String> cache = new OffHeapByteCache<String>(16 * BLOCK_SIZE, BLOCK_SIZE);
+		cache.put("a", createValue(4 * BLOCK_SIZE, 1));
+		cache.put("a", createValue(BLOCK_SIZE, 2));
+
+		assertEquals(1, cache.size());
+		assertEquals(BLOCK_SIZE, cache.getUsedBytes());
+		assertArrayEquals(createValue(BLOCK_SIZE, 2), cache.get("a"));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testEvictsLeastRecentlyUsed() {
+		OffHeapByteCache<String> cache = new OffHeapByteCache<String>(4 * BLOCK_SIZE, BLOCK_SIZE);
+		cache.put("a", createValue(2 * BLOCK_SIZE, 1));
+		cache.put("b", createValue(2 * BLOCK_SIZE, 2));
+		cache.get("a");
+		cache.put("c", createValue(BLOCK_SIZE, 3));
+
+		assertTrue(cache.containsKey("a"));
+		assertFalse(cache.containsKey("b"));
+		assertTrue(cache.containsKey("c"));
+		assertEquals(1, cache.getEvictionCount());
+		assertArrayEquals(createValue(2 * BLOCK_SIZE, 1), cache.get("a"));
+		assertArrayEquals(createValue(BLOCK_SIZE, 3), cache.get("c"));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRejectsValueLargerThanCapacity() {
+		OffHeapByteCache<String> cache = new OffHeapByteCache<String>(2 * BLOCK_SIZE, BLOCK_SIZE);
+		cache.put("a", createValue(BLOCK_SIZE, 1));
+
+		assertFalse(cache.put("b", createValue(3 * BLOCK_SIZE, 2)));
+		assertTrue(cache.containsKey("a"));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRemoveAndClear() {
+		OffHeapByteCache<String> cache = new OffHeapByteCache<String>(8 * BLOCK_SIZE, BLOCK_SIZE);
+		cache.put("a", createValue(BLOCK_SIZE, 1));
+		cache.put("b", createValue(BLOCK_SIZE, 2));
+
+		assertTrue(cache.remove("a"));
+		assertFalse(cache.remove("a"));
+		assertEquals(BLOCK_SIZE, cache.getUsedBytes());
+
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getUsedBytes());
+	}
+
+	/**
+	 *
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidBlockSize() {
+		new OffHeapByteCache<String>(1024 * 1024, 1000);
+	}
+
+	/**
+	 *
+	 */
+	private static byte[] createValue(int length, int seed) {
+		byte[] result = new byte[length];
+		for (int i = 0; i < length; i++) {
+			result[i] = (byte) (i * 31 + seed);
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.services.cache;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test cases for the SharedLoader class.
+ */
+public class SharedLoaderTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testConcurrentLoadsShareOneCall() throws Exception {
+		final SharedLoader<String, String> loader = new SharedLoader<String, String>();
+		final AtomicInteger calls = new AtomicInteger();
+		final CountDownLatch loaderStarted = new CountDownLatch(1);
+		final CountDownLatch releaseLoader = new CountDownLatch(1);
+		final Callable<String> slowLoad = new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				calls.incrementAndGet();
+				loaderStarted.countDown();
+				releaseLoader.await(5, TimeUnit.SECONDS);
+				return "value";
+			}
+		};
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			results.add(executor.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					return loader.load("key", slowLoad);
+				}
+			}));
+			assertTrue(loaderStarted.await(5, TimeUnit.SECONDS));
+
+			for (int i = 0; i < 3; i++) {
+				results.add(executor.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						return loader.load("key", slowLoad);
+					}
+				}));
+			}
+			Thread.sleep(50); // let the other callers join the running load
+			releaseLoader.countDown();
+
+			for (Future<String> result : results) {
+				assertEquals("value", result.get(5, TimeUnit.SECONDS));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		assertEquals(1, calls.get());
+		assertEquals(0, loader.getLoadsInFlight());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSequentialLoadsCallAgain() throws Exception {
+		SharedLoader<String, Integer> loader = new SharedLoader<String, Integer>();
+		final AtomicInteger calls = new AtomicInteger();
+		Callable<Integer> load = new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return calls.incrementAndGet();
+			}
+		};
+
+		assertEquals(Integer.valueOf(1), loader.load("key", load));
+		assertEquals(Integer.valueOf(2), loader.load("key", load));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testExceptionIsPassedOn() throws Exception {
+		SharedLoader<String, String> loader = new SharedLoader<String, String>();
+		try {
+			loader.load("key", new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					throw new IOException("not found");
+				}
+			});
+			fail("expected an ExecutionException");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		assertEquals(0, loader.getLoadsInFlight());
+	}
+
+}
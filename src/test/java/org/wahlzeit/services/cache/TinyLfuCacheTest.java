@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.services.cache;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the TinyLfuCache class.
+ */
+public class TinyLfuCacheTest {
+
+	private List<Integer> removedKeys;
+
+	private RemovalListener<Integer, String> listener;
+
+	private static final Weigher<Integer, String> LENGTH_WEIGHER = new Weigher<Integer, String>() {
+		@Override
+		public int weigh(Integer key, String value) {
+			return value.length();
+		}
+	};
+
+	@Before
+	public void setUp() {
+		removedKeys = new ArrayList<Integer>();
+		listener = new RemovalListener<Integer, String>() {
+			@Override
+			public void onRemoval(Integer key, String value) {
+				removedKeys.add(key);
+			}
+		};
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPutAndGet() {
+		TinyLfuCache<Integer, String> cache = new TinyLfuCache<Integer, String>(10, 1000, LENGTH_WEIGHER, listener);
+		cache.put(1, "one");
+		cache.put(2, "two");
+
+		assertEquals("one", cache.get(1));
+		assertEquals("two", cache.get(2));
+		assertNull(cache.get(3));
+		assertEquals(2, cache.size());
+		assertEquals(6, cache.getWeightedSize());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testReplaceUpdatesWeight() {
+		TinyLfuCache<Integer, String> cache = new TinyLfuCache<Integer, String>(10, 1000, LENGTH_WEIGHER, listener);
+		cache.put(1, "one");
+		cache.put(1, "eleven");
+
+		assertEquals("eleven", cache.get(1));
+		assertEquals(1, cache.size());
+		assertEquals(6, cache.getWeightedSize());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testReweighAfterValueShrinks() {
+		Weigher<Integer, StringBuilder> weigher = new Weigher<Integer, StringBuilder>() {
+			@Override
+			public int weigh(Integer key, StringBuilder value) {
+				return value.length();
+			}
+		};
+		TinyLfuCache<Integer, StringBuilder> cache = new TinyLfuCache<Integer, StringBuilder>(10, 1000, weigher, null);
+		StringBuilder value = new StringBuilder("eleven");
+		cache.put(1, value);
+		cache.put(2, new StringBuilder("two"));
+
+		value.setLength(1);
+		assertEquals(9, cache.getWeightedSize()); // not weighed again yet
+
+		cache.reweigh(1);
+		cache.reweigh(3); // not cached
+		assertEquals(4, cache.getWeightedSize());
+		assertEquals(2, cache.size());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testStaysWithinMaximumSize() {
+		TinyLfuCache<Integer, String> cache = new TinyLfuCache<Integer, String>(100, 100000, LENGTH_WEIGHER, listener);
+		for (int i = 0; i < 1000; i++) {
+			cache.put(i, "value" + i);
+		}
+
+		assertEquals(100, cache.size());
+		assertEquals(900, removedKeys.size());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testStaysWithinMaximumWeight() {
+		TinyLfuCache<Integer, String> cache = new TinyLfuCache<Integer, String>(1000, 50, LENGTH_WEIGHER, listener);
+		for (int i = 0; i < 100; i++) {
+			cache.put(i, "0123456789");
+		}
+
+		assertTrue(cache.getWeightedSize() <= 50);
+		assertEquals(5, cache.size());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testFrequentlyUsedEntriesSurviveScan() {
+		TinyLfuCache<Integer, String> cache = new TinyLfuCache<Integer, String>(100, 100000, LENGTH_WEIGHER, listener);
+		for (int i = 0; i < 50; i++) {
+			cache.put(i, "hot" + i);
+		}
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 50; i++) {
+				cache.get(i);
+			}
+		}
+
+		// a long scan of keys that are used only once
+		for (int i = 1000; i < 1400; i++) {
+			cache.put(i, "cold" + i);
+		}
+
+		for (int i = 0; i < 50; i++) {
+			assertTrue("hot entry " + i + " was evicted", cache.containsKey(i));
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRemove() {
+		TinyLfuCache<Integer, String> cache = new TinyLfuCache<Integer, String>(10, 1000, LENGTH_WEIGHER, listener);
+		cache.put(1, "one");
+
+		assertEquals("one", cache.remove(1));
+		assertFalse(cache.containsKey(1));
+		assertEquals(0, cache.getWeightedSize());
+		assertTrue(removedKeys.isEmpty());
+	}
+
+	/**
+	 *
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidBudget() {
+		new TinyLfuCache<Integer, String>(0, 1000, LENGTH_WEIGHER, listener);
+	}
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.wahlzeit.tools;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.KeyFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.wahlzeit.services.ObjectManager;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Test cases for the MigrateEntityKeys script.
+ */
+public class MigrateEntityKeysTest {
+
+	@Rule
+	public TestRule datastoreProvider = new LocalDatastoreServiceTestConfigProvider();
+
+	/**
+	 *
+	 */
+	@Test
+	public void testEntitiesAreMovedToRootKeys() throws EntityNotFoundException {
+		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+		Entity photo = new Entity(KeyFactory.createKey(ObjectManager.applicationRootKey, "Photo", 42));
+		photo.setProperty("ownerId", "testuser");
+		Entity client = new Entity(KeyFactory.createKey(ObjectManager.applicationRootKey, "Client", "testuser"));
+		client.setProperty("nickName", "testuser");
+		datastore.put(Arrays.asList(photo, client));
+
+		MigrateEntityKeys migration = new MigrateEntityKeys();
+		migration.batchSize = 1;
+		assertEquals(1, migration.migrateKind("Photo"));
+		assertEquals(1, migration.migrateKind("Client"));
+
+		assertEquals("testuser", datastore.get(KeyFactory.createKey("Photo", 42)).getProperty("ownerId"));
+		assertEquals("testuser", datastore.get(KeyFactory.createKey("Client", "testuser")).getProperty("nickName"));
+		try {
+			datastore.get(photo.getKey());
+			fail("photo should have been deleted from the application root");
+		} catch (EntityNotFoundException ex) {
+			// expected
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testMigrationCanBeRunAgain() {
+		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+		for (int i = 1; i <= 5; i++) {
+			datastore.put(new Entity(KeyFactory.createKey(ObjectManager.applicationRootKey, "Tag", i)));
+		}
+
+		MigrateEntityKeys migration = new MigrateEntityKeys();
+		migration.batchSize = 2;
+		assertEquals(5, migration.migrateKind("Tag"));
+		assertEquals(0, migration.migrateKind("Tag"));
+	}
+
+}
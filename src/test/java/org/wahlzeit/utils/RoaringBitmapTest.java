@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the RoaringBitmap class.
+ */
+public class RoaringBitmapTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testAddRemoveContains() {
+		RoaringBitmap bitmap = RoaringBitmap.of(7, 3, 70000, 3);
+		assertEquals(3, bitmap.getCardinality());
+		assertTrue(bitmap.contains(70000));
+		assertFalse(bitmap.contains(4));
+		assertArrayEquals(new int[] {3, 7, 70000}, bitmap.toArray());
+
+		bitmap.remove(70000);
+		bitmap.remove(8);
+		assertArrayEquals(new int[] {3, 7}, bitmap.toArray());
+
+		bitmap.remove(3);
+		bitmap.remove(7);
+		assertTrue(bitmap.isEmpty());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSetOperations() {
+		RoaringBitmap a = RoaringBitmap.of(1, 2, 3, 65536, 65537);
+		RoaringBitmap b = RoaringBitmap.of(2, 3, 4, 65537, 200000);
+
+		assertArrayEquals(new int[] {2, 3, 65537}, RoaringBitmap.and(a, b).toArray());
+		assertArrayEquals(new int[] {1, 2, 3, 4, 65536, 65537, 200000}, RoaringBitmap.or(a, b).toArray());
+		assertArrayEquals(new int[] {1, 65536}, RoaringBitmap.andNot(a, b).toArray());
+		assertArrayEquals(new int[] {1, 2, 3, 65536, 65537}, a.toArray()); // operands are not changed
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSerialization() throws Exception {
+		RoaringBitmap bitmap = RoaringBitmap.of(5, 65540, 1 << 20);
+		for (int i = 0; i < 10000; i++) {
+			bitmap.add(2 * i); // one dense container
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(bitmap);
+		}
+		RoaringBitmap readBitmap;
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			readBitmap = (RoaringBitmap) in.readObject();
+		}
+
+		assertEquals(bitmap, readBitmap);
+		assertEquals(10003, readBitmap.getCardinality());
+		readBitmap.add(7); // still usable
+		assertTrue(readBitmap.contains(7));
+	}
+
+	/**
+	 * Mixes sparse and dense containers and compares all operations with a TreeSet.
+	 */
+	@Test
+	public void testAgainstTreeSet() {
+		Random random = new Random(42);
+		for (int round = 0; round < 20; round++) {
+			TreeSet<Integer> expectedA = new TreeSet<Integer>();
+			TreeSet<Integer> expectedB = new TreeSet<Integer>();
+			RoaringBitmap a = new RoaringBitmap();
+			RoaringBitmap b = new RoaringBitmap();
+			int noValues = (round % 2 == 0) ? 500 : 20000; // dense rounds use bitmap containers
+			for (int i = 0; i < noValues; i++) {
+				int valueA = random.nextInt(3 * 65536);
+				int valueB = random.nextInt(3 * 65536);
+				expectedA.add(valueA);
+				a.add(valueA);
+				expectedB.add(valueB);
+				b.add(valueB);
+			}
+			for (int i = 0; i < noValues / 2; i++) {
+				int value = random.nextInt(3 * 65536);
+				expectedA.remove(value);
+				a.remove(value);
+			}
+
+			assertArrayEquals(asArray(expectedA), a.toArray());
+			assertEquals(expectedA.size(), a.getCardinality());
+
+			TreeSet<Integer> expectedAnd = new TreeSet<Integer>(expectedA);
+			expectedAnd.retainAll(expectedB);
+			assertArrayEquals(asArray(expectedAnd), RoaringBitmap.and(a, b).toArray());
+
+			TreeSet<Integer> expectedOr = new TreeSet<Integer>(expectedA);
+			expectedOr.addAll(expectedB);
+			assertArrayEquals(asArray(expectedOr), RoaringBitmap.or(a, b).toArray());
+
+			TreeSet<Integer> expectedAndNot = new TreeSet<Integer>(expectedA);
+			expectedAndNot.removeAll(expectedB);
+			assertArrayEquals(asArray(expectedAndNot), RoaringBitmap.andNot(a, b).toArray());
+		}
+	}
+
+	/**
+	 *
+	 */
+	private static int[] asArray(TreeSet<Integer> values) {
+		int[] result = new int[values.size()];
+		int i = 0;
+		for (int value : values) {
+			result[i++] = value;
+		}
+		return result;
+	}
+
+}
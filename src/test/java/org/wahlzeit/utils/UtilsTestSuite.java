@@ -25,6 +25,7 @@ import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
+	RoaringBitmapTest.class,
 	StringUtilTest.class,
 	VersionTest.class
 })